@@ -1,24 +1,64 @@
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
 import javax.imageio.ImageIO;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.*;
 import javax.swing.border.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 
 public class FloorPlanner extends JFrame {
+    // Pinned to the values in plans saved before PlanFile, so old .ser plans still load
+    private static final long serialVersionUID = -9032601476052817808L;
+
     public static final int GRID_SIZE = 20;
     public static final int drag = 2;
     public static final int CANVAS_WIDTH = 800;
     public static final int CANVAS_HEIGHT = 600;
+    // Rooms added past this x start a new row below, and none is added across it
+    public static final int ROW_WIDTH = 1300;
     
     public JPanel controlPanel;
     public DrawingCanvas canvas;
-    public ArrayList<Room> rooms;
+    public transient FloorPlan plan = new FloorPlan();
     public Room selectedRoom;
     public Room draggedRoom;
     public Point dragStart;
@@ -33,12 +73,16 @@ public class FloorPlanner extends JFrame {
     public boolean isVerticalDoor = false;
     public JPanel furniturePanel;
     public JPanel fixturesPanel;
-    public Map<String, ImageIcon> furnitureIcons;
-    public Map<String, ImageIcon> fixtureIcons;
+    public static Map<String, ImageIcon> furnitureIcons;
+    public static Map<String, ImageIcon> fixtureIcons;
     public String selectedFurniture = null;
     public String selectedFixture = null;
     public Point draggedItemStart = null;
-    public ArrayList<FurnitureItem> furnitureItems = new ArrayList<>();
+    public FurnitureItem draggedItem = null;
+    public transient AutosaveJournal autosave;
+    public transient BackgroundTask<?> backgroundTask;
+    // Kept between checks, so each only looks again at what changed since the last
+    public final transient PlanValidator validator = new PlanValidator();
 
     // Room Colors
     public static final Color BEDROOM_COLOR = new Color(144, 238, 144);
@@ -67,15 +111,50 @@ public class FloorPlanner extends JFrame {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setExtendedState(JFrame.MAXIMIZED_BOTH);
         
-        rooms = new ArrayList<>();
         loadIcons();
+        RenderMetrics.register();
+        openAutosave();
         initializeComponents();
         layoutComponents();
         
         setVisible(true);
     }
 
-    public void loadIcons() {
+    // Picks up the plan the last session was editing and journals edits from here on
+    public void openAutosave() {
+        try {
+            autosave = AutosaveJournal.open(new File(AutosaveJournal.DIRECTORY));
+            plan = autosave.recover();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Autosave is off: " + e.getMessage());
+            if (autosave != null) {
+                try {
+                    autosave.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                autosave = null;
+            }
+            return;
+        }
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                try {
+                    autosave.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+    }
+
+    // Static so that plans rendered without a window get their icons too
+    public static synchronized void loadIcons() {
+        if (furnitureIcons != null) {
+            return;
+        }
         furnitureIcons = new HashMap<>();
         fixtureIcons = new HashMap<>();
         
@@ -83,7 +162,7 @@ public class FloorPlanner extends JFrame {
         String[] furnitureTypes = {"bed", "chair", "table", "sofa", "dining_set"};
         for (String type : furnitureTypes) {
             try {
-                BufferedImage img = ImageIO.read(getClass().getResourceAsStream("/furniture/" + type + ".png"));
+                BufferedImage img = ImageIO.read(FloorPlanner.class.getResourceAsStream("/furniture/" + type + ".png"));
                 // Use better quality image scaling
                 BufferedImage scaledImg = new BufferedImage(40, 10, BufferedImage.TYPE_INT_ARGB);
                 Graphics2D g2d = scaledImg.createGraphics();
@@ -109,7 +188,7 @@ public class FloorPlanner extends JFrame {
         String[] fixtureTypes = {"commode", "washbasin", "shower", "kitchen_sink", "stove"};
         for (String type : fixtureTypes) {
             try {
-                BufferedImage img = ImageIO.read(getClass().getResourceAsStream("/fixtures/" + type + ".png"));
+                BufferedImage img = ImageIO.read(FloorPlanner.class.getResourceAsStream("/fixtures/" + type + ".png"));
                 // Use better quality image scaling
                 BufferedImage scaledImg = new BufferedImage(40, 10, BufferedImage.TYPE_INT_ARGB);
                 Graphics2D g2d = scaledImg.createGraphics();
@@ -188,60 +267,268 @@ public class FloorPlanner extends JFrame {
         //if(response == JFileChooser.APPROVE_OPTION){
             //File fileselected = file.getSelectedFile();
             //String filename = fileselected.getAbsolutePath();
-            try(ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("floorplan.ser"))){
-                oos.writeObject(rooms);
-                oos.writeObject(furnitureItems);
-                oos.close();
-                JOptionPane.showMessageDialog(this, "Plan saved successfully!");
+            if (isBackgroundTaskRunning()) {
+                return;
+            }
+            // The plan is copied here and written in the background, so editing can carry on
+            File saved = new File("floorplan." + PlanFile.EXTENSION);
+            FloorPlan savedPlan = plan;
+            PlanFile.SaveJob job;
+            try {
+                job = savedPlan.prepareSave(saved);
             } catch (IOException e) {
                 e.printStackTrace();
-                JOptionPane.showMessageDialog(this, "Error saving the plan."+e.getMessage());
+                JOptionPane.showMessageDialog(this, "Error saving the plan.");
+                return;
+            }
+            BackgroundTask<Void> task = new BackgroundTask<>("Saving plan", progress -> {
+                job.write(progress);
+                return null;
+            }, result -> {
+                savedPlan.finishSave(job);
+                JOptionPane.showMessageDialog(this, "Plan saved successfully!");
+            }, "Error saving the plan.");
+            task.execute();
+            if (autosave != null) {
+                autosave.attach(plan, saved, task);
             }
         //}
     }
 
 
     // loading the floor plan
-    @SuppressWarnings("unchecked")
     public void loadPlan() {
+        if (isBackgroundTaskRunning()) {
+            return;
+        }
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setCurrentDirectory(new File("."));
         fileChooser.setDialogTitle("Open Floor Plan");
     
-        // filtering .ser files
-        FileNameExtensionFilter filter = new FileNameExtensionFilter("Serialized Files (*.ser)", "ser");
+        // filtering plan files, including .ser files saved by older versions
+        FileNameExtensionFilter filter = new FileNameExtensionFilter("Floor Plans (*." + PlanFile.EXTENSION + ", *.ser)", PlanFile.EXTENSION, "ser");
         fileChooser.setFileFilter(filter);
     
         int userSelection = fileChooser.showOpenDialog(this);
     
         if (userSelection == JFileChooser.APPROVE_OPTION) {
-        //File fileToLoad = fileChooser.getSelectedFile();
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream("floorplan.ser"))) { //should be fileToLoad here
-            rooms = (ArrayList<Room>) ois.readObject();
-            furnitureItems = (ArrayList<FurnitureItem>) ois.readObject();
-            canvas.repaint();
+        File fileToLoad = fileChooser.getSelectedFile();
+        // Read in the background; the current plan stays up, and editable, until it is swapped out
+        new BackgroundTask<FloorPlan>("Loading plan", progress -> {
+            FloorPlan loaded = FloorPlan.open(fileToLoad, progress);
+            if (!progress.update(1, 1)) {
+                loaded.close();
+                throw new InterruptedIOException("Cancelled");
+            }
+            return loaded;
+        }, loaded -> {
+            plan.close();
+            plan = loaded;
+            selectedRoom = referenceRoom = draggedRoom = null;
+            draggedItem = null;
+            if (autosave != null) {
+                autosave.attach(plan, fileToLoad);
+            }
+            canvas.viewChanged();
             JOptionPane.showMessageDialog(this, "Plan loaded successfully!");
-            ois.close();
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error loading plan."+e.getMessage());
-        }
+        }, "Error loading plan.").execute();
         }
     }
 
     // Export the floor plan as an image
     public void exportAsImage() {
-        BufferedImage image = new BufferedImage(canvas.getWidth(), canvas.getHeight(), BufferedImage.TYPE_INT_RGB);
-        Graphics2D g2d = image.createGraphics();
-        canvas.paint(g2d);
-        g2d.dispose();
+        if (isBackgroundTaskRunning()) {
+            return;
+        }
+        // Painted from the current version of the plan, a band at a time, while editing carries on
+        Rectangle area = canvas.getVisiblePlanRect();
+        double scale = canvas.getZoom();
+        PlanVersion version = plan.publish();
+        File image = new File("floorplan.png");
+        new BackgroundTask<Void>("Exporting image", progress -> {
+            try {
+                new TiledExporter(version).writePng(image, area, scale, progress);
+            } catch (IOException e) {
+                image.delete();
+                throw e;
+            }
+            return null;
+        }, result -> JOptionPane.showMessageDialog(this, "Plan exported as image successfully!"),
+           "Error exporting image.").execute();
+    }
+
+    // Import rooms, doors, windows and furniture from a CSV or JSON file; see PlanImport
+    public void importPlan() {
+        if (isBackgroundTaskRunning()) {
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setCurrentDirectory(new File("."));
+        fileChooser.setDialogTitle("Import Rooms and Furniture");
+        fileChooser.setFileFilter(new FileNameExtensionFilter("CSV or JSON (*.csv, *.json)", "csv", "json"));
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File source = fileChooser.getSelectedFile();
+        // Checked against the whole of the current version while editing carries on,
+        // and added in one step
+        BackgroundWork<PlanVersion> whole;
         try {
-            ImageIO.write(image, "png", new File("floorplan.png"));
-            JOptionPane.showMessageDialog(this, "Plan exported as image successfully!");
+            whole = wholePlan();
         } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error exporting image.");
+            JOptionPane.showMessageDialog(this, "Error importing plan." + e.getMessage());
+            return;
+        }
+        new BackgroundTask<PlanImport>("Importing plan", progress -> PlanImport.read(source, whole.run(progress), progress), imported -> {
+            int added = imported.apply(plan);
+            canvas.repaint();
+            showImportReport(imported, added);
+        }, "Error importing plan.").execute();
+    }
+
+    // Check the whole plan against the placement rules, off the EDT; see PlanValidator
+    public void checkPlan() {
+        if (isBackgroundTaskRunning()) {
+            return;
+        }
+        BackgroundWork<PlanVersion> whole;
+        try {
+            whole = wholePlan();
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Error checking plan." + e.getMessage());
+            return;
+        }
+        PlanVersion[] version = new PlanVersion[1];
+        new BackgroundTask<List<PlanValidator.Violation>>("Checking plan", progress -> validator.validate(version[0] = whole.run(progress)), violations -> {
+            showReport("Plan Check", violations.isEmpty() ? "The plan breaks no placement rules."
+                       : violations.size() + " problems found in " + version[0].roomCount + " rooms and "
+                         + version[0].itemCount + " furniture items.", violations);
+        }, "Error checking plan.").execute();
+    }
+
+    // Publishes the plan and returns work giving the whole of it. A paged plan's
+    // version holds only the pages loaded, so the work reads the rest from the file.
+    private BackgroundWork<PlanVersion> wholePlan() throws IOException {
+        PlanVersion version = plan.publish();
+        if (!version.partial) {
+            return progress -> version;
+        }
+        PagedPlan.Unloaded unloaded = plan.pagedPlan.unloaded();
+        return progress -> unloaded.addTo(version, progress);
+    }
+
+    // Lists what an import added and the first violations it found
+    private void showImportReport(PlanImport imported, int added) {
+        showReport("Import", added + " of " + (imported.rooms.size() + imported.items.size())
+                   + " rooms and furniture items imported, " + imported.violations.size() + " problems found.",
+                   imported.violations);
+    }
+
+    // A summary, and below it the first thousand problems in a scrolling list
+    private void showReport(String title, String summary, List<?> problems) {
+        if (problems.isEmpty()) {
+            JOptionPane.showMessageDialog(this, summary, title, JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        int shown = Math.min(problems.size(), 1000);
+        for (int i = 0; i < shown; i++) {
+            text.append(problems.get(i)).append('\n');
+        }
+        if (shown < problems.size()) {
+            text.append("... and ").append(problems.size() - shown).append(" more\n");
+        }
+        JTextArea list = new JTextArea(text.toString(), 15, 60);
+        list.setEditable(false);
+        JPanel report = new JPanel(new BorderLayout(0, 8));
+        report.add(new JLabel(summary), BorderLayout.NORTH);
+        report.add(new JScrollPane(list), BorderLayout.CENTER);
+        JOptionPane.showMessageDialog(this, report, title, JOptionPane.WARNING_MESSAGE);
+    }
+
+    // Work for a BackgroundTask, which reports through progress as it goes
+    interface BackgroundWork<T> {
+        T run(PlanFile.Progress progress) throws Exception;
+    }
+
+    interface BackgroundResult<T> {
+        void accept(T result) throws Exception;
+    }
+
+    // Runs a save, load, import or export off the EDT behind a progress dialog with a Cancel
+    // button, one at a time. Cancelling makes the work's next progress report throw,
+    // so done only runs once the work has stopped, and onDone only if it succeeded.
+    class BackgroundTask<T> extends SwingWorker<T, Void> {
+        private final String title;
+        private final BackgroundWork<T> work;
+        private final BackgroundResult<T> onDone;
+        private final String failure;
+        private final ProgressMonitor monitor;
+        private final javax.swing.Timer cancelPoll;
+        private volatile boolean cancelRequested;
+
+        BackgroundTask(String title, BackgroundWork<T> work, BackgroundResult<T> onDone, String failure) {
+            this.title = title;
+            this.work = work;
+            this.onDone = onDone;
+            this.failure = failure;
+            monitor = new ProgressMonitor(FloorPlanner.this, title, null, 0, 100);
+            cancelPoll = new javax.swing.Timer(100, e -> cancelRequested |= monitor.isCanceled());
+            addPropertyChangeListener(e -> {
+                if ("progress".equals(e.getPropertyName())) {
+                    monitor.setProgress((Integer) e.getNewValue());
+                }
+            });
+            backgroundTask = this;
+            cancelPoll.start();
         }
+
+        @Override
+        protected T doInBackground() throws Exception {
+            RenderMetrics.FileOperationEvent event = new RenderMetrics.FileOperationEvent();
+            event.begin();
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                T result = work.run((done, total) -> {
+                    setProgress(total > 0 ? (int) Math.min(100, done * 100 / total) : 0);
+                    return !cancelRequested;
+                });
+                succeeded = true;
+                return result;
+            } finally {
+                RenderMetrics.shared.operation(event, title, System.nanoTime() - start, succeeded);
+            }
+        }
+
+        @Override
+        protected void done() {
+            cancelPoll.stop();
+            monitor.close();
+            backgroundTask = null;
+            try {
+                onDone.accept(get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof InterruptedIOException) {
+                    return; // cancelled
+                }
+                e.getCause().printStackTrace();
+                JOptionPane.showMessageDialog(FloorPlanner.this, failure + e.getCause().getMessage());
+            } catch (Exception e) {
+                e.printStackTrace();
+                JOptionPane.showMessageDialog(FloorPlanner.this, failure + e.getMessage());
+            }
+        }
+    }
+
+    private boolean isBackgroundTaskRunning() {
+        if (backgroundTask != null) {
+            JOptionPane.showMessageDialog(this, "Please wait for the current save, load, import, export or check to finish.");
+            return true;
+        }
+        return false;
     }
 
     public void layoutComponents() {
@@ -298,8 +585,15 @@ public class FloorPlanner extends JFrame {
         JButton addWindowButton = new JButton("Add Window");
         gbc.gridy++;
         controlPanel.add(addWindowButton, gbc);
-        
-        // Inside initializeComponents() method
+
+        JButton undoButton = new JButton("Undo");
+        gbc.gridy++;
+        controlPanel.add(undoButton, gbc);
+
+        JButton redoButton = new JButton("Redo");
+        gbc.gridy++;
+        controlPanel.add(redoButton, gbc);
+
         JButton saveButton = new JButton("Save Plan");
         gbc.gridy++;
         controlPanel.add(saveButton, gbc);
@@ -308,10 +602,18 @@ public class FloorPlanner extends JFrame {
         gbc.gridy++;
         controlPanel.add(loadButton, gbc);
 
+        JButton importButton = new JButton("Import Plan");
+        gbc.gridy++;
+        controlPanel.add(importButton, gbc);
+
         JButton exportButton = new JButton("Export as Image");
         gbc.gridy++;
         controlPanel.add(exportButton, gbc);
 
+        JButton checkButton = new JButton("Check Plan");
+        gbc.gridy++;
+        controlPanel.add(checkButton, gbc);
+
         // Add furniture and fixtures panels to control panel
         gbc.gridy++;
         controlPanel.add(furniturePanel, gbc);
@@ -320,8 +622,30 @@ public class FloorPlanner extends JFrame {
         
         // Add button listeners
         saveButton.addActionListener(e -> savePlan());
+        undoButton.addActionListener(e -> undo());
+        redoButton.addActionListener(e -> redo());
+
+        // Ctrl+Z to undo, Ctrl+Y or Ctrl+Shift+Z to redo, wherever the focus is
+        InputMap keys = getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+        int menuKey = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, menuKey), "undo");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Y, menuKey), "redo");
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_Z, menuKey | InputEvent.SHIFT_DOWN_MASK), "redo");
+        getRootPane().getActionMap().put("undo", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) { undo(); }
+        });
+        getRootPane().getActionMap().put("redo", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) { redo(); }
+        });
+        // F3 shows or hides the performance overlay
+        keys.put(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0), "toggleHud");
+        getRootPane().getActionMap().put("toggleHud", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) { canvas.toggleHud(); }
+        });
         loadButton.addActionListener(e -> loadPlan());
+        importButton.addActionListener(e -> importPlan());
         exportButton.addActionListener(e -> exportAsImage());
+        checkButton.addActionListener(e -> checkPlan());
 
         // Add Button Listeners
         addRoomButton.addActionListener(e -> addRoom());
@@ -354,75 +678,86 @@ public class FloorPlanner extends JFrame {
         add(canvas, BorderLayout.CENTER);
     }
     
+    // The fill for a room of the given type
+    static Color roomColor(String type) {
+        switch(type) {
+            case "Bedroom": return BEDROOM_COLOR;
+            case "Bathroom": return BATHROOM_COLOR;
+            case "Kitchen": return KITCHEN_COLOR;
+            default: return LIVING_COLOR;
+        }
+    }
+
     public void addRoom() {
-        int width = Integer.parseInt(widthField.getText());
-        int height = Integer.parseInt(heightField.getText());
+        int width, height;
+        try {
+            width = Integer.parseInt(widthField.getText().trim());
+            height = Integer.parseInt(heightField.getText().trim());
+        } catch (NumberFormatException e) {
+            width = height = 0;
+        }
+        if (width <= 0 || height <= 0) {
+            JOptionPane.showMessageDialog(this, "Room width and height must be whole numbers above 0!");
+            return;
+        }
         String type = (String) roomTypeCombo.getSelectedItem();
         
-        Color roomColor;
-        switch(type) {
-            case "Bedroom": roomColor = BEDROOM_COLOR; break;
-            case "Bathroom": roomColor = BATHROOM_COLOR; break;
-            case "Kitchen": roomColor = KITCHEN_COLOR; break;
-            default: roomColor = LIVING_COLOR;
-        }
+        Color roomColor = roomColor(type);
         
-        Room newRoom;
-        if (referenceRoom == null) {           
-            newRoom = new Room(
-                // (CANVAS_WIDTH - width) / 2,
-                // (CANVAS_HEIGHT - height) / 2,
-                0,0,
-                width, height, type, roomColor
-            );
-        } else {
-            // Place room relative to reference room
-            String direction = (String) directionCombo.getSelectedItem();
-            String alignment = (String) alignmentCombo.getSelectedItem();
-            Point position = calculatePosition(referenceRoom, direction, alignment, width, height);
-            // Room lastRoom = rooms.get(rooms.size() - 1); 
-            // int newX = lastRoom.x + lastRoom.width; 
-            // int newY = lastRoom.y;
-            if (position.x + width >= 1300) { 
-                //JOptionPane.showMessageDialog(this, "Cannot add room here - exceeds canvas width!"); 
-                position.x = 0;
-                int temp=0;
-                int temp2 = position.y;
-                for (Room room : rooms) {
-                    if (temp <= room.height && temp2 == room.y) {
-                        temp = room.height;
-                    }
-                }
-                //height = temp;
-                position.y = position.y+temp;
-                if (position.y + height >= 850){
-                    JOptionPane.showMessageDialog(this, "Cannot add room here - exceeds canvas dimensions!"); 
-                    return;
-                }
-                //return; 
-            }
-            
-            newRoom = new Room(position.x, position.y, width, height, type, roomColor);
-            
-            // Check for overlap
-            if (checkOverlap(newRoom)) {
-                JOptionPane.showMessageDialog(this, "Room overlaps with existing rooms!");
-                return;
+        // The first room goes at the origin, the rest next to the reference room as
+        // the direction and alignment ask, or wherever is nearest if that is taken
+        Room newRoom = new Room(0, 0, width, height, type, roomColor);
+        RoomPlacer placer = new RoomPlacer(plan, 0, 0, ROW_WIDTH);
+        try {
+            if (referenceRoom == null) {
+                placer.place(newRoom, 0, 0, -1);
+            } else {
+                String direction = (String) directionCombo.getSelectedItem();
+                String alignment = (String) alignmentCombo.getSelectedItem();
+                placer.placeNextTo(newRoom, referenceRoom, direction, alignment);
             }
+        } catch (IllegalStateException e) {
+            JOptionPane.showMessageDialog(this, "No free spot for this room!");
+            return;
         }
         
-        rooms.add(newRoom);
+        plan.addRoom(newRoom);
+        plan.history.record(new EditLog.RoomAdded(newRoom, plan.rooms.size() - 1));
         selectedRoom = newRoom;
         referenceRoom = newRoom;
         canvas.repaint();
     }
     
+    public void undo() {
+        if (plan.history.undo(plan)) {
+            historyChanged();
+        }
+    }
+
+    public void redo() {
+        if (plan.history.redo(plan)) {
+            historyChanged();
+        }
+    }
+
+    // Lets go of rooms that undo or redo took out of the plan
+    public void historyChanged() {
+        if (selectedRoom != null && !plan.contains(selectedRoom)) {
+            selectedRoom = null;
+        }
+        if (referenceRoom != null && !plan.contains(referenceRoom)) {
+            referenceRoom = null;
+        }
+        canvas.repaint();
+    }
+
     public void removeRoom() { 
         if (selectedRoom != null) { 
-            rooms.remove(selectedRoom); 
+            plan.history.record(new EditLog.RoomRemoved(selectedRoom, plan.rooms.lastIndexOf(selectedRoom)));
+            plan.removeRoom(selectedRoom); 
             // selectedRoom = null; 
             // referenceRoom = null;
-            for (Room room : rooms) {
+            for (Room room : plan.rooms) {
                 selectedRoom = room;
                 referenceRoom = room;
             } 
@@ -432,7 +767,7 @@ public class FloorPlanner extends JFrame {
         } 
     }
 
-    public Point calculatePosition(Room reference, String direction, String alignment, int width, int height) {
+    public static Point calculatePosition(Room reference, String direction, String alignment, int width, int height) {
         int x = reference.x;
         int y = reference.y;
         
@@ -479,12 +814,23 @@ public class FloorPlanner extends JFrame {
     }
     
     public boolean checkOverlap(Room newRoom) {
-        for (Room room : rooms) {
-            if (room != newRoom && room.intersects(newRoom)) {
-                return true;
-            }
+        return plan.checkOverlap(newRoom);
+    }
+
+    // Pages in the part of a lazily opened plan that the canvas is about to show,
+    // letting go of the selection if its page was dropped
+    public void showPages(Rectangle area) {
+        try {
+            plan.showPages(area);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (selectedRoom != null && !plan.contains(selectedRoom)) {
+            selectedRoom = null;
+        }
+        if (referenceRoom != null && !plan.contains(referenceRoom)) {
+            referenceRoom = null;
         }
-        return false;
     }
 
     public void rotateSelectedRoom() {
@@ -499,13 +845,7 @@ public class FloorPlanner extends JFrame {
             selectedRoom.rotate();
     
             // Check for overlaps
-            boolean overlap = false;
-            for (Room room : rooms) {
-                if (room != selectedRoom && room.intersects(selectedRoom)) {
-                    overlap = true;
-                    break;
-                }
-            }
+            boolean overlap = checkOverlap(selectedRoom);
     
             // Revert if overlap detected
             if (overlap) {
@@ -514,152 +854,6876 @@ public class FloorPlanner extends JFrame {
                 selectedRoom.x = originalX;
                 selectedRoom.y = originalY;
                 JOptionPane.showMessageDialog(this, "Cannot rotate room - overlap detected!");
+            } else {
+                plan.history.record(new EditLog.RoomRotated(selectedRoom));
             }
+            plan.roomChanged(selectedRoom);
     
             canvas.repaint();
         }
     }
 
     public boolean hasAdjacentRoom(Room room, Point p, boolean isVertical) {
-        for (Room adjacentRoom : rooms) {
-            if (adjacentRoom != room) {
-                if (isVertical) {
-                    // Check left and right sides for adjacent rooms
-                    if ((p.x == room.x && p.x == adjacentRoom.x + adjacentRoom.width && p.y >= adjacentRoom.y && p.y <= adjacentRoom.y + adjacentRoom.height) || 
-                        (p.x == room.x + room.width && p.x == adjacentRoom.x && p.y >= adjacentRoom.y && p.y <= adjacentRoom.y + adjacentRoom.height)) {
-                        return true;
-                    }
-                } else {
-                    // Check top and bottom sides for adjacent rooms
-                    if ((p.y == room.y && p.y == adjacentRoom.y + adjacentRoom.height && p.x >= adjacentRoom.x && p.x <= adjacentRoom.x + adjacentRoom.width) || 
-                        (p.y == room.y + room.height && p.y == adjacentRoom.y && p.x >= adjacentRoom.x && p.x <= adjacentRoom.x + adjacentRoom.width)) {
-                        return true;
-                    }
-                }
+        // Left and right sides for a vertical opening, top and bottom otherwise.
+        // The visitor returns false, ending the walk, at the first neighbour whose
+        // wall the point lies on.
+        WallModel.NeighbourVisitor misses = (side, adjacentRoom, from, to) -> {
+            switch (side) {
+                case WallModel.LEFT:
+                    return !(p.x == room.x && p.x == adjacentRoom.x + adjacentRoom.width && p.y >= adjacentRoom.y && p.y <= adjacentRoom.y + adjacentRoom.height);
+                case WallModel.RIGHT:
+                    return !(p.x == room.x + room.width && p.x == adjacentRoom.x && p.y >= adjacentRoom.y && p.y <= adjacentRoom.y + adjacentRoom.height);
+                case WallModel.TOP:
+                    return !(p.y == room.y && p.y == adjacentRoom.y + adjacentRoom.height && p.x >= adjacentRoom.x && p.x <= adjacentRoom.x + adjacentRoom.width);
+                default:
+                    return !(p.y == room.y + room.height && p.y == adjacentRoom.y && p.x >= adjacentRoom.x && p.x <= adjacentRoom.x + adjacentRoom.width);
             }
-        }
-        return false;
+        };
+        int first = isVertical ? WallModel.LEFT : WallModel.TOP;
+        return !plan.walls.forEachNeighbour(room, first, misses) || !plan.walls.forEachNeighbour(room, first + 1, misses);
     }
     
+    // Uniform grid over item bounds. Every item is filed under each cellSize cell
+    // its bounds touch, so a query only looks at items near the query rectangle
+    // instead of scanning the whole plan.
+    static class SpatialGrid<T> {
+        public static final int CELL_SIZE = GRID_SIZE * 8;
 
-    class FurnitureItem implements Serializable {
-        int x, y;
-        String type;
-        Dimension size;
-        boolean isFixture;
-        int rotation = 0; // 0, 90, 180, or 270 degrees
-        
-        public FurnitureItem(int x, int y, String type, boolean isFixture) {
-            this.x = x;
-            this.y = y;
-            this.type = type;
-            this.isFixture = isFixture;
-            this.size = isFixture ? FIXTURE_DIMENSIONS.get(type) : FURNITURE_DIMENSIONS.get(type);
+        // Cells by key in an open-addressed table, probed linearly from the key's
+        // PlanVersion.hash. A HashMap<Long> boxed the key of every cell a query
+        // looked at, and Long.hashCode folds cx into cy, so cells along a diagonal
+        // all landed in the same bin.
+        private long[] cellKeys = new long[64];
+        private ArrayList<T>[] cellItems = newCells(64);
+        private int cellCount;
+        private final IdentityHashMap<T, int[]> bounds = new IdentityHashMap<>();
+        private final int cellSize;
+
+        public SpatialGrid() {
+            this(CELL_SIZE);
         }
-        public void rotate() {
-            rotation = (rotation + 90) % 360;
-            // Swap width and height
-            int temp = size.width;
-            size.width = size.height;
-            size.height = temp;
+
+        public SpatialGrid(int cellSize) {
+            this.cellSize = cellSize;
         }
-        public Rectangle getBounds() {
-            return new Rectangle(x, y, size.width, size.height);
+
+        public int size() {
+            return bounds.size();
         }
-        public boolean contains(Point p) {
-            return p.x >= x && p.x <= x + size.width && 
-                   p.y >= y && p.y <= y + size.height;
+
+        public boolean contains(T item) {
+            return bounds.containsKey(item);
         }
-        public boolean intersects(FurnitureItem other) {
-            return getBounds().intersects(other.getBounds());
+
+        public void clear() {
+            cellKeys = new long[64];
+            cellItems = newCells(64);
+            cellCount = 0;
+            bounds.clear();
         }
-        public void draw(Graphics2D g2d) {
-            // Draw with high quality
-            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-            // Save the current transform
-            AffineTransform oldTransform = g2d.getTransform();
+        public void update(T item, int x, int y, int width, int height) {
+            int[] b = bounds.get(item);
+            if (b == null) {
+                b = new int[]{x, y, width, height};
+                bounds.put(item, b);
+                addToCells(item, b);
+                return;
+            }
+            boolean sameCells = cell(b[0]) == cell(x) && cell(b[1]) == cell(y) &&
+                                cell(b[0] + b[2]) == cell(x + width) && cell(b[1] + b[3]) == cell(y + height);
+            if (!sameCells) {
+                removeFromCells(item, b);
+            }
+            b[0] = x;
+            b[1] = y;
+            b[2] = width;
+            b[3] = height;
+            if (!sameCells) {
+                addToCells(item, b);
+            }
+        }
 
-            // Translate to rotation point (center of the item)
-            g2d.translate(x + size.width/2, y + size.height/2);
-            g2d.rotate(Math.toRadians(rotation));
-            g2d.translate(-size.width/2, -size.height/2);
+        public void remove(T item) {
+            int[] b = bounds.remove(item);
+            if (b != null) {
+                removeFromCells(item, b);
+            }
+        }
 
-            // Draw the furniture/fixture
-            ImageIcon icon = isFixture ? fixtureIcons.get(type) : furnitureIcons.get(type);
-            if (icon != null) {
-                g2d.drawImage(icon.getImage(), 0, 0, size.width, size.height, null);
-            } else {
-                // Fallback to colored rectangle
-                g2d.setColor(isFixture ? Color.CYAN : Color.ORANGE);
-                g2d.fillRect(x, y, size.width, size.height);
+        // Visits each item whose bounds touch the rectangle exactly once.
+        // Returns false as soon as the visitor does, true otherwise.
+        public boolean query(int x, int y, int width, int height, Predicate<T> visitor) {
+            int cx0 = cell(x), cy0 = cell(y);
+            int cx1 = cell(x + width), cy1 = cell(y + height);
+            for (int cx = cx0; cx <= cx1; cx++) {
+                for (int cy = cy0; cy <= cy1; cy++) {
+                    ArrayList<T> items = cellItems[slot(key(cx, cy))];
+                    if (items == null) continue;
+                    for (int i = 0; i < items.size(); i++) {
+                        T item = items.get(i);
+                        int[] b = bounds.get(item);
+                        if (b[0] > x + width || x > b[0] + b[2] || b[1] > y + height || y > b[1] + b[3]) {
+                            continue;
+                        }
+                        // Report the item only from the cell holding the top-left corner of the overlap
+                        if (cell(Math.max(b[0], x)) != cx || cell(Math.max(b[1], y)) != cy) {
+                            continue;
+                        }
+                        if (!visitor.test(item)) {
+                            return false;
+                        }
+                    }
+                }
             }
-            
-            // Draw border
-            g2d.setColor(Color.BLACK);
-            g2d.drawRect(0, 0, size.width, size.height);
+            return true;
+        }
 
-            // Restore the original transform
-            g2d.setTransform(oldTransform);
+        private void addToCells(T item, int[] b) {
+            for (int cx = cell(b[0]); cx <= cell(b[0] + b[2]); cx++) {
+                for (int cy = cell(b[1]); cy <= cell(b[1] + b[3]); cy++) {
+                    long key = key(cx, cy);
+                    int slot = slot(key);
+                    if (cellItems[slot] == null) {
+                        cellKeys[slot] = key;
+                        cellItems[slot] = new ArrayList<>();
+                        if (++cellCount > cellKeys.length / 2) {
+                            growCells();
+                            slot = slot(key);
+                        }
+                    }
+                    cellItems[slot].add(item);
+                }
+            }
         }
-    }
-    
-    class Room implements Serializable {
-        int x, y, width, height;
-        String type;
-        Color color;
-        ArrayList<Door> doors;
-        ArrayList<Window> windows;
-        
-        public Room(int x, int y, int width, int height, String type, Color color) {
-            this.x = x;
-            this.y = y;
-            this.width = width;
-            this.height = height;
-            this.type = type;
-            this.color = color;
-            this.doors = new ArrayList<>();
-            this.windows = new ArrayList<>();
+
+        private void removeFromCells(T item, int[] b) {
+            for (int cx = cell(b[0]); cx <= cell(b[0] + b[2]); cx++) {
+                for (int cy = cell(b[1]); cy <= cell(b[1] + b[3]); cy++) {
+                    int slot = slot(key(cx, cy));
+                    ArrayList<T> items = cellItems[slot];
+                    if (items == null) continue;
+                    for (int i = 0; i < items.size(); i++) {
+                        if (items.get(i) == item) {
+                            items.set(i, items.get(items.size() - 1));
+                            items.remove(items.size() - 1);
+                            break;
+                        }
+                    }
+                    if (items.isEmpty()) {
+                        removeCell(slot);
+                    }
+                }
+            }
         }
-        
-        public boolean contains(Point p) {
-            return p.x >= x && p.x <= x + width && p.y >= y && p.y <= y + height;
+
+        // The slot holding key, or the empty slot where it would go
+        private int slot(long key) {
+            int mask = cellKeys.length - 1;
+            int slot = (int) PlanVersion.hash(key) & mask;
+            while (cellItems[slot] != null && cellKeys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
         }
-        
-        public boolean intersects(Room other) {
-            return !(x + width <= other.x || other.x + other.width <= x ||
-                    y + height <= other.y || other.y + other.height <= y);
+
+        // Empties a slot, then moves back any later keys in its run that could no
+        // longer be found past the gap
+        private void removeCell(int slot) {
+            int mask = cellKeys.length - 1;
+            cellItems[slot] = null;
+            cellCount--;
+            for (int next = (slot + 1) & mask; cellItems[next] != null; next = (next + 1) & mask) {
+                int home = (int) PlanVersion.hash(cellKeys[next]) & mask;
+                // Leave the key if its home lies cyclically after the gap, up to where it sits
+                if (slot <= next ? slot < home && home <= next : slot < home || home <= next) {
+                    continue;
+                }
+                cellKeys[slot] = cellKeys[next];
+                cellItems[slot] = cellItems[next];
+                cellItems[next] = null;
+                slot = next;
+            }
         }
-        
-        public void draw(Graphics2D g2d) {
-            // Draw room
-            g2d.setColor(color);
-            g2d.fillRect(x, y, width, height);
-            
-            // Draw border
-            g2d.setColor(Color.BLACK);
-            g2d.setStroke(new BasicStroke(2));
-            //g2d.drawRect(x, y, width, height);
-            drawWalls(g2d);
-            
-            // draw doors
-            // g2d.setColor(Color.BLACK);
-            // for (Door door : doors) {
-            //     door.draw(g2d, x, y);
-            // }
-            
-            // draw windows
-            //g2d.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{9}, 0));
+
+        private void growCells() {
+            long[] keys = cellKeys;
+            ArrayList<T>[] items = cellItems;
+            cellKeys = new long[keys.length * 2];
+            cellItems = newCells(keys.length * 2);
+            for (int i = 0; i < keys.length; i++) {
+                if (items[i] != null) {
+                    int slot = slot(keys[i]);
+                    cellKeys[slot] = keys[i];
+                    cellItems[slot] = items[i];
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> ArrayList<T>[] newCells(int length) {
+            return (ArrayList<T>[]) new ArrayList<?>[length];
+        }
+
+        private int cell(int v) {
+            return Math.floorDiv(v, cellSize);
+        }
+
+        private static long key(int cx, int cy) {
+            return ((long) cx << 32) | (cy & 0xffffffffL);
+        }
+    }
+
+    // Finds where a new room goes: the free spot nearest the one asked for, within
+    // SEARCH_REACH room lengths of it. A room can only be kept from a spot by other
+    // rooms, so in the nearest free spot the room's top is either where it was
+    // asked for or flush with a room nearby. Those tops are tried cheapest first,
+    // and along each the room slides left and right past the rooms in its way to
+    // the nearest gap it fits, until no top left can beat the best spot found.
+    // Moving back against the direction the room was added in costs twice as much
+    // as moving on or across, so a room added east of a taken spot goes on east
+    // before it goes back west. When nothing that near is free, as deep inside a
+    // plan with no gap big enough, the room goes on in its direction to the first
+    // free spot, or down if the row has none.
+    //
+    // A placer keeps scratch arrays between calls, so it belongs to one thread.
+    static class RoomPlacer {
+        // A bound far enough out to never be reached
+        public static final int NO_LIMIT = 1 << 28;
+        // How far the search for the nearest spot goes, in lengths of the room's longer side
+        public static final int SEARCH_REACH = 4;
+
+        private final PlanView plan;
+        private final int left, top, right;
+
+        // The call in progress: where the room was asked to go, how far it may
+        // move, and which way along each axis is back against the direction
+        // (-1, 0 or 1)
+        private int wantX, wantY, maxX, reach, backX, backY;
+        // The rooms within reach, and candidate tops as cost << 32 | y, sorted by cost
+        private Room[] near = new Room[64];
+        private long[] ys = new long[64];
+        private int nearCount, yCount;
+        // Stretches of one axis the room cannot start strictly inside, as
+        // from << 32 | to
+        private long[] blocked = new long[64];
+        private int blockedCount;
+
+        // Rooms are kept with their left edge at or right of left, their top at or
+        // below top, and their right edge at or left of right, as far as their width
+        // allows
+        RoomPlacer(PlanView plan, int left, int top, int right) {
+            this.plan = plan;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+        }
+
+        // How far from where it was asked for the room is placed by the nearest
+        // spot search, before it goes on in its direction instead
+        public static int reach(Room room) {
+            return SEARCH_REACH * Math.max(room.width, room.height);
+        }
+
+        // Places room next to reference as addRoom asks: in direction with alignment,
+        // or at the start of the next row when that would take it past right. The
+        // next row starts below the lowest room whose top is level with reference's.
+        public void placeNextTo(Room room, Room reference, String direction, String alignment) {
+            Point position = calculatePosition(reference, direction, alignment, room.width, room.height);
+            int side;
+            switch (direction) {
+                case "North": side = WallModel.TOP; break;
+                case "South": side = WallModel.BOTTOM; break;
+                case "West": side = WallModel.LEFT; break;
+                default: side = WallModel.RIGHT;
+            }
+            if (position.x + room.width >= right) {
+                int rowY = reference.y;
+                int[] bottom = {rowY + reference.height};
+                plan.queryRooms(left, rowY, right - left, 0, other -> {
+                    if (other.y == rowY) {
+                        bottom[0] = Math.max(bottom[0], other.y + other.height);
+                    }
+                    return true;
+                });
+                position.x = left;
+                position.y = bottom[0];
+                side = WallModel.BOTTOM;
+            }
+            place(room, position.x, position.y, side);
+        }
+
+        // Moves room to the free spot nearest x, y, going on in direction (a WallModel
+        // side, or -1 for none) rather than back where they cost the same. Throws
+        // IllegalArgumentException for a room with no area, and IllegalStateException
+        // if no spot is free as far as rooms can go.
+        public void place(Room room, int x, int y, int direction) {
+            if (room.width <= 0 || room.height <= 0) {
+                throw new IllegalArgumentException("A room must be wider and taller than 0");
+            }
+            maxX = Math.max(left, right - room.width);
+            wantX = Math.min(Math.max(x, left), maxX);
+            wantY = Math.max(y, top);
+            backX = direction == WallModel.RIGHT ? -1 : direction == WallModel.LEFT ? 1 : 0;
+            backY = direction == WallModel.BOTTOM ? -1 : direction == WallModel.TOP ? 1 : 0;
+            room.x = wantX;
+            room.y = wantY;
+            if (plan.queryRooms(wantX, wantY, room.width, room.height, other -> other == room || !other.intersects(room))) {
+                return;
+            }
+
+            reach = reach(room);
+            gatherTops(room);
+            long best = Long.MAX_VALUE;
+            int bestX = 0, bestY = 0;
+            for (int i = 0; i < yCount && cost(ys[i]) < best; i++) {
+                room.y = (int) ys[i];
+                blockedCount = 0;
+                for (int j = 0; j < nearCount; j++) {
+                    block(room, near[j], true);
+                }
+                long along = nearestFree(wantX, left, maxX, backX, Math.min(reach, best - cost(ys[i]) - 1));
+                if (along >= 0) {
+                    best = cost(ys[i]) + cost(along);
+                    bestX = (int) along;
+                    bestY = room.y;
+                }
+            }
+            if (best != Long.MAX_VALUE) {
+                room.x = bestX;
+                room.y = bestY;
+                return;
+            }
+
+            // Nothing near is free: on along the direction as far as it takes
+            boolean alongX = direction == WallModel.LEFT || direction == WallModel.RIGHT;
+            for (long limit = Math.max(1, reach); ; limit *= 2) {
+                room.x = wantX;
+                room.y = wantY;
+                long along = alongX ? slide(room, true, wantX, left, maxX, backX, limit)
+                                    : slide(room, false, wantY, top, NO_LIMIT, backY, limit);
+                if (along >= 0) {
+                    if (alongX) {
+                        room.x = (int) along;
+                    } else {
+                        room.y = (int) along;
+                    }
+                    return;
+                }
+                if (alongX && limit > 2L * ((long) maxX - left)) {
+                    // The whole row is taken
+                    alongX = false;
+                } else if (!alongX && limit > 4L * NO_LIMIT) {
+                    // So is the whole column, as far as rooms can go
+                    throw new IllegalStateException("No free spot for the room");
+                }
+            }
+        }
+
+        // The rooms within reach, and wantY and the tops within reach that put the
+        // room flush with one of them above or below it, cheapest first
+        private void gatherTops(Room room) {
+            nearCount = yCount = 0;
+            addY(wantY);
+            int width = room.width, height = room.height;
+            plan.queryRooms(wantX - reach - width, wantY - reach - height, 2 * (reach + width), 2 * (reach + height), other -> {
+                if (other != room) {
+                    if (nearCount == near.length) {
+                        near = Arrays.copyOf(near, nearCount * 2);
+                    }
+                    near[nearCount++] = other;
+                    addY(other.y + other.height);
+                    addY(other.y - height);
+                }
+                return true;
+            });
+            Arrays.sort(ys, 0, yCount);
+            int unique = 0;
+            for (int i = 0; i < yCount; i++) {
+                if (unique == 0 || ys[i] != ys[unique - 1]) {
+                    ys[unique++] = ys[i];
+                }
+            }
+            yCount = unique;
+        }
+
+        private void addY(int y) {
+            long cost = cost(y - wantY, backY);
+            if (cost <= reach && y >= top) {
+                if (yCount == ys.length) {
+                    ys = Arrays.copyOf(ys, yCount * 2);
+                }
+                ys[yCount++] = cost << 32 | (y & 0xffffffffL);
+            }
+        }
+
+        // The cheapest spot for the room along one axis, along x if alongX and y
+        // otherwise, with its place on the other axis held: a start between lo and
+        // hi costing at most limit to move to from start. Returned as cost << 32 |
+        // position, or -1 if there is none.
+        private long slide(Room room, boolean alongX, int start, int lo, int hi, int backward, long limit) {
+            int size = alongX ? room.width : room.height;
+            int out = (int) Math.min(Math.max(limit, 0), NO_LIMIT);
+            blockedCount = 0;
+            Predicate<Room> block = other -> {
+                block(room, other, alongX);
+                return true;
+            };
+            if (alongX) {
+                plan.queryRooms(start - out - size, room.y, 2 * (out + size), room.height, block);
+            } else {
+                plan.queryRooms(room.x, start - out - size, room.width, 2 * (out + size), block);
+            }
+            return nearestFree(start, lo, hi, backward, limit);
+        }
+
+        // Notes the stretch of the axis the room cannot start strictly inside without
+        // overlapping other, if other lies across the room's place on the other axis
+        private void block(Room room, Room other, boolean alongX) {
+            boolean across = alongX ? other.y < room.y + room.height && other.y + other.height > room.y
+                                    : other.x < room.x + room.width && other.x + other.width > room.x;
+            if (other != room && across) {
+                int from = alongX ? other.x - room.width : other.y - room.height;
+                int to = alongX ? other.x + other.width : other.y + other.height;
+                if (blockedCount == blocked.length) {
+                    blocked = Arrays.copyOf(blocked, blockedCount * 2);
+                }
+                blocked[blockedCount++] = (long) from << 32 | (to & 0xffffffffL);
+            }
+        }
+
+        // The cheapest start between lo and hi outside the blocked stretches, costing
+        // at most limit to move to from start, as slide returns it
+        private long nearestFree(int start, int lo, int hi, int backward, long limit) {
+            if (limit < 0) {
+                return -1;
+            }
+            // Past each stretch that start is in to the nearest free spot on, sorted by
+            // where they begin, then likewise back, sorted by where they end
+            Arrays.sort(blocked, 0, blockedCount);
+            int on = start;
+            for (int i = 0; i < blockedCount && (int) (blocked[i] >> 32) < on; i++) {
+                on = Math.max(on, (int) blocked[i]);
+            }
+            for (int i = 0; i < blockedCount; i++) {
+                blocked[i] = blocked[i] << 32 | blocked[i] >>> 32;
+            }
+            Arrays.sort(blocked, 0, blockedCount);
+            int back = start;
+            for (int i = blockedCount - 1; i >= 0 && (int) (blocked[i] >> 32) > back; i--) {
+                back = Math.min(back, (int) blocked[i]);
+            }
+            long onCost = on <= hi ? cost(on - start, backward) : Long.MAX_VALUE;
+            long backCost = back >= lo ? cost(back - start, backward) : Long.MAX_VALUE;
+            long cost = Math.min(onCost, backCost);
+            int best = onCost <= backCost ? on : back;
+            return cost <= limit ? cost << 32 | (best & 0xffffffffL) : -1;
+        }
+
+        private static long cost(int move, int back) {
+            return (long) Math.abs(move) * (Integer.signum(move) == back ? 2 : 1);
+        }
+
+        private static long cost(long candidate) {
+            return candidate >>> 32;
+        }
+    }
+
+    // What painting and exporting need of a plan: the rooms and furniture near an area
+    interface PlanView {
+        // Visit each room whose bounds touch the rectangle, or each furniture item whose
+        // drawn bounds do, exactly once. Return false as soon as the visitor does.
+        boolean queryRooms(int x, int y, int width, int height, Predicate<Room> visitor);
+        boolean queryFurniture(int x, int y, int width, int height, Predicate<FurnitureItem> visitor);
+    }
+
+    // The rooms and furniture of one plan, with the spatial index and wall model
+    // kept in step with them. Edits go through addRoom, roomChanged, removeRoom and
+    // the furniture methods so every derived structure sees them. A plan opened from
+    // a large file is backed by a PagedPlan and only holds the pages in view.
+    //
+    // The plan itself belongs to the EDT. Other threads read the PlanVersion it
+    // publishes at the end of every history step instead.
+    static class FloorPlan implements PagedPlan.Residency, PlanView {
+        // Plans with more objects than this are opened lazily, a page at a time
+        public static final int LAZY_LOAD_THRESHOLD = 50_000;
+
+        public ArrayList<Room> rooms = new ArrayList<>();
+        public ArrayList<FurnitureItem> furnitureItems = new ArrayList<>();
+        public final SpatialGrid<Room> roomIndex = new SpatialGrid<>();
+        // Furniture by drawn bounds, which take in the overhang of rotated icons
+        public final SpatialGrid<FurnitureItem> furnitureIndex = new SpatialGrid<>();
+        public final WallModel walls = new WallModel();
+        public PagedPlan pagedPlan;
+        public final EditLog history = new EditLog(EditLog.DEFAULT_MAX_BYTES, this::publish);
+
+        // The room each furniture item stands in, going by its top-left corner, and
+        // the items standing in each room
+        private final IdentityHashMap<FurnitureItem, Room> furnitureOwners = new IdentityHashMap<>();
+        private final IdentityHashMap<Room, ArrayList<FurnitureItem>> roomFurniture = new IdentityHashMap<>();
+
+        // The last version published, the frozen copy of each object in it, and the
+        // objects added, changed or removed since
+        private final AtomicReference<PlanVersion> published = new AtomicReference<>(PlanVersion.EMPTY);
+        private final IdentityHashMap<Room, Room> publishedRooms = new IdentityHashMap<>();
+        private final IdentityHashMap<FurnitureItem, FurnitureItem> publishedItems = new IdentityHashMap<>();
+        private Set<Room> unpublishedRooms = Collections.newSetFromMap(new IdentityHashMap<>());
+        private Set<FurnitureItem> unpublishedItems = Collections.newSetFromMap(new IdentityHashMap<>());
+        // Set by reindex: the next version is built from scratch rather than from the last
+        private boolean republish;
+        // Built on demand and dropped on the next change to the rooms
+        private RoomStore roomStore;
+        // The id the next room or item without one gets; ids are shared by both kinds
+        private int nextId = 1;
+
+        // Reads a plan file, or a .ser file saved by older versions
+        public static FloorPlan open(File file) throws IOException, ClassNotFoundException {
+            return open(file, null);
+        }
+
+        public static FloorPlan open(File file, PlanFile.Progress progress) throws IOException, ClassNotFoundException {
+            FloorPlan plan = new FloorPlan();
+            if (file.getName().endsWith(".ser")) {
+                plan.readLegacy(file);
+            } else {
+                // Large plans are left on disk and paged in as they are shown
+                PagedPlan paged = PagedPlan.open(file, plan);
+                if (paged != null && paged.objectCount() < LAZY_LOAD_THRESHOLD) {
+                    paged.close();
+                    paged = null;
+                }
+                if (paged == null) {
+                    PlanFile.read(file, plan.rooms, plan.furnitureItems, progress);
+                } else {
+                    plan.nextId = paged.nextId();
+                }
+                plan.pagedPlan = paged;
+            }
+            plan.reindex();
+            return plan;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void readLegacy(File file) throws IOException, ClassNotFoundException {
+            try (ObjectInputStream ois = new LegacyPlanInputStream(new FileInputStream(file))) {
+                rooms = (ArrayList<Room>) ois.readObject();
+                furnitureItems = (ArrayList<FurnitureItem>) ois.readObject();
+            }
+        }
+
+        // Reads a .ser plan with the planner window its objects hold onto swapped for
+        // the inert stand-ins in legacy.FloorPlanner, so no JFrame is built
+        static class LegacyPlanInputStream extends ObjectInputStream {
+            LegacyPlanInputStream(InputStream in) throws IOException {
+                super(in);
+            }
+
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                switch (desc.getName()) {
+                    case "FloorPlanner": return legacy.FloorPlanner.class;
+                    case "FloorPlanner$DrawingCanvas": return legacy.FloorPlanner.DrawingCanvas.class;
+                    default: return super.resolveClass(desc);
+                }
+            }
+        }
+
+        // Reads every object in a plan file, however large, or a .ser file
+        public static FloorPlan read(File file) throws IOException {
+            FloorPlan plan = new FloorPlan();
+            if (file.getName().endsWith(".ser")) {
+                try {
+                    plan.readLegacy(file);
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Cannot read " + file, e);
+                }
+            } else {
+                PlanFile.read(file, plan.rooms, plan.furnitureItems);
+            }
+            plan.reindex();
+            return plan;
+        }
+
+        public void save(File file) throws IOException {
+            if (pagedPlan != null) {
+                pagedPlan.save(file, rooms, furnitureItems, nextId);
+            } else {
+                PlanFile.write(file, rooms, furnitureItems, nextId);
+            }
+        }
+
+        // Copies the plan for a save that is written off the EDT; see PlanFile.SaveJob
+        public PlanFile.SaveJob prepareSave(File file) throws IOException {
+            return pagedPlan != null ? pagedPlan.prepareSave(file, rooms, furnitureItems, nextId)
+                                     : PlanFile.prepareSave(file, rooms, furnitureItems, nextId);
+        }
+
+        // Called on the EDT once a job from prepareSave is written
+        public void finishSave(PlanFile.SaveJob job) throws IOException {
+            if (pagedPlan != null) {
+                pagedPlan.finishSave(job);
+            }
+        }
+
+        // The version last published, safe to read from any thread
+        public PlanVersion version() {
+            return published.get();
+        }
+
+        // Publishes the plan as it stands and returns the new version. History steps
+        // publish when they end; edits made outside the history, and pages loaded
+        // since, show in versions from the next step or call to this on.
+        public PlanVersion publish() {
+            PlanVersion version = published.get();
+            if (unpublishedRooms.isEmpty() && unpublishedItems.isEmpty() && !republish) {
+                return version;
+            }
+            // Which walls a room draws depends on its neighbours, so rooms touching one
+            // that changed are frozen again if their walls changed with it. Nothing
+            // published can be out of date when nothing is published yet.
+            ArrayList<Room> neighbours = new ArrayList<>();
+            Predicate<Room> addNeighbour = neighbour -> {
+                neighbours.add(neighbour);
+                return true;
+            };
+            for (Room room : publishedRooms.isEmpty() ? Collections.<Room>emptySet() : unpublishedRooms) {
+                Room old = publishedRooms.get(room);
+                if (old != null) {
+                    roomIndex.query(old.x - 1, old.y - 1, old.width + 2, old.height + 2, addNeighbour);
+                }
+                if (contains(room)) {
+                    roomIndex.query(room.x - 1, room.y - 1, room.width + 2, room.height + 2, addNeighbour);
+                }
+            }
+            for (Room neighbour : neighbours) {
+                Room old = publishedRooms.get(neighbour);
+                if (old != null && (old.hiddenWalls != neighbour.hiddenWalls || old.openWalls != neighbour.openWalls)) {
+                    unpublishedRooms.add(neighbour);
+                }
+            }
+
+            ArrayList<Room> roomsOut = new ArrayList<>(), roomsIn = new ArrayList<>();
+            for (Room room : unpublishedRooms) {
+                Room old = publishedRooms.remove(room);
+                if (old != null) {
+                    roomsOut.add(old);
+                }
+                if (contains(room)) {
+                    Room frozen = room.copy();
+                    frozen.openWalls = room.openWalls;
+                    frozen.hiddenWalls = room.hiddenWalls;
+                    publishedRooms.put(room, frozen);
+                    roomsIn.add(frozen);
+                }
+            }
+            ArrayList<FurnitureItem> itemsOut = new ArrayList<>(), itemsIn = new ArrayList<>();
+            for (FurnitureItem item : unpublishedItems) {
+                FurnitureItem old = publishedItems.remove(item);
+                if (old != null) {
+                    itemsOut.add(old);
+                }
+                if (furnitureIndex.contains(item)) {
+                    FurnitureItem frozen = item.copy();
+                    publishedItems.put(item, frozen);
+                    itemsIn.add(frozen);
+                }
+            }
+            // Replaced rather than cleared, since clearing an IdentityHashMap takes as long as
+            // its largest size, and the first publish of a plan puts every object in these
+            unpublishedRooms = Collections.newSetFromMap(new IdentityHashMap<>());
+            unpublishedItems = Collections.newSetFromMap(new IdentityHashMap<>());
+            version = (republish ? PlanVersion.EMPTY : version)
+                    .next(version.number + 1, roomsOut, roomsIn, itemsOut, itemsIn, pagedPlan != null);
+            republish = false;
+            published.set(version);
+            return version;
+        }
+
+        @Override
+        public boolean queryRooms(int x, int y, int width, int height, Predicate<Room> visitor) {
+            return roomIndex.query(x, y, width, height, visitor);
+        }
+
+        @Override
+        public boolean queryFurniture(int x, int y, int width, int height, Predicate<FurnitureItem> visitor) {
+            return furnitureIndex.query(x, y, width, height, visitor);
+        }
+
+        public void close() throws IOException {
+            if (pagedPlan != null) {
+                pagedPlan.close();
+            }
+        }
+
+        public boolean contains(Room room) {
+            return roomIndex.contains(room);
+        }
+
+        // The rooms as they stand, packed for bulk queries. Of a paged plan, only the
+        // rooms in loaded pages.
+        public RoomStore roomStore() {
+            if (roomStore == null) {
+                roomStore = RoomStore.of(rooms);
+            }
+            return roomStore;
+        }
+
+        public boolean checkOverlap(Room newRoom) {
+            // Only rooms sharing a grid cell with newRoom can intersect it
+            return !roomIndex.query(newRoom.x, newRoom.y, newRoom.width, newRoom.height,
+                    room -> room == newRoom || !room.intersects(newRoom));
+        }
+
+        public void addRoom(Room room) {
+            room.id = claimId(room.id);
+            rooms.add(room);
+            roomChanged(room);
+        }
+
+        // The id for an object joining the plan: the next free one if it has none,
+        // else its own, which later ones are then kept clear of
+        private int claimId(int id) {
+            if (id == 0) {
+                return nextId++;
+            }
+            nextId = Math.max(nextId, id + 1);
+            return id;
+        }
+
+        // Keep the spatial index and wall model in step with a room that was added, moved,
+        // rotated or given a new door or window
+        public void roomChanged(Room room) {
+            unpublishedRooms.add(room);
+            roomStore = null;
+            roomIndex.update(room, room.x, room.y, room.width, room.height);
+            walls.update(room);
+            reassignFurniture(room);
+            if (pagedPlan != null) {
+                pagedPlan.roomChanged(room);
+            }
+        }
+
+        public void insertRoom(int index, Room room) {
+            room.id = claimId(room.id);
+            rooms.add(Math.min(index, rooms.size()), room);
+            roomChanged(room);
+        }
+
+        public void removeRoom(Room room) {
+            // Searched from the end, since it is usually a recent room being removed or undone
+            int index = rooms.lastIndexOf(room);
+            if (index >= 0) {
+                rooms.remove(index);
+            }
+            unpublishedRooms.add(room);
+            roomStore = null;
+            roomIndex.remove(room);
+            walls.remove(room);
+            reassignFurniture(room);
+            if (pagedPlan != null) {
+                pagedPlan.roomRemoved(room);
+            }
+        }
+
+        public void addFurniture(FurnitureItem item) {
+            item.id = claimId(item.id);
+            furnitureItems.add(item);
+            furnitureChanged(item);
+        }
+
+        public void insertFurniture(int index, FurnitureItem item) {
+            item.id = claimId(item.id);
+            furnitureItems.add(Math.min(index, furnitureItems.size()), item);
+            furnitureChanged(item);
+        }
+
+        public void removeFurniture(FurnitureItem item) {
+            int index = furnitureItems.lastIndexOf(item);
+            if (index >= 0) {
+                furnitureItems.remove(index);
+            }
+            unpublishedItems.add(item);
+            unindexFurniture(item);
+            if (pagedPlan != null) {
+                pagedPlan.furnitureRemoved(item);
+            }
+        }
+
+        // Adds many rooms and items at once, as an import does: the wall model links
+        // the new rooms in one pass rather than a room at a time
+        public void addAll(List<Room> newRooms, List<FurnitureItem> newItems) {
+            for (Room room : newRooms) {
+                room.id = claimId(room.id);
+            }
+            for (FurnitureItem item : newItems) {
+                item.id = claimId(item.id);
+            }
+            rooms.addAll(newRooms);
+            unpublishedRooms.addAll(newRooms);
+            roomStore = null;
+            for (Room room : newRooms) {
+                roomIndex.update(room, room.x, room.y, room.width, room.height);
+            }
+            walls.addAll(newRooms);
+            for (Room room : newRooms) {
+                reassignFurniture(room);
+                if (pagedPlan != null) {
+                    pagedPlan.roomChanged(room);
+                }
+            }
+            furnitureItems.addAll(newItems);
+            for (FurnitureItem item : newItems) {
+                furnitureChanged(item);
+            }
+        }
+
+        // Takes out rooms and items added by addAll, in one pass over each list
+        public void removeAll(List<Room> oldRooms, List<FurnitureItem> oldItems) {
+            Set<FurnitureItem> itemSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            itemSet.addAll(oldItems);
+            furnitureItems.removeIf(itemSet::contains);
+            for (FurnitureItem item : oldItems) {
+                unpublishedItems.add(item);
+                unindexFurniture(item);
+                if (pagedPlan != null) {
+                    pagedPlan.furnitureRemoved(item);
+                }
+            }
+            Set<Room> roomSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            roomSet.addAll(oldRooms);
+            rooms.removeIf(roomSet::contains);
+            unpublishedRooms.addAll(oldRooms);
+            roomStore = null;
+            for (Room room : oldRooms) {
+                roomIndex.remove(room);
+            }
+            walls.removeAll(oldRooms);
+            for (Room room : oldRooms) {
+                reassignFurniture(room);
+                if (pagedPlan != null) {
+                    pagedPlan.roomRemoved(room);
+                }
+            }
+        }
+
+        // Called after a furniture item is placed, moved or rotated
+        public void furnitureChanged(FurnitureItem item) {
+            unpublishedItems.add(item);
+            indexFurniture(item);
+            if (pagedPlan != null) {
+                pagedPlan.furnitureChanged(item);
+            }
+        }
+
+        private void indexFurniture(FurnitureItem item) {
+            int halo = PlanPainter.furnitureHalo(item);
+            furnitureIndex.update(item, item.x - halo, item.y - halo, item.size.width + 2 * halo, item.size.height + 2 * halo);
+            setOwner(item, roomAt(item.x, item.y));
+        }
+
+        private void unindexFurniture(FurnitureItem item) {
+            furnitureIndex.remove(item);
+            setOwner(item, null);
+        }
+
+        private void setOwner(FurnitureItem item, Room owner) {
+            Room old = owner != null ? furnitureOwners.put(item, owner) : furnitureOwners.remove(item);
+            if (old == owner) {
+                return;
+            }
+            if (old != null) {
+                ArrayList<FurnitureItem> items = roomFurniture.get(old);
+                items.remove(item);
+                if (items.isEmpty()) {
+                    roomFurniture.remove(old);
+                }
+            }
+            if (owner != null) {
+                roomFurniture.computeIfAbsent(owner, r -> new ArrayList<>()).add(item);
+            }
+        }
+
+        // After a room moves or goes, its old items may stand in another room or none,
+        // and items where it now stands belong to it
+        private void reassignFurniture(Room room) {
+            ArrayList<FurnitureItem> owned = roomFurniture.get(room);
+            if (owned != null) {
+                for (FurnitureItem item : new ArrayList<>(owned)) {
+                    setOwner(item, roomAt(item.x, item.y));
+                }
+            }
+            if (contains(room)) {
+                furnitureIndex.query(room.x, room.y, room.width, room.height, item -> {
+                    if (room.contains(item.x, item.y)) {
+                        setOwner(item, roomAt(item.x, item.y));
+                    }
+                    return true;
+                });
+            }
+        }
+
+        public Room ownerOf(FurnitureItem item) {
+            return furnitureOwners.get(item);
+        }
+
+        public List<FurnitureItem> furnitureIn(Room room) {
+            ArrayList<FurnitureItem> items = roomFurniture.get(room);
+            return items != null ? Collections.unmodifiableList(items) : Collections.emptyList();
+        }
+
+        // A room containing the point, walls included, or null
+        public Room roomAt(int x, int y) {
+            Room[] found = new Room[1];
+            roomIndex.query(x, y, 0, 0, room -> {
+                if (room.contains(x, y)) {
+                    found[0] = room;
+                    return false;
+                }
+                return true;
+            });
+            return found[0];
+        }
+
+        // The furniture item under the point, or null
+        public FurnitureItem furnitureAt(int x, int y) {
+            FurnitureItem[] found = new FurnitureItem[1];
+            furnitureIndex.query(x, y, 0, 0, item -> {
+                if (item.contains(x, y)) {
+                    found[0] = item;
+                    return false;
+                }
+                return true;
+            });
+            return found[0];
+        }
+
+        // Whether item overlaps any other furniture, looking only at items near it.
+        // Runs on every drag step, so the visitor is kept rather than made per call.
+        public boolean furnitureOverlaps(FurnitureItem item) {
+            overlapProbe = item;
+            boolean clear = furnitureIndex.query(item.x, item.y, item.size.width, item.size.height, clearOfProbe);
+            overlapProbe = null;
+            return !clear;
+        }
+
+        private FurnitureItem overlapProbe;
+        private final Predicate<FurnitureItem> clearOfProbe = other -> other == overlapProbe || !other.intersects(overlapProbe);
+
+        // Rebuilds everything derived from the object lists, after they were filled or
+        // replaced, and publishes the result
+        public void reindex() {
+            publishedRooms.clear();
+            publishedItems.clear();
+            unpublishedRooms.addAll(rooms);
+            unpublishedItems.addAll(furnitureItems);
+            republish = true;
+            roomStore = null;
+            roomIndex.clear();
+            for (Room room : rooms) {
+                room.id = claimId(room.id);
+                roomIndex.update(room, room.x, room.y, room.width, room.height);
+            }
+            walls.rebuild(rooms);
+            furnitureIndex.clear();
+            furnitureOwners.clear();
+            roomFurniture.clear();
+            for (FurnitureItem item : furnitureItems) {
+                item.id = claimId(item.id);
+                indexFurniture(item);
+            }
+            publish();
+        }
+
+        // Pages in the part of a lazily opened plan that is about to be shown
+        public void showPages(Rectangle area) throws IOException {
+            if (pagedPlan != null) {
+                pagedPlan.show(area);
+            }
+        }
+
+        @Override
+        public void pageLoaded(List<Room> pageRooms, List<FurnitureItem> pageItems) {
+            unpublishedRooms.addAll(pageRooms);
+            unpublishedItems.addAll(pageItems);
+            roomStore = null;
+            rooms.addAll(pageRooms);
+            furnitureItems.addAll(pageItems);
+            for (Room room : pageRooms) {
+                roomIndex.update(room, room.x, room.y, room.width, room.height);
+            }
+            walls.updateAll(pageRooms);
+            for (Room room : pageRooms) {
+                reassignFurniture(room);
+            }
+            for (FurnitureItem item : pageItems) {
+                indexFurniture(item);
+            }
+        }
+
+        @Override
+        public void pageEvicted(List<Room> pageRooms, List<FurnitureItem> pageItems) {
+            unpublishedRooms.addAll(pageRooms);
+            unpublishedItems.addAll(pageItems);
+            roomStore = null;
+            Set<Object> evicted = Collections.newSetFromMap(new IdentityHashMap<>());
+            evicted.addAll(pageRooms);
+            evicted.addAll(pageItems);
+            rooms.removeIf(evicted::contains);
+            furnitureItems.removeIf(evicted::contains);
+            for (FurnitureItem item : pageItems) {
+                unindexFurniture(item);
+            }
+            for (Room room : pageRooms) {
+                roomIndex.remove(room);
+            }
+            walls.removeAll(pageRooms);
+            for (Room room : pageRooms) {
+                reassignFurniture(room);
+            }
+        }
+
+        // Area covered by the plan's rooms and furniture, including wall and icon overhang
+        public Rectangle getBounds() {
+            if (rooms.isEmpty() && furnitureItems.isEmpty()) {
+                return new Rectangle(0, 0, CANVAS_WIDTH, CANVAS_HEIGHT);
+            }
+            Rectangle bounds = null;
+            for (Room room : rooms) {
+                Rectangle r = new Rectangle(room.x - PlanPainter.REPAINT_HALO, room.y - PlanPainter.REPAINT_HALO,
+                                            room.width + 2 * PlanPainter.REPAINT_HALO, room.height + 2 * PlanPainter.REPAINT_HALO);
+                bounds = bounds == null ? r : bounds.union(r);
+            }
+            for (FurnitureItem item : furnitureItems) {
+                int halo = PlanPainter.furnitureHalo(item);
+                Rectangle r = new Rectangle(item.x - halo, item.y - halo, item.size.width + 2 * halo, item.size.height + 2 * halo);
+                bounds = bounds == null ? r : bounds.union(r);
+            }
+            return bounds;
+        }
+    }
+
+    // One version of a plan, made by FloorPlan.publish and never changed afterwards,
+    // so any thread can paint, export or analyse it without locks while the EDT
+    // carries on editing. Objects are filed under the CELL_SIZE cell holding their
+    // top-left corner, and the cells are kept in a persistent hash trie: the next
+    // version copies only the cells an edit touched and the trie nodes above them,
+    // and shares everything else with this one. Its rooms and items are frozen
+    // copies of the plan's own, which readers must not change. A version of a
+    // paged plan holds the pages that were loaded when it was made; checks that
+    // need the whole plan add the rest with PagedPlan.Unloaded.
+    static final class PlanVersion implements PlanView {
+        public static final int CELL_SIZE = 512;
+        public static final PlanVersion EMPTY = new PlanVersion(0, null, 0, 0, 0, 0, 0, false);
+
+        public final long number;
+        public final int roomCount, itemCount;
+        // Whether this holds only the loaded part of a paged plan
+        public final boolean partial;
+        private final Node root;
+        private final int cellCount;
+        // Furthest any room, or any item's drawn bounds, has reached from its corner
+        // in any version so far, which bounds the cells a query has to look in
+        private final int roomReach, itemReach;
+
+        // A cell: the objects with their top-left corner in it
+        static final class Cell {
+            final long hash;
+            final Room[] rooms;
+            final FurnitureItem[] items;
+            Cell(long hash, Room[] rooms, FurnitureItem[] items) { this.hash = hash; this.rooms = rooms; this.items = items; }
+        }
+
+        // A trie node: which of the 32 slots at its level are in use, and a Node or
+        // Cell for each, in slot order
+        static final class Node {
+            final int bitmap;
+            final Object[] slots;
+            Node(int bitmap, Object[] slots) { this.bitmap = bitmap; this.slots = slots; }
+        }
+
+        private PlanVersion(long number, Node root, int cellCount, int roomCount, int itemCount,
+                            int roomReach, int itemReach, boolean partial) {
+            this.number = number;
+            this.root = root;
+            this.cellCount = cellCount;
+            this.roomCount = roomCount;
+            this.itemCount = itemCount;
+            this.roomReach = roomReach;
+            this.itemReach = itemReach;
+            this.partial = partial;
+        }
+
+        // Version number: this one with the frozen objects in the out lists taken away
+        // and those in the in lists added
+        PlanVersion next(long number, List<Room> roomsOut, List<Room> roomsIn, List<FurnitureItem> itemsOut,
+                         List<FurnitureItem> itemsIn, boolean partial) {
+            HashMap<Long, CellChange> changes = new HashMap<>();
+            for (Room room : roomsOut) {
+                removeFrom(change(changes, key(room.x, room.y)).rooms, room);
+            }
+            for (FurnitureItem item : itemsOut) {
+                removeFrom(change(changes, key(item.x, item.y)).items, item);
+            }
+            int newRoomReach = roomReach, newItemReach = itemReach;
+            for (Room room : roomsIn) {
+                change(changes, key(room.x, room.y)).rooms.add(room);
+                newRoomReach = Math.max(newRoomReach, Math.max(room.width, room.height));
+            }
+            for (FurnitureItem item : itemsIn) {
+                change(changes, key(item.x, item.y)).items.add(item);
+                newItemReach = Math.max(newItemReach, Math.max(item.size.width, item.size.height) + PlanPainter.furnitureHalo(item));
+            }
+            Node newRoot = root;
+            int newCellCount = cellCount;
+            for (Map.Entry<Long, CellChange> entry : changes.entrySet()) {
+                long hash = entry.getKey();
+                CellChange change = entry.getValue();
+                if (change.rooms.isEmpty() && change.items.isEmpty()) {
+                    if (change.existed) {
+                        newRoot = remove(newRoot, hash, 0);
+                        newCellCount--;
+                    }
+                } else {
+                    newRoot = put(newRoot, new Cell(hash, change.rooms.toArray(new Room[0]),
+                                                    change.items.toArray(new FurnitureItem[0])), 0);
+                    newCellCount += change.existed ? 0 : 1;
+                }
+            }
+            return new PlanVersion(number, newRoot, newCellCount,
+                                   roomCount - roomsOut.size() + roomsIn.size(), itemCount - itemsOut.size() + itemsIn.size(),
+                                   newRoomReach, newItemReach, partial);
+        }
+
+        // A cell's objects while the next version is made, starting from this version's
+        private static final class CellChange {
+            final ArrayList<Room> rooms = new ArrayList<>();
+            final ArrayList<FurnitureItem> items = new ArrayList<>();
+            boolean existed;
+        }
+
+        // Changes are filed by the cell's hash, since a Long key's own hash code, its
+        // column xor its row, would put every cell on a diagonal in the same bucket
+        private CellChange change(HashMap<Long, CellChange> changes, long key) {
+            return changes.computeIfAbsent(hash(key), hash -> {
+                CellChange change = new CellChange();
+                Cell cell = get(root, hash);
+                if (cell != null) {
+                    change.rooms.addAll(Arrays.asList(cell.rooms));
+                    change.items.addAll(Arrays.asList(cell.items));
+                    change.existed = true;
+                }
+                return change;
+            });
+        }
+
+        private static <T> void removeFrom(ArrayList<T> list, T object) {
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i) == object) {
+                    list.set(i, list.get(list.size() - 1));
+                    list.remove(list.size() - 1);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean queryRooms(int x, int y, int width, int height, Predicate<Room> visitor) {
+            return visitCells(x - roomReach, y - roomReach, x + width, y + height, cell -> {
+                for (Room room : cell.rooms) {
+                    if (room.x > x + width || x > room.x + room.width || room.y > y + height || y > room.y + room.height) {
+                        continue;
+                    }
+                    if (!visitor.test(room)) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+
+        @Override
+        public boolean queryFurniture(int x, int y, int width, int height, Predicate<FurnitureItem> visitor) {
+            return visitCells(x - itemReach, y - itemReach, x + width + itemReach, y + height + itemReach, cell -> {
+                for (FurnitureItem item : cell.items) {
+                    int halo = PlanPainter.furnitureHalo(item);
+                    if (item.x - halo > x + width || x > item.x + item.size.width + halo ||
+                        item.y - halo > y + height || y > item.y + item.size.height + halo) {
+                        continue;
+                    }
+                    if (!visitor.test(item)) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+
+        public boolean forEachRoom(Predicate<Room> visitor) {
+            return visit(root, cell -> {
+                for (Room room : cell.rooms) {
+                    if (!visitor.test(room)) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+
+        public boolean forEachFurniture(Predicate<FurnitureItem> visitor) {
+            return visit(root, cell -> {
+                for (FurnitureItem item : cell.items) {
+                    if (!visitor.test(item)) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+
+        // Told of each cell that differs between two versions, with the cell's old
+        // and new contents, either of which may be null
+        interface CellVisitor {
+            void visit(Cell before, Cell after);
+        }
+
+        // Visits the cells that differ between older and this version. Branches of
+        // the trie the two share are skipped, so this costs in proportion to what
+        // changed between them, not to the size of the plan.
+        public void diff(PlanVersion older, CellVisitor visitor) {
+            diff(older.root, root, visitor);
+        }
+
+        private static void diff(Object before, Object after, CellVisitor visitor) {
+            if (before == after) {
+                return;
+            }
+            if (before instanceof Node && after instanceof Node) {
+                Node a = (Node) before, b = (Node) after;
+                for (int bits = a.bitmap | b.bitmap; bits != 0; bits &= bits - 1) {
+                    int bit = bits & -bits;
+                    diff((a.bitmap & bit) != 0 ? a.slots[Integer.bitCount(a.bitmap & (bit - 1))] : null,
+                         (b.bitmap & bit) != 0 ? b.slots[Integer.bitCount(b.bitmap & (bit - 1))] : null, visitor);
+                }
+                return;
+            }
+            // A cell against a branch, or either against nothing: pair up their cells by hash
+            HashMap<Long, Cell> old = new HashMap<>();
+            visit(before, cell -> old.put(cell.hash, cell) == null);
+            visit(after, cell -> {
+                Cell was = old.remove(cell.hash);
+                if (was != cell) {
+                    visitor.visit(was, cell);
+                }
+                return true;
+            });
+            for (Cell was : old.values()) {
+                visitor.visit(was, null);
+            }
+        }
+
+        // Visits the cells under a node or cell, or none for null
+        private static boolean visit(Object slot, Predicate<Cell> visitor) {
+            return slot == null || (slot instanceof Cell ? visitor.test((Cell) slot) : visit((Node) slot, visitor));
+        }
+
+        // A room containing the point, walls included, or null
+        public Room roomAt(int x, int y) {
+            Room[] found = new Room[1];
+            queryRooms(x, y, 0, 0, room -> {
+                if (room.contains(x, y)) {
+                    found[0] = room;
+                    return false;
+                }
+                return true;
+            });
+            return found[0];
+        }
+
+        // Visits the cells whose corners lie in the given range, or every cell when
+        // the range covers more cells than there are
+        private boolean visitCells(int x0, int y0, int x1, int y1, Predicate<Cell> visitor) {
+            long cx0 = Math.floorDiv((long) x0, CELL_SIZE), cy0 = Math.floorDiv((long) y0, CELL_SIZE);
+            long cx1 = Math.floorDiv((long) x1, CELL_SIZE), cy1 = Math.floorDiv((long) y1, CELL_SIZE);
+            if ((cx1 - cx0 + 1) * (cy1 - cy0 + 1) > cellCount) {
+                return visit(root, visitor);
+            }
+            for (long cx = cx0; cx <= cx1; cx++) {
+                for (long cy = cy0; cy <= cy1; cy++) {
+                    Cell cell = get(root, hash(((long) (int) cx << 32) | ((int) cy & 0xffffffffL)));
+                    if (cell != null && !visitor.test(cell)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private static long key(int x, int y) {
+            return ((long) Math.floorDiv(x, CELL_SIZE) << 32) | (Math.floorDiv(y, CELL_SIZE) & 0xffffffffL);
+        }
+
+        // MurmurHash3's finaliser. Every step of it can be undone, so different keys
+        // always get different hashes and two cells never share a trie slot at every level.
+        static long hash(long key) {
+            long h = key;
+            h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+            h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return h ^ (h >>> 33);
+        }
+
+        private static int bit(long hash, int shift) {
+            return 1 << ((hash >>> shift) & 31);
+        }
+
+        private static Cell get(Node node, long hash) {
+            for (int shift = 0; node != null; shift += 5) {
+                int bit = bit(hash, shift);
+                if ((node.bitmap & bit) == 0) {
+                    return null;
+                }
+                Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+                if (slot instanceof Cell) {
+                    return ((Cell) slot).hash == hash ? (Cell) slot : null;
+                }
+                node = (Node) slot;
+            }
+            return null;
+        }
+
+        // A copy of node with cell put in, sharing every untouched branch
+        private static Node put(Node node, Cell cell, int shift) {
+            int bit = bit(cell.hash, shift);
+            if (node == null) {
+                return new Node(bit, new Object[]{cell});
+            }
+            int index = Integer.bitCount(node.bitmap & (bit - 1));
+            if ((node.bitmap & bit) == 0) {
+                Object[] slots = new Object[node.slots.length + 1];
+                System.arraycopy(node.slots, 0, slots, 0, index);
+                slots[index] = cell;
+                System.arraycopy(node.slots, index, slots, index + 1, node.slots.length - index);
+                return new Node(node.bitmap | bit, slots);
+            }
+            Object slot = node.slots[index];
+            Object replacement;
+            if (slot instanceof Node) {
+                replacement = put((Node) slot, cell, shift + 5);
+            } else if (((Cell) slot).hash == cell.hash) {
+                replacement = cell;
+            } else {
+                replacement = put(put(null, (Cell) slot, shift + 5), cell, shift + 5);
+            }
+            Object[] slots = node.slots.clone();
+            slots[index] = replacement;
+            return new Node(node.bitmap, slots);
+        }
+
+        // A copy of node without the cell with this hash, or null if nothing is left.
+        // A branch left holding a single cell is folded into its parent.
+        private static Node remove(Node node, long hash, int shift) {
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return node;
+            }
+            int index = Integer.bitCount(node.bitmap & (bit - 1));
+            Object slot = node.slots[index];
+            Object replacement = null;
+            if (slot instanceof Node) {
+                Node child = remove((Node) slot, hash, shift + 5);
+                if (child == slot) {
+                    return node;
+                }
+                replacement = child != null && child.slots.length == 1 && child.slots[0] instanceof Cell ? child.slots[0] : child;
+            } else if (((Cell) slot).hash != hash) {
+                return node;
+            }
+            if (replacement != null) {
+                Object[] slots = node.slots.clone();
+                slots[index] = replacement;
+                return new Node(node.bitmap, slots);
+            }
+            if (node.slots.length == 1) {
+                return null;
+            }
+            Object[] slots = new Object[node.slots.length - 1];
+            System.arraycopy(node.slots, 0, slots, 0, index);
+            System.arraycopy(node.slots, index + 1, slots, index, slots.length - index);
+            return new Node(node.bitmap & ~bit, slots);
+        }
+
+        private static boolean visit(Node node, Predicate<Cell> visitor) {
+            if (node == null) {
+                return true;
+            }
+            for (Object slot : node.slots) {
+                if (slot instanceof Cell ? !visitor.test((Cell) slot) : !visit((Node) slot, visitor)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Undo and redo history for a plan. Each step records only what it changed -
+    // the object, and its old and new place or the element added to it - never a
+    // copy of the plan, so a step costs a few dozen bytes however large the plan.
+    // Steps recorded between beginGesture and endGesture, such as every
+    // mouseDragged step of one drag, become a single step that merges repeated
+    // moves of the same object. Edits that change nothing, like a click on a room
+    // without dragging it, are not recorded. Once the history takes more than
+    // maxBytes, its oldest steps are forgotten.
+    static class EditLog {
+        public static final long DEFAULT_MAX_BYTES = 16L << 20;
+        // Rough heap cost of one recorded edit and its slot in the history
+        static final int EDIT_BYTES = 48;
+
+        // An edit that has already been applied to the plan
+        interface Edit {
+            void undo(FloorPlan plan);
+            void redo(FloorPlan plan);
+
+            // Absorbs next, a later step of the same gesture, if it moves the same object
+            default boolean merge(Edit next) {
+                return false;
+            }
+
+            // Whether undoing would change nothing, like a drag that was reverted
+            default boolean isEmpty() {
+                return false;
+            }
+
+            default int bytes() {
+                return EDIT_BYTES;
+            }
+        }
+
+        static class RoomAdded implements Edit {
+            final Room room;
+            final int index;
+            RoomAdded(Room room, int index) { this.room = room; this.index = index; }
+            public void undo(FloorPlan plan) { plan.removeRoom(room); }
+            public void redo(FloorPlan plan) { plan.insertRoom(index, room); }
+        }
+
+        static class RoomRemoved implements Edit {
+            final Room room;
+            final int index;
+            RoomRemoved(Room room, int index) { this.room = room; this.index = index; }
+            public void undo(FloorPlan plan) { plan.insertRoom(index, room); }
+            public void redo(FloorPlan plan) { plan.removeRoom(room); }
+        }
+
+        static class RoomMoved implements Edit {
+            final Room room;
+            final int fromX, fromY;
+            int toX, toY;
+            RoomMoved(Room room, int fromX, int fromY, int toX, int toY) {
+                this.room = room;
+                this.fromX = fromX;
+                this.fromY = fromY;
+                this.toX = toX;
+                this.toY = toY;
+            }
+            public void undo(FloorPlan plan) { moveTo(plan, fromX, fromY); }
+            public void redo(FloorPlan plan) { moveTo(plan, toX, toY); }
+            void moveTo(FloorPlan plan, int x, int y) {
+                room.x = x;
+                room.y = y;
+                plan.roomChanged(room);
+            }
+            public boolean merge(Edit next) {
+                if (next instanceof RoomMoved && ((RoomMoved) next).room == room) {
+                    toX = ((RoomMoved) next).toX;
+                    toY = ((RoomMoved) next).toY;
+                    return true;
+                }
+                return false;
+            }
+            public boolean isEmpty() { return fromX == toX && fromY == toY; }
+        }
+
+        // Room.rotate swaps width and height, so it is its own inverse
+        static class RoomRotated implements Edit {
+            final Room room;
+            RoomRotated(Room room) { this.room = room; }
+            public void undo(FloorPlan plan) { redo(plan); }
+            public void redo(FloorPlan plan) {
+                room.rotate();
+                plan.roomChanged(room);
+            }
+        }
+
+        static class DoorAdded implements Edit {
+            final Room room;
+            final Door door;
+            DoorAdded(Room room, Door door) { this.room = room; this.door = door; }
+            public void undo(FloorPlan plan) {
+                room.doors.remove(room.doors.lastIndexOf(door));
+                plan.roomChanged(room);
+            }
+            public void redo(FloorPlan plan) {
+                room.doors.add(door);
+                plan.roomChanged(room);
+            }
+        }
+
+        static class WindowAdded implements Edit {
+            final Room room;
+            final Window window;
+            WindowAdded(Room room, Window window) { this.room = room; this.window = window; }
+            public void undo(FloorPlan plan) {
+                room.windows.remove(room.windows.lastIndexOf(window));
+                plan.roomChanged(room);
+            }
+            public void redo(FloorPlan plan) {
+                room.windows.add(window);
+                plan.roomChanged(room);
+            }
+        }
+
+        static class FurnitureAdded implements Edit {
+            final FurnitureItem item;
+            final int index;
+            FurnitureAdded(FurnitureItem item, int index) { this.item = item; this.index = index; }
+            public void undo(FloorPlan plan) { plan.removeFurniture(item); }
+            public void redo(FloorPlan plan) { plan.insertFurniture(index, item); }
+        }
+
+        static class FurnitureMoved implements Edit {
+            final FurnitureItem item;
+            final int fromX, fromY;
+            int toX, toY;
+            FurnitureMoved(FurnitureItem item, int fromX, int fromY, int toX, int toY) {
+                this.item = item;
+                this.fromX = fromX;
+                this.fromY = fromY;
+                this.toX = toX;
+                this.toY = toY;
+            }
+            public void undo(FloorPlan plan) { moveTo(plan, fromX, fromY); }
+            public void redo(FloorPlan plan) { moveTo(plan, toX, toY); }
+            void moveTo(FloorPlan plan, int x, int y) {
+                item.x = x;
+                item.y = y;
+                plan.furnitureChanged(item);
+            }
+            public boolean merge(Edit next) {
+                if (next instanceof FurnitureMoved && ((FurnitureMoved) next).item == item) {
+                    toX = ((FurnitureMoved) next).toX;
+                    toY = ((FurnitureMoved) next).toY;
+                    return true;
+                }
+                return false;
+            }
+            public boolean isEmpty() { return fromX == toX && fromY == toY; }
+        }
+
+        // Four quarter turns bring an item back, so three undo one
+        static class FurnitureRotated implements Edit {
+            final FurnitureItem item;
+            FurnitureRotated(FurnitureItem item) { this.item = item; }
+            public void undo(FloorPlan plan) {
+                item.rotate();
+                item.rotate();
+                redo(plan);
+            }
+            public void redo(FloorPlan plan) {
+                item.rotate();
+                plan.furnitureChanged(item);
+            }
+        }
+
+        // Rooms and furniture added together by an import, at the ends of the lists
+        static class Imported implements Edit {
+            final List<Room> rooms;
+            final List<FurnitureItem> items;
+            final int roomIndex, itemIndex;
+            Imported(List<Room> rooms, List<FurnitureItem> items, int roomIndex, int itemIndex) {
+                this.rooms = rooms;
+                this.items = items;
+                this.roomIndex = roomIndex;
+                this.itemIndex = itemIndex;
+            }
+            public void undo(FloorPlan plan) { plan.removeAll(rooms, items); }
+            public void redo(FloorPlan plan) { plan.addAll(rooms, items); }
+            public int bytes() { return EDIT_BYTES + 8 * (rooms.size() + items.size()); }
+        }
+
+        // The steps of one gesture, undone together in reverse
+        static class Gesture implements Edit {
+            final Edit[] edits;
+            Gesture(Edit[] edits) { this.edits = edits; }
+            public void undo(FloorPlan plan) {
+                for (int i = edits.length - 1; i >= 0; i--) {
+                    edits[i].undo(plan);
+                }
+            }
+            public void redo(FloorPlan plan) {
+                for (Edit edit : edits) {
+                    edit.redo(plan);
+                }
+            }
+            public int bytes() {
+                int bytes = EDIT_BYTES;
+                for (Edit edit : edits) {
+                    bytes += edit.bytes();
+                }
+                return bytes;
+            }
+        }
+
+        // Told of each edit right after it is applied to the plan - recorded, undone
+        // or redone, a gesture's edits one at a time - and of the end of each step
+        interface Listener {
+            void applied(Edit edit, boolean undone);
+            void stepEnded();
+        }
+
+        public long maxBytes;
+        public Listener listener;
+        // Run after the listener at the end of every step; the plan publishes its new version here
+        private final Runnable committed;
+        private final ArrayDeque<Edit> undoEdits = new ArrayDeque<>();
+        private final ArrayDeque<Edit> redoEdits = new ArrayDeque<>();
+        private long undoBytes, redoBytes;
+        // Steps of the gesture in progress, or null outside a gesture
+        private ArrayList<Edit> gesture;
+
+        public EditLog(long maxBytes) {
+            this(maxBytes, null);
+        }
+
+        public EditLog(long maxBytes, Runnable committed) {
+            this.maxBytes = maxBytes;
+            this.committed = committed;
+        }
+
+        // Adds an edit that has just been applied, dropping anything that could be redone
+        public void record(Edit edit) {
+            if (edit.isEmpty()) {
+                return;
+            }
+            redoEdits.clear();
+            redoBytes = 0;
+            if (listener != null) {
+                listener.applied(edit, false);
+            }
+            if (gesture != null) {
+                for (Edit step : gesture) {
+                    if (step.merge(edit)) {
+                        return;
+                    }
+                }
+                gesture.add(edit);
+                return;
+            }
+            push(edit);
+            stepEnded();
+        }
+
+        public void beginGesture() {
+            endGesture();
+            gesture = new ArrayList<>(2);
+        }
+
+        // Records a step of a drag, the first opening a gesture that lasts until the
+        // release calls endGesture. Opening it here rather than on the press means a
+        // press that ends in a dialog, which swallows the release, leaves none open.
+        public void recordDragStep(Edit edit) {
+            if (gesture == null) {
+                beginGesture();
+            }
+            record(edit);
+        }
+
+        public void endGesture() {
+            if (gesture == null) {
+                return;
+            }
+            gesture.removeIf(Edit::isEmpty);
+            if (gesture.size() == 1) {
+                push(gesture.get(0));
+            } else if (gesture.size() > 1) {
+                push(new Gesture(gesture.toArray(new Edit[0])));
+            }
+            gesture = null;
+            stepEnded();
+        }
+
+        private void stepEnded() {
+            if (listener != null) {
+                listener.stepEnded();
+            }
+            if (committed != null) {
+                committed.run();
+            }
+        }
+
+        private void push(Edit edit) {
+            undoEdits.addLast(edit);
+            undoBytes += edit.bytes();
+            while (undoBytes + redoBytes > maxBytes && !undoEdits.isEmpty()) {
+                undoBytes -= undoEdits.removeFirst().bytes();
+            }
+        }
+
+        public boolean undo(FloorPlan plan) {
+            endGesture();
+            Edit edit = undoEdits.pollLast();
+            if (edit == null) {
+                return false;
+            }
+            undoBytes -= edit.bytes();
+            apply(edit, true, plan);
+            redoEdits.addLast(edit);
+            redoBytes += edit.bytes();
+            stepEnded();
+            return true;
+        }
+
+        public boolean redo(FloorPlan plan) {
+            endGesture();
+            Edit edit = redoEdits.pollLast();
+            if (edit == null) {
+                return false;
+            }
+            redoBytes -= edit.bytes();
+            apply(edit, false, plan);
+            undoEdits.addLast(edit);
+            undoBytes += edit.bytes();
+            stepEnded();
+            return true;
+        }
+
+        // Undoes or redoes edit, a gesture's edits one by one so the listener sees each
+        private void apply(Edit edit, boolean undo, FloorPlan plan) {
+            if (edit instanceof Gesture && listener != null) {
+                Edit[] edits = ((Gesture) edit).edits;
+                for (int i = 0; i < edits.length; i++) {
+                    apply(edits[undo ? edits.length - 1 - i : i], undo, plan);
+                }
+                return;
+            }
+            if (undo) {
+                edit.undo(plan);
+            } else {
+                edit.redo(plan);
+            }
+            if (listener != null) {
+                listener.applied(edit, undo);
+            }
+        }
+
+        public boolean canUndo() {
+            return !undoEdits.isEmpty();
+        }
+
+        public boolean canRedo() {
+            return !redoEdits.isEmpty();
+        }
+
+        public int undoCount() {
+            return undoEdits.size();
+        }
+
+        public int redoCount() {
+            return redoEdits.size();
+        }
+
+        public long bytes() {
+            return undoBytes + redoBytes;
+        }
+
+        public void clear() {
+            undoEdits.clear();
+            redoEdits.clear();
+            undoBytes = redoBytes = 0;
+            gesture = null;
+        }
+    }
+
+    // Autosave for the plan being edited: a snapshot plus an append-only journal of
+    // the history steps taken since. Each step, undo and redo is encoded on the EDT
+    // as a short record - what changed, and the corner and id of the room or item it
+    // changed: the corner says which page to read it from, and the id tells it from
+    // others on the same corner - and handed to a writer thread that appends
+    // whatever has built up and fsyncs once per batch.
+    // An edit therefore costs a few dozen bytes however large the plan. Once the
+    // journal passes compactBytes the plan is written out as a new snapshot and a
+    // new journal started from it; saving or opening a plan starts one from that file.
+    //
+    // Files are numbered by generation in the autosave directory: journal-<n>.log
+    // names the plan file it starts from, or none for an empty plan, and is only
+    // created once that file is complete, so the newest journal always describes a
+    // whole plan. Each step is framed with its length and CRC, so recovery stops
+    // cleanly at a step torn by a crash, and likewise before a step that does not
+    // replay, none of which is applied.
+    static class AutosaveJournal implements EditLog.Listener, Closeable {
+        public static final String DIRECTORY = "autosave";
+        public static final int MAGIC = 0x46504A4E; // "FPJN"
+        // Version 1 records name objects by corner alone
+        public static final int VERSION = 2;
+        public static final long COMPACT_BYTES = 4L << 20;
+        // How long the writer lets further steps gather before it writes and fsyncs
+        static final long COMMIT_DELAY_MS = 50;
+        // Anything longer is a damaged length rather than a real step
+        static final int MAX_STEP_BYTES = 1 << 28;
+
+        static final byte ROOM_ADDED = 1, ROOM_REMOVED = 2, ROOM_MOVED = 3, ROOM_ROTATED = 4,
+                          DOOR_ADDED = 5, DOOR_REMOVED = 6, WINDOW_ADDED = 7, WINDOW_REMOVED = 8,
+                          FURNITURE_ADDED = 9, FURNITURE_REMOVED = 10, FURNITURE_MOVED = 11, FURNITURE_ROTATED = 12;
+
+        // Work for the writer thread, run in order with the steps around it
+        interface Task {
+            void run() throws IOException;
+        }
+
+        public long compactBytes = COMPACT_BYTES;
+        private final File directory;
+        private FloorPlan plan;
+        private long generation;
+        private long journalBytes;
+
+        // Used on the EDT to encode one step
+        private final ByteArrayOutputStream step = new ByteArrayOutputStream(64);
+        private final DataOutputStream out = new DataOutputStream(step);
+        private final CRC32 crc = new CRC32();
+
+        // Framed steps not yet handed over, and batches of steps and tasks for the writer
+        private final Object lock = new Object();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final ArrayDeque<Object> queue = new ArrayDeque<>();
+        private volatile boolean closed;
+        private final Thread writer;
+        // Owned by the writer thread
+        private FileChannel journal;
+
+        private AutosaveJournal(File directory) {
+            this.directory = directory;
+            writer = new Thread(this::writeLoop, "Autosave");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        public static AutosaveJournal open(File directory) throws IOException {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create autosave directory " + directory);
+            }
+            return new AutosaveJournal(directory);
+        }
+
+        // Rebuilds the plan the last session left, from its newest journal and the
+        // file that journal starts from, and carries on journaling it. Returns an
+        // empty plan if there is nothing to recover.
+        public FloorPlan recover() throws IOException {
+            File latest = null;
+            for (File file : listFiles()) {
+                long fileGeneration = file.getName().endsWith(".tmp") ? -1 : generationOf(file, "journal-", ".log");
+                if (fileGeneration > generation) {
+                    generation = fileGeneration;
+                    latest = file;
+                }
+            }
+            if (latest == null) {
+                FloorPlan empty = new FloorPlan();
+                attach(empty, null);
+                return empty;
+            }
+
+            FloorPlan recovered = null;
+            File base = null;
+            int steps = 0;
+            // A step that fails part way through leaves the plan half edited, so then the
+            // journal is read again from the start, stopping short of that step
+            for (int limit = Integer.MAX_VALUE; recovered == null; ) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(latest)))) {
+                    int version = in.readInt() == MAGIC ? in.readInt() : -1;
+                    if (version < 1 || version > VERSION) {
+                        throw new IOException(latest + " is not an autosave journal");
+                    }
+                    String basePath = in.readUTF();
+                    base = basePath.isEmpty() ? null : new File(basePath);
+                    FloorPlan plan;
+                    try {
+                        plan = base == null ? new FloorPlan() : FloorPlan.open(base);
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException("Cannot read " + base, e);
+                    }
+                    byte[] payload = new byte[256];
+                    String failure = null;
+                    steps = 0;
+                    while (steps < limit) {
+                        int length, checksum;
+                        try {
+                            length = in.readInt();
+                            checksum = in.readInt();
+                            if (length < 0 || length > MAX_STEP_BYTES) {
+                                break;
+                            }
+                            if (payload.length < length) {
+                                payload = new byte[Math.max(length, payload.length * 2)];
+                            }
+                            in.readFully(payload, 0, length);
+                        } catch (EOFException e) {
+                            // The last step was cut short by a crash
+                            break;
+                        }
+                        crc.reset();
+                        crc.update(payload, 0, length);
+                        if ((int) crc.getValue() != checksum) {
+                            System.err.println("Autosave journal is damaged after " + steps + " steps; recovering up to there");
+                            break;
+                        }
+                        try {
+                            replay(plan, new DataInputStream(new ByteArrayInputStream(payload, 0, length)), version);
+                        } catch (IOException e) {
+                            failure = e.getMessage();
+                            break;
+                        }
+                        steps++;
+                    }
+                    if (failure == null) {
+                        recovered = plan;
+                    } else {
+                        System.err.println("Autosaved step " + steps + " cannot be replayed (" + failure + "); recovering up to there");
+                        plan.close();
+                        limit = steps;
+                    }
+                }
+            }
+            if (steps > 0) {
+                this.plan = recovered;
+                recovered.history.listener = this;
+                compact();
+            } else {
+                attach(recovered, base);
+            }
+            return recovered;
+        }
+
+        // Journals plan from now on, starting from base, a file holding the plan as it
+        // stands, or from an empty plan if base is null
+        public void attach(FloorPlan plan, File base) {
+            attach(plan, base, null);
+        }
+
+        // As above, for a base still being written by baseWritten. The journal moves on
+        // to it once it is done; if it fails, journaling carries on where it was.
+        public void attach(FloorPlan plan, File base, Future<?> baseWritten) {
+            if (this.plan != null && this.plan.history.listener == this) {
+                this.plan.history.listener = null;
+            }
+            this.plan = plan;
+            plan.history.listener = this;
+            long next = ++generation;
+            File start = base != null ? base.getAbsoluteFile() : null;
+            enqueue(() -> {
+                if (baseWritten != null) {
+                    try {
+                        baseWritten.get();
+                    } catch (InterruptedException | ExecutionException | CancellationException e) {
+                        return;
+                    }
+                }
+                startJournal(next, start);
+            });
+            journalBytes = 0;
+        }
+
+        @Override
+        public void applied(EditLog.Edit edit, boolean undone) {
+            try {
+                encode(edit, undone);
+            } catch (IOException e) {
+                // Writes to a byte array cannot fail
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Frames what was applied since the last step and hands it to the writer
+        @Override
+        public void stepEnded() {
+            try {
+                endMove();
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (step.size() == 0) {
+                return;
+            }
+            crc.reset();
+            crc.update(step.toByteArray());
+            synchronized (lock) {
+                DataOutputStream frame = new DataOutputStream(pending);
+                try {
+                    frame.writeInt(step.size());
+                    frame.writeInt((int) crc.getValue());
+                    step.writeTo(frame);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                lock.notifyAll();
+            }
+            journalBytes += 8 + step.size();
+            step.reset();
+            if (journalBytes > compactBytes) {
+                compact();
+            }
+        }
+
+        // Writes the plan out as a new snapshot and starts a new journal from it. The
+        // objects are copied here and written on the writer thread; a paged plan moves
+        // on to the snapshot afterwards, back on the EDT.
+        public void compact() {
+            long next = generation + 1;
+            File snapshot = new File(directory, "snapshot-" + next + "." + PlanFile.EXTENSION).getAbsoluteFile();
+            FloorPlan compacted = plan;
+            PlanFile.SaveJob job;
+            try {
+                job = compacted.prepareSave(snapshot);
+            } catch (IOException e) {
+                // Keep journaling on the current generation and try again later
+                e.printStackTrace();
+                return;
+            }
+            generation = next;
+            journalBytes = 0;
+            enqueue(() -> {
+                job.write(null);
+                if (compacted.pagedPlan != null) {
+                    SwingUtilities.invokeLater(() -> {
+                        try {
+                            compacted.finishSave(job);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    });
+                }
+                startJournal(next, snapshot);
+            });
+        }
+
+        // Bytes journaled since the last snapshot or attach
+        public long journalBytes() {
+            return journalBytes;
+        }
+
+        // Blocks until everything handed over so far is on disk
+        public void flush() {
+            Object done = new Object();
+            boolean[] finished = new boolean[1];
+            enqueue(() -> {
+                synchronized (done) {
+                    finished[0] = true;
+                    done.notifyAll();
+                }
+            });
+            synchronized (done) {
+                while (!finished[0]) {
+                    try {
+                        done.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (plan != null && plan.history.listener == this) {
+                plan.history.listener = null;
+            }
+            synchronized (lock) {
+                closed = true;
+                lock.notifyAll();
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (journal != null) {
+                journal.close();
+            }
+        }
+
+        private void enqueue(Task task) {
+            synchronized (lock) {
+                handOver();
+                queue.addLast(task);
+                lock.notifyAll();
+            }
+        }
+
+        // Moves the steps framed so far into the queue, ahead of anything queued after them
+        private void handOver() {
+            if (pending.size() > 0) {
+                queue.addLast(pending.toByteArray());
+                pending.reset();
+            }
+        }
+
+        private void writeLoop() {
+            ArrayList<Object> batch = new ArrayList<>();
+            while (true) {
+                synchronized (lock) {
+                    while (pending.size() == 0 && queue.isEmpty() && !closed) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (pending.size() == 0 && queue.isEmpty()) {
+                        return;
+                    }
+                }
+                // Group commit: steps made while waiting share this batch's fsync
+                if (!closed) {
+                    try {
+                        Thread.sleep(COMMIT_DELAY_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                synchronized (lock) {
+                    handOver();
+                    batch.addAll(queue);
+                    queue.clear();
+                }
+                try {
+                    boolean unsynced = false;
+                    for (Object item : batch) {
+                        if (item instanceof byte[]) {
+                            ByteBuffer buffer = ByteBuffer.wrap((byte[]) item);
+                            while (buffer.hasRemaining()) {
+                                journal.write(buffer);
+                            }
+                            unsynced = true;
+                        } else {
+                            if (unsynced) {
+                                journal.force(false);
+                                unsynced = false;
+                            }
+                            ((Task) item).run();
+                        }
+                    }
+                    if (unsynced) {
+                        journal.force(false);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println("Autosave failed: " + e.getMessage());
+                }
+                batch.clear();
+            }
+        }
+
+        // Writer thread: makes journal-<number> the current journal, starting from
+        // base, and deletes the files of older generations
+        private void startJournal(long number, File base) throws IOException {
+            File target = new File(directory, "journal-" + number + ".log");
+            File temp = new File(directory, target.getName() + ".tmp");
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeInt(MAGIC);
+            headerOut.writeInt(VERSION);
+            headerOut.writeUTF(base != null ? base.getPath() : "");
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(header.toByteArray()));
+                channel.force(true);
+            }
+            java.nio.file.Files.move(temp.toPath(), target.toPath(), java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            if (journal != null) {
+                journal.close();
+            }
+            journal = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+            for (File file : listFiles()) {
+                long fileGeneration = Math.max(generationOf(file, "journal-", ".log"),
+                                               generationOf(file, "snapshot-", "." + PlanFile.EXTENSION));
+                if (fileGeneration >= 0 && fileGeneration < number && !file.getAbsoluteFile().equals(base)) {
+                    file.delete();
+                }
+            }
+        }
+
+        private File[] listFiles() {
+            File[] files = directory.listFiles();
+            return files != null ? files : new File[0];
+        }
+
+        // The generation in a file name like journal-12.log or its .tmp, or -1
+        private static long generationOf(File file, String prefix, String suffix) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                name = name.substring(0, name.length() - 4);
+            }
+            if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        // Writes what applying (or undoing) edit just did to the plan, as records replay
+        // understands. Each drag step is a move, so consecutive moves of one object are
+        // held back and written as one.
+        private void encode(EditLog.Edit edit, boolean undone) throws IOException {
+            if (edit instanceof EditLog.RoomMoved) {
+                EditLog.RoomMoved move = (EditLog.RoomMoved) edit;
+                move(ROOM_MOVED, undone, move.room.id, move.fromX, move.fromY, move.toX, move.toY);
+                return;
+            }
+            if (edit instanceof EditLog.FurnitureMoved) {
+                EditLog.FurnitureMoved move = (EditLog.FurnitureMoved) edit;
+                move(FURNITURE_MOVED, undone, move.item.id, move.fromX, move.fromY, move.toX, move.toY);
+                return;
+            }
+            endMove();
+            if (edit instanceof EditLog.RoomAdded || edit instanceof EditLog.RoomRemoved) {
+                boolean added = edit instanceof EditLog.RoomAdded;
+                Room room = added ? ((EditLog.RoomAdded) edit).room : ((EditLog.RoomRemoved) edit).room;
+                int index = added ? ((EditLog.RoomAdded) edit).index : ((EditLog.RoomRemoved) edit).index;
+                if (added != undone) {
+                    out.writeByte(ROOM_ADDED);
+                    out.writeInt(index);
+                    writeRoom(room);
+                } else {
+                    out.writeByte(ROOM_REMOVED);
+                    writeCorner(room.x, room.y, room.id);
+                }
+            } else if (edit instanceof EditLog.RoomRotated) {
+                Room room = ((EditLog.RoomRotated) edit).room;
+                out.writeByte(ROOM_ROTATED);
+                writeCorner(room.x, room.y, room.id);
+            } else if (edit instanceof EditLog.DoorAdded) {
+                EditLog.DoorAdded added = (EditLog.DoorAdded) edit;
+                out.writeByte(undone ? DOOR_REMOVED : DOOR_ADDED);
+                writeCorner(added.room.x, added.room.y, added.room.id);
+                out.writeInt(added.door.offsetX);
+                out.writeInt(added.door.offsetY);
+                out.writeInt(added.door.length);
+                out.writeBoolean(added.door.isVertical);
+            } else if (edit instanceof EditLog.WindowAdded) {
+                EditLog.WindowAdded added = (EditLog.WindowAdded) edit;
+                out.writeByte(undone ? WINDOW_REMOVED : WINDOW_ADDED);
+                writeCorner(added.room.x, added.room.y, added.room.id);
+                out.writeInt(added.window.offsetX);
+                out.writeInt(added.window.offsetY);
+                out.writeBoolean(added.window.isVertical);
+            } else if (edit instanceof EditLog.FurnitureAdded) {
+                EditLog.FurnitureAdded added = (EditLog.FurnitureAdded) edit;
+                FurnitureItem item = added.item;
+                if (!undone) {
+                    out.writeByte(FURNITURE_ADDED);
+                    out.writeInt(added.index);
+                    writeCorner(item.x, item.y, item.id);
+                    out.writeUTF(item.type);
+                    out.writeBoolean(item.isFixture);
+                    out.writeShort(item.rotation);
+                    out.writeInt(item.size.width);
+                    out.writeInt(item.size.height);
+                } else {
+                    out.writeByte(FURNITURE_REMOVED);
+                    writeCorner(item.x, item.y, item.id);
+                }
+            } else if (edit instanceof EditLog.Imported) {
+                // Written as the rooms and items it adds or removes, one by one
+                EditLog.Imported imported = (EditLog.Imported) edit;
+                if (!undone) {
+                    for (int i = 0; i < imported.rooms.size(); i++) {
+                        out.writeByte(ROOM_ADDED);
+                        out.writeInt(imported.roomIndex + i);
+                        writeRoom(imported.rooms.get(i));
+                    }
+                    for (int i = 0; i < imported.items.size(); i++) {
+                        encode(new EditLog.FurnitureAdded(imported.items.get(i), imported.itemIndex + i), false);
+                    }
+                } else {
+                    for (FurnitureItem item : imported.items) {
+                        encode(new EditLog.FurnitureAdded(item, 0), true);
+                    }
+                    for (Room room : imported.rooms) {
+                        out.writeByte(ROOM_REMOVED);
+                        writeCorner(room.x, room.y, room.id);
+                    }
+                }
+            } else if (edit instanceof EditLog.FurnitureRotated) {
+                FurnitureItem item = ((EditLog.FurnitureRotated) edit).item;
+                out.writeByte(FURNITURE_ROTATED);
+                writeCorner(item.x, item.y, item.id);
+                out.writeByte(undone ? 3 : 1);
+            } else {
+                throw new IOException("Cannot journal " + edit.getClass().getSimpleName());
+            }
+        }
+
+        // The move being held back, if moveOp is not 0
+        private byte moveOp;
+        private int moveId, moveFromX, moveFromY, moveToX, moveToY;
+
+        private void move(byte op, boolean undone, int id, int fromX, int fromY, int toX, int toY) throws IOException {
+            if (undone) {
+                move(op, false, id, toX, toY, fromX, fromY);
+                return;
+            }
+            if (moveOp == op && moveId == id && moveToX == fromX && moveToY == fromY) {
+                moveToX = toX;
+                moveToY = toY;
+                return;
+            }
+            endMove();
+            moveOp = op;
+            moveId = id;
+            moveFromX = fromX;
+            moveFromY = fromY;
+            moveToX = toX;
+            moveToY = toY;
+        }
+
+        private void endMove() throws IOException {
+            if (moveOp != 0 && (moveFromX != moveToX || moveFromY != moveToY)) {
+                out.writeByte(moveOp);
+                writeCorner(moveFromX, moveFromY, moveId);
+                out.writeInt(moveToX);
+                out.writeInt(moveToY);
+            }
+            moveOp = 0;
+        }
+
+        // Where an object is found, and which one it is there
+        private void writeCorner(int x, int y, int id) throws IOException {
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeInt(id);
+        }
+
+        private void writeRoom(Room room) throws IOException {
+            writeCorner(room.x, room.y, room.id);
+            out.writeInt(room.width);
+            out.writeInt(room.height);
+            out.writeUTF(room.type);
+            out.writeInt(room.color.getRGB());
+            out.writeInt(room.doors.size());
+            for (Door door : room.doors) {
+                out.writeInt(door.offsetX);
+                out.writeInt(door.offsetY);
+                out.writeInt(door.length);
+                out.writeBoolean(door.isVertical);
+            }
+            out.writeInt(room.windows.size());
+            for (Window window : room.windows) {
+                out.writeInt(window.offsetX);
+                out.writeInt(window.offsetY);
+                out.writeBoolean(window.isVertical);
+            }
+        }
+
+        // Applies the records of one journaled step, from a journal of the given version, to plan
+        static void replay(FloorPlan plan, DataInputStream in, int version) throws IOException {
+            while (in.available() > 0) {
+                byte op = in.readByte();
+                switch (op) {
+                    case ROOM_ADDED: {
+                        int index = in.readInt();
+                        int x = in.readInt(), y = in.readInt(), id = readId(in, version);
+                        Room room = new Room(x, y, in.readInt(), in.readInt(), in.readUTF(), null);
+                        room.id = id;
+                        room.color = new Color(in.readInt(), true);
+                        for (int d = in.readInt(); d > 0; d--) {
+                            int offsetX = in.readInt(), offsetY = in.readInt(), length = in.readInt();
+                            room.doors.add(new Door(offsetX, offsetY, in.readBoolean(), length));
+                        }
+                        for (int w = in.readInt(); w > 0; w--) {
+                            room.windows.add(new Window(in.readInt(), in.readInt(), in.readBoolean()));
+                        }
+                        plan.insertRoom(index, room);
+                        break;
+                    }
+                    case ROOM_REMOVED:
+                        plan.removeRoom(roomAtCorner(plan, in, version));
+                        break;
+                    case ROOM_MOVED: {
+                        Room room = roomAtCorner(plan, in, version);
+                        room.x = in.readInt();
+                        room.y = in.readInt();
+                        plan.roomChanged(room);
+                        break;
+                    }
+                    case ROOM_ROTATED: {
+                        Room room = roomAtCorner(plan, in, version);
+                        room.rotate();
+                        plan.roomChanged(room);
+                        break;
+                    }
+                    case DOOR_ADDED:
+                    case DOOR_REMOVED: {
+                        Room room = roomAtCorner(plan, in, version);
+                        int offsetX = in.readInt(), offsetY = in.readInt(), length = in.readInt();
+                        boolean isVertical = in.readBoolean();
+                        if (op == DOOR_ADDED) {
+                            room.doors.add(new Door(offsetX, offsetY, isVertical, length));
+                        } else {
+                            for (int i = room.doors.size() - 1; i >= 0; i--) {
+                                Door door = room.doors.get(i);
+                                if (door.offsetX == offsetX && door.offsetY == offsetY &&
+                                    door.length == length && door.isVertical == isVertical) {
+                                    room.doors.remove(i);
+                                    break;
+                                }
+                            }
+                        }
+                        plan.roomChanged(room);
+                        break;
+                    }
+                    case WINDOW_ADDED:
+                    case WINDOW_REMOVED: {
+                        Room room = roomAtCorner(plan, in, version);
+                        int offsetX = in.readInt(), offsetY = in.readInt();
+                        boolean isVertical = in.readBoolean();
+                        if (op == WINDOW_ADDED) {
+                            room.windows.add(new Window(offsetX, offsetY, isVertical));
+                        } else {
+                            for (int i = room.windows.size() - 1; i >= 0; i--) {
+                                Window window = room.windows.get(i);
+                                if (window.offsetX == offsetX && window.offsetY == offsetY && window.isVertical == isVertical) {
+                                    room.windows.remove(i);
+                                    break;
+                                }
+                            }
+                        }
+                        plan.roomChanged(room);
+                        break;
+                    }
+                    case FURNITURE_ADDED: {
+                        int index = in.readInt();
+                        int x = in.readInt(), y = in.readInt(), id = readId(in, version);
+                        String type = in.readUTF();
+                        boolean isFixture = in.readBoolean();
+                        int rotation = in.readShort();
+                        FurnitureItem item = new FurnitureItem(x, y, type, isFixture, rotation, in.readInt(), in.readInt());
+                        item.id = id;
+                        plan.insertFurniture(index, item);
+                        break;
+                    }
+                    case FURNITURE_REMOVED:
+                        plan.removeFurniture(furnitureAtCorner(plan, in, version));
+                        break;
+                    case FURNITURE_MOVED: {
+                        FurnitureItem item = furnitureAtCorner(plan, in, version);
+                        item.x = in.readInt();
+                        item.y = in.readInt();
+                        plan.furnitureChanged(item);
+                        break;
+                    }
+                    case FURNITURE_ROTATED: {
+                        FurnitureItem item = furnitureAtCorner(plan, in, version);
+                        for (int turns = in.readByte(); turns > 0; turns--) {
+                            item.rotate();
+                        }
+                        plan.furnitureChanged(item);
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown autosave record " + op);
+                }
+            }
+        }
+
+        // The id in a record, or 0 for any object on the corner in a version 1 journal
+        private static int readId(DataInputStream in, int version) throws IOException {
+            return version < 2 ? 0 : in.readInt();
+        }
+
+        // The room a record names. A record matching no room, or more than one, is
+        // refused rather than applied to whichever is found first.
+        private static Room roomAtCorner(FloorPlan plan, DataInputStream in, int version) throws IOException {
+            int x = in.readInt(), y = in.readInt(), id = readId(in, version);
+            plan.showPages(new Rectangle(x, y, 1, 1));
+            ArrayList<Room> found = new ArrayList<>(1);
+            plan.roomIndex.query(x, y, 0, 0, room -> {
+                if (room.x == x && room.y == y && (id == 0 || room.id == id)) {
+                    found.add(room);
+                }
+                return true;
+            });
+            if (found.size() != 1) {
+                throw new IOException((found.isEmpty() ? "No room" : "More than one room") + " at " + x + "," + y
+                                      + (id != 0 ? " with id " + id : ""));
+            }
+            return found.get(0);
+        }
+
+        private static FurnitureItem furnitureAtCorner(FloorPlan plan, DataInputStream in, int version) throws IOException {
+            int x = in.readInt(), y = in.readInt(), id = readId(in, version);
+            plan.showPages(new Rectangle(x, y, 1, 1));
+            ArrayList<FurnitureItem> found = new ArrayList<>(1);
+            plan.furnitureIndex.query(x, y, 0, 0, item -> {
+                if (item.x == x && item.y == y && (id == 0 || item.id == id)) {
+                    found.add(item);
+                }
+                return true;
+            });
+            if (found.size() != 1) {
+                throw new IOException((found.isEmpty() ? "No furniture" : "More than one furniture item") + " at " + x + ","
+                                      + y + (id != 0 ? " with id " + id : ""));
+            }
+            return found.get(0);
+        }
+    }
+
+    // What RenderMetrics shows over JMX. Times are in milliseconds, and are moving
+    // averages over recent samples unless they are maxima.
+    public interface RenderMetricsMXBean {
+        long getFramesPainted();
+        double getFrameMillis();
+        double getMaxFrameMillis();
+        double getGridMillis();
+        double getRoomsMillis();
+        double getWallsMillis();
+        double getLabelsMillis();
+        double getFurnitureMillis();
+        int getRoomsPainted();
+        int getItemsPainted();
+        long getDrags();
+        double getDragLatencyMillis();
+        double getMaxDragLatencyMillis();
+        double getMouseHandlerMillis();
+        double getMaxMouseHandlerMillis();
+        int getRoomCount();
+        int getFurnitureCount();
+        int getResidentPages();
+        long getFrameAllocatedBytes();
+        double getAllocationBytesPerSecond();
+        String getLastOperation();
+        double getLastOperationMillis();
+        void reset();
+    }
+
+    // Where the canvas's time goes, for diagnosing slowness on a user's machine
+    // without attaching a profiler: each phase of a paint, the time from a drag
+    // event to the paint that shows it, mouse handlers, background saves, loads
+    // and exports, object counts, and how fast the EDT allocates. Read over JMX as
+    // OBJECT_NAME, shown on the canvas with F3, and recorded as the JFR events
+    // below whenever a flight recording is running.
+    static class RenderMetrics implements RenderMetricsMXBean {
+        public static final String OBJECT_NAME = "FloorPlanner:type=RenderMetrics";
+        public static final int GRID = 0, ROOMS = 1, WALLS = 2, LABELS = 3, FURNITURE = 4;
+        public static final String[] PHASES = {"grid", "rooms", "walls", "labels", "furniture"};
+        // Weight of the newest sample in each moving average
+        public static final double SMOOTHING = 0.1;
+        public static final long RATE_INTERVAL_NANOS = 1_000_000_000L;
+        public static final int HUD_LINES = 5;
+        public static final int HUD_LINE_HEIGHT = 15;
+        public static final int HUD_WIDTH = 520;
+        public static final Font HUD_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+
+        public static final RenderMetrics shared = new RenderMetrics();
+
+        private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocations();
+
+        @Name("floorplanner.Paint")
+        @Label("Canvas Paint")
+        @Category({"Floor Planner", "Rendering"})
+        @Description("One paint of the canvas, with the time spent in each phase")
+        static class PaintEvent extends Event {
+            @Label("Clip Width") int clipWidth;
+            @Label("Clip Height") int clipHeight;
+            @Label("Zoom") double zoom;
+            @Label("Grid") @Timespan long grid;
+            @Label("Rooms") @Timespan long rooms;
+            @Label("Walls") @Timespan long walls;
+            @Label("Labels") @Timespan long labels;
+            @Label("Furniture") @Timespan long furniture;
+            @Label("Rooms Painted") int roomsPainted;
+            @Label("Items Painted") int itemsPainted;
+            @Label("Allocated") @DataAmount long allocated;
+        }
+
+        @Name("floorplanner.DragLatency")
+        @Label("Drag Latency")
+        @Category({"Floor Planner", "Input"})
+        @Description("Time from a mouse drag event to the end of the paint showing it")
+        static class DragLatencyEvent extends Event {
+            @Label("Latency") @Timespan long latency;
+        }
+
+        @Name("floorplanner.MouseHandler")
+        @Label("Mouse Handler")
+        @Category({"Floor Planner", "Input"})
+        @Description("A mouse event handled by the canvas")
+        @Threshold("1 ms")
+        static class MouseHandlerEvent extends Event {
+            @Label("Event") String event;
+        }
+
+        @Name("floorplanner.FileOperation")
+        @Label("File Operation")
+        @Category({"Floor Planner", "Files"})
+        @Description("A save, load or export run in the background")
+        static class FileOperationEvent extends Event {
+            @Label("Operation") String operation;
+            @Label("Succeeded") boolean succeeded;
+        }
+
+        private final double[] phaseMillis = new double[PHASES.length];
+        private long frames, drags;
+        private double frameMillis, maxFrameMillis;
+        private double dragLatencyMillis, maxDragLatencyMillis;
+        private double handlerMillis, maxHandlerMillis;
+        private int roomsPainted, itemsPainted, roomCount, furnitureCount, residentPages;
+        private long frameBytes;
+        private double allocationRate;
+        private long rateStartNanos, rateStartBytes = -1;
+        private String lastOperation = "none";
+        private double lastOperationMillis;
+        // When the oldest drag event not yet painted was sent, or 0
+        private long pendingDragNanos;
+
+        private static com.sun.management.ThreadMXBean allocations() {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            return threads instanceof com.sun.management.ThreadMXBean &&
+                   ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                   ? (com.sun.management.ThreadMXBean) threads : null;
+        }
+
+        // Bytes the current thread has allocated so far, or -1 if the JVM cannot tell
+        public static long threadAllocatedBytes() {
+            return ALLOCATIONS != null ? ALLOCATIONS.getCurrentThreadAllocatedBytes() : -1;
+        }
+
+        // Makes the shared metrics readable over JMX
+        public static void register() {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(shared, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                System.err.println("Render metrics are not available over JMX: " + e.getMessage());
+            }
+        }
+
+        // Records a canvas paint that took frameNanos and allocated frameBytes, with the
+        // phase timings painter took, and the current thread's allocation total after it
+        public synchronized void frame(PaintEvent event, PlanPainter painter, FloorPlan plan, Rectangle clip, double zoom,
+                                       long frameNanos, long threadBytes, long frameBytes) {
+            long now = System.nanoTime();
+            frames++;
+            frameMillis = average(frameMillis, frameNanos / 1e6);
+            maxFrameMillis = Math.max(maxFrameMillis, frameNanos / 1e6);
+            for (int i = 0; i < PHASES.length; i++) {
+                phaseMillis[i] = average(phaseMillis[i], painter.phaseNanos[i] / 1e6);
+            }
+            roomsPainted = painter.roomsPainted;
+            itemsPainted = painter.itemsPainted;
+            roomCount = plan.rooms.size();
+            furnitureCount = plan.furnitureItems.size();
+            residentPages = plan.pagedPlan != null ? plan.pagedPlan.residentPageCount() : 0;
+            if (threadBytes >= 0) {
+                this.frameBytes = frameBytes;
+                if (rateStartBytes < 0) {
+                    rateStartNanos = now;
+                    rateStartBytes = threadBytes;
+                } else if (now - rateStartNanos >= RATE_INTERVAL_NANOS) {
+                    allocationRate = (threadBytes - rateStartBytes) * 1e9 / (now - rateStartNanos);
+                    rateStartNanos = now;
+                    rateStartBytes = threadBytes;
+                }
+            }
+            if (pendingDragNanos != 0) {
+                long latency = now - pendingDragNanos;
+                pendingDragNanos = 0;
+                drags++;
+                dragLatencyMillis = average(dragLatencyMillis, latency / 1e6);
+                maxDragLatencyMillis = Math.max(maxDragLatencyMillis, latency / 1e6);
+                DragLatencyEvent drag = new DragLatencyEvent();
+                if (drag.shouldCommit()) {
+                    drag.latency = latency;
+                    drag.commit();
+                }
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.clipWidth = clip.width;
+                event.clipHeight = clip.height;
+                event.zoom = zoom;
+                event.grid = painter.phaseNanos[GRID];
+                event.rooms = painter.phaseNanos[ROOMS];
+                event.walls = painter.phaseNanos[WALLS];
+                event.labels = painter.phaseNanos[LABELS];
+                event.furniture = painter.phaseNanos[FURNITURE];
+                event.roomsPainted = painter.roomsPainted;
+                event.itemsPainted = painter.itemsPainted;
+                event.allocated = frameBytes;
+                event.commit();
+            }
+        }
+
+        // Notes a drag event about to be handled, unless an earlier one is still waiting
+        // to be painted. The event's own timestamp counts the time it spent queued.
+        public synchronized void dragStarted(MouseEvent e) {
+            if (pendingDragNanos == 0) {
+                long queued = Math.max(0, System.currentTimeMillis() - e.getWhen());
+                pendingDragNanos = System.nanoTime() - queued * 1_000_000;
+            }
+        }
+
+        public synchronized void mouseHandled(MouseHandlerEvent event, MouseEvent e, long nanos) {
+            handlerMillis = average(handlerMillis, nanos / 1e6);
+            maxHandlerMillis = Math.max(maxHandlerMillis, nanos / 1e6);
+            event.end();
+            if (event.shouldCommit()) {
+                event.event = e.paramString();
+                event.commit();
+            }
+        }
+
+        public synchronized void operation(FileOperationEvent event, String operation, long nanos, boolean succeeded) {
+            lastOperation = operation + (succeeded ? "" : " (failed or cancelled)");
+            lastOperationMillis = nanos / 1e6;
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
+
+        private static double average(double average, double sample) {
+            return average == 0 ? sample : average + SMOOTHING * (sample - average);
+        }
+
+        // HUD_LINES lines of text summing up the metrics, for the canvas overlay
+        public synchronized String[] hudLines() {
+            StringBuilder phases = new StringBuilder();
+            for (int i = 0; i < PHASES.length; i++) {
+                phases.append(String.format("%s %.2f  ", PHASES[i], phaseMillis[i]));
+            }
+            return new String[]{
+                String.format("frame %.2f ms (max %.2f), %d frames", frameMillis, maxFrameMillis, frames),
+                phases.toString().trim(),
+                String.format("drag latency %.1f ms (max %.1f), handlers %.2f ms (max %.2f)",
+                              dragLatencyMillis, maxDragLatencyMillis, handlerMillis, maxHandlerMillis),
+                String.format("%d rooms, %d items, %d pages; painted %d rooms, %d items",
+                              roomCount, furnitureCount, residentPages, roomsPainted, itemsPainted),
+                String.format("alloc %.1f KB/frame, %.2f MB/s; %s %.0f ms", frameBytes / 1024.0,
+                              allocationRate / (1 << 20), lastOperation, lastOperationMillis),
+            };
+        }
+
+        @Override
+        public synchronized void reset() {
+            Arrays.fill(phaseMillis, 0);
+            frames = drags = 0;
+            frameMillis = maxFrameMillis = dragLatencyMillis = maxDragLatencyMillis = handlerMillis = maxHandlerMillis = 0;
+            frameBytes = 0;
+            allocationRate = 0;
+            rateStartBytes = -1;
+        }
+
+        @Override public synchronized long getFramesPainted() { return frames; }
+        @Override public synchronized double getFrameMillis() { return frameMillis; }
+        @Override public synchronized double getMaxFrameMillis() { return maxFrameMillis; }
+        @Override public synchronized double getGridMillis() { return phaseMillis[GRID]; }
+        @Override public synchronized double getRoomsMillis() { return phaseMillis[ROOMS]; }
+        @Override public synchronized double getWallsMillis() { return phaseMillis[WALLS]; }
+        @Override public synchronized double getLabelsMillis() { return phaseMillis[LABELS]; }
+        @Override public synchronized double getFurnitureMillis() { return phaseMillis[FURNITURE]; }
+        @Override public synchronized int getRoomsPainted() { return roomsPainted; }
+        @Override public synchronized int getItemsPainted() { return itemsPainted; }
+        @Override public synchronized long getDrags() { return drags; }
+        @Override public synchronized double getDragLatencyMillis() { return dragLatencyMillis; }
+        @Override public synchronized double getMaxDragLatencyMillis() { return maxDragLatencyMillis; }
+        @Override public synchronized double getMouseHandlerMillis() { return handlerMillis; }
+        @Override public synchronized double getMaxMouseHandlerMillis() { return maxHandlerMillis; }
+        @Override public synchronized int getRoomCount() { return roomCount; }
+        @Override public synchronized int getFurnitureCount() { return furnitureCount; }
+        @Override public synchronized int getResidentPages() { return residentPages; }
+        @Override public synchronized long getFrameAllocatedBytes() { return frameBytes; }
+        @Override public synchronized double getAllocationBytesPerSecond() { return allocationRate; }
+        @Override public synchronized String getLastOperation() { return lastOperation; }
+        @Override public synchronized double getLastOperationMillis() { return lastOperationMillis; }
+    }
+
+    // What every room and item drawn in one frame shares: the strokes, which are
+    // made once for good, and the device transform, read once per frame since
+    // Graphics2D.getTransform returns a new copy on every call. Objects drawn
+    // through a context set their own transforms on its scratch copy and put the
+    // frame's back, and leave the rendering hints the frame set alone.
+    //
+    // Labels that need shaping or bidi layout are laid out once and kept between
+    // frames, keyed by text, font and font render context, which carries the zoom.
+    // A context is used by one thread at a time, so its labels need no locking.
+    static class RenderContext {
+        public static final BasicStroke WALL_STROKE = new BasicStroke(2);
+        public static final BasicStroke WINDOW_STROKE = new BasicStroke(5);
+        public static final BasicStroke BORDER_STROKE = new BasicStroke(2);
+        // One device pixel wide at any zoom
+        public static final BasicStroke HAIRLINE_STROKE = new BasicStroke(0);
+        // Labels whose font would be smaller than this many device pixels are left out
+        public static final float MIN_LABEL_PIXELS = 6;
+        // Java2D draws text made only of characters below this without a TextLayout
+        static final char FIRST_LAYOUT_CHAR = '\u0300';
+        public static final int MAX_LABELS = 512;
+        static final AffineTransform IDENTITY = new AffineTransform();
+
+        static final class LabelKey {
+            String text;
+            Font font;
+            FontRenderContext fontContext;
+
+            LabelKey set(String text, Font font, FontRenderContext fontContext) {
+                this.text = text;
+                this.font = font;
+                this.fontContext = fontContext;
+                return this;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof LabelKey)) {
+                    return false;
+                }
+                LabelKey k = (LabelKey) o;
+                return text.equals(k.text) && font.equals(k.font) && fontContext.equals(k.fontContext);
+            }
+
+            @Override
+            public int hashCode() {
+                return (31 * text.hashCode() + font.hashCode()) * 31 + fontContext.hashCode();
+            }
+        }
+
+        public Graphics2D g2d;
+        public final AffineTransform frame = new AffineTransform();
+        private final AffineTransform scratch = new AffineTransform();
+        // Device pixels per plan unit, and whether sprites can stand in for icons
+        public double scale;
+        public boolean canBlit;
+        // The frame's font, how it is laid out, and whether labels are big enough to draw
+        public Font font;
+        public FontRenderContext fontContext;
+        public boolean labelsReadable;
+        private final LabelKey probe = new LabelKey();
+        private final LinkedHashMap<LabelKey, TextLayout> labels = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LabelKey, TextLayout> eldest) {
+                return size() > MAX_LABELS;
+            }
+        };
+        private long labelHits, labelMisses;
+
+        // Starts a frame on g2d, with high-quality hints for everything drawn in it
+        public RenderContext begin(Graphics2D g2d) {
+            this.g2d = g2d;
+            frame.setTransform(g2d.getTransform());
+            scale = Math.sqrt(Math.abs(frame.getDeterminant()));
+            canBlit = SpriteCache.canBlit(frame);
+            font = g2d.getFont();
+            labelsReadable = font.getSize2D() * scale >= MIN_LABEL_PIXELS;
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            // Taken after the hints, which it depends on
+            fontContext = g2d.getFontRenderContext();
+            return this;
+        }
+
+        // Draws text with its baseline starting at (x, y) in the frame's font, unless it
+        // would be too small to read. For text that needs shaping or bidi, or a font
+        // with layout attributes, drawString builds a new TextLayout on every call,
+        // which costs several times the drawing; here it is laid out once and the
+        // TextLayout, with its glyph vectors, kept for the next frame. Other text goes
+        // to drawString, whose own path for it draws a little faster than a laid-out label.
+        public void drawLabel(String text, float x, float y) {
+            if (!labelsReadable) {
+                return;
+            }
+            if (!font.hasLayoutAttributes() && !needsLayout(text)) {
+                g2d.drawString(text, x, y);
+                return;
+            }
+            TextLayout label = labels.get(probe.set(text, font, fontContext));
+            if (label != null) {
+                labelHits++;
+            } else {
+                labelMisses++;
+                label = new TextLayout(text, font, fontContext);
+                labels.put(new LabelKey().set(text, font, fontContext), label);
+            }
+            label.draw(g2d, x, y);
+        }
+
+        static boolean needsLayout(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) >= FIRST_LAYOUT_CHAR) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int labelCount() {
+            return labels.size();
+        }
+
+        public long labelHits() {
+            return labelHits;
+        }
+
+        public long labelMisses() {
+            return labelMisses;
+        }
+
+        // The frame's transform, to be moved to an object's own coordinates and
+        // passed to setTransform; valid until the next call
+        public AffineTransform transform() {
+            scratch.setTransform(frame);
+            return scratch;
+        }
+
+        public void restoreTransform() {
+            g2d.setTransform(frame);
+        }
+
+        // Lets go of the Graphics2D once the frame is done
+        public void end() {
+            g2d = null;
+        }
+    }
+
+    // Paints a plan onto any Graphics2D: the canvas, an exported image, or an
+    // off-screen render with no display attached. A painter reuses a render
+    // context and scratch space between paints, so each thread needs its own and
+    // a paint allocates next to nothing.
+    static class PlanPainter {
+        public static final int DOT_SIZE = 2;
+        public static final int GRID_TILE_SIZE = GRID_SIZE * 16;
+        // Walls, windows and door gaps are drawn up to this far outside a room's bounds
+        public static final int REPAINT_HALO = 8;
+        public static final Color BACKGROUND = Color.LIGHT_GRAY;
+        // Device pixels per plan unit below which paints drop to plain rectangles,
+        // and below which the dot grid is left out
+        public static final double DETAIL_SCALE = 0.35;
+        public static final double GRID_SCALE = 0.25;
+
+        // Dot grid pre-rendered into one tile and tiled across the area being painted
+        private static TexturePaint gridPaint;
+
+        private final RenderContext context = new RenderContext();
+        // Set to time each phase of a paint into phaseNanos, by RenderMetrics phase,
+        // and count what was painted, as the canvas does for RenderMetrics
+        public boolean timePhases;
+        public final long[] phaseNanos = new long[RenderMetrics.PHASES.length];
+        public int roomsPainted, itemsPainted;
+        // Rooms picked out of the index for the current paint, reused between paints,
+        // and the visitors that fill it and draw furniture, made once so a paint
+        // creates no lambdas
+        private Room[] paintRooms = new Room[64];
+        private int paintRoomCount;
+        private Room skipRoom;
+        private boolean detailed;
+        private final Predicate<Room> collectRoom = room -> {
+            if (room != skipRoom) {
+                if (paintRoomCount == paintRooms.length) {
+                    paintRooms = Arrays.copyOf(paintRooms, paintRoomCount * 2);
+                }
+                paintRooms[paintRoomCount++] = room;
+            }
+            return true;
+        };
+        private final Predicate<FurnitureItem> drawItem = item -> {
+            drawFurniture(context, item, detailed);
+            itemsPainted++;
+            return true;
+        };
+
+        // The tile is GRID_TILE_SIZE square with dots on its edges as well as inside, so
+        // the halves of the edge dots join up into whole dots where tiles meet
+        public static synchronized TexturePaint gridPaint() {
+            if (gridPaint == null) {
+                BufferedImage tile = new BufferedImage(GRID_TILE_SIZE, GRID_TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g2d = tile.createGraphics();
+                g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2d.setColor(Color.BLACK);
+                for (int x = 0; x <= GRID_TILE_SIZE; x += GRID_SIZE) {
+                    for (int y = 0; y <= GRID_TILE_SIZE; y += GRID_SIZE) {
+                        g2d.fillOval(x - DOT_SIZE/2, y - DOT_SIZE/2, DOT_SIZE, DOT_SIZE);
+                    }
+                }
+                g2d.dispose();
+                gridPaint = new TexturePaint(tile, new Rectangle(0, 0, GRID_TILE_SIZE, GRID_TILE_SIZE));
+            }
+            return gridPaint;
+        }
+
+        // A rotated item's icon is drawn around its centre with the unrotated size,
+        // so it can spill past its bounds by half the difference of its sides
+        public static int furnitureHalo(FurnitureItem item) {
+            return Math.abs(item.size.width - item.size.height) / 2 + 2;
+        }
+
+        // Paints the grid, rooms and furniture inside clip, given in plan coordinates.
+        // The room being dragged, if any, is painted last so it shows on top. Below
+        // DETAIL_SCALE device pixels per plan unit, where icons and labels would be
+        // too small to read, rooms and furniture are drawn as plain rectangles.
+        public void paint(Graphics2D g2d, PlanView plan, Rectangle clip, Room draggedRoom) {
+            RenderContext context = this.context.begin(g2d);
+            double scale = context.scale;
+            detailed = scale >= DETAIL_SCALE;
+            if (!detailed) {
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+            }
+            long time = 0;
+            if (timePhases) {
+                Arrays.fill(phaseNanos, 0);
+                time = System.nanoTime();
+            }
+
+            // Draw grid, unless the dots would run together. Nearest-neighbour sampling gives the
+            // same pixels as bicubic at 1:1 and is several times faster when zoomed.
+            if (scale >= GRID_SCALE) {
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+                g2d.setPaint(gridPaint());
+                g2d.fillRect(clip.x, clip.y, clip.width, clip.height);
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            }
+            time = lap(RenderMetrics.GRID, time);
+
+            // Draw only the rooms whose walls reach into the clip. Rooms never overlap except
+            // for the one being dragged, which is drawn last, but antialiased wall corners
+            // blend where neighbours meet, so rooms go in position order to give the same
+            // pixels whether they come from the plan or one of its versions.
+            paintRoomCount = 0;
+            skipRoom = draggedRoom;
+            plan.queryRooms(clip.x - REPAINT_HALO, clip.y - REPAINT_HALO,
+                            clip.width + 2 * REPAINT_HALO, clip.height + 2 * REPAINT_HALO, collectRoom);
+            sortByPosition(paintRooms, 0, paintRoomCount - 1);
+            roomsPainted = paintRoomCount + (draggedRoom != null ? 1 : 0);
+            if (detailed) {
+                // Floors first, then walls, then labels, so no floor covers a wall drawn by a neighbour
+                for (int i = 0; i < paintRoomCount; i++) {
+                    paintRooms[i].drawFloor(context);
+                }
+                time = lap(RenderMetrics.ROOMS, time);
+                for (int i = 0; i < paintRoomCount; i++) {
+                    paintRooms[i].drawOutline(context, paintRooms[i].hiddenWalls);
+                }
+                time = lap(RenderMetrics.WALLS, time);
+                for (int i = 0; i < paintRoomCount; i++) {
+                    paintRooms[i].drawLabel(context);
+                }
+                time = lap(RenderMetrics.LABELS, time);
+                if (draggedRoom != null) {
+                    draggedRoom.draw(context);
+                }
+                time = lap(RenderMetrics.ROOMS, time);
+            } else {
+                // One-pixel outlines keep neighbouring rooms apart at any zoom
+                g2d.setStroke(RenderContext.HAIRLINE_STROKE);
+                for (int i = 0; i < paintRoomCount; i++) {
+                    drawPlainRoom(g2d, paintRooms[i]);
+                }
+                if (draggedRoom != null) {
+                    drawPlainRoom(g2d, draggedRoom);
+                }
+                time = lap(RenderMetrics.ROOMS, time);
+            }
+            // Drop references to the plan's rooms so they are not kept alive between paints
+            Arrays.fill(paintRooms, 0, paintRoomCount, null);
+            skipRoom = null;
+
+            // Draw furniture and fixtures reaching into the clip
+            itemsPainted = 0;
+            plan.queryFurniture(clip.x, clip.y, clip.width, clip.height, drawItem);
+            lap(RenderMetrics.FURNITURE, time);
+            context.end();
+        }
+
+        // Adds the time since start to a phase and returns the time now
+        private long lap(int phase, long start) {
+            if (!timePhases) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            phaseNanos[phase] += now - start;
+            return now;
+        }
+
+        // Sorts rooms[lo..hi] by y, then x, in place. Arrays.sort would allocate a
+        // merge buffer on every paint with more than a few dozen rooms.
+        static void sortByPosition(Room[] rooms, int lo, int hi) {
+            while (hi - lo > 16) {
+                Room pivot = rooms[(lo + hi) >>> 1];
+                int i = lo, j = hi;
+                while (i <= j) {
+                    while (comparePosition(rooms[i], pivot) < 0) i++;
+                    while (comparePosition(rooms[j], pivot) > 0) j--;
+                    if (i <= j) {
+                        Room t = rooms[i];
+                        rooms[i++] = rooms[j];
+                        rooms[j--] = t;
+                    }
+                }
+                // Recurse into the smaller side so the stack stays shallow
+                if (j - lo < hi - i) {
+                    sortByPosition(rooms, lo, j);
+                    lo = i;
+                } else {
+                    sortByPosition(rooms, i, hi);
+                    hi = j;
+                }
+            }
+            for (int i = lo + 1; i <= hi; i++) {
+                Room room = rooms[i];
+                int j = i - 1;
+                for (; j >= lo && comparePosition(rooms[j], room) > 0; j--) {
+                    rooms[j + 1] = rooms[j];
+                }
+                rooms[j + 1] = room;
+            }
+        }
+
+        static int comparePosition(Room a, Room b) {
+            return a.y != b.y ? Integer.compare(a.y, b.y) : Integer.compare(a.x, b.x);
+        }
+
+        static void drawPlainRoom(Graphics2D g2d, Room room) {
+            g2d.setColor(room.color);
+            g2d.fillRect(room.x, room.y, room.width, room.height);
+            g2d.setColor(Color.BLACK);
+            g2d.drawRect(room.x, room.y, room.width, room.height);
+        }
+
+        static void drawFurniture(RenderContext context, FurnitureItem item, boolean detailed) {
+            if (detailed) {
+                item.draw(context);
+            } else {
+                Graphics2D g2d = context.g2d;
+                g2d.setColor(item.isFixture ? Color.CYAN : Color.ORANGE);
+                g2d.fillRect(item.x, item.y, item.size.width, item.size.height);
+            }
+        }
+
+        // Renders an area of the plan into a new image, scaled by the given factor
+        public BufferedImage render(PlanView plan, Rectangle area, double scale) {
+            // Round down anything within rounding error of a whole pixel
+            long width = (long) Math.ceil(area.width * scale - 1e-9);
+            long height = (long) Math.ceil(area.height * scale - 1e-9);
+            if (width <= 0 || height <= 0 || width * height > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Cannot render a " + width + "x" + height + " image");
+            }
+            BufferedImage image = new BufferedImage((int) width, (int) height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = image.createGraphics();
+            g2d.setColor(BACKGROUND);
+            g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g2d.scale(scale, scale);
+            g2d.translate(-area.x, -area.y);
+            g2d.clip(area);
+            paint(g2d, plan, area, null);
+            g2d.dispose();
+            return image;
+        }
+    }
+
+    // Writes a PNG one band of rows at a time, so an image never has to exist
+    // in memory as a whole. Rows are filtered with the Sub filter, which suits
+    // the flat fills and repeating dots of a plan. Each band is deflated on its
+    // own, ending on a byte boundary with a sync flush, so bands can be
+    // compressed on several threads at once with compress and appended in order
+    // with writeBand; the writer only adds the zlib header and a checksum
+    // combined from the bands' own, and cuts the data into IDAT chunks.
+    static class PngStreamWriter implements Closeable {
+        private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+        private static final int CHUNK_SIZE = 64 * 1024;
+        // zlib header for a 32K window and default compression
+        private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9C};
+        private static final int ADLER_BASE = 65521;
+
+        // A band of rows, filtered and deflated
+        static final class Band {
+            final byte[] data;
+            final int length, rows;
+            final long filteredLength, adler;
+            Band(byte[] data, int length, int rows, long filteredLength, long adler) {
+                this.data = data;
+                this.length = length;
+                this.rows = rows;
+                this.filteredLength = filteredLength;
+                this.adler = adler;
+            }
+        }
+
+        private final OutputStream out;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private int chunkLength;
+        private long adler = 1;
+        public final int width, height;
+        private int rowsWritten;
+
+        public PngStreamWriter(File file, int width, int height) throws IOException {
+            this.width = width;
+            this.height = height;
+            this.out = new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+            try {
+                out.write(SIGNATURE);
+                ByteBuffer header = ByteBuffer.allocate(13);
+                // 8 bits per channel, RGB, default compression, filtering and no interlace
+                header.putInt(width).putInt(height).put((byte) 8).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+                writeChunk("IHDR", header.array(), 13);
+                writeData(ZLIB_HEADER, ZLIB_HEADER.length);
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        }
+
+        // Filters and deflates rows of 0xRRGGBB pixels taken from pixels, stride ints
+        // apart. last marks the image's final band. Safe to call on any thread.
+        public static Band compress(int[] pixels, int offset, int stride, int width, int rows, boolean last) {
+            int rowLength = 1 + width * 3;
+            byte[] filtered = new byte[rows * rowLength];
+            for (int r = 0, b = 0; r < rows; r++) {
+                int p = offset + r * stride;
+                filtered[b++] = 1;
+                int left = 0;
+                for (int i = 0; i < width; i++, b += 3) {
+                    int rgb = pixels[p + i];
+                    filtered[b] = (byte) ((rgb >> 16) - (left >> 16));
+                    filtered[b + 1] = (byte) ((rgb >> 8) - (left >> 8));
+                    filtered[b + 2] = (byte) (rgb - left);
+                    left = rgb;
+                }
+            }
+            Adler32 checksum = new Adler32();
+            checksum.update(filtered, 0, filtered.length);
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(filtered);
+                if (last) {
+                    deflater.finish();
+                }
+                byte[] data = new byte[Math.max(64, filtered.length / 8)];
+                int length = 0;
+                while (true) {
+                    if (length == data.length) {
+                        data = Arrays.copyOf(data, data.length * 2);
+                    }
+                    length += deflater.deflate(data, length, data.length - length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    // A flush is complete once it leaves room to spare in the buffer
+                    if (last ? deflater.finished() : length < data.length) {
+                        break;
+                    }
+                }
+                return new Band(data, length, rows, filtered.length, checksum.getValue());
+            } finally {
+                deflater.end();
+            }
+        }
+
+        // Appends rows of 0xRRGGBB pixels taken from pixels, stride ints apart
+        public void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+            writeBand(compress(pixels, offset, stride, width, rows, rowsWritten + rows == height));
+        }
+
+        // Appends a band from compress; bands must come in order
+        public void writeBand(Band band) throws IOException {
+            if (rowsWritten + band.rows > height) {
+                throw new IllegalStateException("Image is only " + height + " rows high");
+            }
+            writeData(band.data, band.length);
+            adler = combineAdler(adler, band.adler, band.filteredLength);
+            rowsWritten += band.rows;
+        }
+
+        // The Adler-32 of two runs of bytes from theirs, as zlib's adler32_combine
+        static long combineAdler(long first, long second, long secondLength) {
+            long remainder = secondLength % ADLER_BASE;
+            long sum1 = first & 0xffff;
+            long sum2 = remainder * sum1 % ADLER_BASE;
+            sum1 += (second & 0xffff) + ADLER_BASE - 1;
+            sum2 += ((first >>> 16) & 0xffff) + ((second >>> 16) & 0xffff) + ADLER_BASE - remainder;
+            if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+            if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+            if (sum2 >= 2L * ADLER_BASE) sum2 -= 2L * ADLER_BASE;
+            if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+            return sum1 | (sum2 << 16);
+        }
+
+        // Cuts zlib data into IDAT chunks
+        private void writeData(byte[] data, int length) throws IOException {
+            for (int off = 0; off < length; ) {
+                int n = Math.min(length - off, CHUNK_SIZE - chunkLength);
+                System.arraycopy(data, off, chunk, chunkLength, n);
+                chunkLength += n;
+                off += n;
+                if (chunkLength == CHUNK_SIZE) {
+                    flushChunk();
+                }
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            if (chunkLength > 0) {
+                writeChunk("IDAT", chunk, chunkLength);
+                chunkLength = 0;
+            }
+        }
+
+        private void writeChunk(String type, byte[] data, int length) throws IOException {
+            CRC32 crc = new CRC32();
+            byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+            crc.update(typeBytes);
+            crc.update(data, 0, length);
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(length).put(typeBytes);
+            out.write(header.array());
+            out.write(data, 0, length);
+            out.write(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (rowsWritten != height) {
+                    throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+                }
+                writeData(ByteBuffer.allocate(4).putInt((int) adler).array(), 4);
+                flushChunk();
+                writeChunk("IEND", new byte[0], 0);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    // Renders plans off screen a tile or band at a time, painting tiles on a
+    // fork-join pool at once. Each worker paints with its own Graphics2D, clipped
+    // to its tile, and its own PlanPainter, and finds only the rooms and furniture
+    // that reach into the tile through the plan's spatial index, which they share.
+    // The plan must not change meanwhile, so exports of a plan being edited paint
+    // one of its PlanVersions.
+    //
+    // render paints bands of one image in parallel. writePng streams one PNG for
+    // images too large to hold: PNG stores whole rows, so bands as wide as the
+    // image are rendered a few ahead of the encoder and written in order; bands
+    // are kept low to bound that. writeDeepZoom writes a Deep Zoom pyramid (a .dzi
+    // descriptor and a _files directory with one folder of tiles per level), each
+    // tile rendered and written by its own task.
+    static class TiledExporter {
+        public static final int STREAM_TILE_WIDTH = 1024;
+        public static final int STREAM_BAND_HEIGHT = 64;
+        public static final int DEEP_ZOOM_TILE_SIZE = 256;
+        // Most pixel memory writePng keeps in bands rendered ahead of the file
+        public static final long STREAM_AHEAD_BYTES = 64L << 20;
+
+        public final PlanView plan;
+        public final ForkJoinPool pool;
+        // A PlanPainter reuses scratch lists between paints, and the tile images are
+        // reused between tiles, so each worker thread has its own
+        private final ThreadLocal<PlanPainter> painters = ThreadLocal.withInitial(PlanPainter::new);
+        private final ThreadLocal<BufferedImage> streamTiles = ThreadLocal.withInitial(
+                () -> new BufferedImage(STREAM_TILE_WIDTH, STREAM_BAND_HEIGHT, BufferedImage.TYPE_INT_RGB));
+        private final ThreadLocal<int[]> streamBands = ThreadLocal.withInitial(() -> new int[0]);
+        private final ThreadLocal<BufferedImage> deepZoomTiles = ThreadLocal.withInitial(
+                () -> new BufferedImage(DEEP_ZOOM_TILE_SIZE, DEEP_ZOOM_TILE_SIZE, BufferedImage.TYPE_INT_RGB));
+
+        public TiledExporter(PlanView plan) {
+            this(plan, ForkJoinPool.commonPool());
+        }
+
+        public TiledExporter(PlanView plan, ForkJoinPool pool) {
+            this.plan = plan;
+            this.pool = pool;
+        }
+
+        public static long pixelSize(int length, double scale) {
+            // Round down anything within rounding error of a whole pixel
+            return (long) Math.ceil(length * scale - 1e-9);
+        }
+
+        // Renders the tile whose top-left corner is at (px, py) in the scaled image
+        // of area into the top-left corner of tile. Safe to call from several threads
+        // at once for different tile images.
+        public void renderTile(BufferedImage tile, Rectangle area, double scale, int px, int py, int width, int height) {
+            Graphics2D g2d = tile.createGraphics();
+            g2d.setColor(PlanPainter.BACKGROUND);
+            g2d.fillRect(0, 0, width, height);
+            g2d.clipRect(0, 0, width, height);
+            g2d.translate(-px, -py);
+            g2d.scale(scale, scale);
+            g2d.translate(-area.x, -area.y);
+            int x0 = (int) Math.floor(area.x + px / scale);
+            int y0 = (int) Math.floor(area.y + py / scale);
+            int x1 = (int) Math.ceil(area.x + (px + width) / scale);
+            int y1 = (int) Math.ceil(area.y + (py + height) / scale);
+            painters.get().paint(g2d, plan, new Rectangle(x0, y0, x1 - x0, y1 - y0), null);
+            g2d.dispose();
+        }
+
+        // Renders area into a new image, scaled by the given factor, with the same
+        // pixels as PlanPainter.render. Bands of STREAM_BAND_HEIGHT rows are painted
+        // at once through subimages that share the image's pixels but not each other's.
+        public BufferedImage render(Rectangle area, double scale) throws IOException {
+            long width = pixelSize(area.width, scale);
+            long height = pixelSize(area.height, scale);
+            if (width <= 0 || height <= 0 || width * height > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Cannot render a " + width + "x" + height + " image");
+            }
+            int w = (int) width, h = (int) height;
+            BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            ArrayList<Callable<Void>> bands = new ArrayList<>();
+            for (int y = 0; y < h; y += STREAM_BAND_HEIGHT) {
+                int py = y, bandHeight = Math.min(STREAM_BAND_HEIGHT, h - y);
+                bands.add(() -> {
+                    renderTile(image.getSubimage(0, py, w, bandHeight), area, scale, 0, py, w, bandHeight);
+                    return null;
+                });
+            }
+            for (Future<Void> band : pool.invokeAll(bands)) {
+                await(band);
+            }
+            return image;
+        }
+
+        public void writePng(File file, Rectangle area, double scale) throws IOException {
+            writePng(file, area, scale, null);
+        }
+
+        // Reports progress a band at a time, and stops between bands if cancelled
+        public void writePng(File file, Rectangle area, double scale, PlanFile.Progress progress) throws IOException {
+            long width = pixelSize(area.width, scale);
+            long height = pixelSize(area.height, scale);
+            if (width <= 0 || height <= 0 || width > Integer.MAX_VALUE / 3 || height > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Cannot export a " + width + "x" + height + " image");
+            }
+            int w = (int) width, h = (int) height;
+            // Bands are rendered and compressed on the pool, enough of them in flight to
+            // keep every worker busy while this thread appends them to the file in order
+            long bandBytes = 4L * w * STREAM_BAND_HEIGHT;
+            int ahead = (int) Math.max(1, Math.min(2L * pool.getParallelism(), STREAM_AHEAD_BYTES / bandBytes));
+            ArrayDeque<Future<PngStreamWriter.Band>> encoding = new ArrayDeque<>();
+            try (PngStreamWriter png = new PngStreamWriter(file, w, h)) {
+                int next = 0;
+                for (int py = 0; py < h; py += STREAM_BAND_HEIGHT) {
+                    for (; next < h && encoding.size() < ahead; next += STREAM_BAND_HEIGHT) {
+                        int bandY = next, bandHeight = Math.min(STREAM_BAND_HEIGHT, h - bandY);
+                        encoding.add(pool.submit(() -> PngStreamWriter.compress(renderBand(area, scale, w, bandY, bandHeight),
+                                                                                0, w, w, bandHeight, bandY + bandHeight == h)));
+                    }
+                    PlanFile.report(progress, py, h);
+                    png.writeBand(await(encoding.remove()));
+                }
+            } finally {
+                for (Future<PngStreamWriter.Band> band : encoding) {
+                    band.cancel(false);
+                }
+            }
+        }
+
+        // Renders the rows of the image starting at py, a tile at a time, into this
+        // thread's band buffer
+        private int[] renderBand(Rectangle area, double scale, int w, int py, int bandHeight) {
+            int[] band = streamBands.get();
+            if (band.length < w * bandHeight) {
+                band = new int[w * STREAM_BAND_HEIGHT];
+                streamBands.set(band);
+            }
+            BufferedImage tile = streamTiles.get();
+            int[] tilePixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+            for (int px = 0; px < w; px += STREAM_TILE_WIDTH) {
+                int tileWidth = Math.min(STREAM_TILE_WIDTH, w - px);
+                renderTile(tile, area, scale, px, py, tileWidth, bandHeight);
+                for (int r = 0; r < bandHeight; r++) {
+                    System.arraycopy(tilePixels, r * STREAM_TILE_WIDTH, band, r * w + px, tileWidth);
+                }
+            }
+            return band;
+        }
+
+        // Writes name.dzi and name_files/ into dir. Level n is 2^n pixels across
+        // at its longest side, up to the full export size at the top level, and
+        // every level is drawn straight from the plan at its own scale.
+        public void writeDeepZoom(File dir, String name, Rectangle area, double scale) throws IOException {
+            long width = pixelSize(area.width, scale);
+            long height = pixelSize(area.height, scale);
+            if (width <= 0 || height <= 0 || width > Integer.MAX_VALUE || height > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Cannot export a " + width + "x" + height + " image");
+            }
+            int maxLevel = 64 - Long.numberOfLeadingZeros(Math.max(width, height) - 1);
+            File filesDir = new File(dir, name + "_files");
+            for (int level = maxLevel; level >= 0; level--) {
+                int shift = maxLevel - level;
+                int levelWidth = (int) Math.max(1, (width + (1L << shift) - 1) >> shift);
+                int levelHeight = (int) Math.max(1, (height + (1L << shift) - 1) >> shift);
+                double levelScale = scale * levelWidth / width;
+                File levelDir = new File(filesDir, Integer.toString(level));
+                if (!levelDir.isDirectory() && !levelDir.mkdirs()) {
+                    throw new IOException("Could not create " + levelDir);
+                }
+                ArrayList<Callable<Void>> tiles = new ArrayList<>();
+                for (int py = 0, row = 0; py < levelHeight; py += DEEP_ZOOM_TILE_SIZE, row++) {
+                    for (int px = 0, col = 0; px < levelWidth; px += DEEP_ZOOM_TILE_SIZE, col++) {
+                        int tileX = px, tileY = py;
+                        int tileWidth = Math.min(DEEP_ZOOM_TILE_SIZE, levelWidth - px);
+                        int tileHeight = Math.min(DEEP_ZOOM_TILE_SIZE, levelHeight - py);
+                        File tileFile = new File(levelDir, col + "_" + row + ".png");
+                        tiles.add(() -> {
+                            BufferedImage tile = deepZoomTiles.get();
+                            renderTile(tile, area, levelScale, tileX, tileY, tileWidth, tileHeight);
+                            ImageIO.write(tile.getSubimage(0, 0, tileWidth, tileHeight), "png", tileFile);
+                            return null;
+                        });
+                    }
+                }
+                for (Future<Void> tile : pool.invokeAll(tiles)) {
+                    await(tile);
+                }
+            }
+            String descriptor = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" TileSize=\"" + DEEP_ZOOM_TILE_SIZE
+                    + "\" Overlap=\"0\" Format=\"png\">\n"
+                    + "  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>\n"
+                    + "</Image>\n";
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, name + ".dzi")), StandardCharsets.UTF_8)) {
+                writer.write(descriptor);
+            }
+        }
+
+        // The result of a task on the pool, with what it threw rethrown as is
+        private static <T> T await(Future<T> task) throws IOException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    // Renders saved plans to PNG without a display, for CI and servers:
+    //
+    //   java -Djava.awt.headless=true FloorPlanner --render [options] <plan files or directories>
+    //
+    //   --out <dir>         where the PNGs go (default: next to each plan)
+    //   --scale <s>         pixels per plan unit (default 1)
+    //   --width <px>        fit the plan into this width, overriding --scale
+    //   --height <px>       fit the plan into this height, overriding --scale
+    //   --threads <n>       plans rendered at once (default: one per core)
+    //   --tiled             render in tiles and stream them into the PNG, for
+    //                       images too large to hold in memory
+    //   --deepzoom          write a tiled Deep Zoom pyramid instead of one PNG
+    //
+    // Every plan is read in full, however large, and each image is itself painted
+    // in bands on the common fork-join pool, so a single large plan keeps every
+    // core busy too. One line is printed per plan with its load, render and encode
+    // times and the memory it took; with --threads 1 the peak heap and allocations
+    // are measured per plan across all threads, otherwise only the peak for the
+    // whole run and the allocations of each plan's own thread. Tiled exports
+    // render and encode together, so they report the two as one time.
+    static class BatchRenderer {
+        public File outDir;
+        public double scale = 1.0;
+        public int width, height;
+        public int threads = Runtime.getRuntime().availableProcessors();
+        public boolean tiled, deepZoom;
+        public final ArrayList<File> plans = new ArrayList<>();
+        // Highest per-plan peak, since measuring a plan resets the pools' own peaks
+        private volatile long peakHeap;
+
+        public static int run(String[] args) {
+            BatchRenderer renderer = new BatchRenderer();
+            try {
+                renderer.parse(args);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.err.println("Usage: FloorPlanner --render [--out dir] [--scale s] [--width px] [--height px] [--threads n] [--tiled | --deepzoom] <plans...>");
+                return 2;
+            }
+            return renderer.renderAll();
+        }
+
+        public void parse(String[] args) {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--tiled")) {
+                    tiled = true;
+                    continue;
+                }
+                if (arg.equals("--deepzoom")) {
+                    deepZoom = true;
+                    continue;
+                }
+                if (arg.startsWith("--") && i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                try {
+                    switch (arg) {
+                        case "--out": outDir = new File(args[++i]); break;
+                        case "--scale": scale = Double.parseDouble(args[++i]); break;
+                        case "--width": width = Integer.parseInt(args[++i]); break;
+                        case "--height": height = Integer.parseInt(args[++i]); break;
+                        case "--threads": threads = Integer.parseInt(args[++i]); break;
+                        default:
+                            if (arg.startsWith("--")) {
+                                throw new IllegalArgumentException("Unknown option " + arg);
+                            }
+                            addPlans(new File(arg));
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad value for " + arg + ": " + args[i]);
+                }
+            }
+            if (scale <= 0 || width < 0 || height < 0 || threads < 1) {
+                throw new IllegalArgumentException("Scale, size and thread count must be positive");
+            }
+            if (plans.isEmpty()) {
+                throw new IllegalArgumentException("No plan files given");
+            }
+            if (tiled && deepZoom) {
+                throw new IllegalArgumentException("Choose one of --tiled and --deepzoom");
+            }
+        }
+
+        public void addPlans(File file) {
+            if (file.isDirectory()) {
+                File[] children = file.listFiles((dir, name) -> name.endsWith("." + PlanFile.EXTENSION));
+                if (children != null) {
+                    Arrays.sort(children);
+                    plans.addAll(Arrays.asList(children));
+                }
+            } else if (file.isFile()) {
+                plans.add(file);
+            } else {
+                throw new IllegalArgumentException("No such plan file or directory: " + file);
+            }
+        }
+
+        // Renders every plan and returns the number that failed
+        public int renderAll() {
+            loadIcons();
+            if (outDir != null) {
+                outDir.mkdirs();
+            }
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for (MemoryPoolMXBean heapPool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (heapPool.getType() == MemoryType.HEAP) {
+                    heapPools.add(heapPool);
+                }
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, plans.size()));
+            List<Future<Boolean>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (File file : plans) {
+                results.add(pool.submit(() -> renderPlan(file, threads == 1 ? heapPools : null)));
+            }
+            int failed = 0;
+            for (Future<Boolean> result : results) {
+                try {
+                    if (!result.get()) {
+                        failed++;
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                    failed++;
+                }
+            }
+            pool.shutdown();
+            long peak = Math.max(peakHeap, peakUsage(heapPools));
+            System.out.printf("%d plans rendered, %d failed in %d ms, peak heap %.1f MB%n",
+                    plans.size() - failed, failed, (System.nanoTime() - start) / 1_000_000, peak / 1048576.0);
+            return failed;
+        }
+
+        public static long peakUsage(List<MemoryPoolMXBean> heapPools) {
+            long peak = 0;
+            for (MemoryPoolMXBean heapPool : heapPools) {
+                peak += heapPool.getPeakUsage().getUsed();
+            }
+            return peak;
+        }
+
+        // Bytes allocated so far by this thread, or by every live thread when allThreads is set
+        static long allocatedBytes(com.sun.management.ThreadMXBean allocations, boolean allThreads) {
+            if (!allThreads) {
+                return allocations.getCurrentThreadAllocatedBytes();
+            }
+            long total = 0;
+            for (long bytes : allocations.getThreadAllocatedBytes(allocations.getAllThreadIds())) {
+                total += Math.max(0, bytes);
+            }
+            return total;
+        }
+
+        // Loads, renders and writes one plan, printing its timings. heapPools is only
+        // given when plans run one at a time, so the pools' peaks belong to this plan.
+        public boolean renderPlan(File file, List<MemoryPoolMXBean> heapPools) {
+            if (heapPools != null) {
+                for (MemoryPoolMXBean heapPool : heapPools) {
+                    heapPool.resetPeakUsage();
+                }
+            }
+            java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            com.sun.management.ThreadMXBean allocations = threadBean instanceof com.sun.management.ThreadMXBean
+                    ? (com.sun.management.ThreadMXBean) threadBean : null;
+            long allocatedBefore = allocations != null ? allocatedBytes(allocations, heapPools != null) : 0;
+            try {
+                long t0 = System.nanoTime();
+                FloorPlan plan = FloorPlan.read(file);
+                long t1 = System.nanoTime();
+                Rectangle area = plan.getBounds();
+                double s = scale;
+                if (width > 0 || height > 0) {
+                    s = Double.MAX_VALUE;
+                    if (width > 0) {
+                        s = Math.min(s, (double) width / area.width);
+                    }
+                    if (height > 0) {
+                        s = Math.min(s, (double) height / area.height);
+                    }
+                }
+                File dir = outDir != null ? outDir : file.getAbsoluteFile().getParentFile();
+                String name = file.getName().replaceFirst("\\.[^.]*$", "");
+                StringBuilder line = new StringBuilder(String.format("%s: %dx%d, %d rooms, %d items, load %d ms",
+                        file.getName(), TiledExporter.pixelSize(area.width, s), TiledExporter.pixelSize(area.height, s),
+                        plan.rooms.size(), plan.furnitureItems.size(), (t1 - t0) / 1_000_000));
+                TiledExporter exporter = new TiledExporter(plan);
+                if (tiled || deepZoom) {
+                    if (deepZoom) {
+                        exporter.writeDeepZoom(dir, name, area, s);
+                    } else {
+                        exporter.writePng(new File(dir, name + ".png"), area, s);
+                    }
+                    line.append(String.format(", export %d ms", (System.nanoTime() - t1) / 1_000_000));
+                } else {
+                    BufferedImage image = exporter.render(area, s);
+                    long t2 = System.nanoTime();
+                    ImageIO.write(image, "png", new File(dir, name + ".png"));
+                    long t3 = System.nanoTime();
+                    line.append(String.format(", render %d ms, encode %d ms, image %.1f MB",
+                            (t2 - t1) / 1_000_000, (t3 - t2) / 1_000_000,
+                            image.getWidth() * (double) image.getHeight() * 4 / 1048576.0));
+                }
+                if (allocations != null) {
+                    line.append(String.format(", allocated %.1f MB",
+                            (allocatedBytes(allocations, heapPools != null) - allocatedBefore) / 1048576.0));
+                }
+                if (heapPools != null) {
+                    long peak = peakUsage(heapPools);
+                    peakHeap = Math.max(peakHeap, peak);
+                    line.append(String.format(", peak heap %.1f MB", peak / 1048576.0));
+                }
+                System.out.println(line);
+                return true;
+            } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                System.err.println(file.getName() + ": " + e);
+                return false;
+            }
+        }
+    }
+
+    // Wall model. Each room contributes four sides, filed by the line they lie on.
+    // Sides of two rooms that face each other across the same line (within
+    // WALL_TOLERANCE) are linked as one shared wall, and doors and windows are
+    // recorded on the sides they open. Only the moved room and its neighbours are
+    // recomputed on a change, so painting and the door/window checks just read
+    // the stored results.
+    static class WallModel {
+        public static final int TOP = 0, BOTTOM = 1, LEFT = 2, RIGHT = 3;
+        public static final int WALL_TOLERANCE = 5;
+        public static final int DOOR_TOLERANCE = 10;
+        public static final int WINDOW_TOLERANCE = 5;
+        public static final int OPENING_LENGTH = 15;
+        // Rebuilds and bulk adds of at least this many rooms link shared walls in one sweep
+        public static final int BULK_REBUILD = 10_000;
+
+        static class WallSide {
+            final Room room;
+            final int side;
+            int line, start, end;
+            final ArrayList<WallSide> shared = new ArrayList<>();
+            final ArrayList<Door> doors = new ArrayList<>();
+            final ArrayList<Window> windows = new ArrayList<>();
+            boolean open;
+
+            WallSide(Room room, int side) {
+                this.room = room;
+                this.side = side;
+            }
+
+            boolean isHorizontal() {
+                return side == TOP || side == BOTTOM;
+            }
+        }
+
+        private final TreeMap<Integer, ArrayList<WallSide>> horizontalLines = new TreeMap<>();
+        private final TreeMap<Integer, ArrayList<WallSide>> verticalLines = new TreeMap<>();
+        private final IdentityHashMap<Room, WallSide[]> sides = new IdentityHashMap<>();
+        private final Set<Room> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        public WallSide[] sidesOf(Room room) {
+            return sides.get(room);
+        }
+
+        public boolean isShared(Room room, int side) {
+            WallSide[] s = sides.get(room);
+            return s != null && !s[side].shared.isEmpty();
+        }
+
+        // The shared walls make the model a room adjacency graph, kept up to date
+        // by the same update and remove calls as the walls. The lookups below only
+        // walk a room's own shared lists, so they cost its number of neighbours
+        // whatever the size of the plan.
+
+        // A stretch of wall a room shares with other: the side of the room it lies
+        // on, and [from, to) along that side that both rooms cover
+        interface NeighbourVisitor {
+            boolean visit(int side, Room other, int from, int to);
+        }
+
+        // The number of shared walls the room has, 0 if it is not in the model
+        public int degree(Room room) {
+            WallSide[] s = sides.get(room);
+            int degree = 0;
+            if (s != null) {
+                for (WallSide side : s) {
+                    degree += side.shared.size();
+                }
+            }
+            return degree;
+        }
+
+        // Visits the walls the room shares, side by side. Returns false as soon as
+        // the visitor does.
+        public boolean forEachNeighbour(Room room, NeighbourVisitor visitor) {
+            for (int side = TOP; side <= RIGHT; side++) {
+                if (!forEachNeighbour(room, side, visitor)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean forEachNeighbour(Room room, int side, NeighbourVisitor visitor) {
+            WallSide[] s = sides.get(room);
+            if (s == null) {
+                return true;
+            }
+            WallSide mine = s[side];
+            for (WallSide other : mine.shared) {
+                if (!visitor.visit(side, other.room, Math.max(mine.start, other.start), Math.min(mine.end, other.end))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Whether a door of either room opens onto the stretch they share, so people
+        // can walk from one to the other. The doors are the ones the sides already
+        // collect, each taking OPENING_LENGTH along the wall.
+        private static boolean doorBetween(WallSide mine, WallSide other) {
+            int from = Math.max(mine.start, other.start), to = Math.min(mine.end, other.end);
+            for (WallSide side : new WallSide[]{mine, other}) {
+                for (Door door : side.doors) {
+                    int at = side.isHorizontal() ? side.room.x + door.offsetX : side.room.y + door.offsetY;
+                    if (at < to && at + OPENING_LENGTH > from) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // Splits the rooms into groups joined by shared walls, or with throughDoors
+        // by shared walls a door opens onto, which is how people get around the
+        // building. Groups come in the order of their first room in rooms, and
+        // rooms not in the model are left out.
+        public List<List<Room>> components(Collection<Room> rooms, boolean throughDoors) {
+            Set<Room> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+            List<List<Room>> components = new ArrayList<>();
+            for (Room room : rooms) {
+                if (sides.containsKey(room) && seen.add(room)) {
+                    components.add(reach(room, throughDoors, seen, null));
+                }
+            }
+            return components;
+        }
+
+        // How many walls away each room that can be reached from start is, going
+        // through any shared wall or with throughDoors only through doors. Start
+        // is 0 away; rooms that cannot be reached are left out.
+        public IdentityHashMap<Room, Integer> distances(Room start, boolean throughDoors) {
+            IdentityHashMap<Room, Integer> distances = new IdentityHashMap<>();
+            if (sides.containsKey(start)) {
+                Set<Room> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+                seen.add(start);
+                reach(start, throughDoors, seen, distances);
+            }
+            return distances;
+        }
+
+        // Breadth first from start over rooms not yet seen, marking them seen and
+        // recording their distance if asked. Returns the rooms reached in order.
+        private List<Room> reach(Room start, boolean throughDoors, Set<Room> seen, Map<Room, Integer> distances) {
+            ArrayList<Room> reached = new ArrayList<>();
+            reached.add(start);
+            int levelEnd = 1, distance = 0;
+            for (int i = 0; i < reached.size(); i++) {
+                if (i == levelEnd) {
+                    levelEnd = reached.size();
+                    distance++;
+                }
+                Room room = reached.get(i);
+                if (distances != null) {
+                    distances.put(room, distance);
+                }
+                for (WallSide mine : sides.get(room)) {
+                    for (WallSide other : mine.shared) {
+                        if ((!throughDoors || doorBetween(mine, other)) && seen.add(other.room)) {
+                            reached.add(other.room);
+                        }
+                    }
+                }
+            }
+            return reached;
+        }
+
+        public void update(Room room) {
+            place(room);
+            refresh();
+        }
+
+        public void remove(Room room) {
+            WallSide[] s = sides.remove(room);
+            if (s != null) {
+                for (WallSide side : s) {
+                    detach(side);
+                }
+                refresh();
+            }
+        }
+
+        public void updateAll(Collection<Room> rooms) {
+            for (Room room : rooms) {
+                place(room);
+            }
+            refresh();
+        }
+
+        public void removeAll(Collection<Room> rooms) {
+            for (Room room : rooms) {
+                WallSide[] s = sides.remove(room);
+                if (s != null) {
+                    for (WallSide side : s) {
+                        detach(side);
+                    }
+                }
+            }
+            refresh();
+        }
+
+        public void rebuild(Collection<Room> rooms) {
+            horizontalLines.clear();
+            verticalLines.clear();
+            sides.clear();
+            addAll(rooms);
+        }
+
+        // Adds rooms not yet in the model, as a rebuild or an import does. Below
+        // BULK_REBUILD rooms this is updateAll. Above, each new side is linked with
+        // the sides already filed, then all are filed and the walls the new rooms
+        // share with each other found in one sweep over a RoomStore, rather than
+        // each side searching lines that fill up as the rooms go in.
+        public void addAll(Collection<Room> rooms) {
+            if (rooms.size() < BULK_REBUILD) {
+                updateAll(rooms);
+                return;
+            }
+            RoomStore store = RoomStore.of(rooms);
+            WallSide[][] rowSides = new WallSide[store.size][];
+            boolean linkExisting = !sides.isEmpty();
+            for (int i = 0; i < store.size; i++) {
+                Room room = store.room(i);
+                WallSide[] s = {new WallSide(room, TOP), new WallSide(room, BOTTOM),
+                                new WallSide(room, LEFT), new WallSide(room, RIGHT)};
+                set(s[TOP], room.y, room.x, room.x + room.width);
+                set(s[BOTTOM], room.y + room.height, room.x, room.x + room.width);
+                set(s[LEFT], room.x, room.y, room.y + room.height);
+                set(s[RIGHT], room.x + room.width, room.y, room.y + room.height);
+                for (WallSide side : s) {
+                    if (linkExisting) {
+                        link(side);
+                    }
+                    collectOpenings(side);
+                }
+                rowSides[i] = s;
+            }
+            for (int i = 0; i < store.size; i++) {
+                for (WallSide side : rowSides[i]) {
+                    linesFor(side).computeIfAbsent(side.line, k -> new ArrayList<>()).add(side);
+                }
+                sides.put(store.room(i), rowSides[i]);
+            }
+            store.forEachSharedWall((a, side, b, from, to) -> {
+                WallSide mine = rowSides[a][side], theirs = rowSides[b][side ^ 1];
+                mine.shared.add(theirs);
+                theirs.shared.add(mine);
+                return true;
+            });
+            // The new rooms are refreshed row by row rather than through changed, as
+            // putting every one in an identity set took longer than the sweep. Rooms
+            // already in the model that were linked go through refresh, which does
+            // their neighbours among the new rooms over again.
+            for (WallSide[] s : rowSides) {
+                updateOpen(s);
+            }
+            for (int i = 0; i < store.size; i++) {
+                updateHidden(store.room(i), rowSides[i]);
+            }
+            refresh();
+        }
+
+        private void place(Room room) {
+            WallSide[] s = sides.get(room);
+            if (s == null) {
+                s = new WallSide[]{new WallSide(room, TOP), new WallSide(room, BOTTOM),
+                                   new WallSide(room, LEFT), new WallSide(room, RIGHT)};
+                sides.put(room, s);
+            } else {
+                for (WallSide side : s) {
+                    detach(side);
+                }
+            }
+            set(s[TOP], room.y, room.x, room.x + room.width);
+            set(s[BOTTOM], room.y + room.height, room.x, room.x + room.width);
+            set(s[LEFT], room.x, room.y, room.y + room.height);
+            set(s[RIGHT], room.x + room.width, room.y, room.y + room.height);
+            for (WallSide side : s) {
+                attach(side);
+                collectOpenings(side);
+            }
+            changed.add(room);
+        }
+
+        private static void set(WallSide side, int line, int start, int end) {
+            side.line = line;
+            side.start = start;
+            side.end = end;
+        }
+
+        private TreeMap<Integer, ArrayList<WallSide>> linesFor(WallSide side) {
+            return side.isHorizontal() ? horizontalLines : verticalLines;
+        }
+
+        private void attach(WallSide side) {
+            link(side);
+            linesFor(side).computeIfAbsent(side.line, k -> new ArrayList<>()).add(side);
+        }
+
+        // Links side with the filed sides it faces, without filing it
+        private void link(WallSide side) {
+            TreeMap<Integer, ArrayList<WallSide>> lines = linesFor(side);
+            int facing = side.side ^ 1; // TOP<->BOTTOM, LEFT<->RIGHT
+            for (ArrayList<WallSide> line : lines.subMap(side.line - WALL_TOLERANCE, true, side.line + WALL_TOLERANCE, true).values()) {
+                for (WallSide other : line) {
+                    if (other.side == facing && other.room != side.room &&
+                        side.start < other.end && side.end > other.start) {
+                        side.shared.add(other);
+                        other.shared.add(side);
+                        changed.add(other.room);
+                    }
+                }
+            }
+        }
+
+        private void detach(WallSide side) {
+            TreeMap<Integer, ArrayList<WallSide>> lines = linesFor(side);
+            ArrayList<WallSide> line = lines.get(side.line);
+            if (line != null) {
+                line.remove(side);
+                if (line.isEmpty()) {
+                    lines.remove(side.line);
+                }
+            }
+            for (WallSide other : side.shared) {
+                other.shared.remove(side);
+                changed.add(other.room);
+            }
+            side.shared.clear();
+        }
+
+        // Same test Door.intersects and Window.intersects apply against a wall
+        private static void collectOpenings(WallSide side) {
+            Room room = side.room;
+            side.doors.clear();
+            for (Door door : room.doors) {
+                if (opens(side, room.x + door.offsetX, room.y + door.offsetY, door.isVertical, DOOR_TOLERANCE)) {
+                    side.doors.add(door);
+                }
+            }
+            side.windows.clear();
+            for (Window window : room.windows) {
+                if (opens(side, room.x + window.offsetX, room.y + window.offsetY, window.isVertical, WINDOW_TOLERANCE)) {
+                    side.windows.add(window);
+                }
+            }
+        }
+
+        private static boolean opens(WallSide side, int px, int py, boolean isVertical, int tolerance) {
+            if (side.isHorizontal()) {
+                return !isVertical && Math.abs(side.line - py) <= tolerance &&
+                       side.start <= px && side.end >= px + OPENING_LENGTH;
+            } else {
+                return isVertical && Math.abs(side.line - px) <= tolerance &&
+                       side.start <= py && side.end >= py + OPENING_LENGTH;
+            }
+        }
+
+        // A side is open when it or the wall it shares has a door. A bottom or right
+        // side is also hidden when closed top or left sides of its neighbours cover it,
+        // so each shared wall is drawn once.
+        private void refresh() {
+            if (changed.isEmpty()) {
+                return;
+            }
+            Set<Room> opened = withNeighbours(changed);
+            for (Room room : opened) {
+                updateOpen(sides.get(room));
+            }
+            for (Room room : withNeighbours(opened)) {
+                updateHidden(room, sides.get(room));
+            }
+            changed.clear();
+        }
+
+        private static void updateOpen(WallSide[] s) {
+            for (WallSide side : s) {
+                boolean open = !side.doors.isEmpty();
+                for (int i = 0; i < side.shared.size() && !open; i++) {
+                    open = !side.shared.get(i).doors.isEmpty();
+                }
+                side.open = open;
+            }
+        }
+
+        private static void updateHidden(Room room, WallSide[] s) {
+            int openWalls = 0, hiddenWalls = 0;
+            for (WallSide side : s) {
+                int bit = 1 << side.side;
+                if (side.open) {
+                    openWalls |= bit;
+                    hiddenWalls |= bit;
+                } else if ((side.side == BOTTOM || side.side == RIGHT) && coveredByShared(side)) {
+                    hiddenWalls |= bit;
+                }
+            }
+            room.openWalls = openWalls;
+            room.hiddenWalls = hiddenWalls;
+        }
+
+        private Set<Room> withNeighbours(Set<Room> rooms) {
+            Set<Room> result = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Room room : rooms) {
+                WallSide[] s = sides.get(room);
+                if (s == null) continue;
+                result.add(room);
+                for (WallSide side : s) {
+                    for (WallSide other : side.shared) {
+                        result.add(other.room);
+                    }
+                }
+            }
+            return result;
+        }
+
+        private static boolean coveredByShared(WallSide side) {
+            int pos = side.start;
+            while (pos < side.end) {
+                int reach = pos;
+                for (WallSide other : side.shared) {
+                    if (!other.open && other.start <= pos && other.end > reach) {
+                        reach = other.end;
+                    }
+                }
+                if (reach == pos) {
+                    return false;
+                }
+                pos = reach;
+            }
+            return true;
+        }
+    }
+
+    // The rooms of a plan packed column by column into primitive arrays, for bulk
+    // queries over plans of 100k rooms and more. Rows are dealt into horizontal
+    // bands taller than any room and sorted by x within each band, so finding
+    // every overlapping pair or every shared wall is one pass that compares a room
+    // only with the rows of its own band and the band below that start within its
+    // reach, in loops over int arrays that never touch a Room. Doors and windows
+    // are packed the same way: row i's doors are doorX[doorStart[i]] up to
+    // doorX[doorStart[i + 1]], and likewise for windows. A store is a snapshot and
+    // never changes once built, so it can be handed to other threads.
+    static final class RoomStore {
+        public final int size;
+        public final int[] x, y, width, height;
+        // Each row's index in types
+        public final int[] type;
+        public final String[] types;
+        // Opening offsets from the room's corner, as in Door and Window
+        public final int[] doorStart, doorX, doorY, doorLength;
+        public final boolean[] doorVertical;
+        public final int[] windowStart, windowX, windowY;
+        public final boolean[] windowVertical;
+        // The largest room, which bounds how far from a point a room reaching it can start
+        public final int maxWidth, maxHeight;
+        // Band b holds the rows from bandStart[b] up to bandStart[b + 1], the rooms whose
+        // top lies bandHeight * b to bandHeight * (b + 1) below top. Bands are taller
+        // than any room by more than WALL_TOLERANCE, so a room can only meet rooms of
+        // its own band and the ones either side.
+        public final int top, bandHeight;
+        public final int[] bandStart;
+        private final Room[] rooms;
+
+        interface OverlapVisitor {
+            boolean visit(int a, int b);
+        }
+
+        // A wall shared by rows a and b: the side of a facing b, and the stretch
+        // [from, to) along it that both rooms cover
+        interface WallVisitor {
+            boolean visit(int a, int side, int b, int from, int to);
+        }
+
+        public static RoomStore of(Collection<Room> rooms) {
+            Room[] unsorted = rooms.toArray(new Room[0]);
+            int top = 0, bottom = 0, tallest = 0;
+            for (int i = 0; i < unsorted.length; i++) {
+                Room room = unsorted[i];
+                top = i == 0 ? room.y : Math.min(top, room.y);
+                bottom = i == 0 ? room.y : Math.max(bottom, room.y);
+                tallest = Math.max(tallest, room.height);
+            }
+            int bandHeight = tallest + WallModel.WALL_TOLERANCE + 1;
+            int bands = unsorted.length == 0 ? 0 : band(bottom, top, bandHeight) + 1;
+
+            // Rooms are counted into their bands, then each band is sorted by x: x in
+            // the high half of a key and position in the low, so one primitive sort
+            // orders a band and keeps rooms with the same x in their original order
+            int[] bandStart = new int[bands + 1];
+            for (Room room : unsorted) {
+                bandStart[band(room.y, top, bandHeight) + 1]++;
+            }
+            for (int b = 0; b < bands; b++) {
+                bandStart[b + 1] += bandStart[b];
+            }
+            int[] fill = Arrays.copyOf(bandStart, bands);
+            long[] order = new long[unsorted.length];
+            for (int i = 0; i < unsorted.length; i++) {
+                order[fill[band(unsorted[i].y, top, bandHeight)]++] = (long) unsorted[i].x << 32 | i;
+            }
+            for (int b = 0; b < bands; b++) {
+                Arrays.sort(order, bandStart[b], bandStart[b + 1]);
+            }
+            Room[] sorted = new Room[unsorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = unsorted[(int) order[i]];
+            }
+            return new RoomStore(sorted, top, bandHeight, bandStart);
+        }
+
+        private static int band(int y, int top, int bandHeight) {
+            return (int) (((long) y - top) / bandHeight);
+        }
+
+        private RoomStore(Room[] rooms, int top, int bandHeight, int[] bandStart) {
+            this.rooms = rooms;
+            this.top = top;
+            this.bandHeight = bandHeight;
+            this.bandStart = bandStart;
+            size = rooms.length;
+            x = new int[size];
+            y = new int[size];
+            width = new int[size];
+            height = new int[size];
+            type = new int[size];
+            doorStart = new int[size + 1];
+            windowStart = new int[size + 1];
+            HashMap<String, Integer> typeIds = new HashMap<>();
+            int doors = 0, windows = 0, widest = 0, tallest = 0;
+            for (int i = 0; i < size; i++) {
+                Room room = rooms[i];
+                x[i] = room.x;
+                y[i] = room.y;
+                width[i] = room.width;
+                height[i] = room.height;
+                widest = Math.max(widest, room.width);
+                tallest = Math.max(tallest, room.height);
+                Integer id = typeIds.get(room.type);
+                if (id == null) {
+                    id = typeIds.size();
+                    typeIds.put(room.type, id);
+                }
+                type[i] = id;
+                doorStart[i] = doors;
+                windowStart[i] = windows;
+                doors += room.doors.size();
+                windows += room.windows.size();
+            }
+            doorStart[size] = doors;
+            windowStart[size] = windows;
+            maxWidth = widest;
+            maxHeight = tallest;
+            types = new String[typeIds.size()];
+            for (Map.Entry<String, Integer> entry : typeIds.entrySet()) {
+                types[entry.getValue()] = entry.getKey();
+            }
+
+            doorX = new int[doors];
+            doorY = new int[doors];
+            doorLength = new int[doors];
+            doorVertical = new boolean[doors];
+            windowX = new int[windows];
+            windowY = new int[windows];
+            windowVertical = new boolean[windows];
+            for (int i = 0; i < size; i++) {
+                int d = doorStart[i];
+                for (Door door : rooms[i].doors) {
+                    doorX[d] = door.offsetX;
+                    doorY[d] = door.offsetY;
+                    doorLength[d] = door.length;
+                    doorVertical[d++] = door.isVertical;
+                }
+                int w = windowStart[i];
+                for (Window window : rooms[i].windows) {
+                    windowX[w] = window.offsetX;
+                    windowY[w] = window.offsetY;
+                    windowVertical[w++] = window.isVertical;
+                }
+            }
+        }
+
+        // The room a row was packed from
+        public Room room(int row) {
+            return rooms[row];
+        }
+
+        public String typeOf(int row) {
+            return types[type[row]];
+        }
+
+        public int bands() {
+            return bandStart.length - 1;
+        }
+
+        // The first row from..to starting at or right of value, in a run sorted by x
+        private int firstAt(int from, int to, int value) {
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (x[mid] < value) {
+                    from = mid + 1;
+                } else {
+                    to = mid;
+                }
+            }
+            return from;
+        }
+
+        // Visits each row overlapping the rectangle, overlapping as Room.intersects has
+        // it, so rooms that only touch it are left out. Returns false as soon as the
+        // visitor does.
+        public boolean queryOverlapping(int qx, int qy, int qwidth, int qheight, IntPredicate visitor) {
+            int right = qx + qwidth, bottom = qy + qheight;
+            if (size == 0 || bottom <= top) {
+                return true;
+            }
+            int first = Math.max(0, band(Math.max(qy - maxHeight, top), top, bandHeight));
+            int last = Math.min(bands() - 1, band(bottom, top, bandHeight));
+            for (int b = first; b <= last; b++) {
+                int end = bandStart[b + 1];
+                for (int i = firstAt(bandStart[b], end, qx - maxWidth + 1); i < end && x[i] < right; i++) {
+                    if (x[i] + width[i] > qx && y[i] < bottom && y[i] + height[i] > qy && !visitor.test(i)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // Visits each pair of overlapping rows once, a before b. Returns false as soon
+        // as the visitor does.
+        public boolean forEachOverlap(OverlapVisitor visitor) {
+            int bands = bands();
+            for (int band = 0; band < bands; band++) {
+                int end = bandStart[band + 1], belowEnd = band + 1 < bands ? bandStart[band + 2] : end;
+                for (int a = bandStart[band]; a < end; a++) {
+                    int left = x[a], right = left + width[a], top = y[a], bottom = top + height[a];
+                    // The rest of a's band, then the band below
+                    int b = a + 1, to = end;
+                    for (int pass = 0; pass < 2; pass++) {
+                        for (; b < to && x[b] < right; b++) {
+                            if (y[b] < bottom && y[b] + height[b] > top && x[b] + width[b] > left && !visitor.visit(a, b)) {
+                                return false;
+                            }
+                        }
+                        b = firstAt(end, belowEnd, left - maxWidth + 1);
+                        to = belowEnd;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // Visits each pair of facing sides that WallModel links as one shared wall:
+        // within WALL_TOLERANCE of each other, and overlapping along their length.
+        // A pair of rows can share more than one wall when a room is thinner than the
+        // tolerance. Returns false as soon as the visitor does.
+        public boolean forEachSharedWall(WallVisitor visitor) {
+            int tolerance = WallModel.WALL_TOLERANCE, bands = bands();
+            for (int band = 0; band < bands; band++) {
+                int end = bandStart[band + 1], belowEnd = band + 1 < bands ? bandStart[band + 2] : end;
+                for (int a = bandStart[band]; a < end; a++) {
+                    int left = x[a], right = left + width[a], top = y[a], bottom = top + height[a];
+                    int b = a + 1, to = end;
+                    for (int pass = 0; pass < 2; pass++) {
+                        for (; b < to && x[b] <= right + tolerance; b++) {
+                            int bLeft = x[b], bRight = bLeft + width[b], bTop = y[b], bBottom = bTop + height[b];
+                            if (top < bBottom && bottom > bTop) {
+                                int from = Math.max(top, bTop), until = Math.min(bottom, bBottom);
+                                if (Math.abs(right - bLeft) <= tolerance && !visitor.visit(a, WallModel.RIGHT, b, from, until)) {
+                                    return false;
+                                }
+                                if (Math.abs(left - bRight) <= tolerance && !visitor.visit(a, WallModel.LEFT, b, from, until)) {
+                                    return false;
+                                }
+                            }
+                            if (left < bRight && right > bLeft) {
+                                int from = Math.max(left, bLeft), until = Math.min(right, bRight);
+                                if (Math.abs(bottom - bTop) <= tolerance && !visitor.visit(a, WallModel.BOTTOM, b, from, until)) {
+                                    return false;
+                                }
+                                if (Math.abs(top - bBottom) <= tolerance && !visitor.visit(a, WallModel.TOP, b, from, until)) {
+                                    return false;
+                                }
+                            }
+                        }
+                        b = firstAt(end, belowEnd, left - maxWidth - tolerance);
+                        to = belowEnd;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // A bit per WallModel side for each row: the sides it shares with another room
+        public int[] sharedSides() {
+            int[] sides = new int[size];
+            forEachSharedWall((a, side, b, from, to) -> {
+                sides[a] |= 1 << side;
+                sides[b] |= 1 << (side ^ 1);
+                return true;
+            });
+            return sides;
+        }
+
+        // A bit per WallModel side for each row: the sides one of its doors opens, by
+        // the rule WallModel applies
+        public int[] doorSides() {
+            return openingSides(doorStart, doorX, doorY, doorVertical, WallModel.DOOR_TOLERANCE);
+        }
+
+        public int[] windowSides() {
+            return openingSides(windowStart, windowX, windowY, windowVertical, WallModel.WINDOW_TOLERANCE);
+        }
+
+        private int[] openingSides(int[] start, int[] offsetX, int[] offsetY, boolean[] vertical, int tolerance) {
+            int length = WallModel.OPENING_LENGTH;
+            int[] sides = new int[size];
+            for (int i = 0; i < size; i++) {
+                int w = width[i], h = height[i], mask = 0;
+                for (int o = start[i]; o < start[i + 1]; o++) {
+                    int ox = offsetX[o], oy = offsetY[o];
+                    if (vertical[o]) {
+                        if (oy >= 0 && h >= oy + length) {
+                            mask |= (Math.abs(ox) <= tolerance ? 1 << WallModel.LEFT : 0)
+                                  | (Math.abs(w - ox) <= tolerance ? 1 << WallModel.RIGHT : 0);
+                        }
+                    } else if (ox >= 0 && w >= ox + length) {
+                        mask |= (Math.abs(oy) <= tolerance ? 1 << WallModel.TOP : 0)
+                              | (Math.abs(h - oy) <= tolerance ? 1 << WallModel.BOTTOM : 0);
+                    }
+                }
+                sides[i] = mask;
+            }
+            return sides;
+        }
+    }
+
+    // Binary plan file. A header (magic, format version, record counts) is followed
+    // by a table of the type names used in the plan, a directory of pages, and the
+    // pages themselves. A page holds the rooms (with their doors and windows inline)
+    // and furniture whose top-left corner falls in one PAGE_SIZE square, and the
+    // directory records the area each page actually covers, so a viewer can decode
+    // just the pages in view. From version 3 each room and item record starts with
+    // the object's id, and the header holds the next free id, so the autosave
+    // journal can name objects that share a corner. Version 2 files, without ids, and
+    // version 1 files, which are one flat list of rooms and furniture, are still
+    // read; their objects are numbered in file order. All I/O goes through a
+    // FileChannel.
+    static class PlanFile {
+        public static final int MAGIC = 0x46504C4E; // "FPLN"
+        public static final int VERSION = 3;
+        public static final String EXTENSION = "fplan";
+        public static final int PAGE_SIZE = 2048;
+        static final int BUFFER_SIZE = 1 << 16;
+        static final int HEADER_SIZE_V1 = 20;
+        static final int HEADER_SIZE_V2 = 24;
+        static final int HEADER_SIZE = 28;
+        static final int PAGE_ENTRY_SIZE = 36;
+        static final int ROOM_SIZE_V2 = 30;
+        static final int ROOM_SIZE = 34;
+        static final int DOOR_SIZE = 13;
+        static final int WINDOW_SIZE = 9;
+        static final int FURNITURE_SIZE_V2 = 21;
+        static final int FURNITURE_SIZE = 25;
+
+        // Directory entry for one page: the area its objects cover, and where its records are
+        static class Page {
+            int minX, minY, maxX, maxY;
+            long offset;
+            int length;
+            int roomCount, itemCount;
+            // Files before version 3 store no ids; their objects are numbered in file
+            // order from 1, and this is the id of the page's first room or item
+            int firstId;
+        }
+
+        // What goes into one page when writing: either objects to encode, or a page
+        // to copy byte for byte from an existing file
+        static class PageContent {
+            List<Room> rooms = new ArrayList<>();
+            List<FurnitureItem> items = new ArrayList<>();
+            FileChannel source;
+            Page sourcePage;
+            // Pages from older files are decoded and written again rather than copied
+            int sourceVersion = VERSION;
+        }
+
+        // Header, type names and page directory of a version 2 or later file
+        static class Directory {
+            int version;
+            String[] names;
+            ArrayList<Page> pages = new ArrayList<>();
+            int roomCount, itemCount;
+            // Above every id in the file
+            int nextId;
+        }
+
+        // Told how far a long read or write has got; returning false cancels it
+        interface Progress {
+            boolean update(long done, long total);
+        }
+
+        static void report(Progress progress, long done, long total) throws InterruptedIOException {
+            if (progress != null && !progress.update(done, total)) {
+                throw new InterruptedIOException("Cancelled");
+            }
+        }
+
+        // A save set up on the EDT and written on any thread. Its pages hold copies of
+        // the plan's objects, so the plan can be edited while they are written.
+        static class SaveJob {
+            final File target;
+            final List<String> names;
+            final List<PageContent> contents;
+            final int nextId;
+            // For a paged plan: the resident objects each page was copied from, or null
+            // for pages copied from its file, and its modification count at the time
+            List<PagedPlan.Resident> residents;
+            int modCount;
+            ArrayList<Page> pages;
+            // The job's own handle on the file pages are copied from, so the plan can
+            // move on to another file while this job is still being written
+            FileChannel source;
+
+            SaveJob(File target, List<String> names, List<PageContent> contents, int nextId) {
+                this.target = target;
+                this.names = names;
+                this.contents = contents;
+                this.nextId = nextId;
+            }
+
+            // Writes a temporary file next to target and moves it into place, so target
+            // is never left half written
+            public void write(Progress progress) throws IOException {
+                File temp = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".tmp");
+                try {
+                    try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                                                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        pages = PlanFile.write(out, names, contents, nextId, progress);
+                        out.force(true);
+                    }
+                    java.nio.file.Files.move(temp.toPath(), target.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    temp.delete();
+                    throw e;
+                } finally {
+                    if (source != null) {
+                        source.close();
+                    }
+                }
+            }
+        }
+
+        public static void write(File file, List<Room> rooms, List<FurnitureItem> items) throws IOException {
+            write(file, rooms, items, 1);
+        }
+
+        // Objects without an id are given one from nextId up, in the file only
+        public static void write(File file, List<Room> rooms, List<FurnitureItem> items, int nextId) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(channel, new ArrayList<>(), group(rooms, items, false), nextId, null);
+            }
+        }
+
+        // Copies the objects for a SaveJob
+        public static SaveJob prepareSave(File target, List<Room> rooms, List<FurnitureItem> items, int nextId) {
+            return new SaveJob(target, new ArrayList<>(), group(rooms, items, true), nextId);
+        }
+
+        // Sorts objects into pages by where they stand, in the order pages are first met
+        private static ArrayList<PageContent> group(List<Room> rooms, List<FurnitureItem> items, boolean copy) {
+            LinkedHashMap<Long, PageContent> pages = new LinkedHashMap<>();
+            for (Room room : rooms) {
+                pages.computeIfAbsent(pageKey(room.x, room.y), k -> new PageContent()).rooms.add(copy ? room.copy() : room);
+            }
+            for (FurnitureItem item : items) {
+                pages.computeIfAbsent(pageKey(item.x, item.y), k -> new PageContent()).items.add(copy ? item.copy() : item);
+            }
+            return new ArrayList<>(pages.values());
+        }
+
+        public static long pageKey(int x, int y) {
+            return ((long) Math.floorDiv(x, PAGE_SIZE) << 32) | (Math.floorDiv(y, PAGE_SIZE) & 0xffffffffL);
+        }
+
+        // Writes a current version file. Copied pages keep their name indices, so the
+        // names they were written with must come first in names, in their original
+        // order. nextId must be above the ids in copied pages; objects without an id
+        // are numbered from the first id above nextId and every other id. Returns the
+        // directory entries written, in the order of contents.
+        static ArrayList<Page> write(FileChannel channel, List<String> names, List<PageContent> contents,
+                                     int nextId, Progress progress) throws IOException {
+            LinkedHashMap<String, Integer> nameIndex = new LinkedHashMap<>();
+            for (String name : names) {
+                nameIndex.putIfAbsent(name, nameIndex.size());
+            }
+            int roomCount = 0, itemCount = 0, unnumbered = 0;
+            ArrayList<Page> pages = new ArrayList<>();
+            for (PageContent content : contents) {
+                Page page = new Page();
+                if (content.sourcePage != null) {
+                    Page source = content.sourcePage;
+                    page.minX = source.minX;
+                    page.minY = source.minY;
+                    page.maxX = source.maxX;
+                    page.maxY = source.maxY;
+                    page.length = source.length;
+                    page.roomCount = source.roomCount;
+                    page.itemCount = source.itemCount;
+                    if (content.sourceVersion < 3) {
+                        page.length += (ROOM_SIZE - ROOM_SIZE_V2) * page.roomCount
+                                     + (FURNITURE_SIZE - FURNITURE_SIZE_V2) * page.itemCount;
+                    }
+                } else {
+                    page.minX = page.minY = Integer.MAX_VALUE;
+                    page.maxX = page.maxY = Integer.MIN_VALUE;
+                    for (Room room : content.rooms) {
+                        nameIndex.putIfAbsent(room.type, nameIndex.size());
+                        cover(page, room.x, room.y, room.width, room.height);
+                        page.length += ROOM_SIZE + room.doors.size() * DOOR_SIZE + room.windows.size() * WINDOW_SIZE;
+                        nextId = Math.max(nextId, room.id + 1);
+                        unnumbered += room.id == 0 ? 1 : 0;
+                    }
+                    for (FurnitureItem item : content.items) {
+                        nameIndex.putIfAbsent(item.type, nameIndex.size());
+                        cover(page, item.x, item.y, item.size.width, item.size.height);
+                        page.length += FURNITURE_SIZE;
+                        nextId = Math.max(nextId, item.id + 1);
+                        unnumbered += item.id == 0 ? 1 : 0;
+                    }
+                    page.roomCount = content.rooms.size();
+                    page.itemCount = content.items.size();
+                }
+                roomCount += page.roomCount;
+                itemCount += page.itemCount;
+                pages.add(page);
+            }
+            if (nameIndex.size() > Short.MAX_VALUE) {
+                throw new IOException("Too many distinct room and furniture types: " + nameIndex.size());
+            }
+
+            ArrayList<byte[]> encodedNames = new ArrayList<>();
+            long offset = HEADER_SIZE + (long) pages.size() * PAGE_ENTRY_SIZE;
+            for (String name : nameIndex.keySet()) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > Short.MAX_VALUE) {
+                    throw new IOException("Type name too long: " + name.substring(0, 40) + "...");
+                }
+                encodedNames.add(bytes);
+                offset += 2 + bytes.length;
+            }
+            for (Page page : pages) {
+                page.offset = offset;
+                offset += page.length;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            int unnumberedId = nextId;
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(nameIndex.size()).putInt(roomCount).putInt(itemCount).putInt(pages.size())
+                  .putInt(nextId + unnumbered);
+            for (byte[] bytes : encodedNames) {
+                ensure(channel, buffer, 2 + bytes.length);
+                buffer.putShort((short) bytes.length).put(bytes);
+            }
+            for (Page page : pages) {
+                ensure(channel, buffer, PAGE_ENTRY_SIZE);
+                buffer.putInt(page.minX).putInt(page.minY).putInt(page.maxX).putInt(page.maxY)
+                      .putLong(page.offset).putInt(page.length).putInt(page.roomCount).putInt(page.itemCount);
+            }
+            String[] sourceNames = names.toArray(new String[0]);
+            int written = 0;
+            for (PageContent content : contents) {
+                report(progress, written++, contents.size());
+                Page source = content.sourcePage;
+                if (source != null && content.sourceVersion < 3) {
+                    // Numbered in file order, as they were read
+                    ByteBuffer records = content.source.map(FileChannel.MapMode.READ_ONLY, source.offset, source.length);
+                    int id = source.firstId;
+                    for (int i = 0; i < source.roomCount; i++) {
+                        writeRoom(channel, buffer, readRoom(null, records, sourceNames, content.sourceVersion), id++, nameIndex);
+                    }
+                    for (int i = 0; i < source.itemCount; i++) {
+                        writeItem(channel, buffer, readItem(null, records, sourceNames, content.sourceVersion), id++, nameIndex);
+                    }
+                    continue;
+                }
+                if (source != null) {
+                    flush(channel, buffer);
+                    long position = source.offset, end = position + source.length;
+                    while (position < end) {
+                        position += content.source.transferTo(position, end - position, channel);
+                    }
+                    continue;
+                }
+                for (Room room : content.rooms) {
+                    writeRoom(channel, buffer, room, room.id != 0 ? room.id : unnumberedId++, nameIndex);
+                }
+                for (FurnitureItem item : content.items) {
+                    writeItem(channel, buffer, item, item.id != 0 ? item.id : unnumberedId++, nameIndex);
+                }
+            }
+            flush(channel, buffer);
+            return pages;
+        }
+
+        private static void writeRoom(FileChannel channel, ByteBuffer buffer, Room room, int id,
+                                      Map<String, Integer> nameIndex) throws IOException {
+            ensure(channel, buffer, ROOM_SIZE);
+            buffer.putInt(id).putInt(room.x).putInt(room.y).putInt(room.width).putInt(room.height)
+                  .putShort((short) (int) nameIndex.get(room.type)).putInt(room.color.getRGB())
+                  .putInt(room.doors.size()).putInt(room.windows.size());
+            for (Door door : room.doors) {
+                ensure(channel, buffer, DOOR_SIZE);
+                buffer.putInt(door.offsetX).putInt(door.offsetY).putInt(door.length)
+                      .put((byte) (door.isVertical ? 1 : 0));
+            }
+            for (Window window : room.windows) {
+                ensure(channel, buffer, WINDOW_SIZE);
+                buffer.putInt(window.offsetX).putInt(window.offsetY)
+                      .put((byte) (window.isVertical ? 1 : 0));
+            }
+        }
+
+        private static void writeItem(FileChannel channel, ByteBuffer buffer, FurnitureItem item, int id,
+                                      Map<String, Integer> nameIndex) throws IOException {
+            ensure(channel, buffer, FURNITURE_SIZE);
+            buffer.putInt(id).putInt(item.x).putInt(item.y).putShort((short) (int) nameIndex.get(item.type))
+                  .put((byte) (item.isFixture ? 1 : 0)).putShort((short) item.rotation)
+                  .putInt(item.size.width).putInt(item.size.height);
+        }
+
+        private static void cover(Page page, int x, int y, int width, int height) {
+            page.minX = Math.min(page.minX, x);
+            page.minY = Math.min(page.minY, y);
+            page.maxX = Math.max(page.maxX, x + width);
+            page.maxY = Math.max(page.maxY, y + height);
+        }
+
+        // Reads every room and furniture item in the file
+        public static void read(File file, List<Room> rooms, List<FurnitureItem> items) throws IOException {
+            read(file, rooms, items, null);
+        }
+
+        public static void read(File file, List<Room> rooms, List<FurnitureItem> items, Progress progress) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                buffer.flip();
+                int version = readVersion(file, channel, buffer);
+                String[] names;
+                int roomCount, itemCount;
+                if (version == 1) {
+                    require(channel, buffer, HEADER_SIZE_V1 - 8);
+                    int nameCount = buffer.getInt();
+                    roomCount = buffer.getInt();
+                    itemCount = buffer.getInt();
+                    names = readNames(channel, buffer, nameCount);
+                } else {
+                    // Pages are stored back to back in directory order, so the records
+                    // can be read straight through once the directory is skipped
+                    Directory directory = readDirectory(channel, buffer, version);
+                    names = directory.names;
+                    int read = 0;
+                    for (Page page : directory.pages) {
+                        report(progress, read++, directory.pages.size());
+                        int id = page.firstId;
+                        for (int i = 0; i < page.roomCount; i++) {
+                            Room room = readRoom(channel, buffer, names, version);
+                            room.id = version < 3 ? id++ : room.id;
+                            rooms.add(room);
+                        }
+                        for (int i = 0; i < page.itemCount; i++) {
+                            FurnitureItem item = readItem(channel, buffer, names, version);
+                            item.id = version < 3 ? id++ : item.id;
+                            items.add(item);
+                        }
+                    }
+                    return;
+                }
+                for (int i = 0; i < roomCount; i++) {
+                    if (i % 4096 == 0) {
+                        report(progress, i, roomCount + itemCount);
+                    }
+                    Room room = readRoom(channel, buffer, names, version);
+                    room.id = 1 + i;
+                    rooms.add(room);
+                }
+                for (int i = 0; i < itemCount; i++) {
+                    if (i % 4096 == 0) {
+                        report(progress, roomCount + i, roomCount + itemCount);
+                    }
+                    FurnitureItem item = readItem(channel, buffer, names, version);
+                    item.id = 1 + roomCount + i;
+                    items.add(item);
+                }
+            }
+        }
+
+        static int readVersion(File file, FileChannel channel, ByteBuffer buffer) throws IOException {
+            require(channel, buffer, 8);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a floor plan file");
+            }
+            int version = buffer.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Plan file version " + version + " is not supported (expected 1 to " + VERSION + ")");
+            }
+            return version;
+        }
+
+        // Reads the rest of a version 2 or later header, the names and the page directory
+        static Directory readDirectory(FileChannel channel, ByteBuffer buffer, int version) throws IOException {
+            Directory directory = new Directory();
+            directory.version = version;
+            require(channel, buffer, (version < 3 ? HEADER_SIZE_V2 : HEADER_SIZE) - 8);
+            int nameCount = buffer.getInt();
+            directory.roomCount = buffer.getInt();
+            directory.itemCount = buffer.getInt();
+            int pageCount = buffer.getInt();
+            directory.nextId = version < 3 ? 1 : buffer.getInt();
+            directory.names = readNames(channel, buffer, nameCount);
+            for (int i = 0; i < pageCount; i++) {
+                require(channel, buffer, PAGE_ENTRY_SIZE);
+                Page page = new Page();
+                page.minX = buffer.getInt();
+                page.minY = buffer.getInt();
+                page.maxX = buffer.getInt();
+                page.maxY = buffer.getInt();
+                page.offset = buffer.getLong();
+                page.length = buffer.getInt();
+                page.roomCount = buffer.getInt();
+                page.itemCount = buffer.getInt();
+                if (version < 3) {
+                    page.firstId = directory.nextId;
+                    directory.nextId += page.roomCount + page.itemCount;
+                }
+                directory.pages.add(page);
+            }
+            return directory;
+        }
+
+        private static String[] readNames(FileChannel channel, ByteBuffer buffer, int nameCount) throws IOException {
+            String[] names = new String[nameCount];
+            for (int i = 0; i < nameCount; i++) {
+                require(channel, buffer, 2);
+                byte[] bytes = new byte[buffer.getShort()];
+                require(channel, buffer, bytes.length);
+                buffer.get(bytes);
+                names[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            return names;
+        }
+
+        // The record readers take a null channel when the buffer already holds the whole
+        // page. Records before version 3 have no id, and are left with 0.
+        static Room readRoom(FileChannel channel, ByteBuffer buffer, String[] names, int version) throws IOException {
+            require(channel, buffer, version < 3 ? ROOM_SIZE_V2 : ROOM_SIZE);
+            int id = version < 3 ? 0 : buffer.getInt();
+            Room room = new Room(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                                 names[buffer.getShort()], null);
+            room.color = new Color(buffer.getInt(), true);
+            int doorCount = buffer.getInt();
+            int windowCount = buffer.getInt();
+            for (int d = 0; d < doorCount; d++) {
+                require(channel, buffer, DOOR_SIZE);
+                int offsetX = buffer.getInt(), offsetY = buffer.getInt(), length = buffer.getInt();
+                room.doors.add(new Door(offsetX, offsetY, buffer.get() != 0, length));
+            }
+            for (int w = 0; w < windowCount; w++) {
+                require(channel, buffer, WINDOW_SIZE);
+                int offsetX = buffer.getInt(), offsetY = buffer.getInt();
+                room.windows.add(new Window(offsetX, offsetY, buffer.get() != 0));
+            }
+            room.id = id;
+            return room;
+        }
+
+        static FurnitureItem readItem(FileChannel channel, ByteBuffer buffer, String[] names, int version) throws IOException {
+            require(channel, buffer, version < 3 ? FURNITURE_SIZE_V2 : FURNITURE_SIZE);
+            int id = version < 3 ? 0 : buffer.getInt();
+            int x = buffer.getInt(), y = buffer.getInt();
+            String type = names[buffer.getShort()];
+            boolean isFixture = buffer.get() != 0;
+            int rotation = buffer.getShort();
+            FurnitureItem item = new FurnitureItem(x, y, type, isFixture, rotation, buffer.getInt(), buffer.getInt());
+            item.id = id;
+            return item;
+        }
+
+        private static void ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush(channel, buffer);
+            }
+        }
+
+        private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        // Makes at least the given number of bytes readable, refilling from the channel
+        private static void require(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            if (channel == null) {
+                throw new EOFException("Plan file page is truncated");
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Plan file is truncated");
+                }
+            }
+            buffer.flip();
+        }
+    }
+
+    // Checks a whole plan against the rules the canvas applies a click at a time:
+    // rooms must not overlap; doors must be on a wall of their room, and a bedroom
+    // or bathroom's on a wall it shares with another room; windows must be on an
+    // outside wall; a room's doors and windows must not overlap each other; and
+    // furniture must stand in a room, clear of other furniture. It reads a
+    // PlanVersion, so it runs off the EDT and never shows a dialog, and the rooms
+    // and items to check are shared out over a pool. It is incremental: each run
+    // diffs the new version against the one checked last, and checks again only
+    // the rooms and items that changed and those near them, keeping what it found
+    // for the rest.
+    static class PlanValidator {
+        public static final int ROOM_OVERLAP = 0, DOOR_OFF_WALL = 1, DOOR_FACING_OUTSIDE = 2, DOOR_OVERLAP = 3,
+                                WINDOW_OFF_WALL = 4, WINDOW_BETWEEN_ROOMS = 5, WINDOW_OVERLAP = 6,
+                                FURNITURE_OUTSIDE_ROOMS = 7, FURNITURE_OVERLAP = 8;
+        public static final String[] RULE_NAMES = {"room overlap", "door off wall", "door facing outside", "door overlap",
+                                                   "window off wall", "window between rooms", "window overlap",
+                                                   "furniture outside rooms", "furniture overlap"};
+        // How near a wall a door or window must be, and how long a window is, as on the canvas
+        public static final int DOOR_TOLERANCE = 5, WINDOW_TOLERANCE = 3;
+        public static final int WINDOW_LENGTH = 30;
+        // Rooms or items a task checks at a time
+        static final int CHUNK_SIZE = 256;
+
+        // One broken rule. room is the room at fault, or holding the door or window at
+        // fault, or null for furniture; subject is that door, window or item, or the
+        // room itself; other is what it clashes with, if anything.
+        static class Violation {
+            public final int rule;
+            public final Room room;
+            public final Object subject, other;
+            public final String message;
+
+            Violation(int rule, Room room, Object subject, Object other, String message) {
+                this.rule = rule;
+                this.room = room;
+                this.subject = subject;
+                this.other = other;
+                this.message = message;
+            }
+
+            @Override
+            public String toString() {
+                return message;
+            }
+        }
+
+        public final ForkJoinPool pool;
+        // The version last checked, and what was found in it, by the frozen room or
+        // item at fault; objects with nothing wrong are left out
+        private PlanVersion checked = PlanVersion.EMPTY;
+        private final IdentityHashMap<Room, List<Violation>> roomViolations = new IdentityHashMap<>();
+        private final IdentityHashMap<FurnitureItem, List<Violation>> itemViolations = new IdentityHashMap<>();
+        // How many rooms and items the last run checked
+        public int roomsChecked, itemsChecked;
+
+        public PlanValidator() {
+            this(ForkJoinPool.commonPool());
+        }
+
+        public PlanValidator(ForkJoinPool pool) {
+            this.pool = pool;
+        }
+
+        // Checks version and returns everything wrong with it, rooms first, in no
+        // particular order otherwise. Any version can be passed; the closer it is to
+        // the last one, the less there is to do.
+        public synchronized List<Violation> validate(PlanVersion version) {
+            // What was taken out of the last version or put into this one. A moved or
+            // edited room is a new frozen copy, so it is both.
+            ArrayList<Room> roomsOut = new ArrayList<>(), roomsIn = new ArrayList<>();
+            ArrayList<FurnitureItem> itemsOut = new ArrayList<>(), itemsIn = new ArrayList<>();
+            version.diff(checked, (before, after) -> {
+                Room[] oldRooms = before != null ? before.rooms : new Room[0], newRooms = after != null ? after.rooms : new Room[0];
+                FurnitureItem[] oldItems = before != null ? before.items : new FurnitureItem[0];
+                FurnitureItem[] newItems = after != null ? after.items : new FurnitureItem[0];
+                missing(oldRooms, newRooms, roomsOut);
+                missing(newRooms, oldRooms, roomsIn);
+                missing(oldItems, newItems, itemsOut);
+                missing(newItems, oldItems, itemsIn);
+            });
+
+            ArrayList<Room> roomList = new ArrayList<>();
+            ArrayList<FurnitureItem> itemList = new ArrayList<>();
+            int changes = roomsOut.size() + roomsIn.size() + itemsOut.size() + itemsIn.size();
+            if (changes * 4 > version.roomCount + version.itemCount) {
+                // Much of the plan changed, as on a first run, so everything is checked
+                // rather than working out what lies near what changed
+                roomViolations.clear();
+                itemViolations.clear();
+                version.forEachRoom(roomList::add);
+                version.forEachFurniture(itemList::add);
+            } else {
+                nearChanges(version, roomsOut, roomsIn, itemsOut, itemsIn, roomList, itemList);
+                for (Room room : roomsOut) {
+                    roomViolations.remove(room);
+                }
+                for (FurnitureItem item : itemsOut) {
+                    itemViolations.remove(item);
+                }
+            }
+
+            ArrayList<List<Violation>> found = new ArrayList<>(Collections.nCopies(roomList.size() + itemList.size(), null));
+            ArrayList<Callable<Void>> chunks = new ArrayList<>();
+            for (int start = 0; start < roomList.size(); start += CHUNK_SIZE) {
+                int from = start, to = Math.min(roomList.size(), start + CHUNK_SIZE);
+                chunks.add(() -> {
+                    for (int i = from; i < to; i++) {
+                        found.set(i, checkRoom(version, roomList.get(i)));
+                    }
+                    return null;
+                });
+            }
+            for (int start = 0; start < itemList.size(); start += CHUNK_SIZE) {
+                int from = start, to = Math.min(itemList.size(), start + CHUNK_SIZE);
+                chunks.add(() -> {
+                    for (int i = from; i < to; i++) {
+                        found.set(roomList.size() + i, checkItem(version, itemList.get(i)));
+                    }
+                    return null;
+                });
+            }
+            try {
+                for (Future<Void> done : pool.invokeAll(chunks)) {
+                    done.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted");
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Plan check failed", e.getCause());
+            }
+            for (int i = 0; i < roomList.size(); i++) {
+                record(roomViolations, roomList.get(i), found.get(i));
+            }
+            for (int i = 0; i < itemList.size(); i++) {
+                record(itemViolations, itemList.get(i), found.get(roomList.size() + i));
+            }
+            checked = version;
+            roomsChecked = roomList.size();
+            itemsChecked = itemList.size();
+
+            ArrayList<Violation> all = new ArrayList<>();
+            for (List<Violation> violations : roomViolations.values()) {
+                all.addAll(violations);
+            }
+            for (List<Violation> violations : itemViolations.values()) {
+                all.addAll(violations);
+            }
+            return all;
+        }
+
+        // The rooms and items whose violations may differ from last time: those that
+        // are new, rooms near one that came or went, which may have gained or lost a
+        // neighbour or an overlap, items in or on one, which may have gained or lost
+        // their room, and items near an item that came or went
+        private static void nearChanges(PlanVersion version, List<Room> roomsOut, List<Room> roomsIn,
+                                        List<FurnitureItem> itemsOut, List<FurnitureItem> itemsIn,
+                                        List<Room> roomList, List<FurnitureItem> itemList) {
+            Set<Room> rooms = Collections.newSetFromMap(new IdentityHashMap<>());
+            Set<FurnitureItem> items = Collections.newSetFromMap(new IdentityHashMap<>());
+            rooms.addAll(roomsIn);
+            items.addAll(itemsIn);
+            int tolerance = WallModel.WALL_TOLERANCE;
+            for (List<Room> changed : Arrays.asList(roomsOut, roomsIn)) {
+                for (Room room : changed) {
+                    version.queryRooms(room.x - tolerance, room.y - tolerance, room.width + 2 * tolerance,
+                                       room.height + 2 * tolerance, near -> {
+                                           rooms.add(near);
+                                           return true;
+                                       });
+                    version.queryFurniture(room.x, room.y, room.width, room.height, item -> {
+                        if (room.contains(item.x, item.y)) {
+                            items.add(item);
+                        }
+                        return true;
+                    });
+                }
+            }
+            for (List<FurnitureItem> changed : Arrays.asList(itemsOut, itemsIn)) {
+                for (FurnitureItem item : changed) {
+                    version.queryFurniture(item.x, item.y, item.size.width, item.size.height, other -> {
+                        if (other.intersects(item)) {
+                            items.add(other);
+                        }
+                        return true;
+                    });
+                }
+            }
+            roomList.addAll(rooms);
+            itemList.addAll(items);
+        }
+
+        // Adds to out the objects of from that are not in of, which are a cell's
+        // objects before and after and so a handful at most
+        private static <T> void missing(T[] from, T[] of, List<T> out) {
+            for (T object : from) {
+                boolean found = false;
+                for (int i = 0; i < of.length && !found; i++) {
+                    found = of[i] == object;
+                }
+                if (!found) {
+                    out.add(object);
+                }
+            }
+        }
+
+        private static <T> void record(IdentityHashMap<T, List<Violation>> violations, T object, List<Violation> found) {
+            if (found.isEmpty()) {
+                violations.remove(object);
+            } else {
+                violations.put(object, found);
+            }
+        }
+
+        // What is wrong with one room and its doors and windows. An overlapping pair
+        // of rooms is reported by only one of them.
+        static List<Violation> checkRoom(PlanView plan, Room room) {
+            ArrayList<Violation> violations = new ArrayList<>(0);
+            int tolerance = WallModel.WALL_TOLERANCE;
+            int[] shared = new int[1];
+            plan.queryRooms(room.x - tolerance, room.y - tolerance, room.width + 2 * tolerance, room.height + 2 * tolerance,
+                            other -> {
+                                if (other == room) {
+                                    return true;
+                                }
+                                shared[0] |= sharedSides(room, other);
+                                if (other.intersects(room) && reportsOverlap(room, other)) {
+                                    violations.add(new Violation(ROOM_OVERLAP, room, room, other,
+                                            describe(room) + " overlaps " + describe(other)));
+                                }
+                                return true;
+                            });
+            for (int i = 0; i < room.doors.size(); i++) {
+                Door door = room.doors.get(i);
+                int px = room.x + door.offsetX, py = room.y + door.offsetY;
+                int sides = sidesAt(room, px, py, DOOR_TOLERANCE);
+                if (sides == 0) {
+                    violations.add(new Violation(DOOR_OFF_WALL, room, door, null,
+                            "A door of " + describe(room) + " is not on a wall"));
+                } else if ((room.type.equals("Bedroom") || room.type.equals("Bathroom")) && (sides & ~shared[0]) != 0) {
+                    violations.add(new Violation(DOOR_FACING_OUTSIDE, room, door, null,
+                            "A door of " + describe(room) + " faces outside"));
+                }
+                int length = door.isVertical ? room.height : room.width;
+                for (int j = 0; j < i; j++) {
+                    Door other = room.doors.get(j);
+                    if (openingsOverlap(px, py, room.x + other.offsetX, room.y + other.offsetY, length, door.isVertical)) {
+                        violations.add(new Violation(DOOR_OVERLAP, room, door, other,
+                                "Two doors of " + describe(room) + " overlap"));
+                    }
+                }
+                // A door and a window clash if either would have been refused after the other
+                for (Window window : room.windows) {
+                    int wx = room.x + window.offsetX, wy = room.y + window.offsetY;
+                    if (openingsOverlap(px, py, wx, wy, WINDOW_LENGTH, window.isVertical)
+                        || openingsOverlap(wx, wy, px, py, length, door.isVertical)) {
+                        violations.add(new Violation(DOOR_OVERLAP, room, door, window,
+                                "A door and a window of " + describe(room) + " overlap"));
+                    }
+                }
+            }
+            for (int i = 0; i < room.windows.size(); i++) {
+                Window window = room.windows.get(i);
+                int px = room.x + window.offsetX, py = room.y + window.offsetY;
+                int sides = sidesAt(room, px, py, WINDOW_TOLERANCE);
+                if (sides == 0) {
+                    violations.add(new Violation(WINDOW_OFF_WALL, room, window, null,
+                            "A window of " + describe(room) + " is not on a wall"));
+                } else if ((sides & shared[0]) != 0) {
+                    violations.add(new Violation(WINDOW_BETWEEN_ROOMS, room, window, null,
+                            "A window of " + describe(room) + " is between rooms"));
+                }
+                for (int j = 0; j < i; j++) {
+                    Window other = room.windows.get(j);
+                    if (openingsOverlap(px, py, room.x + other.offsetX, room.y + other.offsetY, WINDOW_LENGTH, window.isVertical)) {
+                        violations.add(new Violation(WINDOW_OVERLAP, room, window, other,
+                                "Two windows of " + describe(room) + " overlap"));
+                    }
+                }
+            }
+            return violations;
+        }
+
+        // What is wrong with one furniture item. An overlapping pair is reported by only one of them.
+        static List<Violation> checkItem(PlanView plan, FurnitureItem item) {
+            ArrayList<Violation> violations = new ArrayList<>(0);
+            Room[] owner = new Room[1];
+            plan.queryRooms(item.x, item.y, 0, 0, room -> {
+                if (room.contains(item.x, item.y)) {
+                    owner[0] = room;
+                    return false;
+                }
+                return true;
+            });
+            if (owner[0] == null) {
+                violations.add(new Violation(FURNITURE_OUTSIDE_ROOMS, null, item, null,
+                        "A " + item.type + " at " + item.x + "," + item.y + " is outside every room"));
+            }
+            plan.queryFurniture(item.x, item.y, item.size.width, item.size.height, other -> {
+                if (other != item && other.intersects(item) && reportsOverlap(item, other)) {
+                    violations.add(new Violation(FURNITURE_OVERLAP, owner[0], item, other,
+                            "A " + item.type + " at " + item.x + "," + item.y + " overlaps a " + other.type));
+                }
+                return true;
+            });
+            return violations;
+        }
+
+        // Whether a reports its overlap with b: the one further up, then further left,
+        // then the smaller, so the pair is reported once whichever is checked
+        private static boolean reportsOverlap(Room a, Room b) {
+            return a.y != b.y ? a.y < b.y : a.x != b.x ? a.x < b.x : a.width != b.width ? a.width < b.width
+                 : a.height != b.height ? a.height < b.height : System.identityHashCode(a) <= System.identityHashCode(b);
+        }
+
+        private static boolean reportsOverlap(FurnitureItem a, FurnitureItem b) {
+            return a.y != b.y ? a.y < b.y : a.x != b.x ? a.x < b.x : a.size.width != b.size.width ? a.size.width < b.size.width
+                 : a.size.height != b.size.height ? a.size.height < b.size.height
+                 : System.identityHashCode(a) <= System.identityHashCode(b);
+        }
+
+        static String describe(Room room) {
+            return "the " + room.type + " at " + room.x + "," + room.y;
+        }
+
+        // The sides of room that WallModel would link with a side of other
+        static int sharedSides(Room room, Room other) {
+            int tolerance = WallModel.WALL_TOLERANCE, sides = 0;
+            if (room.y < other.y + other.height && room.y + room.height > other.y) {
+                sides |= Math.abs(room.x + room.width - other.x) <= tolerance ? 1 << WallModel.RIGHT : 0;
+                sides |= Math.abs(room.x - other.x - other.width) <= tolerance ? 1 << WallModel.LEFT : 0;
+            }
+            if (room.x < other.x + other.width && room.x + room.width > other.x) {
+                sides |= Math.abs(room.y + room.height - other.y) <= tolerance ? 1 << WallModel.BOTTOM : 0;
+                sides |= Math.abs(room.y - other.y - other.height) <= tolerance ? 1 << WallModel.TOP : 0;
+            }
+            return sides;
+        }
+
+        // The sides of room within tolerance of the point
+        static int sidesAt(Room room, int px, int py, int tolerance) {
+            return (Math.abs(py - room.y) <= tolerance ? 1 << WallModel.TOP : 0)
+                 | (Math.abs(py - (room.y + room.height)) <= tolerance ? 1 << WallModel.BOTTOM : 0)
+                 | (Math.abs(px - room.x) <= tolerance ? 1 << WallModel.LEFT : 0)
+                 | (Math.abs(px - (room.x + room.width)) <= tolerance ? 1 << WallModel.RIGHT : 0);
+        }
+
+        // Same test as DrawingCanvas.isOverlap
+        static boolean openingsOverlap(int x1, int y1, int x2, int y2, int length, boolean isVertical) {
+            if (isVertical) {
+                return Math.abs(x1 - x2) <= 5 && ((y1 >= y2 && y1 <= y2 + length) || (y2 >= y1 && y2 <= y1 + length));
+            } else {
+                return Math.abs(y1 - y2) <= 5 && ((x1 >= x2 && x1 <= x2 + length) || (x2 >= x1 && x2 <= x1 + length));
+            }
+        }
+    }
+
+    // Imports rooms, doors, windows and furniture made by other programs, from CSV
+    // or JSON, into a plan. The source is parsed a record at a time and never held
+    // whole. Rooms are checked in batches of BATCH_SIZE as they are read: against
+    // the plan's published version, in parallel since a version is safe to share,
+    // then against a spatial index of the rooms imported so far. Doors, windows and
+    // furniture are checked once every room is in, since the rules for them depend
+    // on which rooms are next to which; doors and windows in parallel, a room at a
+    // time. Nothing is refused with a dialog: each problem is kept as a Violation
+    // with the line it came from, and apply adds whatever passed as one history step.
+    //
+    // CSV has one record per line, the first field naming its kind:
+    //   room,<x>,<y>,<width>,<height>,<type>
+    //   door,<offsetX>,<offsetY>,<vertical>[,<length>]
+    //   window,<offsetX>,<offsetY>,<vertical>
+    //   furniture,<x>,<y>,<type>[,<rotation>]
+    // Doors and windows belong to the room above them and are placed from its
+    // corner, as the planner stores them. Blank lines and lines starting with # are
+    // skipped, and fields may be quoted. JSON is an object with "rooms" and
+    // "furniture" arrays of objects with the same fields, each room's doors and
+    // windows in its own "doors" and "windows" arrays.
+    static class PlanImport {
+        public static final int BATCH_SIZE = 4096;
+        // Rooms a task checks at a time
+        static final int CHUNK_SIZE = 256;
+
+        // Something in the source that was left out, and why
+        static class Violation {
+            public final int line;
+            public final String message;
+
+            Violation(int line, String message) {
+                this.line = line;
+                this.message = message;
+            }
+
+            // Problems found once the import was applied have no line
+            @Override
+            public String toString() {
+                return line > 0 ? "line " + line + ": " + message : message;
+            }
+        }
+
+        // A room as read, with its doors and windows (Door or Window objects, in the
+        // order they came) held back until every room is in
+        static class PendingRoom {
+            final Room room;
+            final int line;
+            final ArrayList<Object> openings = new ArrayList<>();
+            final ArrayList<Integer> openingLines = new ArrayList<>();
+            // Sides shared with other rooms, found once every room is in
+            int sharedSides;
+
+            PendingRoom(Room room, int line) {
+                this.room = room;
+                this.line = line;
+            }
+        }
+
+        static class PendingItem {
+            final FurnitureItem item;
+            final int line;
+
+            PendingItem(FurnitureItem item, int line) {
+                this.item = item;
+                this.line = line;
+            }
+        }
+
+        // What passed, in source order, and what did not
+        public final ArrayList<Room> rooms = new ArrayList<>();
+        public final ArrayList<FurnitureItem> items = new ArrayList<>();
+        public final ArrayList<Violation> violations = new ArrayList<>();
+
+        public final PlanView existing;
+        public final ForkJoinPool pool;
+        private final ArrayList<PendingRoom> batch = new ArrayList<>();
+        private final ArrayList<PendingRoom> accepted = new ArrayList<>();
+        private final ArrayList<PendingItem> pendingItems = new ArrayList<>();
+        private final SpatialGrid<Room> importedRooms = new SpatialGrid<>();
+        private PendingRoom lastRoom;
+        private boolean lastRoomRejected;
+        // How far through the source the reader is, for progress
+        private PlanFile.Progress progress;
+        private long total;
+        private LongSupplier position = () -> 0;
+
+        public PlanImport(PlanView existing) {
+            this(existing, ForkJoinPool.commonPool());
+        }
+
+        public PlanImport(PlanView existing, ForkJoinPool pool) {
+            this.existing = existing;
+            this.pool = pool;
+        }
+
+        // Reads a .json file, or CSV otherwise, and checks it against existing
+        public static PlanImport read(File file, PlanView existing, PlanFile.Progress progress) throws IOException {
+            PlanImport result = new PlanImport(existing);
+            long[] count = new long[1];
+            try (InputStream in = new FilterInputStream(new FileInputStream(file)) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    count[0] += b >= 0 ? 1 : 0;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int n = super.read(buffer, offset, length);
+                    count[0] += Math.max(n, 0);
+                    return n;
+                }
+            }) {
+                result.progress = progress;
+                result.total = file.length();
+                result.position = () -> count[0];
+                Reader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                if (file.getName().toLowerCase(Locale.ROOT).endsWith(".json")) {
+                    result.readJson(reader);
+                } else {
+                    result.readCsv(reader);
+                }
+            }
+            result.finish();
+            return result;
+        }
+
+        public void readCsv(Reader source) throws IOException {
+            BufferedReader in = source instanceof BufferedReader ? (BufferedReader) source : new BufferedReader(source);
+            int line = 0;
+            for (String text = in.readLine(); text != null; text = in.readLine()) {
+                line++;
+                String trimmed = text.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                List<String> fields = csvFields(trimmed);
+                try {
+                    switch (fields.get(0).toLowerCase(Locale.ROOT)) {
+                        case "room":
+                            arity(fields, 6, 6);
+                            room(line, integer(fields.get(1)), integer(fields.get(2)), integer(fields.get(3)),
+                                 integer(fields.get(4)), fields.get(5));
+                            break;
+                        case "door":
+                            arity(fields, 4, 5);
+                            door(line, integer(fields.get(1)), integer(fields.get(2)), bool(fields.get(3)),
+                                 fields.size() > 4 ? integer(fields.get(4)) : -1);
+                            break;
+                        case "window":
+                            arity(fields, 4, 4);
+                            window(line, integer(fields.get(1)), integer(fields.get(2)), bool(fields.get(3)));
+                            break;
+                        case "furniture":
+                            arity(fields, 4, 5);
+                            furniture(line, integer(fields.get(1)), integer(fields.get(2)), fields.get(3),
+                                      fields.size() > 4 ? integer(fields.get(4)) : 0);
+                            break;
+                        default:
+                            violations.add(new Violation(line, "Unknown record \"" + fields.get(0) + "\""));
+                    }
+                } catch (IllegalArgumentException e) {
+                    violations.add(new Violation(line, e.getMessage()));
+                    lastRoomRejected |= fields.get(0).equalsIgnoreCase("room");
+                }
+            }
+            endBatch();
+        }
+
+        // Splits a line at commas outside double quotes; "" inside quotes is a quote
+        static List<String> csvFields(String line) {
+            ArrayList<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        field.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString().trim());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            fields.add(field.toString().trim());
+            return fields;
+        }
+
+        private static void arity(List<String> fields, int min, int max) {
+            if (fields.size() < min || fields.size() > max) {
+                throw new IllegalArgumentException("A " + fields.get(0) + " record needs "
+                        + (min == max ? min : min + " to " + max) + " fields, not " + fields.size());
+            }
+        }
+
+        private static int integer(String field) {
+            try {
+                return Integer.parseInt(field);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("\"" + field + "\" is not a whole number");
+            }
+        }
+
+        private static boolean bool(String field) {
+            switch (field.toLowerCase(Locale.ROOT)) {
+                case "true": case "1": case "vertical": return true;
+                case "false": case "0": case "horizontal": return false;
+                default: throw new IllegalArgumentException("\"" + field + "\" is not true or false");
+            }
+        }
+
+        public void readJson(Reader source) throws IOException {
+            JsonSource in = new JsonSource(source);
+            in.expect('{');
+            for (boolean first = true; in.more('}', first); first = false) {
+                String name = in.string();
+                in.expect(':');
+                if (name.equals("rooms")) {
+                    in.expect('[');
+                    for (boolean firstRoom = true; in.more(']', firstRoom); firstRoom = false) {
+                        readJsonRoom(in);
+                    }
+                } else if (name.equals("furniture")) {
+                    in.expect('[');
+                    for (boolean firstItem = true; in.more(']', firstItem); firstItem = false) {
+                        int line = in.line;
+                        Map<String, Object> fields = in.flatObject();
+                        try {
+                            furniture(line, jsonInt(fields, "x", null), jsonInt(fields, "y", null),
+                                      jsonString(fields, "type"), jsonInt(fields, "rotation", 0));
+                        } catch (IllegalArgumentException e) {
+                            violations.add(new Violation(line, e.getMessage()));
+                        }
+                    }
+                } else {
+                    in.skipValue();
+                }
+            }
+            endBatch();
+        }
+
+        // A room's own fields are read into a map, but its doors and windows are
+        // passed on as they come, after the room
+        private void readJsonRoom(JsonSource in) throws IOException {
+            int line = in.line;
+            in.expect('{');
+            HashMap<String, Object> fields = new HashMap<>();
+            ArrayList<Map<String, Object>> doors = new ArrayList<>(), windows = new ArrayList<>();
+            ArrayList<Integer> doorLines = new ArrayList<>(), windowLines = new ArrayList<>();
+            for (boolean first = true; in.more('}', first); first = false) {
+                String name = in.string();
+                in.expect(':');
+                if (name.equals("doors") || name.equals("windows")) {
+                    boolean isDoors = name.equals("doors");
+                    in.expect('[');
+                    for (boolean firstOpening = true; in.more(']', firstOpening); firstOpening = false) {
+                        (isDoors ? doorLines : windowLines).add(in.line);
+                        (isDoors ? doors : windows).add(in.flatObject());
+                    }
+                } else {
+                    fields.put(name, in.value());
+                }
+            }
+            try {
+                room(line, jsonInt(fields, "x", null), jsonInt(fields, "y", null), jsonInt(fields, "width", null),
+                     jsonInt(fields, "height", null), jsonString(fields, "type"));
+            } catch (IllegalArgumentException e) {
+                violations.add(new Violation(line, e.getMessage()));
+                lastRoomRejected = true;
+            }
+            for (int i = 0; i < doors.size(); i++) {
+                try {
+                    Map<String, Object> door = doors.get(i);
+                    door(doorLines.get(i), jsonInt(door, "x", null), jsonInt(door, "y", null),
+                         jsonBool(door, "vertical"), jsonInt(door, "length", -1));
+                } catch (IllegalArgumentException e) {
+                    violations.add(new Violation(doorLines.get(i), e.getMessage()));
+                }
+            }
+            for (int i = 0; i < windows.size(); i++) {
+                try {
+                    Map<String, Object> window = windows.get(i);
+                    window(windowLines.get(i), jsonInt(window, "x", null), jsonInt(window, "y", null), jsonBool(window, "vertical"));
+                } catch (IllegalArgumentException e) {
+                    violations.add(new Violation(windowLines.get(i), e.getMessage()));
+                }
+            }
+        }
+
+        private static int jsonInt(Map<String, Object> fields, String name, Integer missing) {
+            Object value = fields.get(name);
+            if (value == null && missing != null) {
+                return missing;
+            }
+            if (!(value instanceof Double) || (Double) value != Math.rint((Double) value)
+                || Math.abs((Double) value) > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("\"" + name + "\" must be a whole number");
+            }
+            return (int) (double) (Double) value;
+        }
+
+        private static String jsonString(Map<String, Object> fields, String name) {
+            Object value = fields.get(name);
+            if (!(value instanceof String)) {
+                throw new IllegalArgumentException("\"" + name + "\" must be a string");
+            }
+            return (String) value;
+        }
+
+        private static boolean jsonBool(Map<String, Object> fields, String name) {
+            Object value = fields.get(name);
+            if (value == null) {
+                return false;
+            }
+            if (!(value instanceof Boolean)) {
+                throw new IllegalArgumentException("\"" + name + "\" must be true or false");
+            }
+            return (Boolean) value;
+        }
+
+        // A pull parser for as much JSON as imports need, read a token at a time:
+        // objects, arrays, strings, numbers (as doubles), true, false and null
+        static class JsonSource {
+            private final Reader in;
+            private int next = -2;
+            int line = 1;
+
+            JsonSource(Reader in) {
+                this.in = in;
+            }
+
+            private int read() throws IOException {
+                int c = next != -2 ? next : in.read();
+                next = -2;
+                if (c == '\n') {
+                    line++;
+                }
+                return c;
+            }
+
+            // The next character that is not white space, left unread
+            int peek() throws IOException {
+                while (true) {
+                    if (next == -2) {
+                        next = in.read();
+                    }
+                    if (next != ' ' && next != '\t' && next != '\r' && next != '\n') {
+                        return next;
+                    }
+                    read();
+                }
+            }
+
+            void expect(char c) throws IOException {
+                if (peek() != c) {
+                    throw error("Expected '" + c + "'");
+                }
+                read();
+            }
+
+            // Whether an array or object has another element, reading the comma before
+            // it, or its closing bracket if not
+            boolean more(char close, boolean first) throws IOException {
+                if (peek() == close) {
+                    read();
+                    return false;
+                }
+                if (!first) {
+                    expect(',');
+                }
+                return true;
+            }
+
+            String string() throws IOException {
+                expect('"');
+                StringBuilder text = new StringBuilder();
+                for (int c = read(); c != '"'; c = read()) {
+                    if (c < 0) {
+                        throw error("Unterminated string");
+                    }
+                    if (c == '\\') {
+                        c = read();
+                        switch (c) {
+                            case 'n': c = '\n'; break;
+                            case 't': c = '\t'; break;
+                            case 'r': c = '\r'; break;
+                            case 'b': c = '\b'; break;
+                            case 'f': c = '\f'; break;
+                            case 'u': {
+                                char[] hex = new char[4];
+                                for (int i = 0; i < 4; i++) {
+                                    hex[i] = (char) read();
+                                }
+                                try {
+                                    c = Integer.parseInt(new String(hex), 16);
+                                } catch (NumberFormatException e) {
+                                    throw error("Bad \\u escape");
+                                }
+                                break;
+                            }
+                            default:
+                                // \" \\ \/ stand for themselves
+                        }
+                    }
+                    text.append((char) c);
+                }
+                return text.toString();
+            }
+
+            // A string, number, true, false or null; objects and arrays are skipped as null
+            Object value() throws IOException {
+                int c = peek();
+                if (c == '"') {
+                    return string();
+                }
+                if (c == '{' || c == '[') {
+                    skipValue();
+                    return null;
+                }
+                StringBuilder word = new StringBuilder();
+                while (c == '-' || c == '+' || c == '.' || Character.isLetterOrDigit(c)) {
+                    word.append((char) read());
+                    c = peek();
+                }
+                String text = word.toString();
+                switch (text) {
+                    case "true": return Boolean.TRUE;
+                    case "false": return Boolean.FALSE;
+                    case "null": return null;
+                    default:
+                        try {
+                            return Double.parseDouble(text);
+                        } catch (NumberFormatException e) {
+                            throw error(text.isEmpty() ? "Expected a value" : "Bad value " + text);
+                        }
+                }
+            }
+
+            // An object whose fields are all plain values
+            Map<String, Object> flatObject() throws IOException {
+                HashMap<String, Object> fields = new HashMap<>();
+                expect('{');
+                for (boolean first = true; more('}', first); first = false) {
+                    String name = string();
+                    expect(':');
+                    fields.put(name, value());
+                }
+                return fields;
+            }
+
+            void skipValue() throws IOException {
+                int c = peek();
+                if (c == '{' || c == '[') {
+                    char close = c == '{' ? '}' : ']';
+                    read();
+                    for (boolean first = true; more(close, first); first = false) {
+                        if (close == '}') {
+                            string();
+                            expect(':');
+                        }
+                        skipValue();
+                    }
+                } else {
+                    value();
+                }
+            }
+
+            IOException error(String message) {
+                return new IOException(message + " on line " + line + " of the JSON");
+            }
+        }
+
+        // Called for each record as it is read
+
+        private void room(int line, int x, int y, int width, int height, String type) throws IOException {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("A room must be wider and taller than 0");
+            }
+            if (type.isEmpty()) {
+                throw new IllegalArgumentException("A room needs a type");
+            }
+            lastRoom = new PendingRoom(new Room(x, y, width, height, type, roomColor(type)), line);
+            lastRoomRejected = false;
+            batch.add(lastRoom);
+            if (batch.size() >= BATCH_SIZE) {
+                endBatch();
+            }
+        }
+
+        private void door(int line, int offsetX, int offsetY, boolean isVertical, int length) {
+            PendingRoom owner = ownerOfOpening(line, "door");
+            if (owner != null) {
+                Room room = owner.room;
+                owner.openings.add(new Door(offsetX, offsetY, isVertical, length >= 0 ? length : isVertical ? room.height : room.width));
+                owner.openingLines.add(line);
+            }
+        }
+
+        private void window(int line, int offsetX, int offsetY, boolean isVertical) {
+            PendingRoom owner = ownerOfOpening(line, "window");
+            if (owner != null) {
+                owner.openings.add(new Window(offsetX, offsetY, isVertical));
+                owner.openingLines.add(line);
+            }
+        }
+
+        // The room an opening belongs to, or null if it has none or that room was left out
+        private PendingRoom ownerOfOpening(int line, String kind) {
+            if (lastRoom == null && !lastRoomRejected) {
+                throw new IllegalArgumentException("A " + kind + " must follow the room it belongs to");
+            }
+            return lastRoomRejected ? null : lastRoom;
+        }
+
+        private void furniture(int line, int x, int y, String type, int rotation) {
+            boolean isFixture = FIXTURE_DIMENSIONS.containsKey(type);
+            Dimension size = isFixture ? FIXTURE_DIMENSIONS.get(type) : FURNITURE_DIMENSIONS.get(type);
+            if (size == null) {
+                throw new IllegalArgumentException("Unknown furniture \"" + type + "\"");
+            }
+            if (rotation % 90 != 0) {
+                throw new IllegalArgumentException("Furniture can only be turned by a multiple of 90 degrees");
+            }
+            rotation = (rotation % 360 + 360) % 360;
+            boolean turned = rotation == 90 || rotation == 270;
+            pendingItems.add(new PendingItem(new FurnitureItem(x, y, type, isFixture, rotation,
+                    turned ? size.height : size.width, turned ? size.width : size.height), line));
+        }
+
+        // Checks the rooms read since the last batch: each against the plan, all at
+        // once, then in order against the rooms imported before it
+        private void endBatch() throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            boolean[] clash = new boolean[batch.size()];
+            ArrayList<Callable<Void>> chunks = new ArrayList<>();
+            for (int start = 0; start < batch.size(); start += CHUNK_SIZE) {
+                int from = start, to = Math.min(batch.size(), start + CHUNK_SIZE);
+                chunks.add(() -> {
+                    for (int i = from; i < to; i++) {
+                        Room room = batch.get(i).room;
+                        clash[i] = !existing.queryRooms(room.x, room.y, room.width, room.height, other -> !other.intersects(room));
+                    }
+                    return null;
+                });
+            }
+            invokeAll(chunks);
+            for (int i = 0; i < batch.size(); i++) {
+                PendingRoom pending = batch.get(i);
+                Room room = pending.room;
+                if (clash[i]) {
+                    violations.add(new Violation(pending.line, "Room overlaps a room already in the plan"));
+                } else if (!importedRooms.query(room.x, room.y, room.width, room.height, other -> !other.intersects(room))) {
+                    violations.add(new Violation(pending.line, "Room overlaps a room imported before it"));
+                } else {
+                    importedRooms.update(room, room.x, room.y, room.width, room.height);
+                    accepted.add(pending);
+                    continue;
+                }
+                if (pending == lastRoom) {
+                    lastRoomRejected = true;
+                }
+                // Its doors and windows go with it, unremarked
+                pending.openings.clear();
+            }
+            batch.clear();
+            PlanFile.report(progress, position.getAsLong(), total);
+        }
+
+        private void invokeAll(List<Callable<Void>> tasks) throws IOException {
+            try {
+                for (Future<Void> done : pool.invokeAll(tasks)) {
+                    done.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Import check failed", e.getCause());
+            }
+        }
+
+        // Checks the doors, windows and furniture, once every room is in
+        public void finish() throws IOException {
+            endBatch();
+            // Openings of rooms dropped in the last batch were cleared with them
+            RoomStore store = RoomStore.of(rooms(accepted));
+            int[] importedShared = store.sharedSides();
+            IdentityHashMap<Room, Integer> rows = new IdentityHashMap<>();
+            for (int row = 0; row < store.size; row++) {
+                rows.put(store.room(row), row);
+            }
+            ArrayList<ArrayList<Violation>> found = new ArrayList<>();
+            ArrayList<Callable<Void>> chunks = new ArrayList<>();
+            for (int start = 0; start < accepted.size(); start += CHUNK_SIZE) {
+                int from = start, to = Math.min(accepted.size(), start + CHUNK_SIZE);
+                ArrayList<Violation> chunkViolations = new ArrayList<>();
+                found.add(chunkViolations);
+                chunks.add(() -> {
+                    for (int i = from; i < to; i++) {
+                        PendingRoom pending = accepted.get(i);
+                        pending.sharedSides = importedShared[rows.get(pending.room)] | sharedWithExisting(pending.room);
+                        checkOpenings(pending, chunkViolations);
+                    }
+                    return null;
+                });
+            }
+            invokeAll(chunks);
+            for (ArrayList<Violation> chunkViolations : found) {
+                violations.addAll(chunkViolations);
+            }
+
+            SpatialGrid<FurnitureItem> importedItems = new SpatialGrid<>();
+            for (PendingItem pending : pendingItems) {
+                FurnitureItem item = pending.item;
+                if (existing.queryRooms(item.x, item.y, 0, 0, room -> !room.contains(item.x, item.y))
+                    && importedRooms.query(item.x, item.y, 0, 0, room -> !room.contains(item.x, item.y))) {
+                    violations.add(new Violation(pending.line, "Furniture must stand inside a room"));
+                } else if (!existing.queryFurniture(item.x, item.y, item.size.width, item.size.height,
+                                                     other -> !other.intersects(item))
+                           || !importedItems.query(item.x, item.y, item.size.width, item.size.height,
+                                                   other -> !other.intersects(item))) {
+                    violations.add(new Violation(pending.line, "Furniture overlaps other furniture"));
+                } else {
+                    importedItems.update(item, item.x, item.y, item.size.width, item.size.height);
+                    items.add(item);
+                }
+            }
+            pendingItems.clear();
+            for (PendingRoom pending : accepted) {
+                rooms.add(pending.room);
+            }
+            violations.sort(Comparator.comparingInt(violation -> violation.line));
+        }
+
+        private static List<Room> rooms(List<PendingRoom> pending) {
+            ArrayList<Room> rooms = new ArrayList<>(pending.size());
+            for (PendingRoom p : pending) {
+                rooms.add(p.room);
+            }
+            return rooms;
+        }
+
+        private int sharedWithExisting(Room room) {
+            int tolerance = WallModel.WALL_TOLERANCE;
+            int[] sides = new int[1];
+            existing.queryRooms(room.x - tolerance, room.y - tolerance, room.width + 2 * tolerance, room.height + 2 * tolerance,
+                                other -> {
+                                    sides[0] |= PlanValidator.sharedSides(room, other);
+                                    return true;
+                                });
+            return sides[0];
+        }
+
+        // The canvas's rules for placing doors and windows, applied to each opening in
+        // turn as if it were clicked into place after the ones before it
+        private static void checkOpenings(PendingRoom pending, List<Violation> violations) {
+            Room room = pending.room;
+            for (int i = 0; i < pending.openings.size(); i++) {
+                Object opening = pending.openings.get(i);
+                int line = pending.openingLines.get(i);
+                String problem;
+                if (opening instanceof Door) {
+                    Door door = (Door) opening;
+                    problem = doorProblem(room, room.x + door.offsetX, room.y + door.offsetY, door.isVertical, pending.sharedSides);
+                    if (problem == null) {
+                        room.doors.add(door);
+                    }
+                } else {
+                    Window window = (Window) opening;
+                    problem = windowProblem(room, room.x + window.offsetX, room.y + window.offsetY, window.isVertical, pending.sharedSides);
+                    if (problem == null) {
+                        room.windows.add(window);
+                    }
+                }
+                if (problem != null) {
+                    violations.add(new Violation(line, problem));
+                }
+            }
+            pending.openings.clear();
+            pending.openingLines.clear();
+        }
+
+        // Why a door can't go at the point, or null if it can: it must be on a wall,
+        // on an inside wall for a bedroom or bathroom, and clear of the room's others
+        static String doorProblem(Room room, int px, int py, boolean isVertical, int sharedSides) {
+            int sides = PlanValidator.sidesAt(room, px, py, PlanValidator.DOOR_TOLERANCE);
+            if (sides == 0) {
+                return "Door is not on a wall of its room";
+            }
+            if ((room.type.equals("Bedroom") || room.type.equals("Bathroom")) && (sides & ~sharedSides) != 0) {
+                return room.type + " cannot have doors facing outside";
+            }
+            int length = isVertical ? room.height : room.width;
+            for (Door door : room.doors) {
+                if (PlanValidator.openingsOverlap(px, py, room.x + door.offsetX, room.y + door.offsetY, length, isVertical)) {
+                    return "Door overlaps another door";
+                }
+            }
+            for (Window window : room.windows) {
+                if (PlanValidator.openingsOverlap(px, py, room.x + window.offsetX, room.y + window.offsetY,
+                                                  PlanValidator.WINDOW_LENGTH, window.isVertical)) {
+                    return "Door overlaps a window";
+                }
+            }
+            return null;
+        }
+
+        // Why a window can't go at the point, or null if it can: it must be on an
+        // outside wall, clear of the room's doors and other windows
+        static String windowProblem(Room room, int px, int py, boolean isVertical, int sharedSides) {
+            int sides = PlanValidator.sidesAt(room, px, py, PlanValidator.WINDOW_TOLERANCE);
+            if (sides == 0) {
+                return "Window is not on a wall of its room";
+            }
+            if ((sides & sharedSides) != 0) {
+                return "Windows cannot be placed between rooms";
+            }
+            for (Window window : room.windows) {
+                if (PlanValidator.openingsOverlap(px, py, room.x + window.offsetX, room.y + window.offsetY,
+                                                  PlanValidator.WINDOW_LENGTH, isVertical)) {
+                    return "Window overlaps another window";
+                }
+            }
+            for (Door door : room.doors) {
+                if (PlanValidator.openingsOverlap(px, py, room.x + door.offsetX, room.y + door.offsetY,
+                                                  door.isVertical ? room.height : room.width, door.isVertical)) {
+                    return "Window overlaps a door";
+                }
+            }
+            return null;
+        }
+
+        // Adds what passed to plan as one history step, on the EDT. If the plan was
+        // edited or paged since the version the checks ran against, rooms and
+        // furniture are checked once more against the plan as it is now, and any that
+        // were edited into their way meanwhile are left out, with the furniture
+        // standing in them. Versions are matched by number, since the whole version
+        // of a paged plan is made on top of the published one and keeps its number.
+        // Returns the number of objects added.
+        public int apply(FloorPlan plan) {
+            if (existing instanceof PlanVersion && plan.publish().number == ((PlanVersion) existing).number) {
+                return add(plan, rooms, items);
+            }
+            ArrayList<Room> addRooms = new ArrayList<>(rooms.size());
+            Set<Room> dropped = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Room room : rooms) {
+                if (plan.checkOverlap(room)) {
+                    dropped.add(room);
+                    violations.add(new Violation(0, "A " + room.type + " at " + room.x + "," + room.y
+                                                 + " overlaps a room added while importing"));
+                } else {
+                    addRooms.add(room);
+                }
+            }
+            ArrayList<FurnitureItem> addItems = new ArrayList<>(items.size());
+            for (FurnitureItem item : items) {
+                // An item whose room is on a page not loaded stands where it was checked,
+                // since nothing on such a page can have been edited
+                Room standsIn = findImportedRoom(item);
+                boolean roomGone = standsIn == null && plan.roomAt(item.x, item.y) == null
+                                   && (plan.pagedPlan == null || !plan.pagedPlan.unloadedAt(item.x, item.y));
+                if ((standsIn != null && dropped.contains(standsIn)) || roomGone || plan.furnitureOverlaps(item)) {
+                    violations.add(new Violation(0, "A " + item.type + " at " + item.x + "," + item.y
+                                                 + " no longer fits after edits made while importing"));
+                } else {
+                    addItems.add(item);
+                }
+            }
+            return add(plan, addRooms, addItems);
+        }
+
+        private static int add(FloorPlan plan, List<Room> addRooms, List<FurnitureItem> addItems) {
+            if (addRooms.isEmpty() && addItems.isEmpty()) {
+                return 0;
+            }
+            int roomIndex = plan.rooms.size(), itemIndex = plan.furnitureItems.size();
+            plan.addAll(addRooms, addItems);
+            plan.history.record(new EditLog.Imported(new ArrayList<>(addRooms), new ArrayList<>(addItems), roomIndex, itemIndex));
+            return addRooms.size() + addItems.size();
+        }
+
+        private Room findImportedRoom(FurnitureItem item) {
+            Room[] found = new Room[1];
+            importedRooms.query(item.x, item.y, 0, 0, room -> {
+                if (room.contains(item.x, item.y)) {
+                    found[0] = room;
+                    return false;
+                }
+                return true;
+            });
+            return found[0];
+        }
+    }
+
+    // A version 2 or later plan file opened without reading its contents. Opening reads only
+    // the header, names and page directory; pages are decoded from a memory-mapped
+    // region when they come into view and handed to the Residency, and dropped again,
+    // least recently used first, once more than MAX_RESIDENT_PAGES are held. Pages
+    // with edited objects are kept until the plan is saved.
+    static class PagedPlan implements Closeable {
+        public static final int MAX_RESIDENT_PAGES = 64;
+
+        interface Residency {
+            void pageLoaded(List<Room> rooms, List<FurnitureItem> items);
+            void pageEvicted(List<Room> rooms, List<FurnitureItem> items);
+        }
+
+        static class Resident {
+            final ArrayList<Room> rooms = new ArrayList<>();
+            final ArrayList<FurnitureItem> items = new ArrayList<>();
+            boolean dirty;
+        }
+
+        private File file;
+        private FileChannel channel;
+        private PlanFile.Directory directory;
+        private final SpatialGrid<PlanFile.Page> pageIndex = new SpatialGrid<>(PlanFile.PAGE_SIZE);
+        private final LinkedHashMap<PlanFile.Page, Resident> resident = new LinkedHashMap<>(16, 0.75f, true);
+        private final IdentityHashMap<Room, PlanFile.Page> roomPages = new IdentityHashMap<>();
+        private final IdentityHashMap<FurnitureItem, PlanFile.Page> itemPages = new IdentityHashMap<>();
+        private final Residency residency;
+        // Counts changes to resident pages and their objects, so a save written in the
+        // background can tell whether the plan still matches it
+        private int modCount;
+
+        private PagedPlan(File file, FileChannel channel, PlanFile.Directory directory, Residency residency) {
+            this.file = file;
+            this.channel = channel;
+            this.directory = directory;
+            this.residency = residency;
+            indexPages();
+        }
+
+        // Returns null for version 1 files, which have no page directory
+        public static PagedPlan open(File file, Residency residency) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(PlanFile.BUFFER_SIZE);
+                buffer.flip();
+                int version = PlanFile.readVersion(file, channel, buffer);
+                if (version < 2) {
+                    channel.close();
+                    return null;
+                }
+                return new PagedPlan(file, channel, PlanFile.readDirectory(channel, buffer, version), residency);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public int objectCount() {
+            return directory.roomCount + directory.itemCount;
+        }
+
+        // Above the id of every object in the file
+        public int nextId() {
+            return directory.nextId;
+        }
+
+        public int residentPageCount() {
+            return resident.size();
+        }
+
+        private void indexPages() {
+            pageIndex.clear();
+            for (PlanFile.Page page : directory.pages) {
+                if (page.roomCount + page.itemCount > 0) {
+                    pageIndex.update(page, page.minX, page.minY, page.maxX - page.minX, page.maxY - page.minY);
+                }
+            }
+        }
+
+        // Loads every page touching the area and evicts clean pages outside it beyond the budget
+        public void show(Rectangle area) throws IOException {
+            ArrayList<PlanFile.Page> visible = new ArrayList<>();
+            pageIndex.query(area.x, area.y, area.width, area.height, page -> visible.add(page));
+            for (PlanFile.Page page : visible) {
+                if (resident.get(page) == null) {
+                    load(page);
+                }
+            }
+            Iterator<Map.Entry<PlanFile.Page, Resident>> it = resident.entrySet().iterator();
+            int excess = resident.size() - Math.max(MAX_RESIDENT_PAGES, visible.size());
+            while (excess > 0 && it.hasNext()) {
+                Map.Entry<PlanFile.Page, Resident> entry = it.next();
+                Resident pageObjects = entry.getValue();
+                if (pageObjects.dirty || visible.contains(entry.getKey())) {
+                    continue;
+                }
+                it.remove();
+                modCount++;
+                for (Room room : pageObjects.rooms) {
+                    roomPages.remove(room);
+                }
+                for (FurnitureItem item : pageObjects.items) {
+                    itemPages.remove(item);
+                }
+                residency.pageEvicted(pageObjects.rooms, pageObjects.items);
+                excess--;
+            }
+        }
+
+        private void load(PlanFile.Page page) throws IOException {
+            Resident pageObjects = decode(page);
+            for (Room room : pageObjects.rooms) {
+                roomPages.put(room, page);
+            }
+            for (FurnitureItem item : pageObjects.items) {
+                itemPages.put(item, page);
+            }
+            resident.put(page, pageObjects);
+            modCount++;
+            residency.pageLoaded(pageObjects.rooms, pageObjects.items);
+        }
+
+        private Resident decode(PlanFile.Page page) throws IOException {
+            return decode(channel, directory, page);
+        }
+
+        private static Resident decode(FileChannel channel, PlanFile.Directory directory, PlanFile.Page page) throws IOException {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, page.offset, page.length);
+            Resident pageObjects = new Resident();
+            int version = directory.version, id = page.firstId;
+            for (int i = 0; i < page.roomCount; i++) {
+                Room room = PlanFile.readRoom(null, buffer, directory.names, version);
+                room.id = version < 3 ? id++ : room.id;
+                pageObjects.rooms.add(room);
+            }
+            for (int i = 0; i < page.itemCount; i++) {
+                FurnitureItem item = PlanFile.readItem(null, buffer, directory.names, version);
+                item.id = version < 3 ? id++ : item.id;
+                pageObjects.items.add(item);
+            }
+            return pageObjects;
+        }
+
+        // The pages not loaded now, which are as they are in the file, to be read on
+        // another thread while the plan is edited and paged
+        public Unloaded unloaded() throws IOException {
+            ArrayList<PlanFile.Page> pages = new ArrayList<>();
+            for (PlanFile.Page page : directory.pages) {
+                if (page.roomCount + page.itemCount > 0 && !resident.containsKey(page)) {
+                    pages.add(page);
+                }
+            }
+            return new Unloaded(FileChannel.open(file.toPath(), StandardOpenOption.READ), directory, pages);
+        }
+
+        // Whether a page not loaded now touches x, y. Such pages are as they were in
+        // the file, edited pages being kept loaded.
+        public boolean unloadedAt(int x, int y) {
+            return !pageIndex.query(x, y, 0, 0, page -> resident.containsKey(page));
+        }
+
+        // Pages left out of a version of a paged plan, with a channel of their own
+        static class Unloaded {
+            private final FileChannel channel;
+            private final PlanFile.Directory directory;
+            private final List<PlanFile.Page> pages;
+
+            Unloaded(FileChannel channel, PlanFile.Directory directory, List<PlanFile.Page> pages) {
+                this.channel = channel;
+                this.directory = directory;
+                this.pages = pages;
+            }
+
+            // Decodes every page and adds its objects to version, the version published
+            // when these pages were left out, giving the whole plan. The result keeps
+            // version's number. Closes the channel.
+            public PlanVersion addTo(PlanVersion version, PlanFile.Progress progress) throws IOException {
+                ArrayList<Room> rooms = new ArrayList<>();
+                ArrayList<FurnitureItem> items = new ArrayList<>();
+                try {
+                    for (int i = 0; i < pages.size(); i++) {
+                        PlanFile.report(progress, i, pages.size());
+                        Resident pageObjects = decode(channel, directory, pages.get(i));
+                        rooms.addAll(pageObjects.rooms);
+                        items.addAll(pageObjects.items);
+                    }
+                } finally {
+                    channel.close();
+                }
+                return version.next(version.number, Collections.<Room>emptyList(), rooms,
+                                    Collections.<FurnitureItem>emptyList(), items, false);
+            }
+        }
+
+        // Pins the page an edited object came from; objects created since opening belong to no page
+        public void roomChanged(Room room) {
+            modCount++;
+            markDirty(roomPages.get(room));
+        }
+
+        public void roomRemoved(Room room) {
+            modCount++;
+            PlanFile.Page page = roomPages.remove(room);
+            if (page != null) {
+                resident.get(page).rooms.remove(room);
+                markDirty(page);
+            }
+        }
+
+        public void furnitureChanged(FurnitureItem item) {
+            modCount++;
+            markDirty(itemPages.get(item));
+        }
+
+        public void furnitureRemoved(FurnitureItem item) {
+            modCount++;
+            PlanFile.Page page = itemPages.remove(item);
+            if (page != null) {
+                resident.get(page).items.remove(item);
+                markDirty(page);
+            }
+        }
+
+        private void markDirty(PlanFile.Page page) {
+            if (page != null) {
+                resident.get(page).dirty = true;
+            }
+        }
+
+        // Writes the whole plan without loading it: pages that are not resident are
+        // copied from the open file, resident pages are written from their objects,
+        // and objects created since opening go into new pages. The plan then carries
+        // on from the new file.
+        public void save(File target, List<Room> liveRooms, List<FurnitureItem> liveItems, int nextId) throws IOException {
+            PlanFile.SaveJob job = prepareSave(target, liveRooms, liveItems, nextId);
+            job.write(null);
+            finishSave(job);
+        }
+
+        // Sets up a save as above, copying the resident objects so the job can be
+        // written on another thread while the plan is edited and paged
+        public PlanFile.SaveJob prepareSave(File target, List<Room> liveRooms, List<FurnitureItem> liveItems,
+                                            int nextId) throws IOException {
+            ArrayList<PlanFile.PageContent> contents = new ArrayList<>();
+            ArrayList<Resident> residents = new ArrayList<>();
+            FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            for (PlanFile.Page page : directory.pages) {
+                PlanFile.PageContent content = new PlanFile.PageContent();
+                Resident pageObjects = resident.get(page);
+                if (pageObjects != null) {
+                    content.rooms = copyRooms(pageObjects.rooms);
+                    content.items = copyItems(pageObjects.items);
+                } else {
+                    content.source = source;
+                    content.sourcePage = page;
+                    content.sourceVersion = directory.version;
+                }
+                contents.add(content);
+                residents.add(pageObjects);
+            }
+            LinkedHashMap<Long, Resident> added = new LinkedHashMap<>();
+            for (Room room : liveRooms) {
+                if (!roomPages.containsKey(room)) {
+                    added.computeIfAbsent(PlanFile.pageKey(room.x, room.y), k -> new Resident()).rooms.add(room);
+                }
+            }
+            for (FurnitureItem item : liveItems) {
+                if (!itemPages.containsKey(item)) {
+                    added.computeIfAbsent(PlanFile.pageKey(item.x, item.y), k -> new Resident()).items.add(item);
+                }
+            }
+            for (Resident pageObjects : added.values()) {
+                PlanFile.PageContent content = new PlanFile.PageContent();
+                content.rooms = copyRooms(pageObjects.rooms);
+                content.items = copyItems(pageObjects.items);
+                contents.add(content);
+                residents.add(pageObjects);
+            }
+            PlanFile.SaveJob job = new PlanFile.SaveJob(target, Arrays.asList(directory.names), contents,
+                                                        Math.max(nextId, directory.nextId));
+            job.residents = residents;
+            job.modCount = modCount;
+            job.source = source;
+            return job;
+        }
+
+        private static List<Room> copyRooms(List<Room> rooms) {
+            ArrayList<Room> copies = new ArrayList<>(rooms.size());
+            for (Room room : rooms) {
+                copies.add(room.copy());
+            }
+            return copies;
+        }
+
+        private static List<FurnitureItem> copyItems(List<FurnitureItem> items) {
+            ArrayList<FurnitureItem> copies = new ArrayList<>(items.size());
+            for (FurnitureItem item : items) {
+                copies.add(item.copy());
+            }
+            return copies;
+        }
+
+        // Once a job is written, carries on from the new file - unless the plan was
+        // edited, paged or closed meanwhile, when the written pages no longer match
+        // what is resident and the plan stays on its old file.
+        public void finishSave(PlanFile.SaveJob job) throws IOException {
+            if (job.modCount != modCount || !channel.isOpen()) {
+                return;
+            }
+            channel.close();
+            File target = job.target;
+            ArrayList<PlanFile.Page> pages = job.pages;
+            file = target;
+            channel = FileChannel.open(target.toPath(), StandardOpenOption.READ);
+            ByteBuffer buffer = ByteBuffer.allocate(PlanFile.BUFFER_SIZE);
+            buffer.flip();
+            int version = PlanFile.readVersion(target, channel, buffer);
+            PlanFile.Directory written = PlanFile.readDirectory(channel, buffer, version);
+            written.pages = pages;
+            directory = written;
+            resident.clear();
+            roomPages.clear();
+            itemPages.clear();
+            for (int i = 0; i < pages.size(); i++) {
+                Resident pageObjects = job.residents.get(i);
+                if (pageObjects == null) continue;
+                pageObjects.dirty = false;
+                resident.put(pages.get(i), pageObjects);
+                for (Room room : pageObjects.rooms) {
+                    roomPages.put(room, pages.get(i));
+                }
+                for (FurnitureItem item : pageObjects.items) {
+                    itemPages.put(item, pages.get(i));
+                }
+            }
+            indexPages();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // Furniture and fixture icons pre-scaled and pre-rotated to the size they are
+    // drawn at, so drawing an item is a plain blit instead of a bicubic resample
+    // of its icon. Sprites are kept per device scale, so zoomed, HiDPI and export
+    // paints each get sharp ones. The least recently drawn sprites are dropped
+    // once the cache holds more than its budget of pixel memory.
+    static class SpriteCache {
+        public static final long DEFAULT_BUDGET = 16L << 20;
+
+        // Shared by every paint; set to null to resample icons on each draw instead
+        public static SpriteCache shared = new SpriteCache(DEFAULT_BUDGET);
+
+        // Keys in the map are never changed; lookups go through one probe key that is
+        // refilled for each, so a hit allocates nothing
+        static final class Key {
+            String type;
+            boolean isFixture;
+            int width, height, rotation;
+            double scale;
+
+            Key() {
+            }
+
+            Key(FurnitureItem item, double scale) {
+                set(item, scale);
+            }
+
+            Key set(FurnitureItem item, double scale) {
+                this.type = item.type;
+                this.isFixture = item.isFixture;
+                this.width = item.size.width;
+                this.height = item.size.height;
+                this.rotation = item.rotation;
+                this.scale = scale;
+                return this;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof Key)) {
+                    return false;
+                }
+                Key k = (Key) o;
+                return width == k.width && height == k.height && rotation == k.rotation && isFixture == k.isFixture &&
+                       Double.compare(scale, k.scale) == 0 && type.equals(k.type);
+            }
+
+            @Override
+            public int hashCode() {
+                int h = type.hashCode();
+                h = 31 * h + (isFixture ? 1 : 0);
+                h = 31 * h + width;
+                h = 31 * h + height;
+                h = 31 * h + rotation;
+                return 31 * h + Double.hashCode(scale);
+            }
+        }
+
+        // A rendered icon and where its top-left corner sits relative to the item's
+        // centre, in plan units
+        static final class Sprite {
+            final BufferedImage image;
+            final int left, top;
+
+            Sprite(BufferedImage image, int left, int top) {
+                this.image = image;
+                this.left = left;
+                this.top = top;
+            }
+        }
+
+        public final long budget;
+        private long bytes;
+        private long hits, misses;
+        private final LinkedHashMap<Key, Sprite> sprites = new LinkedHashMap<>(64, 0.75f, true);
+        private final Key probe = new Key();
+
+        public SpriteCache(long budget) {
+            this.budget = budget;
+        }
+
+        // Sprites can only stand in for the icon when the device transform keeps
+        // pixels square and upright, which is every transform the planner paints with
+        public static boolean canBlit(AffineTransform transform) {
+            return transform.getShearX() == 0 && transform.getShearY() == 0 &&
+                   transform.getScaleX() > 0 && transform.getScaleX() == transform.getScaleY();
+        }
+
+        // Draws item's icon at its place through the frame's transform, which canBlit must accept
+        public void draw(RenderContext context, FurnitureItem item, Image icon) {
+            AffineTransform transform = context.frame;
+            double scale = transform.getScaleX();
+            Sprite sprite = get(item, icon, scale);
+            double centreX = transform.getTranslateX() + scale * (item.x + item.size.width/2 + sprite.left);
+            double centreY = transform.getTranslateY() + scale * (item.y + item.size.height/2 + sprite.top);
+            context.g2d.setTransform(RenderContext.IDENTITY);
+            context.g2d.drawImage(sprite.image, (int) Math.round(centreX), (int) Math.round(centreY), null);
+            context.restoreTransform();
+        }
+
+        public synchronized Sprite get(FurnitureItem item, Image icon, double scale) {
+            Sprite sprite = sprites.get(probe.set(item, scale));
+            if (sprite != null) {
+                hits++;
+                return sprite;
+            }
+            misses++;
+            sprite = render(item, icon, scale);
+            sprites.put(new Key(item, scale), sprite);
+            bytes += spriteBytes(sprite);
+            Iterator<Sprite> eldest = sprites.values().iterator();
+            while (bytes > budget && sprites.size() > 1) {
+                bytes -= spriteBytes(eldest.next());
+                eldest.remove();
+            }
+            return sprite;
+        }
+
+        // Same transform FurnitureItem.draw applies around the item's centre, shifted
+        // so the rotated icon's bounds start at the sprite's origin
+        static Sprite render(FurnitureItem item, Image icon, double scale) {
+            int width = item.size.width, height = item.size.height;
+            AffineTransform rotation = AffineTransform.getRotateInstance(Math.toRadians(item.rotation));
+            rotation.translate(-width/2, -height/2);
+            Rectangle bounds = rotation.createTransformedShape(new Rectangle(0, 0, width, height)).getBounds();
+            BufferedImage image = new BufferedImage(Math.max(1, (int) Math.ceil(bounds.width * scale)),
+                                                    Math.max(1, (int) Math.ceil(bounds.height * scale)),
+                                                    BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D g2d = image.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.scale(scale, scale);
+            g2d.translate(-bounds.x, -bounds.y);
+            g2d.transform(rotation);
+            g2d.drawImage(icon, 0, 0, width, height, null);
+            g2d.dispose();
+            return new Sprite(image, bounds.x, bounds.y);
+        }
+
+        static long spriteBytes(Sprite sprite) {
+            return 4L * sprite.image.getWidth() * sprite.image.getHeight();
+        }
+
+        public synchronized int size() {
+            return sprites.size();
+        }
+
+        public synchronized long bytes() {
+            return bytes;
+        }
+
+        public synchronized long hits() {
+            return hits;
+        }
+
+        public synchronized long misses() {
+            return misses;
+        }
+
+        public synchronized void clear() {
+            sprites.clear();
+            bytes = 0;
+        }
+    }
+
+    static class FurnitureItem implements Serializable {
+        private static final long serialVersionUID = -2321519340040475497L;
+
+        int x, y;
+        String type;
+        Dimension size;
+        boolean isFixture;
+        int rotation = 0; // 0, 90, 180, or 270 degrees
+        // Names the item in plan files and the autosave journal; 0 until it joins a FloorPlan
+        transient int id;
+        
+        public FurnitureItem(int x, int y, String type, boolean isFixture) {
+            this.x = x;
+            this.y = y;
+            this.type = type;
+            this.isFixture = isFixture;
+            // Copy, since rotate() swaps the sides in place
+            this.size = new Dimension(isFixture ? FIXTURE_DIMENSIONS.get(type) : FURNITURE_DIMENSIONS.get(type));
+        }
+
+        public FurnitureItem(int x, int y, String type, boolean isFixture, int rotation, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.type = type;
+            this.isFixture = isFixture;
+            this.rotation = rotation;
+            this.size = new Dimension(width, height);
+        }
+        public FurnitureItem copy() {
+            FurnitureItem copy = new FurnitureItem(x, y, type, isFixture, rotation, size.width, size.height);
+            copy.id = id;
+            return copy;
+        }
+
+        public void rotate() {
+            rotation = (rotation + 90) % 360;
+            // Swap width and height
+            int temp = size.width;
+            size.width = size.height;
+            size.height = temp;
+        }
+        public Rectangle getBounds() {
+            return new Rectangle(x, y, size.width, size.height);
+        }
+        public boolean contains(Point p) {
+            return contains(p.x, p.y);
+        }
+        public boolean contains(int px, int py) {
+            return px >= x && px <= x + size.width && 
+                   py >= y && py <= y + size.height;
+        }
+        public boolean intersects(FurnitureItem other) {
+            // Same test as Rectangle.intersects on the two bounds, without building them
+            return size.width > 0 && size.height > 0 && other.size.width > 0 && other.size.height > 0 &&
+                   x < other.x + other.size.width && other.x < x + size.width &&
+                   y < other.y + other.size.height && other.y < y + size.height;
+        }
+        public void draw(Graphics2D g2d) {
+            draw(new RenderContext().begin(g2d));
+        }
+
+        public void draw(RenderContext context) {
+            Graphics2D g2d = context.g2d;
+
+            // Draw the furniture/fixture from a cached sprite where the transform allows
+            Map<String, ImageIcon> icons = isFixture ? fixtureIcons : furnitureIcons;
+            ImageIcon icon = icons != null ? icons.get(type) : null;
+            SpriteCache sprites = SpriteCache.shared;
+            boolean blitted = icon != null && sprites != null && context.canBlit;
+            if (blitted) {
+                sprites.draw(context, this, icon.getImage());
+            }
+
+            // Translate to rotation point (center of the item)
+            AffineTransform transform = context.transform();
+            transform.translate(x + size.width/2, y + size.height/2);
+            transform.rotate(Math.toRadians(rotation));
+            transform.translate(-size.width/2, -size.height/2);
+            g2d.setTransform(transform);
+
+            if (icon == null) {
+                // Fallback to colored rectangle
+                g2d.setColor(isFixture ? Color.CYAN : Color.ORANGE);
+                g2d.fillRect(0, 0, size.width, size.height);
+            } else if (!blitted) {
+                g2d.drawImage(icon.getImage(), 0, 0, size.width, size.height, null);
+            }
+            
+            // Draw border, with its own stroke rather than whatever the last wall or window left
+            g2d.setColor(Color.BLACK);
+            g2d.setStroke(RenderContext.BORDER_STROKE);
+            g2d.drawRect(0, 0, size.width, size.height);
+
+            // Restore the original transform
+            context.restoreTransform();
+        }
+    }
+    
+    static class Room implements Serializable {
+        private static final long serialVersionUID = 2721937576335575643L;
+
+        int x, y, width, height;
+        String type;
+        Color color;
+        ArrayList<Door> doors;
+        ArrayList<Window> windows;
+        // Bit per WallModel side: sides opened by a door, and sides not to draw because
+        // they are open or a neighbour draws the shared wall. Kept up to date by WallModel.
+        transient int openWalls, hiddenWalls;
+        // Names the room in plan files and the autosave journal; 0 until it joins a FloorPlan
+        transient int id;
+        
+        public Room(int x, int y, int width, int height, String type, Color color) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.type = type;
+            this.color = color;
+            this.doors = new ArrayList<>();
+            this.windows = new ArrayList<>();
+        }
+        
+        // Doors and windows are never changed once placed, so the copy shares them
+        public Room copy() {
+            Room copy = new Room(x, y, width, height, type, color);
+            copy.id = id;
+            copy.doors.addAll(doors);
+            copy.windows.addAll(windows);
+            return copy;
+        }
+
+        public boolean contains(Point p) {
+            return contains(p.x, p.y);
+        }
+
+        public boolean contains(int px, int py) {
+            return px >= x && px <= x + width && py >= y && py <= y + height;
+        }
+        
+        public boolean intersects(Room other) {
+            return !(x + width <= other.x || other.x + other.width <= x ||
+                    y + height <= other.y || other.y + other.height <= y);
+        }
+        
+        public void draw(Graphics2D g2d) {
+            draw(new RenderContext().begin(g2d));
+        }
+
+        public void draw(RenderContext context) {
+            drawFloor(context);
+            drawOutline(context, openWalls);
+            drawLabel(context);
+        }
+
+        public void drawFloor(RenderContext context) {
+            // Draw room
+            context.g2d.setColor(color);
+            context.g2d.fillRect(x, y, width, height);
+        }
+
+        public void drawOutline(RenderContext context, int skipWalls) {
+            Graphics2D g2d = context.g2d;
+            // Draw border
+            g2d.setColor(Color.BLACK);
+            g2d.setStroke(RenderContext.WALL_STROKE);
+            //g2d.drawRect(x, y, width, height);
+            drawWalls(g2d, skipWalls);
+            
+            // draw doors
+            // g2d.setColor(Color.BLACK);
+            // for (Door door : doors) {
+            //     door.draw(g2d, x, y);
+            // }
+            
+            // draw windows
+            //g2d.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{9}, 0));
             g2d.setColor(Color.BLUE);
             for (Window window : windows) {
                 window.draw(g2d,x, y);
             }
-            
+        }
+
+        public void drawLabel(RenderContext context) {
             // draw room type
-            g2d.setColor(Color.BLACK);
-            g2d.drawString(type, x + 5, y + 20);
+            context.g2d.setColor(Color.BLACK);
+            context.drawLabel(type, x + 5, y + 20);
         }
         public void rotate() {
             // Swap width and height
@@ -668,22 +7732,22 @@ public class FloorPlanner extends JFrame {
             height = temp;
         }        
 
-        public void drawWalls(Graphics2D g2d) { 
+        public void drawWalls(Graphics2D g2d, int skipWalls) { 
 
             // top wall 
-            if (!hasDoorOnWall(new Point(x, y), new Point(x + width, y))) { 
+            if ((skipWalls & (1 << WallModel.TOP)) == 0) { 
                 g2d.drawLine(x, y, x + width, y); 
             } 
             // bottom wall 
-            if (!hasDoorOnWall(new Point(x, y + height), new Point(x + width, y + height))) { 
+            if ((skipWalls & (1 << WallModel.BOTTOM)) == 0) { 
                 g2d.drawLine(x, y + height, x + width, y + height); 
             } 
             // left wall 
-            if (!hasDoorOnWall(new Point(x, y), new Point(x, y + height))) { 
+            if ((skipWalls & (1 << WallModel.LEFT)) == 0) { 
                 g2d.drawLine(x, y, x, y + height); 
             } 
             // right wall 
-            if (!hasDoorOnWall(new Point(x + width, y), new Point(x + width, y + height))) { 
+            if ((skipWalls & (1 << WallModel.RIGHT)) == 0) { 
                 g2d.drawLine(x + width, y, x + width, y + height); 
             }
         }
@@ -695,71 +7759,10 @@ public class FloorPlanner extends JFrame {
         //     }  
         //     return false; 
         // }
-        public boolean hasDoorOnWall(Point start, Point end) { 
-            final int WALL_TOLERANCE = 5;
-            //final int PERPENDICULAR_TOLERANCE = 3;
-            // Check doors in this room
-            for (Door door : doors) { 
-                if (door.intersects(start, end, x, y)) { 
-                    return true; 
-                } 
-            }
-    
-            // Check doors in adjacent rooms that share this wall
-            for (Room otherRoom : FloorPlanner.this.rooms) {
-                if (otherRoom != this) {
-                    // Check if rooms share a wall
-                    boolean isSharedWall = false;
-                    Point otherStart = null;
-                    Point otherEnd = null;
-    
-                    // Horizontal wall check
-                    if (Math.abs(start.y - otherRoom.y) <= WALL_TOLERANCE || 
-                        Math.abs(start.y - (otherRoom.y + otherRoom.height)) <= WALL_TOLERANCE) {
-
-                        // Check if x-coordinates overlap
-                        if (start.x < otherRoom.x + otherRoom.width && 
-                            end.x > otherRoom.x) {
-                            isSharedWall = true;
-                            if (Math.abs(start.y - otherRoom.y) <= WALL_TOLERANCE) {
-                                otherStart = new Point(otherRoom.x, otherRoom.y);
-                                otherEnd = new Point(otherRoom.x + otherRoom.width, otherRoom.y);
-                            } else {
-                                otherStart = new Point(otherRoom.x, otherRoom.y + otherRoom.height);
-                                otherEnd = new Point(otherRoom.x + otherRoom.width, otherRoom.y + otherRoom.height);
-                            }
-                        }
-                    }
-                    // Vertical wall check
-                    else if (Math.abs(start.x - otherRoom.x) <= WALL_TOLERANCE || 
-                             Math.abs(start.x - (otherRoom.x + otherRoom.width)) <= 5) {
-                        // Check if y-coordinates overlap
-                        if (start.y < otherRoom.y + otherRoom.height && 
-                            end.y > otherRoom.y) {
-                            isSharedWall = true;
-                            if (Math.abs(start.x - otherRoom.x) <= WALL_TOLERANCE) {
-                                otherStart = new Point(otherRoom.x, otherRoom.y);
-                                otherEnd = new Point(otherRoom.x, otherRoom.y + otherRoom.height);
-                            } else {
-                                otherStart = new Point(otherRoom.x + otherRoom.width, otherRoom.y);
-                                otherEnd = new Point(otherRoom.x + otherRoom.width, otherRoom.y + otherRoom.height);
-                            }
-                        }
-                    }
-    
-                    if (isSharedWall) {
-                        for (Door door : otherRoom.doors) {
-                            if (door.intersects(otherStart, otherEnd, otherRoom.x, otherRoom.y)) {
-                                return true;
-                            }
-                        }
-                    }
-                }
-            }
-            return false;
-        }
     }
-    class Window implements Serializable {
+    static class Window implements Serializable {
+        private static final long serialVersionUID = 1708954271657196910L;
+
         int offsetX, offsetY;
         boolean isVertical;
     
@@ -773,7 +7776,7 @@ public class FloorPlanner extends JFrame {
             int length = 15; // Window length
             int startX = roomX + offsetX;
             int startY = roomY + offsetY;
-            g2d.setStroke(new BasicStroke(5)); // Set the thickness here
+            g2d.setStroke(RenderContext.WINDOW_STROKE); // Set the thickness here
             if (isVertical) {
                 g2d.drawLine(startX, startY - length / 2, startX, startY + length / 2);
             } else {
@@ -797,7 +7800,9 @@ public class FloorPlanner extends JFrame {
         
     }
     
-    class Door implements Serializable {
+    static class Door implements Serializable {
+        private static final long serialVersionUID = -5350677614568974833L;
+
         int offsetX, offsetY;
         boolean isVertical;
         int length;
@@ -839,7 +7844,27 @@ public class FloorPlanner extends JFrame {
     
     
     class DrawingCanvas extends JPanel {
-        public static final int DOT_SIZE = 2;
+        private static final long serialVersionUID = 7531735807317710699L;
+
+        public static final int REPAINT_HALO = PlanPainter.REPAINT_HALO;
+        // Each wheel notch zooms by this factor, within MIN_ZOOM_STEP..MAX_ZOOM_STEP notches of 1:1
+        public static final double ZOOM_FACTOR = 1.1;
+        public static final int MIN_ZOOM_STEP = -40;
+        public static final int MAX_ZOOM_STEP = 20;
+
+        public transient PlanPainter painter = new PlanPainter();
+        public transient RenderMetrics metrics = RenderMetrics.shared;
+        // Performance overlay, redrawn on a timer while shown since most paints only
+        // cover part of it
+        public boolean showHud;
+        private final transient javax.swing.Timer hudRefresh = new javax.swing.Timer(250, e -> repaint(hudBounds()));
+
+        // Plan-to-screen mapping: a uniform zoom and a pan. Mouse events are mapped back
+        // through it to plan coordinates, and repaints of plan areas are mapped forward.
+        public final AffineTransform view = new AffineTransform();
+        public int zoomStep;
+        // Last mouse position while panning with the middle button or shift-drag
+        public Point panStart;
         
         public int getWallLength(Room room, Point p, boolean isVertical) {
             if (isVertical) {
@@ -864,10 +7889,10 @@ public class FloorPlanner extends JFrame {
             }
             
             // Check if the window would be between rooms
-            if ((Math.abs(p.x - room.x) <= tolerance && hasAdjacentRoom(room, "left")) ||
-                (Math.abs(p.x - (room.x + room.width)) <= tolerance && hasAdjacentRoom(room, "right")) ||
-                (Math.abs(p.y - room.y) <= tolerance && hasAdjacentRoom(room, "top")) ||
-                (Math.abs(p.y - (room.y + room.height)) <= tolerance && hasAdjacentRoom(room, "bottom"))) {
+            if ((Math.abs(p.x - room.x) <= tolerance && hasAdjacentRoom(room, WallModel.LEFT)) ||
+                (Math.abs(p.x - (room.x + room.width)) <= tolerance && hasAdjacentRoom(room, WallModel.RIGHT)) ||
+                (Math.abs(p.y - room.y) <= tolerance && hasAdjacentRoom(room, WallModel.TOP)) ||
+                (Math.abs(p.y - (room.y + room.height)) <= tolerance && hasAdjacentRoom(room, WallModel.BOTTOM))) {
                 JOptionPane.showMessageDialog(FloorPlanner.this, "Windows cannot be placed between rooms!");
                 return false;
             }
@@ -887,10 +7912,10 @@ public class FloorPlanner extends JFrame {
             if ((room.type.equals("Bedroom") || room.type.equals("Bathroom"))) {
                 // Check if the door is being placed on an outer wall
                 boolean isOuterWall = 
-                    (Math.abs(p.x - room.x) <= tolerance && !hasAdjacentRoom(room, "left")) ||
-                    (Math.abs(p.x - (room.x + room.width)) <= tolerance && !hasAdjacentRoom(room, "right")) ||
-                    (Math.abs(p.y - room.y) <= tolerance && !hasAdjacentRoom(room, "top")) ||
-                    (Math.abs(p.y - (room.y + room.height)) <= tolerance && !hasAdjacentRoom(room, "bottom"));
+                    (Math.abs(p.x - room.x) <= tolerance && !hasAdjacentRoom(room, WallModel.LEFT)) ||
+                    (Math.abs(p.x - (room.x + room.width)) <= tolerance && !hasAdjacentRoom(room, WallModel.RIGHT)) ||
+                    (Math.abs(p.y - room.y) <= tolerance && !hasAdjacentRoom(room, WallModel.TOP)) ||
+                    (Math.abs(p.y - (room.y + room.height)) <= tolerance && !hasAdjacentRoom(room, WallModel.BOTTOM));
     
                 if (isOuterWall) {
                     JOptionPane.showMessageDialog(FloorPlanner.this, 
@@ -906,44 +7931,8 @@ public class FloorPlanner extends JFrame {
                     Math.abs(p.y - (room.y + room.height)) <= tolerance);
         }
 
-        public boolean hasAdjacentRoom(Room currentRoom, String direction) {
-            int tolerance = 5;
-            
-            for (Room room : rooms) {
-                if (room == currentRoom) continue;
-                
-                switch (direction) {
-                    case "left":
-                        if (Math.abs((currentRoom.x) - (room.x + room.width)) <= tolerance &&
-                            currentRoom.y < room.y + room.height &&
-                            currentRoom.y + currentRoom.height > room.y) {
-                            return true;
-                        }
-                        break;
-                    case "right":
-                        if (Math.abs((currentRoom.x + currentRoom.width) - room.x) <= tolerance &&
-                            currentRoom.y < room.y + room.height &&
-                            currentRoom.y + currentRoom.height > room.y) {
-                            return true;
-                        }
-                        break;
-                    case "top":
-                        if (Math.abs(currentRoom.y - (room.y + room.height)) <= tolerance &&
-                            currentRoom.x < room.x + room.width &&
-                            currentRoom.x + currentRoom.width > room.x) {
-                            return true;
-                        }
-                        break;
-                    case "bottom":
-                        if (Math.abs((currentRoom.y + currentRoom.height) - room.y) <= tolerance &&
-                            currentRoom.x < room.x + room.width &&
-                            currentRoom.x + currentRoom.width > room.x) {
-                            return true;
-                        }
-                        break;
-                }
-            }
-            return false;
+        public boolean hasAdjacentRoom(Room currentRoom, int side) {
+            return plan.walls.isShared(currentRoom, side);
         }
 
         
@@ -1002,99 +7991,93 @@ public class FloorPlanner extends JFrame {
         public DrawingCanvas() {
             setPreferredSize(new Dimension(CANVAS_WIDTH, CANVAS_HEIGHT));
             setBackground(Color.LIGHT_GRAY);
+            painter.timePhases = true;
+            addComponentListener(new ComponentAdapter() {
+                @Override
+                public void componentResized(ComponentEvent e) {
+                    viewChanged();
+                }
+            });
             
             addMouseListener(new MouseAdapter() {
                 @Override
                 public void mousePressed(MouseEvent e) {
-                    Point p = e.getPoint();
-                    Point p1 = new Point(); 
+                    if (SwingUtilities.isMiddleMouseButton(e) || (e.isShiftDown() && SwingUtilities.isLeftMouseButton(e))) {
+                        panStart = e.getPoint();
+                        return;
+                    }
+                    Point p = toPlan(e.getPoint());
 
                     // Handle right-click for rotation
                     if (e.getButton() == MouseEvent.BUTTON3) {
-                        for (FurnitureItem item : furnitureItems) {
-                            if (item.contains(p)) {
-                                item.rotate();
-                                repaint();
-                                break;
-                            }
+                        FurnitureItem item = plan.furnitureAt(p.x, p.y);
+                        if (item != null) {
+                            item.rotate();
+                            plan.furnitureChanged(item);
+                            plan.history.record(new EditLog.FurnitureRotated(item));
+                            repaint();
                         }
                         return;
                     }
 
+                    // Looked up once through the spatial index; nothing below moves a room
+                    Room under = plan.roomAt(p.x, p.y);
                     if (isAddingDoor || isAddingWindow) {
-                        for (Room room : rooms) {
-                            if (room.contains(p)) {
-                                if (isAddingDoor) {
-                                    if (isValidDoorPosition(room, p) && !isDoorOverlap(room, p, isVerticalDoor)) {
-                                        int offsetX = p.x - room.x; 
-                                        int offsetY = p.y - room.y; 
-                                        int length = getWallLength(room, p, isVerticalDoor);
-                                        room.doors.add(new Door(offsetX, offsetY, isVerticalDoor, length));
-                                        
-                                    } else {
-                                        JOptionPane.showMessageDialog(FloorPlanner.this, "Doors must be placed on the walls only & Should Not overlap with existing Doors!");
-                                    }
-                                } 
-                                else if (isAddingWindow) { 
-                                    if (isValidWindowPosition(room, p) && !isWindowOverlap(room, p, isVerticalWindow)) { 
-                                        int offsetX = p.x - room.x;
-                                        int offsetY = p.y - room.y;
-                                        room.windows.add(new Window(offsetX, offsetY, isVerticalWindow)); 
-                                    } else {
-                                        JOptionPane.showMessageDialog(FloorPlanner.this, "Windows must be placed on the walls only & Should Not overlap with existing Windows!"); 
-                                    } 
+                        Room room = under;
+                        if (room != null) {
+                            if (isAddingDoor) {
+                                if (isValidDoorPosition(room, p) && !isDoorOverlap(room, p, isVerticalDoor)) {
+                                    int offsetX = p.x - room.x; 
+                                    int offsetY = p.y - room.y; 
+                                    int length = getWallLength(room, p, isVerticalDoor);
+                                    Door door = new Door(offsetX, offsetY, isVerticalDoor, length);
+                                    room.doors.add(door);
+                                    plan.roomChanged(room);
+                                    plan.history.record(new EditLog.DoorAdded(room, door));
+                                    
+                                } else {
+                                    JOptionPane.showMessageDialog(FloorPlanner.this, "Doors must be placed on the walls only & Should Not overlap with existing Doors!");
+                                }
+                            } 
+                            else if (isAddingWindow) { 
+                                if (isValidWindowPosition(room, p) && !isWindowOverlap(room, p, isVerticalWindow)) { 
+                                    int offsetX = p.x - room.x;
+                                    int offsetY = p.y - room.y;
+                                    Window window = new Window(offsetX, offsetY, isVerticalWindow);
+                                    room.windows.add(window); 
+                                    plan.roomChanged(room);
+                                    plan.history.record(new EditLog.WindowAdded(room, window));
+                                } else {
+                                    JOptionPane.showMessageDialog(FloorPlanner.this, "Windows must be placed on the walls only & Should Not overlap with existing Windows!"); 
                                 } 
-                                repaint(); 
-                                break;
-                            }
+                            } 
+                            repaint(); 
                         }
                         isAddingDoor = false;
                         isAddingWindow = false;
                     } else {
                         // Select room for dragging
-                        for (Room room : rooms) {
-                            if (room.contains(p)) {
-                                selectedRoom = room;
-                                referenceRoom = room;
-                                draggedRoom = room;
-                                p1.x = room.x;
-                                p1.y = room.y;
-
-                                dragStart = p1; //the point from which dragging will actually start from
-                                break;
-                            }
-                        }
+                        pickRoom(under);
                     }
                     if (selectedFurniture != null || selectedFixture != null) {
                         String type = selectedFurniture != null ? selectedFurniture : selectedFixture;
                         boolean isFixture = selectedFixture != null;
                         
                         // Check if clicked point is inside a room
-                        boolean inRoom = false;
-                        for (Room room : rooms) {
-                            if (room.contains(p)) {
-                                inRoom = true;
-
-                                // Check for overlap with existing items 
-                                FurnitureItem newItem = new FurnitureItem(p.x, p.y, type, isFixture); 
-                                boolean overlap = false; 
-                                for (FurnitureItem item : furnitureItems) { 
-                                    if (item.intersects(newItem)) { 
-                                        overlap = true; 
-                                        break; 
-                                    } 
-                                }
-                                if (overlap) { 
-                                    JOptionPane.showMessageDialog(FloorPlanner.this, "Cannot place overlapping furniture or fixtures!"); 
-                                } else { 
-                                    // Add new furniture/fixture 
-                                    furnitureItems.add(newItem); 
-                                    selectedFurniture = null; 
-                                    selectedFixture = null; 
-                                    repaint(); 
-                                } 
-                                break;
-                            }
+                        boolean inRoom = under != null;
+                        if (inRoom) {
+                            // Check for overlap with existing items 
+                            FurnitureItem newItem = new FurnitureItem(p.x, p.y, type, isFixture); 
+                            if (plan.furnitureOverlaps(newItem)) { 
+                                JOptionPane.showMessageDialog(FloorPlanner.this, "Cannot place overlapping furniture or fixtures!"); 
+                            } else { 
+                                // Add new furniture/fixture 
+                                plan.addFurniture(newItem); 
+                                plan.history.record(new EditLog.FurnitureAdded(newItem, plan.furnitureItems.size() - 1));
+                                selectedFurniture = null; 
+                                selectedFixture = null; 
+                                repaint(); 
+                            } 
                         }
                         
                         if (!inRoom) {
@@ -1103,46 +8086,33 @@ public class FloorPlanner extends JFrame {
                         }
                     } else {
                         // Check for existing furniture/fixture dragging
-                        for (FurnitureItem item : furnitureItems) {
-                            if (item.contains(p)) {
-                                draggedItemStart = p;
-                                break;
-                            }
+                        draggedItem = plan.furnitureAt(p.x, p.y);
+                        if (draggedItem != null) {
+                            draggedItemStart = p;
                         }
                         
-                        // ... (keep existing room selection code)
-                        for (Room room : rooms) {
-                            if (room.contains(p)) {
-                                selectedRoom = room;
-                                referenceRoom = room;
-                                draggedRoom = room;
-                                p1.x = room.x;
-                                p1.y = room.y;
-
-                                dragStart = p1; //the point from which dragging will actually start from
-                                break;
-                            }
-                        }
+                        pickRoom(under);
                     }
                 }
                 
                 @Override
                 public void mouseReleased(MouseEvent e) {
+                    if (panStart != null) {
+                        panStart = null;
+                        return;
+                    }
                     if (draggedRoom != null) {
+                        Rectangle dirty = roomDamage(draggedRoom);
+                        int fromX = draggedRoom.x, fromY = draggedRoom.y;
                         // Snap to grid
                         draggedRoom.x = Math.round(draggedRoom.x / drag) * drag;
                         draggedRoom.y = Math.round(draggedRoom.y / drag) * drag;
                         
-                        boolean outsideCanvas = draggedRoom.x < 0 || draggedRoom.y < 0 || draggedRoom.x + draggedRoom.width > getWidth() || draggedRoom.y + draggedRoom.height > getHeight();
+                        // The plan extends right and down as far as it needs to, but not above or left of the origin
+                        boolean outsideCanvas = draggedRoom.x < 0 || draggedRoom.y < 0;
 
                         // Check overlap
-                        boolean overlap = false;
-                        for (Room room : rooms) {
-                            if (room != draggedRoom && room.intersects(draggedRoom)) {
-                                overlap = true;
-                                break;
-                            }
-                        }
+                        boolean overlap = checkOverlap(draggedRoom);
                         
                         if (outsideCanvas || overlap) {
                             // Revert position
@@ -1154,121 +8124,285 @@ public class FloorPlanner extends JFrame {
                                 JOptionPane.showMessageDialog(FloorPlanner.this, "Cannot place room here - overlap detected!"); 
                             }
                         }
+                        plan.roomChanged(draggedRoom);
+                        plan.history.record(new EditLog.RoomMoved(draggedRoom, fromX, fromY, draggedRoom.x, draggedRoom.y));
+                        dirty.add(roomDamage(draggedRoom));
                         
                         draggedRoom = null;
                         dragStart = null;
                         draggedItemStart = null;
-                        repaint();
+                        draggedItem = null;
+                        repaintPlan(dirty);
                     }
                     // Snap dragged item to grid 
-                    if (draggedItemStart != null) { 
-                        for (FurnitureItem item : furnitureItems) { 
-                            if (item.contains(draggedItemStart)) { 
-                                Point p = e.getPoint(); 
-                                item.x = Math.round(p.x / drag) * drag; 
-                                item.y = Math.round(p.y / drag) * drag; 
-                                
-                                // Check for overlaps and revert if necessary 
-                                boolean overlap = false; 
-                                for (FurnitureItem otherItem : furnitureItems) { 
-                                    if (otherItem != item && item.intersects(otherItem)) { 
-                                        overlap = true; 
-                                        break; 
-                                    } 
-                                } 
-                                if (overlap) { 
-                                    // Revert position if overlap detected 
-                                    item.x = Math.round((draggedItemStart.x - p.x + item.x) / drag) * drag;
-                                    item.y = Math.round((draggedItemStart.y - p.y + item.y) / drag) * drag; 
-                                    JOptionPane.showMessageDialog(FloorPlanner.this, "Cannot place overlapping furniture or fixture!"); 
-                                } 
-                                draggedItemStart = null; 
-                                repaint();
-                            }
-                        }
+                    if (draggedItem != null) { 
+                        FurnitureItem item = draggedItem;
+                        Rectangle dirty = furnitureDamage(item);
+                        int fromX = item.x, fromY = item.y;
+                        Point p = toPlan(e.getPoint()); 
+                        item.x = Math.round(p.x / drag) * drag; 
+                        item.y = Math.round(p.y / drag) * drag; 
+                        
+                        // Check for overlaps and revert if necessary 
+                        if (plan.furnitureOverlaps(item)) { 
+                            // Revert position if overlap detected 
+                            item.x = Math.round((draggedItemStart.x - p.x + item.x) / drag) * drag;
+                            item.y = Math.round((draggedItemStart.y - p.y + item.y) / drag) * drag; 
+                            JOptionPane.showMessageDialog(FloorPlanner.this, "Cannot place overlapping furniture or fixture!"); 
+                        } 
+                        draggedItemStart = null; 
+                        draggedItem = null;
+                        plan.furnitureChanged(item);
+                        plan.history.record(new EditLog.FurnitureMoved(item, fromX, fromY, item.x, item.y));
+                        dirty.add(furnitureDamage(item));
+                        repaintPlan(dirty);
                     }       
+                    // Every drag step since the press and the snap above undo as one
+                    plan.history.endGesture();
                 }
             });
             
             addMouseMotionListener(new MouseMotionAdapter() {
                 @Override
                 public void mouseDragged(MouseEvent e) {
-                    if (draggedItemStart != null) {
+                    if (panStart != null) {
                         Point p = e.getPoint();
+                        panBy(p.x - panStart.x, p.y - panStart.y);
+                        panStart = p;
+                        return;
+                    }
+                    if (draggedItem != null) {
+                        Point p = toPlan(e.getPoint());
                         int dx = p.x - draggedItemStart.x;
                         int dy = p.y - draggedItemStart.y;
                         
                         // Update furniture position
-                        for (FurnitureItem item : furnitureItems) {
-                            if (item.contains(draggedItemStart)) {
-                                item.x += dx;
-                                item.y += dy;
-
-                                boolean overlap = false; 
-                                for (FurnitureItem otherItem : furnitureItems) { 
-                                    if (otherItem != item && item.intersects(otherItem)) { 
-                                        overlap = true; 
-                                        break; 
-                                    } 
-                                } if (overlap) { 
-                                    // Revert position if overlap detected 
-                                    item.x -= dx; 
-                                    item.y -= dy; 
-                                } else { 
-                                    draggedItemStart = p; 
-                                }
+                        FurnitureItem item = draggedItem;
+                        Rectangle dirty = furnitureDamage(item);
+                        int fromX = item.x, fromY = item.y;
+                        item.x += dx;
+                        item.y += dy;
 
-                                //draggedItemStart = p;
-                                repaint();
-                                break;
-                            }
+                        if (plan.furnitureOverlaps(item)) { 
+                            // Revert position if overlap detected 
+                            item.x -= dx; 
+                            item.y -= dy; 
+                        } else { 
+                            draggedItemStart = p; 
                         }
+
+                        //draggedItemStart = p;
+                        plan.furnitureChanged(item);
+                        plan.history.recordDragStep(new EditLog.FurnitureMoved(item, fromX, fromY, item.x, item.y));
+                        dirty.add(furnitureDamage(item));
+                        repaintPlan(dirty);
                     }
                     if (draggedRoom != null) {
-                        Point p = e.getPoint();
+                        Point p = toPlan(e.getPoint());
                         int dx = p.x - dragStart.x;
                         int dy = p.y - dragStart.y;
+                        Rectangle dirty = roomDamage(draggedRoom);
+                        int fromX = draggedRoom.x, fromY = draggedRoom.y;
                         
                         draggedRoom.x = Math.round((dragStart.x + dx) / drag) * drag;
                         draggedRoom.y = Math.round((dragStart.y + dy) / drag) * drag;
+                        plan.roomChanged(draggedRoom);
+                        plan.history.recordDragStep(new EditLog.RoomMoved(draggedRoom, fromX, fromY, draggedRoom.x, draggedRoom.y));
+                        dirty.add(roomDamage(draggedRoom));
                         
-                        repaint();
+                        repaintPlan(dirty);
                     }
                 }
             });
+
+            addMouseWheelListener(e -> zoomAt(e.getPoint(), -e.getWheelRotation()));
+        }
+
+        // Selects room, if there is one, and starts dragging it from its corner
+        private void pickRoom(Room room) {
+            if (room != null) {
+                selectedRoom = room;
+                referenceRoom = room;
+                draggedRoom = room;
+                dragStart = new Point(room.x, room.y); //the point from which dragging will actually start from
+            }
+        }
+
+        public double getZoom() {
+            return view.getScaleX();
+        }
+
+        // Zooms by the given number of wheel notches, keeping the plan point under
+        // the cursor where it is
+        public void zoomAt(Point screen, int steps) {
+            int step = Math.max(MIN_ZOOM_STEP, Math.min(MAX_ZOOM_STEP, zoomStep + steps));
+            if (step == zoomStep) {
+                return;
+            }
+            double zoom = getZoom();
+            double planX = (screen.x - view.getTranslateX()) / zoom;
+            double planY = (screen.y - view.getTranslateY()) / zoom;
+            // Zoom from the step count rather than by repeated multiplication, so each
+            // level always has the same scale and sprites cached for it are reused
+            double newZoom = Math.pow(ZOOM_FACTOR, step);
+            zoomStep = step;
+            view.setTransform(newZoom, 0, 0, newZoom, screen.x - planX * newZoom, screen.y - planY * newZoom);
+            viewChanged();
+        }
+
+        public void panBy(int dx, int dy) {
+            view.setTransform(getZoom(), 0, 0, getZoom(), view.getTranslateX() + dx, view.getTranslateY() + dy);
+            viewChanged();
+        }
+
+        // Pages in the part of a lazily opened plan now on screen, and repaints.
+        // Called wherever the view moves or the plan is swapped, so that painting
+        // never changes the plan.
+        public void viewChanged() {
+            if (plan.pagedPlan != null) {
+                showPages(getVisiblePlanRect());
+            }
+            repaint();
+        }
+
+        // Plan point under a screen point
+        public Point toPlan(Point screen) {
+            double zoom = getZoom();
+            return new Point((int) Math.floor((screen.x - view.getTranslateX()) / zoom),
+                             (int) Math.floor((screen.y - view.getTranslateY()) / zoom));
+        }
+
+        // Plan area covering a screen area
+        public Rectangle toPlan(Rectangle screen) {
+            double zoom = getZoom();
+            int x0 = (int) Math.floor((screen.x - view.getTranslateX()) / zoom);
+            int y0 = (int) Math.floor((screen.y - view.getTranslateY()) / zoom);
+            int x1 = (int) Math.ceil((screen.x + screen.width - view.getTranslateX()) / zoom);
+            int y1 = (int) Math.ceil((screen.y + screen.height - view.getTranslateY()) / zoom);
+            return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        }
+
+        // Screen area covering a plan area
+        public Rectangle toScreen(Rectangle area) {
+            double zoom = getZoom();
+            int x0 = (int) Math.floor(area.x * zoom + view.getTranslateX());
+            int y0 = (int) Math.floor(area.y * zoom + view.getTranslateY());
+            int x1 = (int) Math.ceil((area.x + area.width) * zoom + view.getTranslateX());
+            int y1 = (int) Math.ceil((area.y + area.height) * zoom + view.getTranslateY());
+            return new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+        }
+
+        // The part of the plan currently on screen
+        public Rectangle getVisiblePlanRect() {
+            return toPlan(getVisibleRect());
+        }
+
+        public void repaintPlan(Rectangle area) {
+            repaint(toScreen(area));
         }
         
+        // Area to repaint when a room moves: the room and its halo, plus every room
+        // touching it, since a door on a shared wall hides that wall along its whole length
+        public Rectangle roomDamage(Room room) {
+            Rectangle damage = new Rectangle(room.x - REPAINT_HALO, room.y - REPAINT_HALO,
+                                             room.width + 2 * REPAINT_HALO, room.height + 2 * REPAINT_HALO);
+            plan.roomIndex.query(damage.x, damage.y, damage.width, damage.height, other -> {
+                damage.add(other.x - REPAINT_HALO, other.y - REPAINT_HALO);
+                damage.add(other.x + other.width + REPAINT_HALO + 1, other.y + other.height + REPAINT_HALO + 1);
+                return true;
+            });
+            return damage;
+        }
+
+        public Rectangle furnitureDamage(FurnitureItem item) {
+            int halo = PlanPainter.furnitureHalo(item);
+            return new Rectangle(item.x - halo, item.y - halo, item.size.width + 2 * halo, item.size.height + 2 * halo);
+        }
+
+        public void toggleHud() {
+            showHud = !showHud;
+            if (showHud) {
+                hudRefresh.start();
+            } else {
+                hudRefresh.stop();
+            }
+            repaint(hudBounds());
+        }
+
+        public Rectangle hudBounds() {
+            Rectangle visible = getVisibleRect();
+            return new Rectangle(visible.x + 8, visible.y + 8, RenderMetrics.HUD_WIDTH,
+                                 RenderMetrics.HUD_LINES * RenderMetrics.HUD_LINE_HEIGHT + 10);
+        }
+
+        private void paintHud(Graphics2D g2d) {
+            Rectangle box = hudBounds();
+            Graphics2D hud = (Graphics2D) g2d.create();
+            hud.setColor(new Color(0, 0, 0, 170));
+            hud.fillRect(box.x, box.y, box.width, box.height);
+            hud.setColor(Color.WHITE);
+            hud.setFont(RenderMetrics.HUD_FONT);
+            hud.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            String[] lines = metrics.hudLines();
+            for (int i = 0; i < lines.length; i++) {
+                hud.drawString(lines[i], box.x + 6, box.y + 2 + (i + 1) * RenderMetrics.HUD_LINE_HEIGHT);
+            }
+            hud.dispose();
+        }
+
+        // Mouse events are timed around every listener, and drags are noted so the
+        // paint that follows can tell how long the user waited to see them
+        @Override
+        protected void processMouseEvent(MouseEvent e) {
+            RenderMetrics.MouseHandlerEvent event = new RenderMetrics.MouseHandlerEvent();
+            event.begin();
+            long start = System.nanoTime();
+            super.processMouseEvent(e);
+            metrics.mouseHandled(event, e, System.nanoTime() - start);
+        }
+
+        @Override
+        protected void processMouseMotionEvent(MouseEvent e) {
+            if (e.getID() == MouseEvent.MOUSE_DRAGGED && (draggedRoom != null || draggedItem != null || panStart != null)) {
+                metrics.dragStarted(e);
+            }
+            RenderMetrics.MouseHandlerEvent event = new RenderMetrics.MouseHandlerEvent();
+            event.begin();
+            long start = System.nanoTime();
+            super.processMouseMotionEvent(e);
+            metrics.mouseHandled(event, e, System.nanoTime() - start);
+        }
+
         @Override
         protected void paintComponent(Graphics g) {
+            RenderMetrics.PaintEvent event = new RenderMetrics.PaintEvent();
+            event.begin();
+            long start = System.nanoTime();
+            long allocatedBefore = RenderMetrics.threadAllocatedBytes();
             super.paintComponent(g);
             Graphics2D g2d = (Graphics2D) g;
-            
-            // Enable high-quality rendering
-            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-            
-            // Draw grid
-            g2d.setColor(Color.BLACK);
-            for (int x = 0; x < getWidth(); x += GRID_SIZE) {
-                for (int y = 0; y < getHeight(); y += GRID_SIZE) {
-                    g2d.fillOval(x - DOT_SIZE/2, y - DOT_SIZE/2, DOT_SIZE, DOT_SIZE);
-                }
-            }
-            
-            // Draw rooms
-            for (Room room : rooms) {
-                room.draw(g2d);
+
+            Rectangle clip = g2d.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, getWidth(), getHeight());
             }
+            AffineTransform oldTransform = g2d.getTransform();
+            g2d.transform(view);
+            painter.paint(g2d, plan, toPlan(clip), draggedRoom);
+            g2d.setTransform(oldTransform);
 
-            // Draw furniture and fixtures
-            for (FurnitureItem item : furnitureItems) {
-                item.draw(g2d);
+            long allocated = RenderMetrics.threadAllocatedBytes();
+            metrics.frame(event, painter, plan, clip, getZoom(), System.nanoTime() - start, allocated, allocated - allocatedBefore);
+            if (showHud && clip.intersects(hudBounds())) {
+                paintHud(g2d);
             }
         }
     }
     
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--render")) {
+            System.exit(BatchRenderer.run(Arrays.copyOfRange(args, 1, args.length)));
+        }
         SwingUtilities.invokeLater(() -> new FloorPlanner());
     }
 }   
\ No newline at end of file
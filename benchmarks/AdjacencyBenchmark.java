@@ -0,0 +1,270 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+// Times the room adjacency graph FloorPlanner.WallModel keeps on generated plans
+// of 100k and 1M rooms: neighbour lookups against the scan of every room that
+// hasAdjacentRoom used to make, single room edits, and splitting the plan into
+// groups joined by walls and by doors. The rooms are RoomStoreBenchmark's
+// jittered grid, each with a door, so some walls are shared and some are not.
+// The graph is checked against the shared walls a RoomStore finds in one
+// sweep, both as built and after rooms are dragged, rotated, removed and
+// added one at a time, and the groups against a union-find over those walls.
+//
+//   javac -d out FloorPlanner.java benchmarks/RoomStoreBenchmark.java benchmarks/AdjacencyBenchmark.java
+//   java -Djava.awt.headless=true -Xmx4g -cp out:. AdjacencyBenchmark
+public class AdjacencyBenchmark {
+    static final int PROBES = 1000;
+    static final int EDITS = 1000;
+
+    static volatile int sink;
+
+    public static void main(String[] args) {
+        System.out.printf("%10s %12s %12s %12s %14s %14s %10s%n", "rooms", "scan ns", "graph ns", "edit us",
+                          "by walls ms", "by doors ms", "groups");
+        for (int n : new int[]{100_000, 1_000_000}) {
+            FloorPlanner.FloorPlan plan = new FloorPlanner.FloorPlan();
+            plan.rooms = RoomStoreBenchmark.generateRooms(n);
+            plan.reindex();
+            check(Arrays.equals(edges(plan), storeEdges(plan)), n + " rooms: the graph has the walls a RoomStore finds");
+
+            // A side of each probe looked up by scanning every room, as hasAdjacentRoom
+            // did, and through the graph
+            Random random = new Random(5);
+            FloorPlanner.Room[] probes = new FloorPlanner.Room[PROBES];
+            for (int i = 0; i < PROBES; i++) {
+                probes[i] = plan.rooms.get(random.nextInt(n));
+            }
+            long start = System.nanoTime();
+            int found = 0;
+            for (int i = 0; i < PROBES; i++) {
+                found += scan(plan.rooms, probes[i], i & 3) ? 1 : 0;
+            }
+            double scanNs = (double) (System.nanoTime() - start) / PROBES;
+            int graphFound = 0;
+            for (int i = 0; i < PROBES; i++) {
+                graphFound += plan.walls.isShared(probes[i], i & 3) ? 1 : 0;
+            }
+            check(found == graphFound, n + " rooms: the graph finds the neighbours a scan of every room does");
+            int lookups = 10_000_000;
+            start = System.nanoTime();
+            int degrees = 0;
+            for (int i = 0; i < lookups; i++) {
+                FloorPlanner.Room room = probes[i % PROBES];
+                degrees += plan.walls.forEachNeighbour(room, i & 3, (side, other, from, to) -> to > from) ? 1 : 0;
+            }
+            double graphNs = (double) (System.nanoTime() - start) / lookups;
+            sink += degrees;
+
+            // Drag, rotate, remove and add rooms one at a time, as the canvas does
+            start = System.nanoTime();
+            for (int i = 0; i < EDITS; i++) {
+                FloorPlanner.Room room = plan.rooms.get(random.nextInt(plan.rooms.size()));
+                switch (i % 4) {
+                    case 0:
+                        room.x += random.nextInt(41) - 20;
+                        room.y += random.nextInt(41) - 20;
+                        plan.roomChanged(room);
+                        break;
+                    case 1:
+                        int width = room.width;
+                        room.width = room.height;
+                        room.height = width;
+                        plan.roomChanged(room);
+                        break;
+                    case 2:
+                        plan.removeRoom(room);
+                        break;
+                    default:
+                        FloorPlanner.Room added = new FloorPlanner.Room(room.x + room.width, room.y + 20, 150, 120,
+                                                                        "Kitchen", FloorPlanner.KITCHEN_COLOR);
+                        added.doors.add(new FloorPlanner.Door(0, 30, true, 40));
+                        plan.addRoom(added);
+                }
+            }
+            double editUs = (System.nanoTime() - start) / 1e3 / EDITS;
+            check(Arrays.equals(edges(plan), storeEdges(plan)),
+                  n + " rooms: after " + EDITS + " edits the graph still has the walls a RoomStore finds");
+
+            double[] groupMs = new double[2];
+            int groups = 0;
+            for (int doors = 0; doors < 2; doors++) {
+                start = System.nanoTime();
+                List<List<FloorPlanner.Room>> components = plan.walls.components(plan.rooms, doors == 1);
+                groupMs[doors] = (System.nanoTime() - start) / 1e6;
+                check(sameGroups(components, reference(plan, doors == 1), rows(plan.rooms)),
+                      n + " rooms: the " + components.size() + " groups joined by " + (doors == 1 ? "doors" : "walls")
+                      + " are the ones a union-find over the RoomStore's walls gives");
+                if (doors == 1) {
+                    groups = components.size();
+                    List<FloorPlanner.Room> largest = components.get(0);
+                    for (List<FloorPlanner.Room> component : components) {
+                        largest = component.size() > largest.size() ? component : largest;
+                    }
+                    IdentityHashMap<FloorPlanner.Room, Integer> distances = plan.walls.distances(largest.get(0), true);
+                    check(distances.size() == largest.size() && distances.get(largest.get(0)) == 0,
+                          n + " rooms: every room of the largest group is a distance from its first");
+                }
+            }
+            System.out.printf("%10d %12.0f %12.1f %12.1f %14.0f %14.0f %10d%n", n, scanNs, graphNs, editUs,
+                              groupMs[0], groupMs[1], groups);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    // hasAdjacentRoom as it was: every other room, tested against one side
+    static boolean scan(List<FloorPlanner.Room> rooms, FloorPlanner.Room room, int side) {
+        int tolerance = FloorPlanner.WallModel.WALL_TOLERANCE;
+        for (FloorPlanner.Room other : rooms) {
+            if (other == room) continue;
+            boolean horizontal = side == FloorPlanner.WallModel.TOP || side == FloorPlanner.WallModel.BOTTOM;
+            boolean along = horizontal ? room.x < other.x + other.width && room.x + room.width > other.x
+                                       : room.y < other.y + other.height && room.y + room.height > other.y;
+            if (along && Math.abs(line(room, side) - line(other, side ^ 1)) <= tolerance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static int line(FloorPlanner.Room room, int side) {
+        switch (side) {
+            case FloorPlanner.WallModel.TOP: return room.y;
+            case FloorPlanner.WallModel.BOTTOM: return room.y + room.height;
+            case FloorPlanner.WallModel.LEFT: return room.x;
+            default: return room.x + room.width;
+        }
+    }
+
+    // Every shared wall from both ends, as a sorted array of keys of the rooms'
+    // positions in the plan, the side and the stretch
+    static long[] edges(FloorPlanner.FloorPlan plan) {
+        IdentityHashMap<FloorPlanner.Room, Integer> rows = rows(plan.rooms);
+        long[][] keys = {new long[16]};
+        int[] count = {0};
+        for (FloorPlanner.Room room : plan.rooms) {
+            int a = rows.get(room);
+            plan.walls.forEachNeighbour(room, (side, other, from, to) -> {
+                add(keys, count, key(a, side, rows.get(other), from, to));
+                return true;
+            });
+        }
+        long[] result = Arrays.copyOf(keys[0], count[0]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    static long[] storeEdges(FloorPlanner.FloorPlan plan) {
+        IdentityHashMap<FloorPlanner.Room, Integer> rows = rows(plan.rooms);
+        FloorPlanner.RoomStore store = FloorPlanner.RoomStore.of(plan.rooms);
+        long[][] keys = {new long[16]};
+        int[] count = {0};
+        store.forEachSharedWall((a, side, b, from, to) -> {
+            int ra = rows.get(store.room(a)), rb = rows.get(store.room(b));
+            add(keys, count, key(ra, side, rb, from, to));
+            add(keys, count, key(rb, side ^ 1, ra, from, to));
+            return true;
+        });
+        long[] result = Arrays.copyOf(keys[0], count[0]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    static IdentityHashMap<FloorPlanner.Room, Integer> rows(List<FloorPlanner.Room> rooms) {
+        IdentityHashMap<FloorPlanner.Room, Integer> rows = new IdentityHashMap<>();
+        for (int i = 0; i < rooms.size(); i++) {
+            rows.put(rooms.get(i), i);
+        }
+        return rows;
+    }
+
+    static long key(int a, int side, int b, int from, int to) {
+        long h = ((long) a << 2 | side) * 0x9E3779B97F4A7C15L;
+        h = (h ^ b) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ from) * 0x165667B19E3779F9L;
+        return (h ^ to) * 0x9E3779B97F4A7C15L;
+    }
+
+    static void add(long[][] keys, int[] count, long key) {
+        if (count[0] == keys[0].length) {
+            keys[0] = Arrays.copyOf(keys[0], count[0] * 2);
+        }
+        keys[0][count[0]++] = key;
+    }
+
+    // Each room's group by union-find over the RoomStore's shared walls, with
+    // throughDoors only those a door of either room opens onto: a door on the side
+    // as WallModel files it, whose OPENING_LENGTH along the wall meets the stretch
+    static int[] reference(FloorPlanner.FloorPlan plan, boolean throughDoors) {
+        IdentityHashMap<FloorPlanner.Room, Integer> rows = rows(plan.rooms);
+        FloorPlanner.RoomStore store = FloorPlanner.RoomStore.of(plan.rooms);
+        int[] parent = new int[plan.rooms.size()];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        store.forEachSharedWall((a, side, b, from, to) -> {
+            FloorPlanner.Room ra = store.room(a), rb = store.room(b);
+            if (!throughDoors || doorOnto(ra, side, from, to) || doorOnto(rb, side ^ 1, from, to)) {
+                parent[find(parent, rows.get(ra))] = find(parent, rows.get(rb));
+            }
+            return true;
+        });
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = find(parent, i);
+        }
+        return parent;
+    }
+
+    static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    static boolean doorOnto(FloorPlanner.Room room, int side, int from, int to) {
+        boolean horizontal = side == FloorPlanner.WallModel.TOP || side == FloorPlanner.WallModel.BOTTOM;
+        int start = horizontal ? room.x : room.y, end = start + (horizontal ? room.width : room.height);
+        int length = FloorPlanner.WallModel.OPENING_LENGTH;
+        for (FloorPlanner.Door door : room.doors) {
+            int px = room.x + door.offsetX, py = room.y + door.offsetY;
+            int at = horizontal ? px : py, across = horizontal ? py : px;
+            if (door.isVertical != horizontal && Math.abs(line(room, side) - across) <= FloorPlanner.WallModel.DOOR_TOLERANCE
+                && start <= at && end >= at + length && at < to && at + length > from) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the groups are the reference's: the rooms of each group share a root,
+    // no two groups do, and every room is in one
+    static boolean sameGroups(List<List<FloorPlanner.Room>> components, int[] roots,
+                              IdentityHashMap<FloorPlanner.Room, Integer> rows) {
+        HashSet<Integer> groupRoots = new HashSet<>();
+        int total = 0;
+        for (List<FloorPlanner.Room> component : components) {
+            total += component.size();
+            int root = roots[rows.get(component.get(0))];
+            for (FloorPlanner.Room room : component) {
+                if (roots[rows.get(room)] != root) {
+                    return false;
+                }
+            }
+            if (!groupRoots.add(root)) {
+                return false;
+            }
+        }
+        return total == roots.length;
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+        System.out.println("OK: " + what);
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+// Journals EditLogBenchmark's 10,000-step editing session through
+// FloorPlanner.AutosaveJournal on generated plans of 1k and 100k rooms, and
+// compares what each step costs the EDT with what a full save of the plan costs.
+// Each session is then recovered from the autosave directory and checked against
+// the edited plan - once as is, once with compaction forced to snapshot several
+// times mid-session, and once with a step torn off the end of the journal. Last,
+// a plan whose rooms and furniture share corners, as legacy and imported plans
+// can, is edited and recovered, and a journal with a step that fails part way
+// through is recovered up to that step.
+//
+//   javac -d out FloorPlanner.java benchmarks/*.java
+//   java -Djava.awt.headless=true -cp out:. AutosaveBenchmark
+public class AutosaveBenchmark {
+    static final int STEPS = 10_000;
+    static final int UNDOS = 100;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%10s %12s %14s %14s%n", "rooms", "save ms", "EDT us/step", "bytes/step");
+        for (int n : new int[] {1_000, 100_000}) {
+            File directory = Files.createTempDirectory("autosave").toFile();
+            FloorPlanner.FloorPlan plan = HotPathBenchmark.generatePlan(n);
+            File base = new File(directory, "base." + FloorPlanner.PlanFile.EXTENSION);
+            long start = System.nanoTime();
+            plan.save(base);
+            long saveNanos = System.nanoTime() - start;
+
+            FloorPlanner.AutosaveJournal journal = FloorPlanner.AutosaveJournal.open(directory);
+            journal.attach(plan, base);
+            long[] journalNanos = new long[1];
+            plan.history.listener = new FloorPlanner.EditLog.Listener() {
+                public void applied(FloorPlanner.EditLog.Edit edit, boolean undone) {
+                    long t = System.nanoTime();
+                    journal.applied(edit, undone);
+                    journalNanos[0] += System.nanoTime() - t;
+                }
+
+                public void stepEnded() {
+                    long t = System.nanoTime();
+                    journal.stepEnded();
+                    journalNanos[0] += System.nanoTime() - t;
+                }
+            };
+            EditLogBenchmark.runSession(plan, new Random(42), STEPS);
+            for (int i = 0; i < UNDOS; i++) {
+                plan.history.undo(plan);
+            }
+            long journalBytes = journal.journalBytes();
+            journal.close();
+            System.out.printf("%10d %12.1f %14.2f %14.1f%n", n, saveNanos / 1e6,
+                    journalNanos[0] / 1e3 / (STEPS + UNDOS), (double) journalBytes / (STEPS + UNDOS));
+
+            check(describe(recover(directory)).equals(describe(plan)), n + " rooms: recovered plan matches the edited one");
+            deleteAll(directory);
+        }
+
+        // Compaction every 64 KB, then a crash part way through writing a step
+        File directory = Files.createTempDirectory("autosave").toFile();
+        FloorPlanner.FloorPlan plan = HotPathBenchmark.generatePlan(10_000);
+        File base = new File(directory, "base." + FloorPlanner.PlanFile.EXTENSION);
+        plan.save(base);
+        FloorPlanner.AutosaveJournal journal = FloorPlanner.AutosaveJournal.open(directory);
+        journal.compactBytes = 64 << 10;
+        journal.attach(plan, base);
+        EditLogBenchmark.runSession(plan, new Random(7), STEPS);
+        journal.close();
+        String[] left = directory.list();
+        check(left.length == 3, "compaction leaves one snapshot and one journal next to the base: " + String.join(", ", left));
+
+        File latest = null;
+        for (File file : directory.listFiles()) {
+            if (file.getName().startsWith("journal-")) {
+                latest = file;
+            }
+        }
+        try (FileOutputStream out = new FileOutputStream(latest, true)) {
+            out.write(new byte[] {0, 0, 0, 40, 1, 2, 3, 4, 5});
+        }
+        check(describe(recover(directory)).equals(describe(plan)), "compacted, torn journal recovers the edited plan");
+        deleteAll(directory);
+
+        sharedCorners();
+        failingStep();
+    }
+
+    // A step of two moves whose second names a room the journal never saw. Recovery
+    // stops before the step, with neither move applied, and leaves out the step after.
+    static void failingStep() throws Exception {
+        File directory = Files.createTempDirectory("autosave").toFile();
+        FloorPlanner.FloorPlan plan = new FloorPlanner.FloorPlan();
+        FloorPlanner.Room room = new FloorPlanner.Room(0, 0, 100, 200, "Bedroom", FloorPlanner.BEDROOM_COLOR);
+        plan.addRoom(room);
+        File base = new File(directory, "base." + FloorPlanner.PlanFile.EXTENSION);
+        plan.save(base);
+        FloorPlanner.AutosaveJournal journal = FloorPlanner.AutosaveJournal.open(directory);
+        journal.attach(plan, base);
+
+        moveRoom(plan, room, 200, 0);
+        String beforeFailure = describe(plan);
+        FloorPlanner.Room unseen = new FloorPlanner.Room(500, 500, 100, 200, "Kitchen", FloorPlanner.KITCHEN_COLOR);
+        plan.addRoom(unseen);
+        room.x = 300;
+        plan.roomChanged(room);
+        plan.history.recordDragStep(new FloorPlanner.EditLog.RoomMoved(room, 200, 0, 300, 0));
+        unseen.x = 700;
+        plan.roomChanged(unseen);
+        plan.history.recordDragStep(new FloorPlanner.EditLog.RoomMoved(unseen, 500, 500, 700, 500));
+        plan.history.endGesture();
+        moveRoom(plan, room, 400, 0);
+        journal.close();
+        check(describe(recover(directory)).equals(beforeFailure),
+              "a step that fails part way through is not half applied, and recovery stops before it");
+        deleteAll(directory);
+    }
+
+    // Two rooms and two items on one corner each, edited one at a time through the
+    // journal, plus an item moved onto the shared corner and then turned there
+    static void sharedCorners() throws Exception {
+        File directory = Files.createTempDirectory("autosave").toFile();
+        FloorPlanner.FloorPlan plan = new FloorPlanner.FloorPlan();
+        FloorPlanner.Room wide = new FloorPlanner.Room(0, 0, 300, 100, "Bedroom", FloorPlanner.BEDROOM_COLOR);
+        FloorPlanner.Room tall = new FloorPlanner.Room(0, 0, 100, 300, "Kitchen", FloorPlanner.KITCHEN_COLOR);
+        FloorPlanner.FurnitureItem chair = new FloorPlanner.FurnitureItem(20, 20, "chair", false);
+        FloorPlanner.FurnitureItem table = new FloorPlanner.FurnitureItem(20, 20, "table", false);
+        FloorPlanner.FurnitureItem bed = new FloorPlanner.FurnitureItem(60, 60, "bed", false);
+        plan.addRoom(wide);
+        plan.addRoom(tall);
+        plan.addFurniture(chair);
+        plan.addFurniture(table);
+        plan.addFurniture(bed);
+        File base = new File(directory, "base." + FloorPlanner.PlanFile.EXTENSION);
+        plan.save(base);
+        FloorPlanner.AutosaveJournal journal = FloorPlanner.AutosaveJournal.open(directory);
+        journal.attach(plan, base);
+
+        FloorPlanner.EditLog history = plan.history;
+        tall.rotate();
+        plan.roomChanged(tall);
+        history.record(new FloorPlanner.EditLog.RoomRotated(tall));
+        FloorPlanner.Door door = new FloorPlanner.Door(0, 40, true, 300);
+        tall.doors.add(door);
+        plan.roomChanged(tall);
+        history.record(new FloorPlanner.EditLog.DoorAdded(tall, door));
+        moveItem(plan, table, 20, 400);
+        moveItem(plan, bed, 20, 20);
+        bed.rotate();
+        plan.furnitureChanged(bed);
+        history.record(new FloorPlanner.EditLog.FurnitureRotated(bed));
+        moveItem(plan, bed, 60, 400);
+        FloorPlanner.FurnitureItem sofa = new FloorPlanner.FurnitureItem(20, 20, "sofa", false);
+        plan.addFurniture(sofa);
+        history.record(new FloorPlanner.EditLog.FurnitureAdded(sofa, plan.furnitureItems.size() - 1));
+        history.undo(plan);
+        moveRoom(plan, tall, 0, 500);
+        moveRoom(plan, tall, 0, 0);
+        int index = plan.rooms.indexOf(wide);
+        plan.removeRoom(wide);
+        history.record(new FloorPlanner.EditLog.RoomRemoved(wide, index));
+        journal.close();
+        check(describe(recover(directory)).equals(describe(plan)), "rooms and furniture sharing a corner recover as edited");
+        deleteAll(directory);
+
+        // A version 1 record names its object by corner alone, which two rooms share here
+        plan = new FloorPlanner.FloorPlan();
+        plan.addRoom(new FloorPlanner.Room(0, 0, 300, 100, "Bedroom", FloorPlanner.BEDROOM_COLOR));
+        plan.addRoom(new FloorPlanner.Room(0, 0, 100, 300, "Kitchen", FloorPlanner.KITCHEN_COLOR));
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(FloorPlanner.AutosaveJournal.ROOM_ROTATED);
+        out.writeInt(0);
+        out.writeInt(0);
+        boolean refused = false;
+        try {
+            FloorPlanner.AutosaveJournal.replay(plan, new DataInputStream(new ByteArrayInputStream(record.toByteArray())), 1);
+        } catch (IOException e) {
+            refused = true;
+        }
+        check(refused && plan.rooms.get(0).width == 300 && plan.rooms.get(1).width == 100,
+              "a record matching two objects is refused, not applied to either");
+    }
+
+    static void moveItem(FloorPlanner.FloorPlan plan, FloorPlanner.FurnitureItem item, int x, int y) {
+        int fromX = item.x, fromY = item.y;
+        item.x = x;
+        item.y = y;
+        plan.furnitureChanged(item);
+        plan.history.record(new FloorPlanner.EditLog.FurnitureMoved(item, fromX, fromY, x, y));
+    }
+
+    static void moveRoom(FloorPlanner.FloorPlan plan, FloorPlanner.Room room, int x, int y) {
+        int fromX = room.x, fromY = room.y;
+        room.x = x;
+        room.y = y;
+        plan.roomChanged(room);
+        plan.history.record(new FloorPlanner.EditLog.RoomMoved(room, fromX, fromY, x, y));
+    }
+
+    // Recovers the plan in directory the way the planner does on startup, and reads
+    // it back in full, since a large plan recovers paged
+    static FloorPlanner.FloorPlan recover(File directory) throws Exception {
+        FloorPlanner.AutosaveJournal journal = FloorPlanner.AutosaveJournal.open(directory);
+        FloorPlanner.FloorPlan recovered = journal.recover();
+        journal.flush();
+        // Recovery compacts, and a paged plan moves on to the snapshot on the EDT
+        javax.swing.SwingUtilities.invokeAndWait(() -> { });
+        File copy = File.createTempFile("recovered", "." + FloorPlanner.PlanFile.EXTENSION);
+        copy.deleteOnExit();
+        recovered.save(copy);
+        journal.close();
+        recovered.close();
+        return FloorPlanner.FloorPlan.read(copy);
+    }
+
+    // Every room and item, in position order, since a plan read from a file is in page order
+    static String describe(FloorPlanner.FloorPlan plan) {
+        ArrayList<String> objects = new ArrayList<>();
+        for (FloorPlanner.Room room : plan.rooms) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("room ").append(room.x).append(',').append(room.y).append(',').append(room.width).append(',')
+              .append(room.height).append(',').append(room.type).append(',').append(room.color.getRGB());
+            for (FloorPlanner.Door door : room.doors) {
+                sb.append(" door ").append(door.offsetX).append(',').append(door.offsetY).append(',')
+                  .append(door.length).append(',').append(door.isVertical);
+            }
+            for (FloorPlanner.Window window : room.windows) {
+                sb.append(" window ").append(window.offsetX).append(',').append(window.offsetY).append(',').append(window.isVertical);
+            }
+            objects.add(sb.toString());
+        }
+        for (FloorPlanner.FurnitureItem item : plan.furnitureItems) {
+            objects.add("item " + item.x + "," + item.y + "," + item.type + "," + item.isFixture + "," +
+                        item.rotation + "," + item.size.width + "," + item.size.height);
+        }
+        Collections.sort(objects);
+        return String.join("\n", objects);
+    }
+
+    static void deleteAll(File directory) {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+        System.out.println("OK: " + what);
+    }
+}
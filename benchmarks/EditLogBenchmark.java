@@ -0,0 +1,171 @@
+import java.util.Random;
+
+// Replays a 10,000-step editing session on a generated 10k-room plan through
+// FloorPlanner.EditLog the way the canvas records it: drags of 20 mouse steps
+// each, room and furniture rotations, added doors and furniture, with the
+// canvas's overlap checks. It then undoes the whole session, checks the plan is
+// back where it started, and redoes it, reporting the history's size per step
+// and the undo/redo times.
+//
+//   javac -d out FloorPlanner.java benchmarks/EditLogBenchmark.java
+//   java -Djava.awt.headless=true -cp out:. EditLogBenchmark
+public class EditLogBenchmark {
+    static final int ROOMS = 10_000;
+    static final int STEPS = 10_000;
+    static final int DRAG_EVENTS = 20;
+
+    public static void main(String[] args) {
+        checkPresses();
+        FloorPlanner.FloorPlan plan = HotPathBenchmark.generatePlan(ROOMS);
+        FloorPlanner.EditLog history = plan.history;
+        String before = describe(plan);
+
+        long heapBefore = usedHeap();
+        int dragEvents = runSession(plan, new Random(42), STEPS);
+        long heapAfter = usedHeap();
+        System.out.printf("%d steps (%d drag events) recorded as %d undo steps%n", STEPS, dragEvents, history.undoCount());
+        System.out.printf("history %d KB (%.0f bytes/step), heap grew %d KB including the plan's own additions%n",
+                history.bytes() / 1024, (double) history.bytes() / history.undoCount(), (heapAfter - heapBefore) / 1024);
+
+        String edited = describe(plan);
+        long start = System.nanoTime();
+        while (history.undo(plan)) {
+        }
+        long undoNanos = System.nanoTime() - start;
+        check(describe(plan).equals(before), "undoing everything restores the original plan");
+
+        start = System.nanoTime();
+        while (history.redo(plan)) {
+        }
+        long redoNanos = System.nanoTime() - start;
+        check(describe(plan).equals(edited), "redoing everything restores the edited plan");
+
+        System.out.printf("undo all %.1f ms (%.2f us/step), redo all %.1f ms%n",
+                undoNanos / 1e6, undoNanos / 1e3 / STEPS, redoNanos / 1e6);
+    }
+
+    // Makes steps random edits through plan.history the way the canvas does, and
+    // returns how many mouse drag events they took
+    static int runSession(FloorPlanner.FloorPlan plan, Random random, int steps) {
+        FloorPlanner.EditLog history = plan.history;
+        int dragEvents = 0;
+        for (int step = 0; step < steps; step++) {
+            int kind = random.nextInt(5);
+            FloorPlanner.Room room = plan.rooms.get(random.nextInt(plan.rooms.size()));
+            if (kind <= 1) {
+                // Drag: many small moves, then the snap on release, back to the start if it overlaps
+                int startX = room.x, startY = room.y;
+                for (int i = 0; i < DRAG_EVENTS; i++) {
+                    int fromX = room.x, fromY = room.y;
+                    room.x += random.nextInt(7) - 3;
+                    room.y += random.nextInt(7) - 3;
+                    plan.roomChanged(room);
+                    history.recordDragStep(new FloorPlanner.EditLog.RoomMoved(room, fromX, fromY, room.x, room.y));
+                    dragEvents++;
+                }
+                int fromX = room.x, fromY = room.y;
+                room.x = Math.round(room.x / 20f) * 20;
+                room.y = Math.round(room.y / 20f) * 20;
+                if (plan.checkOverlap(room)) {
+                    room.x = startX;
+                    room.y = startY;
+                }
+                plan.roomChanged(room);
+                history.record(new FloorPlanner.EditLog.RoomMoved(room, fromX, fromY, room.x, room.y));
+            } else if (kind == 2) {
+                room.rotate();
+                if (plan.checkOverlap(room)) {
+                    room.rotate();
+                } else {
+                    plan.roomChanged(room);
+                    history.record(new FloorPlanner.EditLog.RoomRotated(room));
+                }
+            } else if (kind == 3) {
+                FloorPlanner.Door door = new FloorPlanner.Door(random.nextInt(room.width), 0, false, room.width);
+                room.doors.add(door);
+                plan.roomChanged(room);
+                history.record(new FloorPlanner.EditLog.DoorAdded(room, door));
+            } else {
+                FloorPlanner.FurnitureItem item = new FloorPlanner.FurnitureItem(
+                        room.x + random.nextInt(room.width), room.y + random.nextInt(room.height), "chair", false);
+                if (!plan.furnitureOverlaps(item)) {
+                    plan.addFurniture(item);
+                    history.record(new FloorPlanner.EditLog.FurnitureAdded(item, plan.furnitureItems.size() - 1));
+                    item.rotate();
+                    plan.furnitureChanged(item);
+                    history.record(new FloorPlanner.EditLog.FurnitureRotated(item));
+                }
+            }
+            // The release
+            history.endGesture();
+        }
+        return dragEvents;
+    }
+
+    // A press that ends in a dialog never sees its release, so it must leave no
+    // gesture open for later edits to join, and a click that moves nothing must
+    // leave no step behind
+    static void checkPresses() {
+        FloorPlanner.FloorPlan plan = HotPathBenchmark.generatePlan(100);
+        FloorPlanner.EditLog history = plan.history;
+        FloorPlanner.Room a = plan.rooms.get(0), b = plan.rooms.get(1);
+
+        // Click on a room: the release records where the press left it
+        history.record(new FloorPlanner.EditLog.RoomMoved(a, a.x, a.y, a.x, a.y));
+        history.endGesture();
+        check(history.undoCount() == 0, "a click without a drag adds no undo step");
+
+        // A press shows a dialog, which swallows the release; then two edits from the controls
+        int aY = a.y + 50, bY = b.y;
+        a.y = aY;
+        plan.roomChanged(a);
+        history.record(new FloorPlanner.EditLog.RoomMoved(a, a.x, aY - 50, a.x, aY));
+        b.y += 50;
+        plan.roomChanged(b);
+        history.record(new FloorPlanner.EditLog.RoomMoved(b, b.x, bY, b.x, b.y));
+        check(history.undoCount() == 2, "edits after a press that ended in a dialog are separate undo steps");
+        history.undo(plan);
+        check(b.y == bY && a.y == aY, "and undo reverts only the last of them");
+
+        // A drag: every step and the release's snap undo as one
+        int startX = b.x;
+        for (int i = 0; i < DRAG_EVENTS; i++) {
+            b.x++;
+            plan.roomChanged(b);
+            history.recordDragStep(new FloorPlanner.EditLog.RoomMoved(b, b.x - 1, b.y, b.x, b.y));
+        }
+        history.endGesture();
+        check(history.undoCount() == 2, "a drag undoes as one step");
+        history.undo(plan);
+        check(b.x == startX && a.y == aY, "undoing a drag reverts only the drag");
+    }
+
+    // Every room's and item's geometry, doors and windows, in list order
+    static String describe(FloorPlanner.FloorPlan plan) {
+        StringBuilder sb = new StringBuilder();
+        for (FloorPlanner.Room room : plan.rooms) {
+            sb.append(room.x).append(',').append(room.y).append(',').append(room.width).append(',').append(room.height)
+              .append(',').append(room.doors.size()).append(',').append(room.windows.size()).append(';');
+        }
+        for (FloorPlanner.FurnitureItem item : plan.furnitureItems) {
+            sb.append(item.x).append(',').append(item.y).append(',').append(item.rotation).append(',')
+              .append(item.size.width).append(',').append(item.size.height).append(';');
+        }
+        return sb.toString();
+    }
+
+    static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+        System.out.println("OK: " + what);
+    }
+}
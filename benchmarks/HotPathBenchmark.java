@@ -0,0 +1,203 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.function.IntSupplier;
+
+// Times the planner's hot paths on generated plans of 10 to 100k rooms:
+// room and furniture overlap checks, room intersection, furniture hit tests,
+// wall model updates and shared-wall lookups (which replaced
+// Room.hasDoorOnWall), the canvas's hasAdjacentRoom, isDoorOverlap and
+// isWindowOverlap, an off-screen canvas paint, and plan save/load. Each case is warmed up, then measured over several timed
+// iterations, and results are fed to a sink so the JIT cannot drop the work.
+// Numbers are average ns per operation with the spread across iterations.
+//
+//   javac -d out FloorPlanner.java benchmarks/HotPathBenchmark.java
+//   java -Djava.awt.headless=true -cp out:. HotPathBenchmark [case filter] [room counts...]
+//
+// e.g. "HotPathBenchmark paint 1000 100000" runs only the paint case at two sizes.
+public class HotPathBenchmark {
+    static final int WARMUP_ITERATIONS = 3;
+    static final int MEASURE_ITERATIONS = 5;
+    static final long ITERATION_NANOS = 200_000_000L;
+
+    static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        int[] sizes = {10, 1_000, 10_000, 100_000};
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        FloorPlanner.loadIcons();
+        System.out.printf("%-26s %8s %16s %10s%n", "case", "rooms", "ns/op", "+-");
+        for (int n : sizes) {
+            run(filter, n);
+        }
+        System.out.println("(sink " + sink + ")");
+    }
+
+    static void run(String filter, int n) throws Exception {
+        FloorPlanner.FloorPlan plan = generatePlan(n);
+        ArrayList<FloorPlanner.Room> rooms = plan.rooms;
+        FloorPlanner.DrawingCanvas canvas = createCanvas(plan);
+        Random random = new Random(7);
+        FloorPlanner.Room[] probes = new FloorPlanner.Room[1024];
+        Point[] points = new Point[1024];
+        for (int i = 0; i < probes.length; i++) {
+            FloorPlanner.Room r = rooms.get(random.nextInt(rooms.size()));
+            probes[i] = new FloorPlanner.Room(r.x + 100, r.y + 100, 200, 200, "Bedroom", FloorPlanner.BEDROOM_COLOR);
+            points[i] = new Point(r.x + random.nextInt(r.width), r.y);
+        }
+        int[] next = new int[1];
+
+        bench(filter, "checkOverlap", n, () -> plan.checkOverlap(probes[next[0]++ & 1023]) ? 1 : 0);
+        bench(filter, "Room.intersects", n, () -> {
+            int i = next[0]++;
+            return rooms.get(i % rooms.size()).intersects(probes[i & 1023]) ? 1 : 0;
+        });
+        FloorPlanner.FurnitureItem[] itemProbes = new FloorPlanner.FurnitureItem[1024];
+        for (int i = 0; i < itemProbes.length; i++) {
+            itemProbes[i] = new FloorPlanner.FurnitureItem(probes[i].x, probes[i].y, "bed", false);
+        }
+        bench(filter, "furnitureOverlaps", n, () -> plan.furnitureOverlaps(itemProbes[next[0]++ & 1023]) ? 1 : 0);
+        bench(filter, "furnitureAt", n, () -> {
+            Point p = points[next[0]++ & 1023];
+            return plan.furnitureAt(p.x, p.y + 30) != null ? 1 : 0;
+        });
+        bench(filter, "WallModel.update", n, () -> {
+            FloorPlanner.Room room = rooms.get(next[0]++ % rooms.size());
+            plan.walls.update(room);
+            return room.hiddenWalls;
+        });
+        bench(filter, "WallModel.isShared", n, () -> {
+            int i = next[0]++;
+            return plan.walls.isShared(rooms.get(i % rooms.size()), i & 3) ? 1 : 0;
+        });
+        bench(filter, "canvas.hasAdjacentRoom", n, () -> {
+            int i = next[0]++;
+            return canvas.hasAdjacentRoom(rooms.get(i % rooms.size()), i & 3) ? 1 : 0;
+        });
+        bench(filter, "canvas.isDoorOverlap", n, () -> {
+            int i = next[0]++;
+            return canvas.isDoorOverlap(rooms.get(i % rooms.size()), points[i & 1023], false) ? 1 : 0;
+        });
+        bench(filter, "canvas.isWindowOverlap", n, () -> {
+            int i = next[0]++;
+            return canvas.isWindowOverlap(rooms.get(i % rooms.size()), points[i & 1023], false) ? 1 : 0;
+        });
+
+        BufferedImage image = new BufferedImage(1600, 1000, BufferedImage.TYPE_INT_RGB);
+        canvas.setSize(image.getWidth(), image.getHeight());
+        bench(filter, "canvas.paint 1600x1000", n, () -> {
+            Graphics2D g2d = image.createGraphics();
+            canvas.paint(g2d);
+            g2d.dispose();
+            return image.getRGB(next[0]++ % 1600, 500);
+        });
+
+        File file = File.createTempFile("hotpath", "." + FloorPlanner.PlanFile.EXTENSION);
+        file.deleteOnExit();
+        plan.save(file);
+        bench(filter, "FloorPlan.save", n, () -> {
+            try {
+                plan.save(file);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return (int) file.length();
+        });
+        bench(filter, "FloorPlan.open", n, () -> {
+            try {
+                FloorPlanner.FloorPlan loaded = FloorPlanner.FloorPlan.open(file);
+                loaded.close();
+                return loaded.rooms.size();
+            } catch (IOException | ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        bench(filter, "FloorPlan.read", n, () -> {
+            try {
+                return FloorPlanner.FloorPlan.read(file).rooms.size();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        file.delete();
+    }
+
+    static void bench(String filter, String name, int n, IntSupplier op) {
+        if (!name.contains(filter)) {
+            return;
+        }
+        double[] results = new double[MEASURE_ITERATIONS];
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURE_ITERATIONS; i++) {
+            long ops = 0;
+            int acc = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                acc += op.getAsInt();
+                ops++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ITERATION_NANOS);
+            sink += acc;
+            if (i >= WARMUP_ITERATIONS) {
+                results[i - WARMUP_ITERATIONS] = (double) elapsed / ops;
+            }
+        }
+        double mean = 0;
+        for (double r : results) {
+            mean += r;
+        }
+        mean /= results.length;
+        double variance = 0;
+        for (double r : results) {
+            variance += (r - mean) * (r - mean);
+        }
+        System.out.printf("%-26s %8d %16.1f %10.1f%n", name, n, mean, Math.sqrt(variance / results.length));
+    }
+
+    // Rooms edge to edge in rows, each with a door on its top wall and some with a
+    // window on the left, and one piece of furniture per room
+    static FloorPlanner.FloorPlan generatePlan(int n) {
+        Random random = new Random(42);
+        String[] roomTypes = {"Bedroom", "Bathroom", "Kitchen", "Living Room"};
+        Color[] colors = {FloorPlanner.BEDROOM_COLOR, FloorPlanner.BATHROOM_COLOR, FloorPlanner.KITCHEN_COLOR, FloorPlanner.LIVING_COLOR};
+        String[] furniture = FloorPlanner.FURNITURE_DIMENSIONS.keySet().toArray(new String[0]);
+        FloorPlanner.FloorPlan plan = new FloorPlanner.FloorPlan();
+        int perRow = (int) Math.ceil(Math.sqrt(n));
+        for (int i = 0; i < n; i++) {
+            int kind = random.nextInt(roomTypes.length);
+            FloorPlanner.Room room = new FloorPlanner.Room((i % perRow) * 200, (i / perRow) * 200, 200, 200, roomTypes[kind], colors[kind]);
+            room.doors.add(new FloorPlanner.Door(random.nextInt(180), 0, false, 200));
+            if (random.nextBoolean()) {
+                room.windows.add(new FloorPlanner.Window(0, random.nextInt(180), true));
+            }
+            plan.addRoom(room);
+            plan.addFurniture(new FloorPlanner.FurnitureItem(room.x + 20, room.y + 20, furniture[random.nextInt(furniture.length)], false));
+        }
+        return plan;
+    }
+
+    // FloorPlanner is a JFrame, which cannot be built without a display, but the
+    // canvas only needs its plan. Allocate one without running its constructor.
+    static FloorPlanner.DrawingCanvas createCanvas(FloorPlanner.FloorPlan plan) throws Exception {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+        unsafeField.setAccessible(true);
+        Method allocateInstance = unsafeClass.getMethod("allocateInstance", Class.class);
+        FloorPlanner planner = (FloorPlanner) allocateInstance.invoke(unsafeField.get(null), FloorPlanner.class);
+        planner.plan = plan;
+        return planner.new DrawingCanvas();
+    }
+}
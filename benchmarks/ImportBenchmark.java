@@ -0,0 +1,311 @@
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Times FloorPlanner.PlanImport on generated CSV and JSON files of 10k and 100k
+// rooms, each with doors, windows and furniture, against adding the same objects
+// one at a time as the planner's buttons do, less the repaint after each:
+// checkOverlap and addRoom for each room, the canvas's door and window rules and
+// a roomChanged for each opening, and an overlap check and addFurniture for each
+// item. The files carry known mistakes - overlapping rooms, bedroom doors facing
+// outside, windows between rooms, doors on doors, furniture outside any room or
+// on other furniture, bad lines - and the import must report each one and build
+// the same plan as the one-at-a-time adds. Also checks the import undoes and
+// redoes as one step, and that an import into a plan opened lazily is checked
+// against the pages not loaded as well.
+//
+//   javac -d out FloorPlanner.java benchmarks/ImportBenchmark.java
+//   java -Djava.awt.headless=true -Xmx2g -cp out:. ImportBenchmark
+public class ImportBenchmark {
+    static final String[] ROOM_TYPES = {"Bedroom", "Bathroom", "Kitchen", "Living Room"};
+    static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%10s %8s %12s %14s %12s%n", "rooms", "format", "import ms", "one by one ms", "violations");
+        for (int n : new int[]{10_000, 100_000}) {
+            for (String format : new String[]{"csv", "json"}) {
+                boolean json = format.equals("json");
+                File file = File.createTempFile("import", "." + format);
+                file.deleteOnExit();
+                Generated generated = generate(n);
+                try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+                    if (json) {
+                        writeJson(generated, out);
+                    } else {
+                        writeCsv(generated, out);
+                    }
+                }
+
+                // Best of RUNS, each into a fresh plan
+                FloorPlanner.FloorPlan imported = null, oneByOne = null;
+                FloorPlanner.PlanImport result = null;
+                int added = 0, refused = 0;
+                double importMs = Double.MAX_VALUE, oneByOneMs = Double.MAX_VALUE;
+                for (int run = 0; run < RUNS; run++) {
+                    imported = existingPlan();
+                    long start = System.nanoTime();
+                    result = FloorPlanner.PlanImport.read(file, imported.publish(), null);
+                    added = result.apply(imported);
+                    importMs = Math.min(importMs, (System.nanoTime() - start) / 1e6);
+
+                    oneByOne = existingPlan();
+                    Generated copy = generate(n);
+                    start = System.nanoTime();
+                    refused = addOneByOne(copy, oneByOne);
+                    oneByOne.publish();
+                    oneByOneMs = Math.min(oneByOneMs, (System.nanoTime() - start) / 1e6);
+                }
+
+                System.out.printf("%10d %8s %12.0f %14.0f %12d%n", n, format, importMs, oneByOneMs, result.violations.size());
+                check(result.violations.size() == generated.mistakes,
+                      n + " " + format + ": the import reports the " + generated.mistakes + " mistakes in the file");
+                check(refused == generated.mistakes - BAD_RECORDS,
+                      n + " " + format + ": adding one at a time refuses the same objects, bar the unreadable ones");
+                check(added == result.rooms.size() + result.items.size() && samePlan(imported, oneByOne),
+                      n + " " + format + ": the import builds the plan the one-at-a-time adds do");
+                if (n == 10_000 && !json) {
+                    imported.history.undo(imported);
+                    check(imported.rooms.size() == 1 && imported.furnitureItems.isEmpty() && imported.version().roomCount == 1,
+                          "undoing the import takes it all out in one step");
+                    imported.history.redo(imported);
+                    check(samePlan(imported, oneByOne), "redoing it puts it all back");
+                }
+            }
+        }
+        paged();
+    }
+
+    // A plan of 60k rooms opened lazily with only its corner loaded. A room imported
+    // onto a room far from the corner is refused, and an item imported into one is
+    // let in, also when the plan is paged while the import is checked.
+    static void paged() throws Exception {
+        FloorPlanner.FloorPlan plan = new FloorPlanner.FloorPlan();
+        for (int i = 0; i < 60_000; i++) {
+            plan.rooms.add(new FloorPlanner.Room((i % 250) * 200, (i / 250) * 200, 200, 200, "Kitchen", FloorPlanner.KITCHEN_COLOR));
+        }
+        plan.reindex();
+        File file = File.createTempFile("import", "." + FloorPlanner.PlanFile.EXTENSION);
+        file.deleteOnExit();
+        plan.save(file);
+        FloorPlanner.FloorPlan opened = FloorPlanner.FloorPlan.open(file);
+        opened.showPages(new Rectangle(0, 0, 1, 1));
+
+        File source = File.createTempFile("import", ".csv");
+        source.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(source, "UTF-8")) {
+            out.println("room,30000,30000,100,100,Kitchen");
+            out.println("room,60000,0,200,200,Kitchen");
+            out.println("furniture,40020,40020,chair,0");
+            out.println("furniture,60020,20,chair,0");
+        }
+        FloorPlanner.PlanImport result = FloorPlanner.PlanImport.read(
+                source, opened.pagedPlan.unloaded().addTo(opened.publish(), null), null);
+        check(result.rooms.size() == 1 && result.rooms.get(0).x == 60000 && result.items.size() == 2
+              && result.violations.size() == 1, "paged: a room on a room in a page not loaded is refused");
+        opened.showPages(new Rectangle(10_000, 10_000, 1, 1));
+        check(result.apply(opened) == 3, "paged: the rest is added after the plan was paged meanwhile");
+        opened.close();
+    }
+
+    // A plan with one room already in it, far from the rest
+    static FloorPlanner.FloorPlan existingPlan() {
+        FloorPlanner.FloorPlan plan = new FloorPlanner.FloorPlan();
+        plan.addRoom(new FloorPlanner.Room(-10_000, -10_000, 200, 200, "Kitchen", FloorPlanner.KITCHEN_COLOR));
+        plan.publish();
+        return plan;
+    }
+
+    // The objects written to a file, with their doors and windows on them, and the
+    // number of mistakes among them. The writers add BAD_RECORDS more that can't
+    // be read: a room with a width that is not a number, and an unknown item.
+    static class Generated {
+        final ArrayList<FloorPlanner.Room> rooms = new ArrayList<>();
+        final ArrayList<FloorPlanner.FurnitureItem> items = new ArrayList<>();
+        int mistakes = BAD_RECORDS;
+    }
+
+    static final int BAD_RECORDS = 2;
+
+    // n rooms in touching 200-unit cells. Every room has a door on its right wall,
+    // so a bedroom or bathroom with nothing to its right has one facing outside.
+    static Generated generate(int n) {
+        Random random = new Random(7);
+        Generated generated = new Generated();
+        int perRow = (int) Math.ceil(Math.sqrt(n));
+        for (int i = 0; i < n; i++) {
+            int col = i % perRow, row = i / perRow, x = col * 200, y = row * 200;
+            String type = ROOM_TYPES[random.nextInt(4)];
+            FloorPlanner.Room room = new FloorPlanner.Room(x, y, 200, 200, type, FloorPlanner.roomColor(type));
+            room.doors.add(new FloorPlanner.Door(200, 40, true, 200));
+            boolean outside = col == perRow - 1 || i == n - 1;
+            generated.mistakes += outside && (type.equals("Bedroom") || type.equals("Bathroom")) ? 1 : 0;
+            if (row == 0) {
+                room.windows.add(new FloorPlanner.Window(60, 0, false));
+            } else if (i % 10 == 0) {
+                room.windows.add(new FloorPlanner.Window(60, 0, false)); // onto the room above
+                generated.mistakes++;
+            }
+            if (i % 50 == 0) {
+                room.doors.add(new FloorPlanner.Door(200, 60, true, 200)); // onto the first door
+                generated.mistakes++;
+            }
+            generated.rooms.add(room);
+            if (i % 1000 == 500) {
+                FloorPlanner.Room inside = new FloorPlanner.Room(x + 50, y + 50, 100, 100, "Bedroom", FloorPlanner.BEDROOM_COLOR);
+                inside.doors.add(new FloorPlanner.Door(0, 30, true, 100));
+                generated.rooms.add(inside);
+                generated.mistakes++;
+            }
+        }
+        // On the room already in the plan
+        generated.rooms.add(new FloorPlanner.Room(-9_950, -9_950, 100, 100, "Kitchen", FloorPlanner.KITCHEN_COLOR));
+        generated.mistakes++;
+        for (int i = 0; i < n; i++) {
+            int x = (i % perRow) * 200, y = (i / perRow) * 200;
+            boolean bed = i % 2 == 0;
+            java.awt.Dimension size = bed ? FloorPlanner.FURNITURE_DIMENSIONS.get("bed") : FloorPlanner.FIXTURE_DIMENSIONS.get("stove");
+            boolean turned = i % 4 == 2;
+            generated.items.add(new FloorPlanner.FurnitureItem(x + 20, y + 20, bed ? "bed" : "stove", !bed, turned ? 90 : 0,
+                                                               turned ? size.height : size.width, turned ? size.width : size.height));
+            if (i % 100 == 0) {
+                generated.items.add(new FloorPlanner.FurnitureItem(x + 30, y + 30, "chair", false)); // on the first item
+                generated.mistakes++;
+            }
+            if (i % 500 == 0) {
+                generated.items.add(new FloorPlanner.FurnitureItem(-x - 500, y, "table", false)); // in no room
+                generated.mistakes++;
+            }
+        }
+        return generated;
+    }
+
+    static void writeCsv(Generated generated, PrintWriter out) {
+        out.println("# generated by ImportBenchmark");
+        for (FloorPlanner.Room room : generated.rooms) {
+            out.println("room," + room.x + "," + room.y + "," + room.width + "," + room.height + ",\"" + room.type + "\"");
+            for (FloorPlanner.Door door : room.doors) {
+                out.println("door," + door.offsetX + "," + door.offsetY + "," + door.isVertical);
+            }
+            for (FloorPlanner.Window window : room.windows) {
+                out.println("window," + window.offsetX + "," + window.offsetY + "," + window.isVertical);
+            }
+        }
+        out.println("room,1,2,wide,4,Bedroom");
+        out.println("door,0,1,true");
+        out.println();
+        for (FloorPlanner.FurnitureItem item : generated.items) {
+            out.println("furniture," + item.x + "," + item.y + "," + item.type + "," + item.rotation);
+        }
+        out.println("furniture,20,20,piano");
+    }
+
+    static void writeJson(Generated generated, PrintWriter out) {
+        out.print("{\"rooms\": [");
+        for (FloorPlanner.Room room : generated.rooms) {
+            out.print("\n  {\"x\": " + room.x + ", \"y\": " + room.y + ", \"width\": " + room.width
+                      + ", \"height\": " + room.height + ", \"type\": \"" + room.type + "\",\n   \"doors\": [");
+            for (int i = 0; i < room.doors.size(); i++) {
+                FloorPlanner.Door door = room.doors.get(i);
+                out.print((i > 0 ? ", " : "") + "{\"x\": " + door.offsetX + ", \"y\": " + door.offsetY + ", \"vertical\": " + door.isVertical + "}");
+            }
+            out.print("], \"windows\": [");
+            for (int i = 0; i < room.windows.size(); i++) {
+                FloorPlanner.Window window = room.windows.get(i);
+                out.print((i > 0 ? ", " : "") + "{\"x\": " + window.offsetX + ", \"y\": " + window.offsetY + ", \"vertical\": " + window.isVertical + "}");
+            }
+            out.print("]},");
+        }
+        out.print("\n  {\"x\": 1, \"y\": 2, \"width\": \"wide\", \"height\": 4, \"type\": \"Bedroom\", \"doors\": [{\"x\": 0, \"y\": 1, \"vertical\": true}]}");
+        out.print("\n], \"furniture\": [");
+        for (FloorPlanner.FurnitureItem item : generated.items) {
+            out.print("\n  {\"x\": " + item.x + ", \"y\": " + item.y + ", \"type\": \"" + item.type + "\", \"rotation\": " + item.rotation + "},");
+        }
+        out.println("\n  {\"x\": 20, \"y\": 20, \"type\": \"piano\"}\n]}");
+    }
+
+    // Adds the generated objects one at a time, as the planner's buttons do, and
+    // returns how many were refused. All the rooms go in first, so that doors and
+    // windows are judged against the walls they will end up on.
+    static int addOneByOne(Generated generated, FloorPlanner.FloorPlan plan) {
+        int refused = 0;
+        ArrayList<FloorPlanner.Room> added = new ArrayList<>();
+        ArrayList<List<FloorPlanner.Door>> doors = new ArrayList<>();
+        ArrayList<List<FloorPlanner.Window>> windows = new ArrayList<>();
+        for (FloorPlanner.Room room : generated.rooms) {
+            if (plan.checkOverlap(room)) {
+                refused++;
+                continue;
+            }
+            doors.add(new ArrayList<>(room.doors));
+            windows.add(new ArrayList<>(room.windows));
+            room.doors.clear();
+            room.windows.clear();
+            plan.addRoom(room);
+            added.add(room);
+        }
+        for (int i = 0; i < added.size(); i++) {
+            FloorPlanner.Room room = added.get(i);
+            int shared = 0;
+            for (int side = 0; side < 4; side++) {
+                shared |= plan.walls.isShared(room, side) ? 1 << side : 0;
+            }
+            for (FloorPlanner.Door door : doors.get(i)) {
+                if (FloorPlanner.PlanImport.doorProblem(room, room.x + door.offsetX, room.y + door.offsetY, door.isVertical, shared) == null) {
+                    room.doors.add(door);
+                    plan.roomChanged(room);
+                } else {
+                    refused++;
+                }
+            }
+            for (FloorPlanner.Window window : windows.get(i)) {
+                if (FloorPlanner.PlanImport.windowProblem(room, room.x + window.offsetX, room.y + window.offsetY, window.isVertical, shared) == null) {
+                    room.windows.add(window);
+                    plan.roomChanged(room);
+                } else {
+                    refused++;
+                }
+            }
+        }
+        for (FloorPlanner.FurnitureItem item : generated.items) {
+            if (plan.roomAt(item.x, item.y) == null || plan.furnitureOverlaps(item)) {
+                refused++;
+            } else {
+                plan.addFurniture(item);
+            }
+        }
+        return refused;
+    }
+
+    // Same rooms and furniture, with the same doors, windows and walls
+    static boolean samePlan(FloorPlanner.FloorPlan a, FloorPlanner.FloorPlan b) {
+        if (a.rooms.size() != b.rooms.size() || a.furnitureItems.size() != b.furnitureItems.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.rooms.size(); i++) {
+            FloorPlanner.Room ra = a.rooms.get(i), rb = b.rooms.get(i);
+            if (ra.x != rb.x || ra.y != rb.y || ra.width != rb.width || !ra.type.equals(rb.type)
+                || ra.doors.size() != rb.doors.size() || ra.windows.size() != rb.windows.size()
+                || ra.openWalls != rb.openWalls || ra.hiddenWalls != rb.hiddenWalls) {
+                return false;
+            }
+        }
+        for (int i = 0; i < a.furnitureItems.size(); i++) {
+            FloorPlanner.FurnitureItem fa = a.furnitureItems.get(i), fb = b.furnitureItems.get(i);
+            if (fa.x != fb.x || fa.y != fb.y || !fa.type.equals(fb.type) || fa.size.width != fb.size.width) {
+                return false;
+            }
+        }
+        return a.version().roomCount == b.version().roomCount && a.version().itemCount == b.version().itemCount;
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+        System.out.println("OK: " + what);
+    }
+}
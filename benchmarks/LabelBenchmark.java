@@ -0,0 +1,80 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+// Times room labels drawn through FloorPlanner.RenderContext.drawLabel against
+// plain drawString, for labels in Latin script and in scripts that need shaping
+// or bidi layout, and checks both give the same pixels.
+//
+//   javac -d out FloorPlanner.java benchmarks/LabelBenchmark.java
+//   java -Djava.awt.headless=true -cp out:. LabelBenchmark
+public class LabelBenchmark {
+    static final String[][] LABEL_SETS = {
+        {"Bedroom", "Bathroom", "Kitchen", "Living Room"},
+        {"Chambre", "Salle de bain", "Cuisine", "S\u00e9jour"},
+        {"\u063a\u0631\u0641\u0629 \u0627\u0644\u0646\u0648\u0645", "\u062d\u0645\u0627\u0645", "\u0645\u0637\u0628\u062e", "\u063a\u0631\u0641\u0629 \u0627\u0644\u0645\u0639\u064a\u0634\u0629"},
+        {"\u0936\u092f\u0928\u0915\u0915\u094d\u0937", "\u0938\u094d\u0928\u093e\u0928\u0918\u0930", "\u0930\u0938\u094b\u0908", "\u092c\u0948\u0920\u0915"},
+        {"Bedroom 2 / \u063a\u0631\u0641\u0629", "Bath / \u062d\u0645\u0627\u0645", "Kitchen / \u0930\u0938\u094b\u0908", "Living / \u0645\u062c\u0644\u0633"},
+    };
+    static final String[] SET_NAMES = {"latin", "latin-1", "arabic", "devanagari", "mixed"};
+    static final int LABELS = 20_000;
+
+    public static void main(String[] args) {
+        System.out.printf("%-12s %16s %16s %8s%n", "labels", "drawString ns", "drawLabel ns", "pixels");
+        for (int s = 0; s < LABEL_SETS.length; s++) {
+            String[] labels = LABEL_SETS[s];
+            BufferedImage plain = new BufferedImage(1600, 1000, BufferedImage.TYPE_INT_RGB);
+            BufferedImage cached = new BufferedImage(1600, 1000, BufferedImage.TYPE_INT_RGB);
+            Graphics2D plainG = graphics(plain), cachedG = graphics(cached);
+            FloorPlanner.RenderContext context = new FloorPlanner.RenderContext().begin(cachedG);
+            plainG.setRenderingHints(cachedG.getRenderingHints());
+            long plainNanos = Long.MAX_VALUE, cachedNanos = Long.MAX_VALUE;
+            for (int run = 0; run < 5; run++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < LABELS; i++) {
+                    plainG.drawString(labels[i & 3], x(i), y(i));
+                }
+                plainNanos = Math.min(plainNanos, System.nanoTime() - start);
+                start = System.nanoTime();
+                for (int i = 0; i < LABELS; i++) {
+                    context.drawLabel(labels[i & 3], x(i), y(i));
+                }
+                cachedNanos = Math.min(cachedNanos, System.nanoTime() - start);
+            }
+            System.out.printf("%-12s %16d %16d %8s%n", SET_NAMES[s], plainNanos / LABELS, cachedNanos / LABELS,
+                              samePixels(plain, cached) ? "same" : "DIFFER");
+        }
+
+        System.out.printf("labels are left out below zoom %.2f%n",
+                          FloorPlanner.RenderContext.MIN_LABEL_PIXELS / graphics(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)).getFont().getSize2D());
+    }
+
+    static Graphics2D graphics(BufferedImage image) {
+        Graphics2D g2d = image.createGraphics();
+        g2d.setColor(Color.WHITE);
+        g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setColor(Color.BLACK);
+        return g2d;
+    }
+
+    static float x(int i) {
+        return (i * 37) % 1450 + 0.3f;
+    }
+
+    static float y(int i) {
+        return (i * 53) % 950 + 20;
+    }
+
+    static boolean samePixels(BufferedImage a, BufferedImage b) {
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if (a.getRGB(x, y) != b.getRGB(x, y)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,65 @@
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+
+// Counts the bytes FloorPlanner.PlanPainter allocates per frame on generated
+// plans of 1k and 100k rooms: for a whole 1600x1000 view, and for the small
+// repaints of a room being dragged, where the room moves a unit per frame and
+// only the area it covered and now covers is painted. What is left is Java2D's
+// own per-fill state; a JFR recording of the same loop shows where it goes:
+//
+//   javac -d out FloorPlanner.java benchmarks/HotPathBenchmark.java benchmarks/PaintAllocationBenchmark.java
+//   java -Djava.awt.headless=true -cp out:. PaintAllocationBenchmark
+//   java -Djava.awt.headless=true -XX:StartFlightRecording=filename=paint.jfr,settings=profile -cp out:. PaintAllocationBenchmark
+//   jfr print --events jdk.ObjectAllocationSample paint.jfr
+public class PaintAllocationBenchmark {
+    static final int WARMUP_FRAMES = 2_000;
+    static final int FRAMES = 500;
+
+    public static void main(String[] args) {
+        FloorPlanner.loadIcons();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        BufferedImage image = new BufferedImage(1600, 1000, BufferedImage.TYPE_INT_RGB);
+        System.out.printf("%10s %18s %18s%n", "rooms", "view bytes/frame", "drag bytes/frame");
+        for (int n : new int[]{1_000, 100_000}) {
+            FloorPlanner.FloorPlan plan = HotPathBenchmark.generatePlan(n);
+            FloorPlanner.PlanPainter painter = new FloorPlanner.PlanPainter();
+            FloorPlanner.Room dragged = plan.rooms.get(0);
+            Rectangle view = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+            Rectangle damage = new Rectangle();
+            Graphics2D g2d = image.createGraphics();
+
+            long[] perFrame = new long[2];
+            for (int pass = 0; pass < 2; pass++) {
+                boolean drag = pass == 1;
+                for (int i = 0; i < WARMUP_FRAMES; i++) {
+                    paintFrame(painter, g2d, plan, view, damage, drag ? dragged : null, i);
+                }
+                long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                for (int i = 0; i < FRAMES; i++) {
+                    paintFrame(painter, g2d, plan, view, damage, drag ? dragged : null, i);
+                }
+                perFrame[pass] = (threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / FRAMES;
+            }
+            g2d.dispose();
+            System.out.printf("%10d %18d %18d%n", n, perFrame[0], perFrame[1]);
+        }
+    }
+
+    // Paints the whole view, or nudges the dragged room back and forth and paints
+    // the area it swept, as the canvas does on each mouse drag event
+    static void paintFrame(FloorPlanner.PlanPainter painter, Graphics2D g2d, FloorPlanner.FloorPlan plan,
+                           Rectangle view, Rectangle damage, FloorPlanner.Room dragged, int i) {
+        if (dragged == null) {
+            painter.paint(g2d, plan, view, null);
+            return;
+        }
+        int halo = FloorPlanner.PlanPainter.REPAINT_HALO;
+        int dx = i % 2 == 0 ? 1 : -1;
+        damage.setBounds(Math.min(dragged.x, dragged.x + dx) - halo, dragged.y - halo,
+                         dragged.width + 1 + 2 * halo, dragged.height + 2 * halo);
+        dragged.x += dx;
+        painter.paint(g2d, plan, damage, dragged);
+    }
+}
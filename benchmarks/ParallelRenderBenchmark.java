@@ -0,0 +1,80 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+
+// Renders a 4000x3000-unit area of a generated 100k-room plan off screen with
+// FloorPlanner.TiledExporter on fork-join pools of 1, 2, 4... threads up to
+// twice the core count, timing render (one image, painted in bands) and
+// writePng (bands streamed into a PNG), and the speedup over one thread. Each
+// pool's image is checked pixel for pixel against the single-threaded
+// PlanPainter.render, and the streamed PNG against the rendered image.
+//
+//   javac -d out FloorPlanner.java benchmarks/HotPathBenchmark.java benchmarks/ParallelRenderBenchmark.java
+//   java -Djava.awt.headless=true -cp out:. ParallelRenderBenchmark
+public class ParallelRenderBenchmark {
+    static final int ROOMS = 100_000;
+    static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        FloorPlanner.loadIcons();
+        FloorPlanner.FloorPlan plan = HotPathBenchmark.generatePlan(ROOMS);
+        Rectangle area = new Rectangle(1000, 1000, 4000, 3000);
+        double scale = 1;
+        BufferedImage expected = new FloorPlanner.PlanPainter().render(plan, area, scale);
+        File png = File.createTempFile("parallel", ".png");
+        png.deleteOnExit();
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d cores, %dx%d pixels%n", cores, expected.getWidth(), expected.getHeight());
+        System.out.printf("%8s %12s %10s %12s %10s%n", "threads", "render ms", "speedup", "png ms", "speedup");
+        double renderOne = 0, pngOne = 0;
+        for (int threads = 1; threads <= Math.max(2, 2 * cores); threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            FloorPlanner.TiledExporter exporter = new FloorPlanner.TiledExporter(plan, pool);
+            BufferedImage image = exporter.render(area, scale);
+            check(samePixels(expected, image), threads + " threads: render matches PlanPainter.render");
+            exporter.writePng(png, area, scale);
+            check(samePixels(expected, ImageIO.read(png)), threads + " threads: writePng matches PlanPainter.render");
+
+            long render = Long.MAX_VALUE, write = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                exporter.render(area, scale);
+                render = Math.min(render, System.nanoTime() - start);
+                start = System.nanoTime();
+                exporter.writePng(png, area, scale);
+                write = Math.min(write, System.nanoTime() - start);
+            }
+            pool.shutdown();
+            if (threads == 1) {
+                renderOne = render;
+                pngOne = write;
+            }
+            System.out.printf("%8d %12.1f %10.2f %12.1f %10.2f%n", threads, render / 1e6, renderOne / render,
+                              write / 1e6, pngOne / write);
+        }
+    }
+
+    static boolean samePixels(BufferedImage a, BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            return false;
+        }
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if ((a.getRGB(x, y) & 0xffffff) != (b.getRGB(x, y) & 0xffffff)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+        System.out.println("OK: " + what);
+    }
+}
@@ -0,0 +1,247 @@
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Random;
+
+// Times FloorPlanner.RoomPlacer against the way addRoom used to place rooms:
+// next to the reference room as the direction and alignment ask, wrapping to a
+// new row past ROW_WIDTH below a row found by scanning every room, and giving
+// up when that spot was taken. Two batches: a row-by-row layout built East from
+// an empty plan, checked to stay right of and below the origin, and rooms added next to random rooms of RoomStoreBenchmark's
+// jittered grid of 100k and 1M rooms with a fifth taken out, where most
+// asked-for spots are taken and some rooms fit no gap near them. Every placed
+// room is checked to overlap nothing, and for a sample the spot is checked to
+// be the nearest free one within the placer's reach: no pair of coordinates
+// flush with any room in the plan that costs less, or no more than the reach,
+// is free.
+//
+//   javac -d out FloorPlanner.java benchmarks/RoomStoreBenchmark.java benchmarks/PlacementBenchmark.java
+//   java -Djava.awt.headless=true -Xmx4g -cp out:. PlacementBenchmark
+public class PlacementBenchmark {
+    static final int BATCH = 20_000;
+    static final int VERIFIED = 100;
+    static final String[] DIRECTIONS = {"East", "South", "North", "West"};
+    static final String[] ALIGNMENTS = {"Left", "Center", "Right"};
+
+    public static void main(String[] args) {
+        System.out.printf("%-8s %10s %14s %12s %14s %12s%n", "layout", "rooms", "old us/room", "old failed",
+                          "placer us/room", "add us/room");
+        degenerate();
+        rows();
+        for (int n : new int[]{100_000, 1_000_000}) {
+            dense(n);
+        }
+    }
+
+    // Rooms with no area are turned away rather than searched for forever
+    static void degenerate() {
+        FloorPlanner.FloorPlan plan = new FloorPlanner.FloorPlan();
+        plan.addRoom(newRoom(0, 0, 100, 100));
+        FloorPlanner.RoomPlacer placer = new FloorPlanner.RoomPlacer(plan, 0, 0, FloorPlanner.ROW_WIDTH);
+        for (int[] size : new int[][]{{0, 0}, {0, 100}, {100, -5}}) {
+            boolean rejected = false;
+            try {
+                placer.place(newRoom(0, 0, size[0], size[1]), 0, 0, FloorPlanner.WallModel.RIGHT);
+            } catch (IllegalArgumentException e) {
+                rejected = true;
+            }
+            check(rejected, null);
+        }
+        check(true, "rooms 0 or less wide or tall are rejected");
+    }
+
+    // Rooms added East one after another from an empty plan, as someone laying
+    // out a building from the control panel would
+    static void rows() {
+        FloorPlanner.FloorPlan oldPlan = new FloorPlanner.FloorPlan(), plan = new FloorPlanner.FloorPlan();
+        FloorPlanner.RoomPlacer placer = new FloorPlanner.RoomPlacer(plan, 0, 0, FloorPlanner.ROW_WIDTH);
+        Random random = new Random(1);
+        FloorPlanner.Room oldReference = null, reference = null;
+        int failed = 0;
+        long oldNanos = 0, placeNanos = 0, addNanos = 0;
+        for (int i = 0; i < BATCH; i++) {
+            int width = 100 + 20 * random.nextInt(8), height = 100 + 20 * random.nextInt(8);
+            long start = System.nanoTime();
+            FloorPlanner.Room room = oldReference == null ? newRoom(0, 0, width, height)
+                                     : oldPlace(oldPlan, oldReference, width, height, "East", "Left");
+            if (room != null) {
+                oldPlan.addRoom(room);
+                oldReference = room;
+            } else {
+                failed++;
+            }
+            oldNanos += System.nanoTime() - start;
+
+            room = newRoom(0, 0, width, height);
+            start = System.nanoTime();
+            if (reference == null) {
+                placer.place(room, 0, 0, -1);
+            } else {
+                placer.placeNextTo(room, reference, "East", "Left");
+            }
+            long placed = System.nanoTime();
+            check(!plan.checkOverlap(room), null);
+            plan.addRoom(room);
+            reference = room;
+            placeNanos += placed - start;
+            addNanos += System.nanoTime() - placed;
+        }
+        check(plan.rooms.size() == BATCH, "rows: every room was placed and overlaps no other");
+        int widest = 0;
+        boolean onCanvas = true;
+        for (FloorPlanner.Room room : plan.rooms) {
+            widest = Math.max(widest, room.x + room.width);
+            onCanvas &= room.x >= 0 && room.y >= 0;
+        }
+        check(widest <= FloorPlanner.ROW_WIDTH, "rows: and none reaches past ROW_WIDTH");
+        check(onCanvas, "rows: or left of or above the origin");
+
+        // Equal rooms fill a row, then the next one starts at the left below it
+        plan = new FloorPlanner.FloorPlan();
+        placer = new FloorPlanner.RoomPlacer(plan, 0, 0, FloorPlanner.ROW_WIDTH);
+        reference = null;
+        for (int i = 0; i < 8; i++) {
+            FloorPlanner.Room room = newRoom(0, 0, 200, 200);
+            if (reference == null) {
+                placer.place(room, 0, 0, -1);
+            } else {
+                placer.placeNextTo(room, reference, "East", "Left");
+            }
+            plan.addRoom(room);
+            reference = room;
+        }
+        FloorPlanner.Room seventh = plan.rooms.get(6), eighth = plan.rooms.get(7);
+        check(seventh.x == 0 && seventh.y == 200 && eighth.x == 200 && eighth.y == 200,
+              "rows: a room past ROW_WIDTH starts the next row");
+        System.out.printf("%-8s %10d %14.1f %12d %14.1f %12.1f%n", "rows", BATCH, oldNanos / 1e3 / BATCH, failed,
+                          placeNanos / 1e3 / BATCH, addNanos / 1e3 / BATCH);
+    }
+
+    // Rooms added next to random rooms of a dense plan, in random directions
+    static void dense(int n) {
+        FloorPlanner.FloorPlan plan = new FloorPlanner.FloorPlan();
+        ArrayList<FloorPlanner.Room> rooms = RoomStoreBenchmark.generateRooms(n);
+        for (int i = 0; i < rooms.size(); i += 5) {
+            plan.rooms.add(rooms.get(i));
+            plan.rooms.add(rooms.get(i + 1 < rooms.size() ? i + 1 : i));
+            if (i + 2 < rooms.size()) plan.rooms.add(rooms.get(i + 2));
+            if (i + 4 < rooms.size()) plan.rooms.add(rooms.get(i + 4));
+        }
+        plan.reindex();
+        FloorPlanner.RoomPlacer placer = new FloorPlanner.RoomPlacer(plan, -FloorPlanner.RoomPlacer.NO_LIMIT,
+                                                                     -FloorPlanner.RoomPlacer.NO_LIMIT,
+                                                                     FloorPlanner.RoomPlacer.NO_LIMIT);
+        Random random = new Random(2);
+        int failed = 0, atAskedFor = 0, far = 0;
+        long oldNanos = 0, placeNanos = 0, addNanos = 0;
+        for (int i = 0; i < BATCH; i++) {
+            FloorPlanner.Room reference = plan.rooms.get(random.nextInt(plan.rooms.size()));
+            int width = 100 + 20 * random.nextInt(8), height = 100 + 20 * random.nextInt(8);
+            int d = random.nextInt(4);
+            String direction = DIRECTIONS[d], alignment = ALIGNMENTS[random.nextInt(3)];
+
+            long start = System.nanoTime();
+            failed += oldPlace(plan, reference, width, height, direction, alignment) == null ? 1 : 0;
+            oldNanos += System.nanoTime() - start;
+
+            FloorPlanner.Room room = newRoom(0, 0, width, height);
+            Point asked = FloorPlanner.calculatePosition(reference, direction, alignment, width, height);
+            int side = new int[]{FloorPlanner.WallModel.RIGHT, FloorPlanner.WallModel.BOTTOM,
+                                 FloorPlanner.WallModel.TOP, FloorPlanner.WallModel.LEFT}[d];
+            start = System.nanoTime();
+            placer.place(room, asked.x, asked.y, side);
+            long placed = System.nanoTime();
+            check(!plan.checkOverlap(room), null);
+            atAskedFor += room.x == asked.x && room.y == asked.y ? 1 : 0;
+            long cost = cost(room.x - asked.x, backX(side)) + cost(room.y - asked.y, backY(side));
+            long reach = FloorPlanner.RoomPlacer.reach(room);
+            far += cost > reach ? 1 : 0;
+            if (i < VERIFIED) {
+                check(nearest(plan, room, asked, side, Math.min(cost, reach + 1)), null);
+            }
+            long adding = System.nanoTime();
+            plan.addRoom(room);
+            placeNanos += placed - start;
+            addNanos += System.nanoTime() - adding;
+        }
+        check(true, n + " rooms: " + BATCH + " rooms placed overlapping nothing, " + atAskedFor
+                    + " where asked, " + far + " further than the search reaches, and the first " + VERIFIED
+                    + " at the nearest free spot within it");
+        System.out.printf("%-8s %10d %14.1f %12d %14.1f %12.1f%n", "dense", n, oldNanos / 1e3 / BATCH, failed,
+                          placeNanos / 1e3 / BATCH, addNanos / 1e3 / BATCH);
+    }
+
+    static FloorPlanner.Room newRoom(int x, int y, int width, int height) {
+        return new FloorPlanner.Room(x, y, width, height, "Bedroom", FloorPlanner.BEDROOM_COLOR);
+    }
+
+    // addRoom as it was, or null where the spot it chose was taken
+    static FloorPlanner.Room oldPlace(FloorPlanner.FloorPlan plan, FloorPlanner.Room reference, int width, int height,
+                                      String direction, String alignment) {
+        Point position = FloorPlanner.calculatePosition(reference, direction, alignment, width, height);
+        if (position.x + width >= FloorPlanner.ROW_WIDTH) {
+            position.x = 0;
+            int temp = 0;
+            for (FloorPlanner.Room room : plan.rooms) {
+                if (temp <= room.height && position.y == room.y) {
+                    temp = room.height;
+                }
+            }
+            position.y = position.y + temp;
+        }
+        FloorPlanner.Room room = newRoom(position.x, position.y, width, height);
+        return plan.checkOverlap(room) ? null : room;
+    }
+
+    // Whether no spot costing less than best is free, trying every pair of
+    // coordinates the room would have if flush with some room in the plan
+    static boolean nearest(FloorPlanner.FloorPlan plan, FloorPlanner.Room room, Point asked, int side, long best) {
+        int backX = backX(side), backY = backY(side);
+        ArrayList<Integer> xs = new ArrayList<>(), ys = new ArrayList<>();
+        xs.add(asked.x);
+        ys.add(asked.y);
+        for (FloorPlanner.Room other : plan.rooms) {
+            for (int x : new int[]{other.x + other.width, other.x - room.width}) {
+                if (cost(x - asked.x, backX) < best) {
+                    xs.add(x);
+                }
+            }
+            for (int y : new int[]{other.y + other.height, other.y - room.height}) {
+                if (cost(y - asked.y, backY) < best) {
+                    ys.add(y);
+                }
+            }
+        }
+        FloorPlanner.Room probe = newRoom(0, 0, room.width, room.height);
+        for (int x : xs) {
+            for (int y : ys) {
+                probe.x = x;
+                probe.y = y;
+                if (cost(x - asked.x, backX) + cost(y - asked.y, backY) < best && !plan.checkOverlap(probe)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static int backX(int side) {
+        return side == FloorPlanner.WallModel.RIGHT ? -1 : side == FloorPlanner.WallModel.LEFT ? 1 : 0;
+    }
+
+    static int backY(int side) {
+        return side == FloorPlanner.WallModel.BOTTOM ? -1 : side == FloorPlanner.WallModel.TOP ? 1 : 0;
+    }
+
+    static long cost(int move, int back) {
+        return (long) Math.abs(move) * (Integer.signum(move) == back ? 2 : 1);
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+        if (what != null) {
+            System.out.println("OK: " + what);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+
+// Saves and loads a generated 100k-object plan (50k rooms with doors and
+// windows, 50k furniture items) with FloorPlanner.PlanFile and with the
+// ObjectOutputStream path savePlan/loadPlan used before, and checks that the
+// PlanFile round trip gives back the same plan. PlanFile groups objects by
+// page, so the round trip is compared in position order. Also opens the bundled
+// floorplan.ser headless, so run it from the repository root, and checks that a
+// canvas showing a lazily opened plan pages it in when resized, not when painted.
+//
+//   javac -d out FloorPlanner.java benchmarks/HotPathBenchmark.java benchmarks/PlanFileBenchmark.java
+//   java -Djava.awt.headless=true -cp out PlanFileBenchmark
+public class PlanFileBenchmark {
+    static final int ROOMS = 50_000;
+    static final int ITEMS = 50_000;
+    static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        ArrayList<FloorPlanner.Room> rooms = new ArrayList<>();
+        ArrayList<FloorPlanner.FurnitureItem> items = new ArrayList<>();
+        generatePlan(rooms, items);
+
+        File planFile = File.createTempFile("bench", "." + FloorPlanner.PlanFile.EXTENSION);
+        File serFile = File.createTempFile("bench", ".ser");
+        planFile.deleteOnExit();
+        serFile.deleteOnExit();
+
+        ArrayList<FloorPlanner.Room> loadedRooms = new ArrayList<>();
+        ArrayList<FloorPlanner.FurnitureItem> loadedItems = new ArrayList<>();
+        FloorPlanner.PlanFile.write(planFile, rooms, items);
+        FloorPlanner.PlanFile.read(planFile, loadedRooms, loadedItems);
+        verifyRoundTrip(rooms, items, loadedRooms, loadedItems);
+        verifyLegacyPlan(new File("floorplan.ser"));
+        verifyPagedCanvas(planFile);
+
+        long planWrite = Long.MAX_VALUE, planRead = Long.MAX_VALUE;
+        long serWrite = Long.MAX_VALUE, serRead = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            FloorPlanner.PlanFile.write(planFile, rooms, items);
+            planWrite = Math.min(planWrite, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            FloorPlanner.PlanFile.read(planFile, new ArrayList<>(), new ArrayList<>());
+            planRead = Math.min(planRead, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(serFile))) {
+                oos.writeObject(rooms);
+                oos.writeObject(items);
+            }
+            serWrite = Math.min(serWrite, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(serFile))) {
+                ois.readObject();
+                ois.readObject();
+            }
+            serRead = Math.min(serRead, System.nanoTime() - start);
+        }
+
+        System.out.printf("%-8s %12s %12s %12s%n", "format", "write ms", "read ms", "size KB");
+        System.out.printf("%-8s %12d %12d %12d%n", "fplan", planWrite / 1_000_000, planRead / 1_000_000, planFile.length() / 1024);
+        System.out.printf("%-8s %12d %12d %12d%n", "ser", serWrite / 1_000_000, serRead / 1_000_000, serFile.length() / 1024);
+    }
+
+    static void generatePlan(ArrayList<FloorPlanner.Room> rooms, ArrayList<FloorPlanner.FurnitureItem> items) {
+        Random random = new Random(42);
+        String[] roomTypes = {"Bedroom", "Bathroom", "Kitchen", "Living Room"};
+        Color[] colors = {FloorPlanner.BEDROOM_COLOR, FloorPlanner.BATHROOM_COLOR, FloorPlanner.KITCHEN_COLOR, FloorPlanner.LIVING_COLOR};
+        String[] furniture = FloorPlanner.FURNITURE_DIMENSIONS.keySet().toArray(new String[0]);
+        String[] fixtures = FloorPlanner.FIXTURE_DIMENSIONS.keySet().toArray(new String[0]);
+        int perRow = (int) Math.sqrt(ROOMS);
+        for (int i = 0; i < ROOMS; i++) {
+            int kind = random.nextInt(roomTypes.length);
+            FloorPlanner.Room room = new FloorPlanner.Room((i % perRow) * 200, (i / perRow) * 200, 200, 200, roomTypes[kind], colors[kind]);
+            room.doors.add(new FloorPlanner.Door(random.nextInt(180), 0, false, 200));
+            if (random.nextBoolean()) {
+                room.windows.add(new FloorPlanner.Window(0, random.nextInt(180), true));
+            }
+            rooms.add(room);
+        }
+        for (int i = 0; i < ITEMS; i++) {
+            FloorPlanner.Room room = rooms.get(i % ROOMS);
+            boolean isFixture = random.nextBoolean();
+            String[] types = isFixture ? fixtures : furniture;
+            FloorPlanner.FurnitureItem item = new FloorPlanner.FurnitureItem(room.x + 20, room.y + 20, types[random.nextInt(types.length)], isFixture);
+            if (random.nextBoolean()) {
+                item.rotate();
+            }
+            items.add(item);
+        }
+    }
+
+    static void verifyRoundTrip(ArrayList<FloorPlanner.Room> rooms, ArrayList<FloorPlanner.FurnitureItem> items,
+                                ArrayList<FloorPlanner.Room> loadedRooms, ArrayList<FloorPlanner.FurnitureItem> loadedItems) {
+        rooms = new ArrayList<>(rooms);
+        items = new ArrayList<>(items);
+        Comparator<FloorPlanner.Room> roomOrder = Comparator.<FloorPlanner.Room>comparingInt(r -> r.y).thenComparingInt(r -> r.x);
+        Comparator<FloorPlanner.FurnitureItem> itemOrder = Comparator.<FloorPlanner.FurnitureItem>comparingInt(i -> i.y).thenComparingInt(i -> i.x);
+        rooms.sort(roomOrder);
+        loadedRooms.sort(roomOrder);
+        items.sort(itemOrder);
+        loadedItems.sort(itemOrder);
+        check(rooms.size() == loadedRooms.size(), "room count");
+        check(items.size() == loadedItems.size(), "furniture count");
+        for (int i = 0; i < rooms.size(); i++) {
+            FloorPlanner.Room a = rooms.get(i), b = loadedRooms.get(i);
+            check(a.x == b.x && a.y == b.y && a.width == b.width && a.height == b.height, "room bounds " + i);
+            check(a.type.equals(b.type) && a.color.equals(b.color), "room type " + i);
+            check(a.doors.size() == b.doors.size() && a.windows.size() == b.windows.size(), "room openings " + i);
+            for (int d = 0; d < a.doors.size(); d++) {
+                FloorPlanner.Door x = a.doors.get(d), y = b.doors.get(d);
+                check(x.offsetX == y.offsetX && x.offsetY == y.offsetY && x.isVertical == y.isVertical && x.length == y.length, "door " + i);
+            }
+            for (int w = 0; w < a.windows.size(); w++) {
+                FloorPlanner.Window x = a.windows.get(w), y = b.windows.get(w);
+                check(x.offsetX == y.offsetX && x.offsetY == y.offsetY && x.isVertical == y.isVertical, "window " + i);
+            }
+        }
+        for (int i = 0; i < items.size(); i++) {
+            FloorPlanner.FurnitureItem a = items.get(i), b = loadedItems.get(i);
+            check(a.x == b.x && a.y == b.y && a.type.equals(b.type) && a.isFixture == b.isFixture &&
+                  a.rotation == b.rotation && a.size.equals(b.size), "furniture " + i);
+        }
+        System.out.println("Round trip OK: " + rooms.size() + " rooms, " + items.size() + " furniture items");
+    }
+
+    // The .ser plan bundled with the planner, saved when its objects still held the
+    // planner window, opens headless without building that window
+    static void verifyLegacyPlan(File file) throws Exception {
+        for (FloorPlanner.FloorPlan plan : new FloorPlanner.FloorPlan[]{FloorPlanner.FloorPlan.open(file),
+                                                                        FloorPlanner.FloorPlan.read(file)}) {
+            check(plan.rooms.size() == 6 && plan.furnitureItems.size() == 5, "legacy plan object count");
+            FloorPlanner.Room room = plan.rooms.get(0);
+            check(room.width > 0 && room.height > 0 && room.type != null && room.color != null, "legacy room");
+        }
+        System.out.println("Legacy plan OK: " + file);
+    }
+
+    // Paints before the canvas's resize is handled, so with nothing paged in yet
+    static void verifyPagedCanvas(File file) throws Exception {
+        FloorPlanner.FloorPlan plan = FloorPlanner.FloorPlan.open(file);
+        FloorPlanner.DrawingCanvas canvas = HotPathBenchmark.createCanvas(plan);
+        BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        int[] resident = new int[3];
+        javax.swing.SwingUtilities.invokeAndWait(() -> {
+            canvas.setSize(800, 600);
+            canvas.paint(image.createGraphics());
+            resident[0] = plan.pagedPlan.residentPageCount();
+        });
+        javax.swing.SwingUtilities.invokeAndWait(() -> {
+            resident[1] = plan.pagedPlan.residentPageCount();
+            canvas.panBy(-5000, -5000);
+            canvas.paint(image.createGraphics());
+            resident[2] = plan.pagedPlan.residentPageCount();
+        });
+        check(resident[0] == 0, "painting pages nothing in");
+        check(resident[1] > 0 && resident[2] > resident[1], "resizing and panning page in what comes into view");
+        plan.close();
+        System.out.println("Paged canvas OK: " + resident[1] + " pages after resizing, " + resident[2] + " after panning");
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Round trip mismatch: " + what);
+        }
+    }
+}
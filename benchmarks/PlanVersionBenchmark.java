@@ -0,0 +1,146 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Publishes FloorPlanner.PlanVersion snapshots from generated plans of 1k and
+// 100k rooms. For each size it reports the time to publish the whole plan, the
+// time for a one-room edit plus publishing it, and the heap each retained
+// version adds on top of the one before, then
+// replays an editing session while a second thread keeps reading the latest
+// version, checking that every version it sees is whole: its object counts add
+// up and no two of its rooms overlap. Finally a version is rendered and
+// compared pixel for pixel with the plan it came from.
+//
+//   javac -d out FloorPlanner.java benchmarks/HotPathBenchmark.java benchmarks/EditLogBenchmark.java benchmarks/PlanVersionBenchmark.java
+//   java -Djava.awt.headless=true -cp out:. PlanVersionBenchmark
+public class PlanVersionBenchmark {
+    static final int PUBLISHES = 20_000;
+    static final int RETAINED = 1_000;
+    static final int SESSION_STEPS = 2_000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%10s %14s %16s %16s %14s%n", "rooms", "first pub ms", "edit+pub us", "bytes/version", "versions read");
+        for (int n : new int[]{1_000, 100_000}) {
+            FloorPlanner.FloorPlan plan = HotPathBenchmark.generatePlan(n);
+            long start = System.nanoTime();
+            FloorPlanner.PlanVersion first = plan.publish();
+            double firstMs = (System.nanoTime() - start) / 1e6;
+            check(first.roomCount == n && first.itemCount == n, n + " rooms: the first version holds the whole plan");
+
+            // Nudge one room back and forth, publishing after each move. Moves come in
+            // pairs, so every room is back in place afterwards.
+            FloorPlanner.Room room = plan.rooms.get(n / 2);
+            for (int i = 0; i < PUBLISHES; i++) {
+                if (i == PUBLISHES / 2) {
+                    start = System.nanoTime();
+                }
+                nudge(plan, room, i);
+                plan.publish();
+            }
+            double publishUs = (System.nanoTime() - start) / 1e3 / (PUBLISHES - PUBLISHES / 2);
+
+            ArrayList<FloorPlanner.PlanVersion> retained = new ArrayList<>();
+            long heapBefore = EditLogBenchmark.usedHeap();
+            for (int i = 0; i < RETAINED; i++) {
+                nudge(plan, plan.rooms.get(i / 2 * 7 % n), i);
+                retained.add(plan.publish());
+            }
+            long bytesPerVersion = (EditLogBenchmark.usedHeap() - heapBefore) / RETAINED;
+            retained.clear();
+
+            int versionsRead = readWhileEditing(plan, n);
+            System.out.printf("%10d %14.1f %16.2f %16d %14d%n", n, firstMs, publishUs, bytesPerVersion, versionsRead);
+
+            FloorPlanner.PlanVersion version = plan.version();
+            check(version.roomCount == plan.rooms.size() && version.itemCount == plan.furnitureItems.size(),
+                  n + " rooms: the last version has the plan's object counts");
+            Rectangle area = new Rectangle(130, 90, 1500, 900);
+            FloorPlanner.PlanPainter painter = new FloorPlanner.PlanPainter();
+            check(samePixels(painter.render(plan, area, 1), painter.render(version, area, 1)),
+                  n + " rooms: the last version renders the same as the plan");
+        }
+    }
+
+    // Moves room one unit right on even calls and back on odd ones
+    static void nudge(FloorPlanner.FloorPlan plan, FloorPlanner.Room room, int i) {
+        room.x += i % 2 == 0 ? 1 : -1;
+        plan.roomChanged(room);
+    }
+
+    // Replays an editing session through the history, which publishes after every
+    // step, while another thread checks each new version it finds. Returns how many
+    // versions that thread checked.
+    static int readWhileEditing(FloorPlanner.FloorPlan plan, int n) throws InterruptedException {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        int[] versionsRead = new int[1];
+        Thread reader = new Thread(() -> {
+            Random random = new Random(7);
+            long last = -1;
+            while (!done.get() && failure.get() == null) {
+                FloorPlanner.PlanVersion version = plan.version();
+                if (version.number == last) {
+                    continue;
+                }
+                last = version.number;
+                versionsRead[0]++;
+                String problem = problemWith(version, random);
+                if (problem != null) {
+                    failure.set("version " + version.number + ": " + problem);
+                }
+            }
+        });
+        reader.start();
+        EditLogBenchmark.runSession(plan, new Random(42), SESSION_STEPS);
+        done.set(true);
+        reader.join();
+        check(failure.get() == null, n + " rooms: every version read during the session is whole"
+              + (failure.get() != null ? " (" + failure.get() + ")" : ""));
+        return versionsRead[0];
+    }
+
+    // Why the version is not a whole plan, or null if it is. Counts every object, and
+    // checks a sample of rooms against their neighbours for overlaps.
+    static String problemWith(FloorPlanner.PlanVersion version, Random random) {
+        ArrayList<FloorPlanner.Room> rooms = new ArrayList<>();
+        version.forEachRoom(rooms::add);
+        int[] items = new int[1];
+        version.forEachFurniture(item -> ++items[0] > 0);
+        if (rooms.size() != version.roomCount || items[0] != version.itemCount) {
+            return rooms.size() + " rooms and " + items[0] + " items, expected " + version.roomCount + " and " + version.itemCount;
+        }
+        for (int i = 0; i < 200 && !rooms.isEmpty(); i++) {
+            FloorPlanner.Room room = rooms.get(random.nextInt(rooms.size()));
+            boolean clear = version.queryRooms(room.x, room.y, room.width, room.height,
+                                               other -> other == room || !other.intersects(room));
+            if (!clear) {
+                return "room at " + room.x + "," + room.y + " overlaps another";
+            }
+        }
+        return null;
+    }
+
+    static boolean samePixels(BufferedImage a, BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            return false;
+        }
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if (a.getRGB(x, y) != b.getRGB(x, y)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+        System.out.println("OK: " + what);
+    }
+}
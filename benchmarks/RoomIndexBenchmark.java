@@ -0,0 +1,98 @@
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Random;
+
+// Compares FloorPlanner.SpatialGrid overlap queries against the old linear scan
+// on generated plans of growing size. Query time through the grid should stay
+// roughly flat while the linear scan grows with the room count.
+//
+//   javac -d out FloorPlanner.java benchmarks/RoomIndexBenchmark.java
+//   java -cp out RoomIndexBenchmark
+public class RoomIndexBenchmark {
+    static final int QUERIES = 20_000;
+
+    public static void main(String[] args) {
+        int[] sizes = {1_000, 10_000, 100_000};
+        System.out.printf("%10s %16s %16s%n", "rooms", "grid ns/query", "linear ns/query");
+        for (int n : sizes) {
+            ArrayList<Rectangle> rooms = generatePlan(n);
+            FloorPlanner.SpatialGrid<Rectangle> index = new FloorPlanner.SpatialGrid<>();
+            for (Rectangle r : rooms) {
+                index.update(r, r.x, r.y, r.width, r.height);
+            }
+            Rectangle[] probes = generateProbes(rooms, QUERIES);
+
+            // Warm up both paths before timing
+            for (int i = 0; i < 3; i++) {
+                runGrid(index, probes);
+                runLinear(rooms, probes);
+            }
+            long gridNanos = time(() -> runGrid(index, probes));
+            long linearNanos = time(() -> runLinear(rooms, probes));
+            System.out.printf("%10d %16d %16d%n", n, gridNanos / QUERIES, linearNanos / QUERIES);
+        }
+    }
+
+    // Rooms laid out edge to edge in rows, the way addRoom wraps them
+    static ArrayList<Rectangle> generatePlan(int n) {
+        Random random = new Random(42);
+        ArrayList<Rectangle> rooms = new ArrayList<>(n);
+        int perRow = (int) Math.ceil(Math.sqrt(n));
+        int x = 0, y = 0;
+        for (int i = 0; i < n; i++) {
+            int width = 100 + random.nextInt(5) * 20;
+            rooms.add(new Rectangle(x, y, width, 180));
+            x += width;
+            if ((i + 1) % perRow == 0) {
+                x = 0;
+                y += 180;
+            }
+        }
+        return rooms;
+    }
+
+    static Rectangle[] generateProbes(ArrayList<Rectangle> rooms, int count) {
+        Random random = new Random(7);
+        Rectangle[] probes = new Rectangle[count];
+        for (int i = 0; i < count; i++) {
+            Rectangle r = rooms.get(random.nextInt(rooms.size()));
+            probes[i] = new Rectangle(r.x + r.width, r.y, 200, 200);
+        }
+        return probes;
+    }
+
+    static int runGrid(FloorPlanner.SpatialGrid<Rectangle> index, Rectangle[] probes) {
+        int hits = 0;
+        for (Rectangle p : probes) {
+            if (!index.query(p.x, p.y, p.width, p.height, r -> !overlaps(r, p))) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    static int runLinear(ArrayList<Rectangle> rooms, Rectangle[] probes) {
+        int hits = 0;
+        for (Rectangle p : probes) {
+            for (Rectangle r : rooms) {
+                if (overlaps(r, p)) {
+                    hits++;
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+
+    // Same test as Room.intersects: touching walls do not count as overlap
+    static boolean overlaps(Rectangle a, Rectangle b) {
+        return !(a.x + a.width <= b.x || b.x + b.width <= a.x ||
+                 a.y + a.height <= b.y || b.y + b.height <= a.y);
+    }
+
+    static long time(Runnable task) {
+        long start = System.nanoTime();
+        task.run();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+// Packs generated plans of 100k and 1M rooms into a FloorPlanner.RoomStore and
+// times its bulk queries against the same answers got one room at a time from
+// the plan's SpatialGrid and WallModel: every overlapping pair, the sides each
+// room shares with a neighbour, and the sides its doors open. Also times linking
+// the wall model from scratch, side by side (WallModel.updateAll) and in one sweep
+// over a store (WallModel.rebuild). Rooms are jittered off a grid, so some
+// overlap, some share walls and some stand apart, and each answer is checked
+// against the one-at-a-time version.
+//
+//   javac -d out FloorPlanner.java benchmarks/RoomStoreBenchmark.java
+//   java -Djava.awt.headless=true -Xmx4g -cp out:. RoomStoreBenchmark
+public class RoomStoreBenchmark {
+    static final int RUNS = 3;
+
+    public static void main(String[] args) {
+        System.out.printf("%10s %10s %22s %22s %22s %22s%n", "rooms", "pack ms",
+                          "overlaps ms grid/store", "shared ms model/store", "doors ms model/store", "walls ms each/sweep");
+        for (int n : new int[]{100_000, 1_000_000}) {
+            ArrayList<FloorPlanner.Room> rooms = generateRooms(n);
+            FloorPlanner.FloorPlan plan = new FloorPlanner.FloorPlan();
+            plan.rooms = rooms;
+            plan.reindex();
+
+            long start = System.nanoTime();
+            FloorPlanner.RoomStore store = null;
+            for (int run = 0; run < RUNS; run++) {
+                store = FloorPlanner.RoomStore.of(rooms);
+            }
+            double packMs = (System.nanoTime() - start) / 1e6 / RUNS;
+
+            // Overlapping pairs, as checkOverlap finds them one room at a time
+            long gridPairs = 0, storePairs = 0;
+            double gridMs = Double.MAX_VALUE, storeMs = Double.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                start = System.nanoTime();
+                gridPairs = gridOverlaps(plan);
+                gridMs = Math.min(gridMs, (System.nanoTime() - start) / 1e6);
+                long[] pairs = new long[1];
+                start = System.nanoTime();
+                store.forEachOverlap((a, b) -> ++pairs[0] > 0);
+                storeMs = Math.min(storeMs, (System.nanoTime() - start) / 1e6);
+                storePairs = pairs[0];
+            }
+            check(gridPairs == storePairs, n + " rooms: the store finds the " + gridPairs + " overlapping pairs the grid does");
+
+            // Linking the wall model side by side, and in one sweep
+            int[] open = new int[n], hidden = new int[n];
+            start = System.nanoTime();
+            FloorPlanner.WallModel each = new FloorPlanner.WallModel();
+            each.updateAll(rooms);
+            double eachMs = (System.nanoTime() - start) / 1e6;
+            for (int i = 0; i < n; i++) {
+                open[i] = rooms.get(i).openWalls;
+                hidden[i] = rooms.get(i).hiddenWalls;
+                rooms.get(i).openWalls = rooms.get(i).hiddenWalls = -1;
+            }
+            start = System.nanoTime();
+            FloorPlanner.WallModel swept = new FloorPlanner.WallModel();
+            swept.rebuild(rooms);
+            double sweepMs = (System.nanoTime() - start) / 1e6;
+            boolean same = true;
+            for (int i = 0; i < n; i++) {
+                FloorPlanner.Room room = rooms.get(i);
+                same &= open[i] == room.openWalls && hidden[i] == room.hiddenWalls;
+                for (int side = 0; side < 4; side++) {
+                    same &= neighbours(each, room, side).equals(neighbours(swept, room, side));
+                }
+            }
+            check(same, n + " rooms: a swept rebuild links, opens and hides the walls a side-by-side one does");
+
+            // Shared sides, as hasAdjacentRoom asks WallModel for them
+            int[] modelShared = new int[n], storeShared = null;
+            double modelSharedMs = Double.MAX_VALUE, storeSharedMs = Double.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                start = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    FloorPlanner.Room room = store.room(i);
+                    int mask = 0;
+                    for (int side = 0; side < 4; side++) {
+                        mask |= each.isShared(room, side) ? 1 << side : 0;
+                    }
+                    modelShared[i] = mask;
+                }
+                modelSharedMs = Math.min(modelSharedMs, (System.nanoTime() - start) / 1e6);
+                start = System.nanoTime();
+                storeShared = store.sharedSides();
+                storeSharedMs = Math.min(storeSharedMs, (System.nanoTime() - start) / 1e6);
+            }
+            check(java.util.Arrays.equals(modelShared, storeShared), n + " rooms: the store shares the sides WallModel does");
+
+            // Sides opened by doors
+            int[] modelDoors = new int[n], storeDoors = null;
+            double modelDoorsMs = Double.MAX_VALUE, storeDoorsMs = Double.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                start = System.nanoTime();
+                for (int i = 0; i < n; i++) {
+                    FloorPlanner.WallModel.WallSide[] sides = each.sidesOf(store.room(i));
+                    int mask = 0;
+                    for (FloorPlanner.WallModel.WallSide side : sides) {
+                        mask |= side.doors.isEmpty() ? 0 : 1 << side.side;
+                    }
+                    modelDoors[i] = mask;
+                }
+                modelDoorsMs = Math.min(modelDoorsMs, (System.nanoTime() - start) / 1e6);
+                start = System.nanoTime();
+                storeDoors = store.doorSides();
+                storeDoorsMs = Math.min(storeDoorsMs, (System.nanoTime() - start) / 1e6);
+            }
+            check(java.util.Arrays.equals(modelDoors, storeDoors), n + " rooms: the store opens the sides WallModel does");
+
+            System.out.printf("%10d %10.1f %22s %22s %22s %22s%n", n, packMs,
+                              String.format("%.1f / %.1f", gridMs, storeMs),
+                              String.format("%.1f / %.1f", modelSharedMs, storeSharedMs),
+                              String.format("%.1f / %.1f", modelDoorsMs, storeDoorsMs),
+                              String.format("%.0f / %.0f", eachMs, sweepMs));
+        }
+    }
+
+    // Rooms on a 200-unit grid, most filling their cell and touching their
+    // neighbours, some shrunk, and some nudged far enough to overlap or to leave a
+    // gap just inside or outside the wall tolerance
+    static ArrayList<FloorPlanner.Room> generateRooms(int n) {
+        Random random = new Random(42);
+        String[] roomTypes = {"Bedroom", "Bathroom", "Kitchen", "Living Room"};
+        ArrayList<FloorPlanner.Room> rooms = new ArrayList<>(n);
+        int perRow = (int) Math.ceil(Math.sqrt(n));
+        for (int i = 0; i < n; i++) {
+            int x = (i % perRow) * 200, y = (i / perRow) * 200, width = 200, height = 200;
+            switch (random.nextInt(6)) {
+                case 0: width -= random.nextInt(60); break;
+                case 1: height -= random.nextInt(60); break;
+                case 2: x += random.nextInt(15) - 7; break;
+                case 3: y += random.nextInt(15) - 7; break;
+                default:
+            }
+            FloorPlanner.Room room = new FloorPlanner.Room(x, y, width, height, roomTypes[random.nextInt(4)], FloorPlanner.BEDROOM_COLOR);
+            room.doors.add(new FloorPlanner.Door(random.nextInt(width), random.nextBoolean() ? 0 : height - random.nextInt(12), false, 40));
+            if (random.nextBoolean()) {
+                room.windows.add(new FloorPlanner.Window(random.nextBoolean() ? 0 : width, random.nextInt(height), true));
+            }
+            rooms.add(room);
+        }
+        return rooms;
+    }
+
+    // The rooms sharing a side of room, which two models should agree on though
+    // their WallSide objects differ
+    static java.util.Set<FloorPlanner.Room> neighbours(FloorPlanner.WallModel walls, FloorPlanner.Room room, int side) {
+        java.util.Set<FloorPlanner.Room> rooms = java.util.Collections.newSetFromMap(new java.util.IdentityHashMap<>());
+        for (FloorPlanner.WallModel.WallSide other : walls.sidesOf(room)[side].shared) {
+            rooms.add(other.room);
+        }
+        return rooms;
+    }
+
+    // Each overlapping pair once, found by asking the grid about every room in turn
+    static long gridOverlaps(FloorPlanner.FloorPlan plan) {
+        long[] pairs = new long[1];
+        for (FloorPlanner.Room room : plan.rooms) {
+            plan.roomIndex.query(room.x, room.y, room.width, room.height, other -> {
+                if (other != room && other.intersects(room)) {
+                    pairs[0]++;
+                }
+                return true;
+            });
+        }
+        return pairs[0] / 2;
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+        System.out.println("OK: " + what);
+    }
+}
@@ -0,0 +1,82 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Random;
+
+// Draws 10k furniture items, a quarter of them rotated, with icons resampled on
+// every draw and with FloorPlanner.SpriteCache blitting pre-scaled sprites, at
+// 1x and at a 2x device scale, and counts the pixels where the two differ.
+//
+//   javac -d out FloorPlanner.java benchmarks/SpriteCacheBenchmark.java
+//   java -Djava.awt.headless=true -cp out:. SpriteCacheBenchmark
+public class SpriteCacheBenchmark {
+    static final int ITEMS = 10_000;
+    static final int SIZE = 2000;
+    static final int RUNS = 10;
+
+    public static void main(String[] args) {
+        FloorPlanner.loadIcons();
+        ArrayList<FloorPlanner.FurnitureItem> items = generateItems();
+        FloorPlanner.SpriteCache cache = new FloorPlanner.SpriteCache(FloorPlanner.SpriteCache.DEFAULT_BUDGET);
+
+        System.out.printf("%-6s %14s %14s %12s%n", "scale", "resample ms", "sprite ms", "diff px");
+        for (double scale : new double[] {1.0, 2.0}) {
+            BufferedImage direct = new BufferedImage((int) (SIZE * scale), (int) (SIZE * scale), BufferedImage.TYPE_INT_RGB);
+            BufferedImage blitted = new BufferedImage(direct.getWidth(), direct.getHeight(), BufferedImage.TYPE_INT_RGB);
+            long resample = Long.MAX_VALUE, sprite = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                FloorPlanner.SpriteCache.shared = null;
+                resample = Math.min(resample, draw(direct, items, scale));
+                FloorPlanner.SpriteCache.shared = cache;
+                sprite = Math.min(sprite, draw(blitted, items, scale));
+            }
+            System.out.printf("%-6.1f %14.1f %14.1f %12d%n", scale, resample / 1e6, sprite / 1e6, diff(direct, blitted));
+        }
+        System.out.println(cache.size() + " sprites, " + cache.bytes() / 1024 + " KB, " +
+                           cache.hits() + " hits, " + cache.misses() + " misses");
+    }
+
+    static ArrayList<FloorPlanner.FurnitureItem> generateItems() {
+        Random random = new Random(42);
+        String[] furniture = FloorPlanner.FURNITURE_DIMENSIONS.keySet().toArray(new String[0]);
+        String[] fixtures = FloorPlanner.FIXTURE_DIMENSIONS.keySet().toArray(new String[0]);
+        ArrayList<FloorPlanner.FurnitureItem> items = new ArrayList<>();
+        for (int i = 0; i < ITEMS; i++) {
+            boolean isFixture = random.nextBoolean();
+            String[] types = isFixture ? fixtures : furniture;
+            FloorPlanner.FurnitureItem item = new FloorPlanner.FurnitureItem(
+                    random.nextInt(SIZE - 100), random.nextInt(SIZE - 100), types[random.nextInt(types.length)], isFixture);
+            if (random.nextInt(4) == 0) {
+                item.rotate();
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    static long draw(BufferedImage image, ArrayList<FloorPlanner.FurnitureItem> items, double scale) {
+        Graphics2D g2d = image.createGraphics();
+        g2d.setColor(FloorPlanner.PlanPainter.BACKGROUND);
+        g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g2d.scale(scale, scale);
+        long start = System.nanoTime();
+        for (FloorPlanner.FurnitureItem item : items) {
+            item.draw(g2d);
+        }
+        long elapsed = System.nanoTime() - start;
+        g2d.dispose();
+        return elapsed;
+    }
+
+    static int diff(BufferedImage a, BufferedImage b) {
+        int count = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if (a.getRGB(x, y) != b.getRGB(x, y)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
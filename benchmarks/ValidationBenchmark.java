@@ -0,0 +1,212 @@
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+// Times FloorPlanner.PlanValidator on generated plans of 100k and 1M rooms, each
+// with a furniture item: a full check on one thread and on the common pool, and
+// an incremental check after a hundred rooms are dragged, some removed and some
+// furniture added. The rooms are RoomStoreBenchmark's jittered grid, so rooms
+// overlap, doors face outside and windows sit between rooms, and some furniture
+// is moved out of its room or onto another item. The counts per rule are checked
+// against the same rules applied room by room through the plan's own WallModel
+// and spatial grids, as the canvas applies them, and the incremental result
+// against a full check of the same version. Last, the 100k plan is saved and
+// opened lazily with only a corner shown, and a check of it with the unloaded
+// pages read in must find what a check of the plan in memory found.
+//
+//   javac -d out FloorPlanner.java benchmarks/RoomStoreBenchmark.java benchmarks/ValidationBenchmark.java
+//   java -Djava.awt.headless=true -Xmx4g -cp out:. ValidationBenchmark
+public class ValidationBenchmark {
+    static final int RUNS = 3;
+    static final int DRAGGED = 100;
+
+    public static void main(String[] args) throws Exception {
+        ForkJoinPool oneThread = new ForkJoinPool(1);
+        System.out.printf("%10s %12s %14s %14s %16s %12s%n", "rooms", "violations", "1 thread ms",
+                          ForkJoinPool.commonPool().getParallelism() + " threads ms", "incremental ms", "rechecked");
+        for (int n : new int[]{100_000, 1_000_000}) {
+            FloorPlanner.FloorPlan plan = generatePlan(n);
+            FloorPlanner.PlanVersion version = plan.publish();
+
+            List<FloorPlanner.PlanValidator.Violation> violations = null;
+            double sequentialMs = Double.MAX_VALUE, parallelMs = Double.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                new FloorPlanner.PlanValidator(oneThread).validate(version);
+                sequentialMs = Math.min(sequentialMs, (System.nanoTime() - start) / 1e6);
+                start = System.nanoTime();
+                violations = new FloorPlanner.PlanValidator().validate(version);
+                parallelMs = Math.min(parallelMs, (System.nanoTime() - start) / 1e6);
+            }
+            check(counts(violations).equals(reference(plan)),
+                  n + " rooms: the validator finds what the canvas's rules find, rule by rule " + counts(violations));
+
+            // Drag some rooms, remove some and add furniture, then check only what changed
+            FloorPlanner.PlanValidator validator = new FloorPlanner.PlanValidator();
+            validator.validate(version);
+            Random random = new Random(3);
+            for (int i = 0; i < DRAGGED; i++) {
+                FloorPlanner.Room room = plan.rooms.get(random.nextInt(plan.rooms.size()));
+                room.x += random.nextInt(41) - 20;
+                room.y += random.nextInt(41) - 20;
+                plan.roomChanged(room);
+            }
+            for (int i = 0; i < DRAGGED / 10; i++) {
+                plan.removeRoom(plan.rooms.get(random.nextInt(plan.rooms.size())));
+                FloorPlanner.Room room = plan.rooms.get(random.nextInt(plan.rooms.size()));
+                plan.addFurniture(new FloorPlanner.FurnitureItem(room.x + 40, room.y + 60, "chair", false));
+            }
+            FloorPlanner.PlanVersion edited = plan.publish();
+            long start = System.nanoTime();
+            List<FloorPlanner.PlanValidator.Violation> incremental = validator.validate(edited);
+            double incrementalMs = (System.nanoTime() - start) / 1e6;
+            int rechecked = validator.roomsChecked + validator.itemsChecked;
+            check(same(incremental, new FloorPlanner.PlanValidator().validate(edited)),
+                  n + " rooms: an incremental check finds what a full check of the edited plan does");
+            check(counts(incremental).equals(reference(plan)), n + " rooms: and what the canvas's rules find in it");
+
+            System.out.printf("%10d %12d %14.0f %14.0f %16.1f %12d%n", n, violations.size(), sequentialMs, parallelMs,
+                              incrementalMs, rechecked);
+        }
+        oneThread.shutdown();
+        paged();
+    }
+
+    static void paged() throws Exception {
+        FloorPlanner.FloorPlan plan = generatePlan(100_000);
+        Map<Integer, Integer> expected = counts(new FloorPlanner.PlanValidator().validate(plan.publish()));
+        File file = File.createTempFile("validation", "." + FloorPlanner.PlanFile.EXTENSION);
+        file.deleteOnExit();
+        plan.save(file);
+        FloorPlanner.FloorPlan opened = FloorPlanner.FloorPlan.open(file);
+        opened.showPages(new Rectangle(0, 0, 1000, 1000));
+        FloorPlanner.PlanVersion loaded = opened.publish();
+        check(loaded.partial && loaded.roomCount < plan.rooms.size(), "paged: the published version holds only the loaded pages");
+        FloorPlanner.PlanVersion whole = opened.pagedPlan.unloaded().addTo(loaded, null);
+        check(!whole.partial && whole.roomCount == plan.rooms.size() && whole.itemCount == plan.furnitureItems.size()
+              && counts(new FloorPlanner.PlanValidator().validate(whole)).equals(expected),
+              "paged: with the rest read in, the check finds what it finds in the plan in memory");
+        opened.close();
+        file.delete();
+    }
+
+    // RoomStoreBenchmark's rooms, each with an item in a random spot near its
+    // corner, which for rooms that were shrunk or nudged may be outside it or on
+    // a neighbour's item
+    static FloorPlanner.FloorPlan generatePlan(int n) {
+        Random random = new Random(11);
+        FloorPlanner.FloorPlan plan = new FloorPlanner.FloorPlan();
+        plan.rooms = RoomStoreBenchmark.generateRooms(n);
+        for (FloorPlanner.Room room : plan.rooms) {
+            plan.furnitureItems.add(new FloorPlanner.FurnitureItem(room.x + random.nextInt(200) - 10, room.y + random.nextInt(60),
+                                                                   random.nextBoolean() ? "bed" : "sofa", false));
+        }
+        plan.reindex();
+        return plan;
+    }
+
+    static Map<Integer, Integer> counts(List<FloorPlanner.PlanValidator.Violation> violations) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (FloorPlanner.PlanValidator.Violation violation : violations) {
+            counts.merge(violation.rule, 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    // Whether two checks of the same version found the same problems with the same objects
+    static boolean same(List<FloorPlanner.PlanValidator.Violation> a, List<FloorPlanner.PlanValidator.Violation> b) {
+        Map<String, Integer> keys = new HashMap<>();
+        for (FloorPlanner.PlanValidator.Violation violation : a) {
+            keys.merge(key(violation), 1, Integer::sum);
+        }
+        for (FloorPlanner.PlanValidator.Violation violation : b) {
+            keys.merge(key(violation), -1, Integer::sum);
+        }
+        for (int count : keys.values()) {
+            if (count != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String key(FloorPlanner.PlanValidator.Violation violation) {
+        return violation.rule + " " + System.identityHashCode(violation.subject) + " " + System.identityHashCode(violation.other);
+    }
+
+    // The count of each rule broken, found a room at a time on the live plan: shared
+    // walls from its WallModel, as hasAdjacentRoom reads them, and overlaps from its
+    // spatial grids, as checkOverlap and furnitureOverlaps find them. Overlapping
+    // pairs are found from both ends and halved.
+    static Map<Integer, Integer> reference(FloorPlanner.FloorPlan plan) {
+        int[] counts = new int[FloorPlanner.PlanValidator.RULE_NAMES.length];
+        for (FloorPlanner.Room room : plan.rooms) {
+            plan.roomIndex.query(room.x, room.y, room.width, room.height, other -> {
+                counts[FloorPlanner.PlanValidator.ROOM_OVERLAP] += other != room && other.intersects(room) ? 1 : 0;
+                return true;
+            });
+            int shared = 0;
+            for (int side = 0; side < 4; side++) {
+                shared |= plan.walls.isShared(room, side) ? 1 << side : 0;
+            }
+            for (int i = 0; i < room.doors.size(); i++) {
+                FloorPlanner.Door door = room.doors.get(i);
+                int px = room.x + door.offsetX, py = room.y + door.offsetY;
+                int sides = FloorPlanner.PlanValidator.sidesAt(room, px, py, 5);
+                if (sides == 0) {
+                    counts[FloorPlanner.PlanValidator.DOOR_OFF_WALL]++;
+                } else if ((room.type.equals("Bedroom") || room.type.equals("Bathroom")) && (sides & ~shared) != 0) {
+                    counts[FloorPlanner.PlanValidator.DOOR_FACING_OUTSIDE]++;
+                }
+                int length = door.isVertical ? room.height : room.width;
+                for (int j = 0; j < i; j++) {
+                    FloorPlanner.Door other = room.doors.get(j);
+                    counts[FloorPlanner.PlanValidator.DOOR_OVERLAP] += FloorPlanner.PlanValidator.openingsOverlap(
+                            px, py, room.x + other.offsetX, room.y + other.offsetY, length, door.isVertical) ? 1 : 0;
+                }
+                for (FloorPlanner.Window window : room.windows) {
+                    int wx = room.x + window.offsetX, wy = room.y + window.offsetY;
+                    counts[FloorPlanner.PlanValidator.DOOR_OVERLAP] +=
+                            FloorPlanner.PlanValidator.openingsOverlap(px, py, wx, wy, 30, window.isVertical)
+                            || FloorPlanner.PlanValidator.openingsOverlap(wx, wy, px, py, length, door.isVertical) ? 1 : 0;
+                }
+            }
+            for (FloorPlanner.Window window : room.windows) {
+                int sides = FloorPlanner.PlanValidator.sidesAt(room, room.x + window.offsetX, room.y + window.offsetY, 3);
+                if (sides == 0) {
+                    counts[FloorPlanner.PlanValidator.WINDOW_OFF_WALL]++;
+                } else if ((sides & shared) != 0) {
+                    counts[FloorPlanner.PlanValidator.WINDOW_BETWEEN_ROOMS]++;
+                }
+            }
+        }
+        counts[FloorPlanner.PlanValidator.ROOM_OVERLAP] /= 2;
+        for (FloorPlanner.FurnitureItem item : plan.furnitureItems) {
+            counts[FloorPlanner.PlanValidator.FURNITURE_OUTSIDE_ROOMS] += plan.roomAt(item.x, item.y) == null ? 1 : 0;
+            plan.furnitureIndex.query(item.x, item.y, item.size.width, item.size.height, other -> {
+                counts[FloorPlanner.PlanValidator.FURNITURE_OVERLAP] += other != item && other.intersects(item) ? 1 : 0;
+                return true;
+            });
+        }
+        counts[FloorPlanner.PlanValidator.FURNITURE_OVERLAP] /= 2;
+        Map<Integer, Integer> result = new HashMap<>();
+        for (int rule = 0; rule < counts.length; rule++) {
+            if (counts[rule] > 0) {
+                result.put(rule, counts[rule]);
+            }
+        }
+        return result;
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("Failed: " + what);
+        }
+        System.out.println("OK: " + what);
+    }
+}
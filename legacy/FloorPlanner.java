@@ -0,0 +1,20 @@
+package legacy;
+
+import java.awt.Container;
+
+// Inert stand-ins for the planner window and canvas, for reading .ser plans saved
+// before the binary format. Rooms and furniture were inner classes then, so those
+// files hold the whole window through each object's outer reference. Reading it
+// back as a real JFrame would build Swing components off the EDT, and fails with
+// no display. FloorPlan.LegacyPlanInputStream reads them as these instead:
+// serialization matches classes by the name after the last dot, so these keep
+// the old names in a package of their own. They extend Container so the
+// components inside still take them as their parent, but the JFrame and JPanel
+// data above that is read and thrown away.
+public class FloorPlanner extends Container {
+    private static final long serialVersionUID = -9032601476052817808L;
+
+    public static class DrawingCanvas extends Container {
+        private static final long serialVersionUID = 7531735807317710699L;
+    }
+}